@@ -0,0 +1,57 @@
+package com.miro.widget;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares two JMH JSON result files, e.g. of two releases, printing the relative change of every benchmark
+ * and parameter combination found in both.
+ * <p>
+ * Usage: JmhResultDiff &lt;baseline.json&gt; &lt;candidate.json&gt;
+ */
+public class JmhResultDiff {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: JmhResultDiff <baseline.json> <candidate.json>");
+			System.exit(2);
+		}
+		Map<String, JsonNode> baseline = read(new File(args[0]));
+		Map<String, JsonNode> candidate = read(new File(args[1]));
+		System.out.printf("%14s %14s %8s %-6s %s%n", "Baseline", "Candidate", "Change", "Unit", "Benchmark");
+		for (Map.Entry<String, JsonNode> e : candidate.entrySet()) {
+			JsonNode old = baseline.get(e.getKey());
+			if (null == old)
+				continue;
+			double before = old.path("primaryMetric").path("score").asDouble();
+			double after = e.getValue().path("primaryMetric").path("score").asDouble();
+			String unit = e.getValue().path("primaryMetric").path("scoreUnit").asText();
+			System.out.printf("%14.3f %14.3f %+7.1f%% %-6s %s%n", before, after,
+					(0 == before) ? 0.0 : (after - before) * 100 / before, unit, e.getKey());
+		}
+	}
+
+	/**
+	 * @return the results of a file, keyed by benchmark name and parameters
+	 */
+	private static Map<String, JsonNode> read(File file) throws IOException {
+		Map<String, JsonNode> results = new LinkedHashMap<>();
+		for (JsonNode result : new ObjectMapper().readTree(file)) {
+			StringBuilder key = new StringBuilder(result.path("benchmark").asText());
+			key.append(" t=").append(result.path("threads").asInt());
+			Iterator<Map.Entry<String, JsonNode>> params = result.path("params").fields();
+			while (params.hasNext()) {
+				Map.Entry<String, JsonNode> p = params.next();
+				key.append(' ').append(p.getKey()).append('=').append(p.getValue().asText());
+			}
+			results.put(key.toString(), result);
+		}
+		return results;
+	}
+}
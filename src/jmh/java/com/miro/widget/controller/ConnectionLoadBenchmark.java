@@ -0,0 +1,129 @@
+package com.miro.widget.controller;
+
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import com.miro.widget.WidgetServerApplication;
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+import com.miro.widget.service.WidgetService;
+
+/**
+ * The servlet and the reactive mode of the widget endpoints at high connection counts. Each invocation sends a wave
+ * of {@code connections} concurrent requests, half of them widget reads, half small searches, while
+ * {@code watchers} idle change feed clients stay connected and a writer moves {@code writesPerSecond} widgets in
+ * z order, holding the repository write lock for its shifts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConnectionLoadBenchmark {
+
+	@Param({ "servlet", "reactive" })
+	public String mode;
+
+	@Param({ "200", "2000" })
+	public int connections;
+
+	@Param({ "1000" })
+	public int watchers;
+
+	@Param({ "50000" })
+	public int widgets;
+
+	@Param({ "200" })
+	public int writesPerSecond;
+
+	private ConfigurableApplicationContext app;
+	private ConnectionProvider pool;
+	private WebClient client;
+	private Disposable watching;
+	private Thread writer;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		app = new SpringApplicationBuilder(WidgetServerApplication.class)
+				.properties("server.port=0", "spring.main.web-application-type=" + mode, "logging.level.root=WARN")
+				.run();
+		WidgetService service = app.getBean(WidgetService.class);
+		Random rnd = new Random(7);
+		for (int i = 0; i < widgets; i++)
+			service.addWidget(new Widget(null, rnd.nextInt(10_000), rnd.nextInt(10_000), null, 10, 10));
+
+		int port = ((WebServerApplicationContext) app).getWebServer().getPort();
+		pool = ConnectionProvider.builder("load").maxConnections(connections + watchers)
+				.pendingAcquireMaxCount(-1).build();
+		client = WebClient.builder().baseUrl("http://localhost:" + port)
+				.clientConnector(new ReactorClientHttpConnector(HttpClient.create(pool))).build();
+		watching = Flux.range(0, watchers)
+				.flatMap(i -> client.get().uri("/widgets/changes?lowerX={x}&lowerY=0&upperX={x}&upperY=0", -1 - i, -1 - i)
+						.accept(MediaType.TEXT_EVENT_STREAM).retrieve().bodyToFlux(String.class), watchers)
+				.subscribe();
+
+		writer = new Thread(() -> {
+			ThreadLocalRandom r = ThreadLocalRandom.current();
+			while (!Thread.currentThread().isInterrupted()) {
+				Widget w = service.getWidgetById(1 + r.nextInt(widgets));
+				service.updateWidget(new Widget(w.getId(), w.getX(), w.getY(), r.nextInt(widgets), 10, 10));
+				LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1) / writesPerSecond);
+			}
+		}, "writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		writer.interrupt();
+		writer.join();
+		watching.dispose();
+		pool.disposeLater().block(Duration.ofSeconds(10));
+		app.close();
+	}
+
+	@Benchmark
+	public Long wave() {
+		return Flux.range(0, connections).flatMap(i -> request(i), connections).count().block();
+	}
+
+	private Mono<byte[]> request(int i) {
+		ThreadLocalRandom r = ThreadLocalRandom.current();
+		if (0 == i % 2)
+			return client.get().uri("/widgets/{id}", 1 + r.nextInt(widgets)).retrieve().bodyToMono(byte[].class);
+		int x = r.nextInt(10_000), y = r.nextInt(10_000);
+		return client.post().uri("/widgets/search").bodyValue(new SearchBounds(x, y, x + 200, y + 200))
+				.retrieve().bodyToMono(byte[].class);
+	}
+}
@@ -0,0 +1,95 @@
+package com.miro.widget.controller;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.miro.widget.model.CompactWidgetList;
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+import com.miro.widget.repo.WidgetInMemRepo;
+import com.miro.widget.service.WidgetServiceProperties;
+
+/**
+ * Encoding and decoding a viewport of widgets, as found by a search, as JSON (serialized by Jackson or
+ * concatenated from cached fragments) and as a {@link CompactWidgetList}. The payload sizes are printed by the
+ * setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+
+	@Param({ "20000" })
+	public int widgets;
+
+	private final ObjectMapper mapper = Jackson2ObjectMapperBuilder.json().build();
+	private WidgetJsonFragments fragments;
+	private List<Widget> viewport;
+	private byte[] json;
+	private byte[] compact;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		WidgetInMemRepo repo = new WidgetInMemRepo();
+		Random rnd = new Random(3);
+		//four times the viewport on the board, with every fifth widget inserted below others
+		for (int i = 0; i < 4 * widgets; i++) {
+			Integer z = (0 == i % 5) ? Integer.valueOf(rnd.nextInt(i + 1)) : null;
+			repo.save(new Widget(null, rnd.nextInt(20_000), rnd.nextInt(20_000), z, 10 + rnd.nextInt(190), 10 + rnd.nextInt(190)));
+		}
+		viewport = new ArrayList<>();
+		repo.search(new SearchBounds(0, 0, 10_200, 10_200)).forEach(viewport::add);
+		fragments = new WidgetJsonFragments(mapper, new WidgetServiceProperties());
+		json = mapper.writeValueAsBytes(viewport);
+		compact = CompactWidgetList.encode(viewport);
+		System.out.printf("%n%d widgets: JSON %d bytes (%.1f per widget), compact %d bytes (%.1f per widget)%n",
+				viewport.size(), json.length, (double) json.length / viewport.size(), compact.length,
+				(double) compact.length / viewport.size());
+	}
+
+	@Benchmark
+	public byte[] encodeJson() throws IOException {
+		return mapper.writeValueAsBytes(viewport);
+	}
+
+	@Benchmark
+	public byte[] encodeJsonFragments() {
+		return fragments.toJsonArray(viewport);
+	}
+
+	@Benchmark
+	public byte[] encodeCompact() {
+		return CompactWidgetList.encode(viewport);
+	}
+
+	@Benchmark
+	public Widget[] decodeJson() throws IOException {
+		return mapper.readValue(json, Widget[].class);
+	}
+
+	@Benchmark
+	public List<Widget> decodeCompact() {
+		return CompactWidgetList.decode(compact);
+	}
+}
@@ -0,0 +1,107 @@
+package com.miro.widget.repo;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+
+/**
+ * Compares the spatial index implementations on uniform and skewed widget layouts,
+ * for viewport sized containment queries and for add/delete churn.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpatialIndexBenchmark {
+
+	static final int BOARD_SIZE = 100_000;
+	static final int VIEWPORT_WIDTH = 1920;
+	static final int VIEWPORT_HEIGHT = 1080;
+
+	@Param({ "CARTESIAN", "PRIMITIVE", "RTREE", "GRID" })
+	public WidgetRepoProperties.IndexType index;
+
+	@Param({ "uniform", "skewed" })
+	public String layout;
+
+	@Param({ "100000" })
+	public int widgets;
+
+	private SpatialIndex xyIndex;
+	private Widget[] board;
+	private SearchBounds[] viewports;
+	private final LongList buffer = new LongList();
+	private Random rnd;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		WidgetRepoProperties props = new WidgetRepoProperties();
+		props.setIndex(index);
+		props.setGridCellSize(1024);
+		xyIndex = props.createIndex();
+		rnd = new Random(7);
+		board = new Widget[widgets];
+		for (int i = 0; i < widgets; i++) {
+			board[i] = randomWidget(i + 1);
+			xyIndex.add(board[i], board[i].getId());
+		}
+		viewports = new SearchBounds[1024];
+		for (int i = 0; i < viewports.length; i++) {
+			Widget anchor = board[rnd.nextInt(widgets)];
+			viewports[i] = new SearchBounds(anchor.getX(), anchor.getY(),
+					anchor.getX() + VIEWPORT_WIDTH, anchor.getY() + VIEWPORT_HEIGHT);
+		}
+	}
+
+	@Benchmark
+	public Object viewportSearch() {
+		return xyIndex.filter(viewports[(next++) & (viewports.length - 1)]);
+	}
+
+	@Benchmark
+	public int viewportSearchInto() {
+		buffer.clear();
+		xyIndex.filterInto(viewports[(next++) & (viewports.length - 1)], buffer);
+		return buffer.size();
+	}
+
+	@Benchmark
+	public void moveWidget() {
+		int i = rnd.nextInt(widgets);
+		Widget old = board[i];
+		xyIndex.delete(old, old.getId());
+		board[i] = randomWidget(old.getId());
+		xyIndex.add(board[i], board[i].getId());
+	}
+
+	private Widget randomWidget(long id) {
+		int x, y;
+		if ("skewed".equals(layout)) {
+			//most widgets crowd a small hot area, a quarter of them share x=0
+			x = (rnd.nextInt(4) == 0) ? 0 : (int) (rnd.nextGaussian() * 3000);
+			y = (int) (rnd.nextGaussian() * 3000);
+		} else {
+			x = rnd.nextInt(BOARD_SIZE);
+			y = rnd.nextInt(BOARD_SIZE);
+		}
+		return new Widget(id, x, y, 0, 10 + rnd.nextInt(190), 10 + rnd.nextInt(190));
+	}
+}
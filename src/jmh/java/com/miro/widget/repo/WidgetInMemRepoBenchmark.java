@@ -0,0 +1,134 @@
+package com.miro.widget.repo;
+
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+import com.miro.widget.model.ZPage;
+
+/**
+ * Single threaded cost of the WidgetInMemRepo operations, by board size, spatial layout, z index layout and
+ * search selectivity.
+ * <p>
+ * With "contiguous" z runs all widgets hold z index values 0..n-1, so saving at an occupied z index shifts
+ * everything above it. With "sparse" z runs every other value is free and a shift moves a single widget.
+ * Writes keep the board size and z layout stable: moveToOccupiedZ moves the top widget into a random occupied
+ * z index, which shifts the run above it back up to the top.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WidgetInMemRepoBenchmark {
+
+	static final int BOARD_SIZE = 100_000;
+	static final int VIEWPORTS = 128;
+
+	@Param({ "10000", "100000" })
+	public int widgets;
+
+	@Param({ "uniform", "clustered" })
+	public String layout;
+
+	@Param({ "contiguous", "sparse" })
+	public String zRuns;
+
+	//fraction of the board area covered by a search
+	@Param({ "0.001", "0.01", "0.1" })
+	public double selectivity;
+
+	@Param({ "CARTESIAN" })
+	public WidgetRepoProperties.IndexType index;
+
+	@Param({ "false" })
+	public boolean searchCache;
+
+	//estimated share of matches from which searches scan the geometry columns, none disables the columns
+	@Param({ "none" })
+	public String scanThreshold;
+
+	private WidgetInMemRepo repo;
+	private SearchBounds[] viewports;
+	private Random rnd;
+	private int next;
+	private int zStep;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		WidgetRepoProperties props = new WidgetRepoProperties();
+		props.setIndex(index);
+		repo = new WidgetInMemRepo(props.createIndex(), searchCache ? new SearchResultCache() : null,
+				"none".equals(scanThreshold) ? null : new WidgetColumns(Double.parseDouble(scanThreshold)));
+		rnd = new Random(7);
+		zStep = "sparse".equals(zRuns) ? 2 : 1;
+		for (int i = 0; i < widgets; i++)
+			repo.save(randomWidget(null, i * zStep));
+		int side = (int) (BOARD_SIZE * Math.sqrt(selectivity));
+		viewports = new SearchBounds[VIEWPORTS];
+		for (int i = 0; i < viewports.length; i++) {
+			int x = rnd.nextInt(BOARD_SIZE - side), y = rnd.nextInt(BOARD_SIZE - side);
+			viewports[i] = new SearchBounds(x, y, x + side, y + side);
+		}
+	}
+
+	@Benchmark
+	public Iterable<Widget> search() {
+		return repo.search(viewports[(next++) & (VIEWPORTS - 1)]);
+	}
+
+	@Benchmark
+	public Optional<Widget> findById() {
+		return repo.findById(1l + rnd.nextInt(widgets));
+	}
+
+	@Benchmark
+	public Widget moveToOccupiedZ() {
+		Widget top = repo.findPage(new ZPage(null, Integer.MAX_VALUE, 1)).get(0);
+		return repo.save(randomWidget(top.getId(), rnd.nextInt(widgets) * zStep));
+	}
+
+	@Benchmark
+	public Widget saveOnTop() {
+		Widget saved = repo.save(randomWidget(null, null));
+		repo.deleteById(saved.getId());
+		return saved;
+	}
+
+	@Benchmark
+	public Widget deleteAndReinsert() {
+		Widget old = repo.findById(1l + rnd.nextInt(widgets)).get();
+		repo.deleteById(old.getId());
+		return repo.save(randomWidget(old.getId(), old.getzIndex()));
+	}
+
+	private Widget randomWidget(Long id, Integer z) {
+		int x, y;
+		if ("clustered".equals(layout)) {
+			//a few hot areas, as on boards where work happens around some focal points
+			int cluster = rnd.nextInt(8);
+			x = Math.floorMod((int) (cluster * 12_345L + rnd.nextGaussian() * 2000), BOARD_SIZE);
+			y = Math.floorMod((int) (cluster * 54_321L + rnd.nextGaussian() * 2000), BOARD_SIZE);
+		} else {
+			x = rnd.nextInt(BOARD_SIZE);
+			y = rnd.nextInt(BOARD_SIZE);
+		}
+		return new Widget(id, x, y, z, 10 + rnd.nextInt(190), 10 + rnd.nextInt(190));
+	}
+}
@@ -0,0 +1,66 @@
+package com.miro.widget.repo;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.miro.widget.model.Widget;
+
+/**
+ * Heap footprint and full GC pause of a board held by WidgetInMemRepo versus WidgetOffHeapRepo, both with the
+ * primitive cartesian index. The score is the time of one full collection with the board live, the memory
+ * the board occupies is printed by the trial setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx4g", "-XX:+UseParallelGC" })
+public class WidgetRepoFootprintBenchmark {
+
+	@Param({ "1000000" })
+	public int widgets;
+
+	@Param({ "inmem", "offheap" })
+	public String repo;
+
+	private WidgetRepository board;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		System.gc();
+		long before = memory.getHeapMemoryUsage().getUsed();
+		board = "offheap".equals(repo) ? new WidgetOffHeapRepo(new PrimitiveCartesianIndex())
+				: new WidgetInMemRepo(new PrimitiveCartesianIndex(), null);
+		Random rnd = new Random(7);
+		for (int i = 0; i < widgets; i++)
+			board.save(new Widget(null, rnd.nextInt(100_000), rnd.nextInt(100_000), null, 10 + rnd.nextInt(190), 10 + rnd.nextInt(190)));
+		System.gc();
+		long heapBytes = memory.getHeapMemoryUsage().getUsed() - before;
+		long offHeapBytes = (board instanceof WidgetOffHeapRepo) ? (long) widgets * WidgetSlots.SLOT_BYTES : 0;
+		System.out.printf("%n%s with %d widgets: %.1f MB heap, %.1f MB off-heap%n", repo, widgets, heapBytes / 1e6,
+				offHeapBytes / 1e6);
+	}
+
+	@Benchmark
+	public long fullGc() {
+		System.gc();
+		return board.count();
+	}
+}
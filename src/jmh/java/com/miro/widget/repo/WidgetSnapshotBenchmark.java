@@ -0,0 +1,83 @@
+package com.miro.widget.repo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.miro.widget.model.Widget;
+
+/**
+ * Cost of taking and restoring snapshots, by board size and spatial index: capture happens while writes are
+ * excluded, write and restore (mapping the file and rebuilding the repository) happen at startup or in the
+ * background.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xmx4g" })
+public class WidgetSnapshotBenchmark {
+
+	@Param({ "1000000" })
+	public int widgets;
+
+	@Param({ "CARTESIAN", "GRID" })
+	public WidgetRepoProperties.IndexType index;
+
+	private WidgetInMemRepo repo;
+	private WidgetSnapshot snapshot;
+	private Path file;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		repo = new WidgetInMemRepo(new CartesianIndex(), null);
+		Random rnd = new Random(7);
+		for (int i = 0; i < widgets; i++)
+			repo.save(new Widget(null, rnd.nextInt(100_000), rnd.nextInt(100_000), null, 10 + rnd.nextInt(190), 10 + rnd.nextInt(190)));
+		snapshot = repo.snapshot();
+		file = Files.createTempFile("widgets", ".snapshot");
+		snapshot.write(file);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public WidgetSnapshot capture() {
+		return repo.snapshot();
+	}
+
+	@Benchmark
+	public Path write() throws IOException {
+		snapshot.write(file);
+		return file;
+	}
+
+	@Benchmark
+	public WidgetInMemRepo restore() throws IOException {
+		WidgetRepoProperties props = new WidgetRepoProperties();
+		props.setIndex(index);
+		WidgetInMemRepo restored = new WidgetInMemRepo(props.createIndex(), null);
+		restored.restore(WidgetSnapshot.read(file));
+		return restored;
+	}
+}
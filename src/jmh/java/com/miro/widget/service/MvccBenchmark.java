@@ -0,0 +1,87 @@
+package com.miro.widget.service;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.miro.widget.model.Widget;
+import com.miro.widget.repo.WidgetInMemRepo;
+import com.miro.widget.repo.WidgetMvccRepo;
+import com.miro.widget.repo.WidgetRepository;
+
+/**
+ * Latency percentiles of full board reads and of writes running at the same time, for WidgetInMemRepo
+ * (under the read/write lock) and WidgetMvccRepo (lock free reads).
+ * The retained heap per widget of each repository is printed once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MvccBenchmark {
+
+	static final int BOARD_SIZE = 20_000;
+
+	@Param({ "inmem", "mvcc" })
+	public String repo;
+
+	@Param({ "20000" })
+	public int widgets;
+
+	private WidgetService service;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		long before = usedHeap();
+		WidgetRepository widgetRepo = "mvcc".equals(repo) ? new WidgetMvccRepo() : new WidgetInMemRepo();
+		Random rnd = new Random(5);
+		for (int i = 0; i < widgets; i++)
+			widgetRepo.save(new Widget(null, rnd.nextInt(BOARD_SIZE), rnd.nextInt(BOARD_SIZE), null, 50, 50));
+		System.out.println("Retained heap for " + repo + ": " + (usedHeap() - before) / widgets + " bytes/widget");
+		WidgetServiceProperties props = new WidgetServiceProperties();
+		props.setLocking(WidgetServiceProperties.LockMode.READ_WRITE);
+		service = new WidgetService(props);
+		service.widgetRepo = widgetRepo;
+	}
+
+	@Benchmark
+	@Group("readWhileWriting")
+	@GroupThreads(3)
+	public List<Widget> readAll() {
+		return service.getAllWidgets();
+	}
+
+	@Benchmark
+	@Group("readWhileWriting")
+	@GroupThreads(1)
+	public Widget write() {
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		return service.updateWidget(new Widget(1l + rnd.nextInt(widgets), rnd.nextInt(BOARD_SIZE),
+				rnd.nextInt(BOARD_SIZE), rnd.nextInt(widgets), 50, 50));
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
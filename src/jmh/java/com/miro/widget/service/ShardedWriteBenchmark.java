@@ -0,0 +1,90 @@
+package com.miro.widget.service;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.miro.widget.model.Widget;
+import com.miro.widget.repo.CartesianIndex;
+import com.miro.widget.repo.WidgetInMemRepo;
+import com.miro.widget.repo.WidgetRepository;
+import com.miro.widget.repo.WidgetShardedRepo;
+
+/**
+ * Write throughput through WidgetService with 4 writer threads, for WidgetInMemRepo (writes serialized by the
+ * service lock) and WidgetShardedRepo by shard count (writes to different shards in parallel).
+ * Writers drag widgets by a few pixels, keeping their z index values, or add new ones on top.
+ * The shard count is ignored by WidgetInMemRepo. Scaling needs at least as many cores as writer threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ShardedWriteBenchmark {
+
+	static final int BOARD_SIZE = 100_000;
+
+	@Param({ "inmem", "sharded" })
+	public String repo;
+
+	@Param({ "1", "2", "4", "8" })
+	public int shards;
+
+	@Param({ "100000" })
+	public int widgets;
+
+	private WidgetService service;
+	private WidgetRepository widgetRepo;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		widgetRepo = "sharded".equals(repo) ? new WidgetShardedRepo(shards, 1024, CartesianIndex::new)
+				: new WidgetInMemRepo(new CartesianIndex(), null);
+		Random rnd = new Random(3);
+		for (int i = 0; i < widgets; i++)
+			widgetRepo.save(new Widget(null, rnd.nextInt(BOARD_SIZE), rnd.nextInt(BOARD_SIZE), i, 50, 50));
+		WidgetServiceProperties props = new WidgetServiceProperties();
+		props.setLocking(WidgetServiceProperties.LockMode.READ_WRITE);
+		service = new WidgetService(props);
+		service.widgetRepo = widgetRepo;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (widgetRepo instanceof WidgetShardedRepo)
+			((WidgetShardedRepo) widgetRepo).close();
+	}
+
+	@Benchmark
+	public Widget drag() {
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		long id = 1l + rnd.nextInt(widgets);
+		Widget w = service.getWidgetById(id);
+		return service.updateWidget(new Widget(id, w.getX() + rnd.nextInt(-8, 9), w.getY() + rnd.nextInt(-8, 9),
+				w.getzIndex(), 50, 50));
+	}
+
+	@Benchmark
+	public Widget addOnTop() {
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		return service.addWidget(new Widget(null, rnd.nextInt(BOARD_SIZE), rnd.nextInt(BOARD_SIZE), null, 50, 50));
+	}
+}
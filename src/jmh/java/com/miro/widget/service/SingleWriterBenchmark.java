@@ -0,0 +1,102 @@
+package com.miro.widget.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.miro.widget.model.Widget;
+import com.miro.widget.repo.WidgetInMemRepo;
+import com.miro.widget.repo.WriteAheadLog;
+
+/**
+ * Write throughput of 16 threads through WidgetService, with writes applied by the calling threads under the write
+ * lock or handed to the single writer, which applies them in groups. Writers drag widgets by a few pixels or move
+ * them to a random z index, shifting others. With fsync ALWAYS every write waits for the write-ahead log on disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class SingleWriterBenchmark {
+
+	static final int BOARD_SIZE = 100_000;
+
+	@Param({ "LOCKED", "SINGLE_WRITER" })
+	public WidgetServiceProperties.WriteMode writes;
+
+	@Param({ "NONE", "ALWAYS" })
+	public String fsync;
+
+	@Param({ "100000" })
+	public int widgets;
+
+	private WidgetService service;
+	private WidgetInMemRepo widgetRepo;
+	private Path walDir;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		widgetRepo = new WidgetInMemRepo();
+		Random rnd = new Random(3);
+		for (int i = 0; i < widgets; i++)
+			widgetRepo.save(new Widget(null, rnd.nextInt(BOARD_SIZE), rnd.nextInt(BOARD_SIZE), i, 50, 50));
+		if (!"NONE".equals(fsync)) {
+			walDir = Files.createTempDirectory("wal");
+			widgetRepo.recover(new WriteAheadLog(walDir, 64 << 20, WriteAheadLog.FsyncPolicy.valueOf(fsync), 100));
+		}
+		WidgetServiceProperties props = new WidgetServiceProperties();
+		props.setWrites(writes);
+		service = new WidgetService(props);
+		service.widgetRepo = widgetRepo;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		service.stop();
+		widgetRepo.close();
+		if (null != walDir)
+			try (Stream<Path> files = Files.walk(walDir)) {
+				files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+	}
+
+	@Benchmark
+	public Widget drag() {
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		long id = 1l + rnd.nextInt(widgets);
+		Widget w = service.getWidgetById(id);
+		return service.updateWidget(new Widget(id, w.getX() + rnd.nextInt(-8, 9), w.getY() + rnd.nextInt(-8, 9),
+				w.getzIndex(), 50, 50));
+	}
+
+	@Benchmark
+	public Widget moveInZ() {
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		long id = 1l + rnd.nextInt(widgets);
+		Widget w = service.getWidgetById(id);
+		return service.updateWidget(new Widget(id, w.getX(), w.getY(), rnd.nextInt(widgets), 50, 50));
+	}
+}
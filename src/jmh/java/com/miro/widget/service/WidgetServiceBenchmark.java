@@ -0,0 +1,109 @@
+package com.miro.widget.service;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+import com.miro.widget.repo.WidgetInMemRepo;
+import com.miro.widget.repo.WidgetRepoProperties;
+
+/**
+ * Throughput of WidgetService under the available lock modes.
+ * Read scaling is measured by running the read benchmarks with an increasing thread count, e.g. "-t 1", "-t 4".
+ * The "mixed" group runs 7 searching threads against 1 writing thread, about the traffic mix seen in production.
+ * Other mixes are measured by readWriteMix, where every thread writes in writePercent of its operations,
+ * e.g. "readWriteMix -t 8 -p writePercent=0,10,50".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WidgetServiceBenchmark {
+
+	static final int BOARD_SIZE = 20_000;
+
+	@Param({ "MONITOR", "READ_WRITE" })
+	public WidgetServiceProperties.LockMode locking;
+
+	@Param({ "10000" })
+	public int widgets;
+
+	@Param({ "10" })
+	public int writePercent;
+
+	private WidgetService service;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		WidgetServiceProperties props = new WidgetServiceProperties();
+		props.setLocking(locking);
+		service = new WidgetService(props);
+		WidgetRepoProperties repoProps = new WidgetRepoProperties();
+		repoProps.setIndex(WidgetRepoProperties.IndexType.RTREE);
+		service.widgetRepo = new WidgetInMemRepo(repoProps);
+		Random rnd = new Random(5);
+		for (int i = 0; i < widgets; i++)
+			service.addWidget(new Widget(null, rnd.nextInt(BOARD_SIZE), rnd.nextInt(BOARD_SIZE), null, 50, 50));
+	}
+
+	@Benchmark
+	public List<Widget> search() {
+		return service.search(randomViewport());
+	}
+
+	@Benchmark
+	public Widget getById() {
+		return service.getWidgetById(1 + ThreadLocalRandom.current().nextInt(widgets));
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(7)
+	public List<Widget> mixedSearch() {
+		return service.search(randomViewport());
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public Widget mixedUpdate() {
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		return service.updateWidget(new Widget(1l + rnd.nextInt(widgets), rnd.nextInt(BOARD_SIZE),
+				rnd.nextInt(BOARD_SIZE), rnd.nextInt(widgets), 50, 50));
+	}
+
+	@Benchmark
+	public Object readWriteMix() {
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		if (rnd.nextInt(100) < writePercent)
+			return service.updateWidget(new Widget(1l + rnd.nextInt(widgets), rnd.nextInt(BOARD_SIZE),
+					rnd.nextInt(BOARD_SIZE), rnd.nextInt(widgets), 50, 50));
+		return service.search(randomViewport());
+	}
+
+	private static SearchBounds randomViewport() {
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		int x = rnd.nextInt(BOARD_SIZE), y = rnd.nextInt(BOARD_SIZE);
+		return new SearchBounds(x, y, x + 1920, y + 1080);
+	}
+}
@@ -0,0 +1,105 @@
+package com.miro.widget.controller;
+
+import java.util.List;
+
+import javax.validation.ConstraintViolationException;
+import javax.validation.Valid;
+import javax.validation.constraints.Pattern;
+import javax.validation.constraints.Positive;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.miro.widget.model.BatchResult;
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+import com.miro.widget.model.WidgetBatch;
+import com.miro.widget.model.ZPage;
+import com.miro.widget.service.BoardRegistry;
+
+/**
+ * The widget endpoints of {@link WidgetRestController} for the boards of the {@link BoardRegistry}, each of which
+ * is independent of the others and of the default board served at /widgets.
+ */
+@RestController
+@Validated
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@RequestMapping("/boards/{boardId}")
+public class BoardRestController {
+
+	@Autowired
+	BoardRegistry boards;
+
+	/**
+	 * Lists all widgets of the board, or one page of them if any of limit, afterZ or beforeZ is given.
+	 */
+	@GetMapping("/widgets")
+	public List<Widget> getWidgets(@PathVariable @Pattern(regexp = BoardRegistry.BOARD_ID) String boardId,
+			@RequestParam(required = false) @Positive Integer limit,
+			@RequestParam(required = false) Integer afterZ, @RequestParam(required = false) Integer beforeZ) {
+		if ((null == limit) && (null == afterZ) && (null == beforeZ))
+			return boards.withBoard(boardId, s -> s.getAllWidgets());
+		return boards.withBoard(boardId, s -> s.getWidgets(new ZPage(afterZ, beforeZ, limit)));
+	}
+
+	@GetMapping("/widgets/{id}")
+	public Widget getWidget(@PathVariable @Pattern(regexp = BoardRegistry.BOARD_ID) String boardId,
+			@PathVariable("id") long id) {
+		return boards.withBoard(boardId, s -> s.getWidgetById(id));
+	}
+
+	@PostMapping("/widgets")
+	public Widget addWidget(@PathVariable @Pattern(regexp = BoardRegistry.BOARD_ID) String boardId,
+			@Valid @RequestBody Widget widget) {
+		return boards.withBoard(boardId, s -> s.addWidget(widget));
+	}
+
+	@DeleteMapping("/widgets/{id}")
+	public void deleteWidget(@PathVariable @Pattern(regexp = BoardRegistry.BOARD_ID) String boardId,
+			@PathVariable("id") long id) {
+		boards.withBoard(boardId, s -> {
+			s.deleteWidgetById(id);
+			return null;
+		});
+	}
+
+	@PutMapping("/widgets/{id}")
+	public Widget updateWidget(@PathVariable @Pattern(regexp = BoardRegistry.BOARD_ID) String boardId,
+			@Valid @RequestBody Widget widget) {
+		return boards.withBoard(boardId, s -> s.updateWidget(widget));
+	}
+
+	@PostMapping("/widgets/search")
+	public List<Widget> searchWidgets(@PathVariable @Pattern(regexp = BoardRegistry.BOARD_ID) String boardId,
+			@Valid @RequestBody SearchBounds bounds, @RequestParam(required = false) @Positive Integer limit,
+			@RequestParam(required = false) Integer afterZ, @RequestParam(required = false) Integer beforeZ) {
+		if ((null == limit) && (null == afterZ) && (null == beforeZ))
+			return boards.withBoard(boardId, s -> s.search(bounds));
+		return boards.withBoard(boardId, s -> s.search(bounds, new ZPage(afterZ, beforeZ, limit)));
+	}
+
+	@PostMapping("/widgets/batch")
+	public List<BatchResult> applyBatch(@PathVariable @Pattern(regexp = BoardRegistry.BOARD_ID) String boardId,
+			@Valid @RequestBody WidgetBatch batch) {
+		return boards.withBoard(boardId, s -> s.applyBatch(batch));
+	}
+
+	@ExceptionHandler(ConstraintViolationException.class)
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	public String badParameter(ConstraintViolationException e) {
+		return e.getMessage();
+	}
+}
@@ -0,0 +1,64 @@
+package com.miro.widget.controller;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import com.miro.widget.service.ReplicationNode;
+import com.miro.widget.service.ReplicationProperties;
+
+/**
+ * Read-your-writes for replicated nodes: a request with {@link #MIN_POSITION_HEADER}, as returned by a write in
+ * {@link #POSITION_HEADER}, waits up to widget.replication.read-wait-ms for this node to reach that position, and
+ * fails with 503 if it does not, to be retried on another node or the leader. Every response tells the position
+ * it reflects at least.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class ReplicationInterceptor implements HandlerInterceptor, WebMvcConfigurer {
+
+	public static final String POSITION_HEADER = "X-Widget-Position";
+	public static final String MIN_POSITION_HEADER = "X-Widget-Min-Position";
+
+	//null unless replicated
+	@Autowired(required = false)
+	ReplicationNode replication;
+
+	@Autowired
+	ReplicationProperties props;
+
+	@Override
+	public void addInterceptors(InterceptorRegistry registry) {
+		registry.addInterceptor(this).addPathPatterns("/widgets/**", "/widgets");
+	}
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler)
+			throws Exception {
+		if (null == replication)
+			return true;
+		String min = request.getHeader(MIN_POSITION_HEADER);
+		if (null != min) {
+			boolean reached;
+			try {
+				reached = replication.awaitPosition(min, props.getReadWaitMs());
+			} catch (IllegalArgumentException e) {
+				response.sendError(HttpStatus.BAD_REQUEST.value(), e.getMessage());
+				return false;
+			}
+			if (!reached) {
+				response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), "Replica has not reached position " + min);
+				return false;
+			}
+		}
+		response.setHeader(POSITION_HEADER, replication.formatPosition());
+		return true;
+	}
+}
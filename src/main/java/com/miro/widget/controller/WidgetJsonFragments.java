@@ -0,0 +1,193 @@
+package com.miro.widget.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import com.miro.widget.model.Widget;
+import com.miro.widget.repo.Mutation;
+import com.miro.widget.repo.MutationListener;
+import com.miro.widget.repo.WidgetInMemRepo;
+import com.miro.widget.repo.WidgetRepository;
+import com.miro.widget.service.WidgetServiceProperties;
+
+/**
+ * The JSON of each widget as last serialized, so that lists of mostly unchanged widgets are written by copying
+ * bytes instead of serializing every field again.
+ * <p>
+ * A fragment is only used for a widget equal in all fields, update time included, to the one it was serialized
+ * from, so updates and z index shifts replace it on the next read. Fragments of deleted widgets are dropped as
+ * the inmem repository notifies the deletes. At most widget.service.json-fragments are kept, beyond which the
+ * CLOCK policy evicts one not read since the hand last passed it for each new one.
+ */
+@Component
+public class WidgetJsonFragments implements MutationListener, MeterBinder {
+
+	@Autowired
+	WidgetRepository widgetRepo;
+
+	private final ObjectWriter writer;
+	private final int maxFragments;
+	private final Map<Long, Fragment> fragments = new ConcurrentHashMap<>();
+	//ids in the order fragments were added, some of them dropped since, and the CLOCK hand over them, guarded by this
+	private long[] slots = new long[16];
+	private int usedSlots;
+	private int hand;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	@Autowired
+	public WidgetJsonFragments(ObjectMapper objectMapper, WidgetServiceProperties props) {
+		this.writer = objectMapper.writerFor(Widget.class);
+		this.maxFragments = props.getJsonFragments();
+	}
+
+	@PostConstruct
+	public void start() {
+		if (widgetRepo instanceof WidgetInMemRepo)
+			((WidgetInMemRepo) widgetRepo).addListener(this);
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		FunctionCounter.builder("widget.json.fragments", hits, LongAdder::sum).tag("result", "hit")
+				.description("Widgets written from their cached JSON").register(registry);
+		FunctionCounter.builder("widget.json.fragments", misses, LongAdder::sum).tag("result", "miss")
+				.description("Widgets serialized to JSON").register(registry);
+		Gauge.builder("widget.json.fragments.size", fragments, Map::size)
+				.description("Widgets kept serialized as JSON").register(registry);
+	}
+
+	@Override
+	public void onMutation(Mutation m) {
+		switch (m.getType()) {
+		case DELETE:
+			fragments.remove(m.getId());
+			break;
+		case DELETE_ALL:
+			fragments.clear();
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @return the JSON of the given widget, not to be modified
+	 */
+	public byte[] get(Widget w) {
+		boolean cached = (0 != maxFragments) && (null != w.getId());
+		Fragment f = cached ? fragments.get(w.getId()) : null;
+		if ((null != f) && f.matches(w)) {
+			f.referenced = true;
+			hits.increment();
+			return f.json;
+		}
+		byte[] json;
+		try {
+			json = writer.writeValueAsBytes(w);
+		} catch (JsonProcessingException e) {
+			throw new IllegalStateException("Cannot serialize " + w, e);
+		}
+		misses.increment();
+		if (!cached)
+			return json;
+		add(w, json);
+		return json;
+	}
+
+	/**
+	 * Keeps a fragment, taking the slot of a stale one or of the first not referenced under the hand once all
+	 * slots are used. Only misses get here, which serialize a widget anyway.
+	 */
+	private synchronized void add(Widget w, byte[] json) {
+		long id = w.getId();
+		if (null != fragments.put(id, new Fragment(w, json)))
+			return;
+		if (usedSlots < maxFragments) {
+			if (usedSlots == slots.length)
+				slots = Arrays.copyOf(slots, (int) Math.min(maxFragments, 2L * slots.length));
+			slots[usedSlots++] = id;
+			return;
+		}
+		while (true) {
+			Fragment victim = fragments.get(slots[hand]);
+			if ((null != victim) && victim.referenced) {
+				victim.referenced = false;
+			} else {
+				if (slots[hand] != id)
+					fragments.remove(slots[hand]);
+				slots[hand] = id;
+				hand = (hand + 1) % usedSlots;
+				return;
+			}
+			hand = (hand + 1) % usedSlots;
+		}
+	}
+
+	/**
+	 * @return the JSON array of the given widgets
+	 */
+	public byte[] toJsonArray(List<Widget> widgets) {
+		byte[][] parts = new byte[widgets.size()][];
+		int size = 2 + Math.max(0, parts.length - 1);
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = get(widgets.get(i));
+			size += parts[i].length;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+		out.write('[');
+		for (int i = 0; i < parts.length; i++) {
+			if (i > 0)
+				out.write(',');
+			out.write(parts[i], 0, parts[i].length);
+		}
+		out.write(']');
+		return out.toByteArray();
+	}
+
+	/**
+	 * The JSON of a widget and the fields it was serialized from, id aside.
+	 */
+	private static final class Fragment {
+		private final int x, y, z, width, height;
+		private final Instant updateTime;
+		private final byte[] json;
+		//read since the CLOCK hand last passed, a lost update only makes eviction less exact
+		private boolean referenced;
+
+		Fragment(Widget w, byte[] json) {
+			this.x = w.getX();
+			this.y = w.getY();
+			this.z = w.getzIndex();
+			this.width = w.getWidth();
+			this.height = w.getHeight();
+			this.updateTime = w.getUpdateTime();
+			this.json = json;
+		}
+
+		boolean matches(Widget w) {
+			return (z == w.getzIndex()) && Objects.equals(updateTime, w.getUpdateTime()) && (x == w.getX())
+					&& (y == w.getY()) && (width == w.getWidth()) && (height == w.getHeight());
+		}
+	}
+}
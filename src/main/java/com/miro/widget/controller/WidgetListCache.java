@@ -0,0 +1,147 @@
+package com.miro.widget.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+import com.miro.widget.model.Widget;
+import com.miro.widget.service.WidgetService;
+import com.miro.widget.service.WidgetServiceProperties;
+
+/**
+ * The full widget list as serialized JSON, and optionally gzipped, for the current repository version only.
+ * Repeated reads of an unchanged board are written from these bytes, and answered by their ETag.
+ * <p>
+ * ETags combine the version with a random epoch of this instance, as versions start over on restart.
+ */
+@Component
+public class WidgetListCache implements MeterBinder {
+
+	/**
+	 * The serialized list at one version.
+	 */
+	public static final class Entry {
+		private final long version;
+		private final String etag;
+		private final byte[] json;
+		//null unless gzipped copies are kept
+		private final byte[] gzip;
+
+		Entry(long version, String etag, byte[] json, byte[] gzip) {
+			this.version = version;
+			this.etag = etag;
+			this.json = json;
+			this.gzip = gzip;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return the quoted entity tag of the JSON, with a "-gz" suffix for the gzipped copy
+		 */
+		public String getEtag(boolean gzipped) {
+			return gzipped ? etag.substring(0, etag.length() - 1) + "-gz\"" : etag;
+		}
+
+		public byte[] getJson() {
+			return json;
+		}
+
+		/**
+		 * @return the gzipped JSON, or null if none is kept
+		 */
+		public byte[] getGzip() {
+			return gzip;
+		}
+	}
+
+	@Autowired
+	WidgetService widgetService;
+
+	@Autowired
+	WidgetJsonFragments fragments;
+
+	private final boolean gzip;
+	private final String epoch = Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+	private volatile Entry current;
+	private volatile MeterRegistry registry = new CompositeMeterRegistry();
+
+	@Autowired
+	public WidgetListCache(WidgetServiceProperties props) {
+		this.gzip = props.isGzipList();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		this.registry = registry;
+		Gauge.builder("widget.list.cache.bytes", this, WidgetListCache::size).baseUnit("bytes")
+				.description("Size of the serialized widget list, including its gzipped copy").register(registry);
+	}
+
+	/**
+	 * @return the list serialized at the current version, serializing it only if the repository changed since,
+	 * or null if the repository keeps no version
+	 */
+	public Entry get() {
+		long version = widgetService.getVersion();
+		if (version < 0)
+			return null;
+		Entry e = current;
+		if ((null != e) && (e.version == version)) {
+			count("hit");
+			return e;
+		}
+		synchronized (this) {
+			//another reader may have serialized it meanwhile
+			e = current;
+			if ((null != e) && (e.version >= widgetService.getVersion())) {
+				count("hit");
+				return e;
+			}
+			WidgetService.Versioned<List<Widget>> list = widgetService.getAllWidgetsVersioned();
+			e = serialize(list.getVersion(), list.getValue());
+			current = e;
+			count("miss");
+			return e;
+		}
+	}
+
+	private Entry serialize(long version, List<Widget> widgets) {
+		try {
+			byte[] json = fragments.toJsonArray(widgets);
+			byte[] gzipped = null;
+			if (gzip) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(json.length / 4 + 64);
+				try (GZIPOutputStream gz = new GZIPOutputStream(out, 64 * 1024)) {
+					gz.write(json);
+				}
+				gzipped = out.toByteArray();
+			}
+			return new Entry(version, "\"" + epoch + "-" + version + "\"", json, gzipped);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void count(String result) {
+		registry.counter("widget.list.cache", "result", result).increment();
+	}
+
+	private double size() {
+		Entry e = current;
+		return (null == e) ? 0 : e.json.length + ((null == e.gzip) ? 0 : e.gzip.length);
+	}
+}
@@ -0,0 +1,286 @@
+package com.miro.widget.controller;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import javax.validation.ConstraintViolationException;
+import javax.validation.Valid;
+import javax.validation.constraints.Positive;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import com.miro.widget.model.BatchResult;
+import com.miro.widget.model.CompactWidgetList;
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+import com.miro.widget.model.WidgetBatch;
+import com.miro.widget.model.ZPage;
+import com.miro.widget.service.ChangeFeedProperties;
+import com.miro.widget.service.ReadOnlyReplicaException;
+import com.miro.widget.service.WidgetChangeFeed;
+import com.miro.widget.service.WidgetService;
+
+/**
+ * The widget endpoints of {@link WidgetRestController} on Spring WebFlux, served instead of it with
+ * spring.main.web-application-type=reactive.
+ * <p>
+ * WidgetService calls may wait for the repository lock, so they run on the bounded elastic scheduler, never on
+ * event loop threads. Streams are Fluxes pulling widgets from the service as the client reads them, and the
+ * change feed waits for the client's demand on the feed's own threads.
+ */
+@RestController
+@Validated
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class WidgetReactiveController {
+
+	@Autowired
+	WidgetService widgetService;
+
+	@Autowired
+	WidgetChangeFeed changeFeed;
+
+	@Autowired
+	ChangeFeedProperties feedProps;
+
+	@Autowired
+	WidgetListCache listCache;
+
+	@Autowired
+	WidgetJsonFragments fragments;
+
+	private final Scheduler blocking = Schedulers.boundedElastic();
+
+	@RequestMapping("/")
+	public Mono<String> index() {
+		return Mono.just("Welcome to Widgets!");
+	}
+
+	/**
+	 * Lists all widgets or one page of them, like {@link WidgetRestController#getWidgets}.
+	 */
+	@GetMapping("/widgets")
+	public Mono<ResponseEntity<byte[]>> getWidgets(@RequestParam(required = false) @Positive Integer limit,
+			@RequestParam(required = false) Integer afterZ, @RequestParam(required = false) Integer beforeZ,
+			@RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+		return offload(() -> {
+			if ((null != limit) || (null != afterZ) || (null != beforeZ))
+				return WidgetResponses.json(fragments, widgetService.getWidgets(new ZPage(afterZ, beforeZ, limit)));
+			WidgetListCache.Entry list = listCache.get();
+			if (null == list)
+				return WidgetResponses.json(fragments, widgetService.getAllWidgets());
+			return WidgetResponses.list(list, acceptEncoding);
+		});
+	}
+
+	/**
+	 * Streams all widgets in ascending z order as newline delimited JSON, reading further pages as the client
+	 * reads.
+	 */
+	@GetMapping(value = "/widgets", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public Flux<Widget> streamWidgets() {
+		return stream(widgetService::streamAllWidgets);
+	}
+
+	@GetMapping(value = "/widgets", produces = CompactWidgetList.MEDIA_TYPE)
+	public Mono<ResponseEntity<byte[]>> getWidgetsCompact(@RequestParam(required = false) @Positive Integer limit,
+			@RequestParam(required = false) Integer afterZ, @RequestParam(required = false) Integer beforeZ) {
+		return offload(() -> {
+			if ((null == limit) && (null == afterZ) && (null == beforeZ))
+				return WidgetResponses.compact(widgetService.getAllWidgets());
+			return WidgetResponses.compact(widgetService.getWidgets(new ZPage(afterZ, beforeZ, limit)));
+		});
+	}
+
+	@GetMapping("/widgets/{id}")
+	public Mono<Widget> getWidget(@PathVariable("id") long id) {
+		return offload(() -> widgetService.getWidgetById(id));
+	}
+
+	@PostMapping("/widgets")
+	public Mono<Widget> addWidget(@Valid @RequestBody Widget widget) {
+		return offload(() -> widgetService.addWidget(widget));
+	}
+
+	@DeleteMapping("/widgets/{id}")
+	public Mono<Void> deleteWidget(@PathVariable("id") long id) {
+		return Mono.fromRunnable(() -> widgetService.deleteWidgetById(id)).subscribeOn(blocking).then();
+	}
+
+	@PutMapping("/widgets/{id}")
+	public Mono<Widget> updateWidget(@Valid @RequestBody Widget widget) {
+		return offload(() -> widgetService.updateWidget(widget));
+	}
+
+	@PostMapping("/widgets/search")
+	public Mono<ResponseEntity<byte[]>> searchWidgets(@Valid @RequestBody SearchBounds bounds,
+			@RequestParam(required = false) @Positive Integer limit,
+			@RequestParam(required = false) Integer afterZ, @RequestParam(required = false) Integer beforeZ) {
+		return offload(() -> {
+			if ((null == limit) && (null == afterZ) && (null == beforeZ))
+				return WidgetResponses.json(fragments, widgetService.search(bounds));
+			return WidgetResponses.json(fragments, widgetService.search(bounds, new ZPage(afterZ, beforeZ, limit)));
+		});
+	}
+
+	@PostMapping(value = "/widgets/search", produces = CompactWidgetList.MEDIA_TYPE)
+	public Mono<ResponseEntity<byte[]>> searchWidgetsCompact(@Valid @RequestBody SearchBounds bounds,
+			@RequestParam(required = false) @Positive Integer limit,
+			@RequestParam(required = false) Integer afterZ, @RequestParam(required = false) Integer beforeZ) {
+		return offload(() -> {
+			if ((null == limit) && (null == afterZ) && (null == beforeZ))
+				return WidgetResponses.compact(widgetService.search(bounds));
+			return WidgetResponses.compact(widgetService.search(bounds, new ZPage(afterZ, beforeZ, limit)));
+		});
+	}
+
+	/**
+	 * Streams the search results in ascending z order as newline delimited JSON, as the client reads them.
+	 */
+	@PostMapping(value = "/widgets/search", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public Flux<Widget> streamSearch(@Valid @RequestBody SearchBounds bounds) {
+		return stream(() -> widgetService.streamSearch(bounds));
+	}
+
+	/**
+	 * Pushes the changes to the widgets within the viewport as server-sent events, like
+	 * {@link WidgetRestController#changes}.
+	 */
+	@GetMapping(value = "/widgets/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public Flux<ServerSentEvent<Object>> changes(@RequestParam(required = false) Integer lowerX,
+			@RequestParam(required = false) Integer lowerY, @RequestParam(required = false) Integer upperX,
+			@RequestParam(required = false) Integer upperY) {
+		SearchBounds viewport = WidgetResponses.viewport(lowerX, lowerY, upperX, upperY);
+		return Flux.create(sink -> {
+			WidgetChangeFeed.Subscription subscription = changeFeed.subscribe(viewport,
+					new DemandSink(sink, feedProps.getHeartbeatMs()));
+			sink.onDispose(() -> changeFeed.unsubscribe(subscription));
+		});
+	}
+
+	@PostMapping("/widgets/batch")
+	public Mono<List<BatchResult>> applyBatch(@Valid @RequestBody WidgetBatch batch) {
+		return offload(() -> widgetService.applyBatch(batch));
+	}
+
+	@ExceptionHandler(ConstraintViolationException.class)
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	public String badParameter(ConstraintViolationException e) {
+		return e.getMessage();
+	}
+
+	@ExceptionHandler(UnsupportedOperationException.class)
+	@ResponseStatus(HttpStatus.NOT_IMPLEMENTED)
+	public String unsupported(UnsupportedOperationException e) {
+		return e.getMessage();
+	}
+
+	@ExceptionHandler(ReadOnlyReplicaException.class)
+	@ResponseStatus(HttpStatus.CONFLICT)
+	public String readOnly(ReadOnlyReplicaException e) {
+		return e.getMessage();
+	}
+
+	/**
+	 * Calls the service off the event loop.
+	 */
+	private <T> Mono<T> offload(Callable<T> call) {
+		return Mono.fromCallable(call).subscribeOn(blocking);
+	}
+
+	/**
+	 * Iterates off the event loop as far as the client requested, as requests are forwarded to the scheduler too.
+	 */
+	private Flux<Widget> stream(Callable<Iterable<Widget>> widgets) {
+		return Flux.defer(() -> {
+			try {
+				return Flux.fromIterable(widgets.call());
+			} catch (Exception e) {
+				return Flux.error(e);
+			}
+		}).subscribeOn(blocking);
+	}
+
+	/**
+	 * Emits the events of a change feed subscription only as far as requested by the client. Until then, the
+	 * feed's sender waits, up to the keep-alive interval, while the feed keeps coalescing further changes, just as
+	 * it would wait on the socket of a slow servlet client.
+	 */
+	private static final class DemandSink implements WidgetChangeFeed.Sink {
+		private final FluxSink<ServerSentEvent<Object>> sink;
+		private final long waitNanos;
+		//guarded by this
+		private long demand;
+
+		DemandSink(FluxSink<ServerSentEvent<Object>> sink, long waitMs) {
+			this.sink = sink;
+			this.waitNanos = TimeUnit.MILLISECONDS.toNanos(waitMs);
+			sink.onRequest(this::request);
+		}
+
+		private synchronized void request(long n) {
+			demand = (Long.MAX_VALUE - demand < n) ? Long.MAX_VALUE : demand + n;
+			notifyAll();
+		}
+
+		@Override
+		public void send(String event, Object data) throws IOException {
+			emit(ServerSentEvent.builder(data).event(event).build());
+		}
+
+		@Override
+		public void keepAlive() throws IOException {
+			emit(ServerSentEvent.builder().comment("keep-alive").build());
+		}
+
+		@Override
+		public void close() {
+			sink.complete();
+		}
+
+		private synchronized void emit(ServerSentEvent<Object> event) throws IOException {
+			long deadline = System.nanoTime() + waitNanos;
+			while (0 == demand) {
+				long left = deadline - System.nanoTime();
+				if (sink.isCancelled() || (left <= 0))
+					throw new IOException("Change feed client is gone or not reading");
+				try {
+					TimeUnit.NANOSECONDS.timedWait(this, left);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			if (Long.MAX_VALUE != demand)
+				demand--;
+			sink.next(event);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package com.miro.widget.controller;
+
+import java.util.List;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.miro.widget.model.CompactWidgetList;
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+
+/**
+ * Responses shared by the servlet and the reactive controller.
+ */
+final class WidgetResponses {
+
+	private static final MediaType COMPACT = MediaType.parseMediaType(CompactWidgetList.MEDIA_TYPE);
+
+	private WidgetResponses() {
+	}
+
+	/**
+	 * Writes a list of widgets as a JSON array of their cached JSON fragments.
+	 */
+	static ResponseEntity<byte[]> json(WidgetJsonFragments fragments, List<Widget> widgets) {
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(fragments.toJsonArray(widgets));
+	}
+
+	static ResponseEntity<byte[]> compact(List<Widget> widgets) {
+		return ResponseEntity.ok().contentType(COMPACT).body(CompactWidgetList.encode(widgets));
+	}
+
+	/**
+	 * Writes the serialized full list, gzipped if the client accepts it, tagged with its ETag. The caller's web
+	 * framework answers 304 instead if the ETag matches If-None-Match.
+	 */
+	static ResponseEntity<byte[]> list(WidgetListCache.Entry list, String acceptEncoding) {
+		boolean gzipped = (null != list.getGzip()) && (null != acceptEncoding) && acceptEncoding.contains("gzip");
+		ResponseEntity.BodyBuilder ok = ResponseEntity.ok().eTag(list.getEtag(gzipped))
+				.contentType(MediaType.APPLICATION_JSON);
+		if (null != list.getGzip())
+			ok.varyBy(HttpHeaders.ACCEPT_ENCODING);
+		if (gzipped)
+			ok.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+		return ok.body(gzipped ? list.getGzip() : list.getJson());
+	}
+
+	/**
+	 * @return the viewport given by all four bounds, or null if none is given
+	 * @throws ResponseStatusException if only some are given
+	 */
+	static SearchBounds viewport(Integer lowerX, Integer lowerY, Integer upperX, Integer upperY) {
+		if ((null == lowerX) && (null == lowerY) && (null == upperX) && (null == upperY))
+			return null;
+		if ((null == lowerX) || (null == lowerY) || (null == upperX) || (null == upperY))
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "A viewport needs lowerX, lowerY, upperX and upperY");
+		return new SearchBounds(lowerX, lowerY, upperX, upperY);
+	}
+}
@@ -3,25 +3,47 @@
  */
 package com.miro.widget.controller;
 
+import java.io.IOException;
 import java.util.List;
 
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.ConstraintViolationException;
 import javax.validation.Valid;
+import javax.validation.constraints.Positive;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.miro.widget.model.BatchResult;
+import com.miro.widget.model.CompactWidgetList;
 import com.miro.widget.model.SearchBounds;
 import com.miro.widget.model.Widget;
+import com.miro.widget.model.WidgetBatch;
+import com.miro.widget.model.ZPage;
+import com.miro.widget.service.ReadOnlyReplicaException;
+import com.miro.widget.service.ReplicationNode;
+import com.miro.widget.service.WidgetChangeFeed;
 import com.miro.widget.service.WidgetService;
 
 /**
@@ -30,21 +52,71 @@ import com.miro.widget.service.WidgetService;
  */
 @RestController
 @Validated
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class WidgetRestController {
 	
 	Logger log = LoggerFactory.getLogger(WidgetRestController.class);
 	
 	@Autowired
 	WidgetService widgetService;
+	
+	@Autowired
+	WidgetChangeFeed changeFeed;
+	
+	@Autowired
+	WidgetListCache listCache;
+	
+	@Autowired
+	WidgetJsonFragments fragments;
+	
+	//null unless replicated
+	@Autowired(required = false)
+	ReplicationNode replication;
+	
+	//widgets written between explicit flushes of a streamed response
+	private static final int STREAM_FLUSH_INTERVAL = 1000;
 
 	@RequestMapping("/")
 	public String index() {
 		return "Welcome to Widgets!";
 	}
 	
+	/**
+	 * Lists all widgets, or one page of them if any of limit, afterZ or beforeZ is given.
+	 * The z index of the last (first) widget of a page is the afterZ (beforeZ) cursor for the next (previous) page.
+	 * <p>
+	 * All widgets are written from the list serialized at the current repository version, gzipped if the client
+	 * accepts it, and tagged with an ETag so that an unchanged list is answered with 304 to If-None-Match.
+	 */
 	@GetMapping("/widgets")
-	public List<Widget> getWidgets() {
-		return widgetService.getAllWidgets();
+	public ResponseEntity<byte[]> getWidgets(@RequestParam(required = false) @Positive Integer limit,
+			@RequestParam(required = false) Integer afterZ, @RequestParam(required = false) Integer beforeZ,
+			@RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+		if ((null != limit) || (null != afterZ) || (null != beforeZ))
+			return WidgetResponses.json(fragments, widgetService.getWidgets(new ZPage(afterZ, beforeZ, limit)));
+		WidgetListCache.Entry list = listCache.get();
+		if (null == list)
+			return WidgetResponses.json(fragments, widgetService.getAllWidgets());
+		return WidgetResponses.list(list, acceptEncoding);
+	}
+
+	/**
+	 * Streams all widgets in ascending z order as newline delimited JSON, without building the list in memory.
+	 */
+	@GetMapping(value = "/widgets", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamWidgets() {
+		return ndjson(widgetService.streamAllWidgets());
+	}
+
+	/**
+	 * Lists all widgets, or one page of them, in the compact binary encoding of {@link CompactWidgetList}.
+	 */
+	@GetMapping(value = "/widgets", produces = CompactWidgetList.MEDIA_TYPE)
+	public ResponseEntity<byte[]> getWidgetsCompact(@RequestParam(required = false) @Positive Integer limit,
+			@RequestParam(required = false) Integer afterZ, @RequestParam(required = false) Integer beforeZ) {
+		if ((null == limit) && (null == afterZ) && (null == beforeZ))
+			return WidgetResponses.compact(widgetService.getAllWidgets());
+		return WidgetResponses.compact(widgetService.getWidgets(new ZPage(afterZ, beforeZ, limit)));
 	}
 
 	@GetMapping("/widgets/{id}")
@@ -53,22 +125,131 @@ public class WidgetRestController {
 	}
 	
 	@PostMapping("/widgets")
-	public Widget addWidget(@Valid @RequestBody Widget widget) {
-		return widgetService.addWidget(widget);
+	public Widget addWidget(@Valid @RequestBody Widget widget, HttpServletResponse response) {
+		Widget added = widgetService.addWidget(widget);
+		markPosition(response);
+		return added;
 	}
 	
 	@DeleteMapping("/widgets/{id}")
-	public void deleteWidget(@PathVariable("id") long id) {
+	public void deleteWidget(@PathVariable("id") long id, HttpServletResponse response) {
 		widgetService.deleteWidgetById(id);
+		markPosition(response);
 	}
 	
 	@PutMapping("/widgets/{id}")
-	public Widget updateWidget(@Valid @RequestBody Widget widget) {
-		return widgetService.updateWidget(widget);
+	public Widget updateWidget(@Valid @RequestBody Widget widget, HttpServletResponse response) {
+		Widget updated = widgetService.updateWidget(widget);
+		markPosition(response);
+		return updated;
 	}
 	
 	@PostMapping("/widgets/search")
-	public List<Widget> searchWidgets(@Valid @RequestBody SearchBounds bounds) {
-		return widgetService.search(bounds);
+	public ResponseEntity<byte[]> searchWidgets(@Valid @RequestBody SearchBounds bounds,
+			@RequestParam(required = false) @Positive Integer limit,
+			@RequestParam(required = false) Integer afterZ, @RequestParam(required = false) Integer beforeZ) {
+		if ((null == limit) && (null == afterZ) && (null == beforeZ))
+			return WidgetResponses.json(fragments, widgetService.search(bounds));
+		return WidgetResponses.json(fragments, widgetService.search(bounds, new ZPage(afterZ, beforeZ, limit)));
+	}
+	
+	/**
+	 * Searches like {@link #searchWidgets}, answering in the compact binary encoding of {@link CompactWidgetList}.
+	 */
+	@PostMapping(value = "/widgets/search", produces = CompactWidgetList.MEDIA_TYPE)
+	public ResponseEntity<byte[]> searchWidgetsCompact(@Valid @RequestBody SearchBounds bounds,
+			@RequestParam(required = false) @Positive Integer limit,
+			@RequestParam(required = false) Integer afterZ, @RequestParam(required = false) Integer beforeZ) {
+		if ((null == limit) && (null == afterZ) && (null == beforeZ))
+			return WidgetResponses.compact(widgetService.search(bounds));
+		return WidgetResponses.compact(widgetService.search(bounds, new ZPage(afterZ, beforeZ, limit)));
+	}
+	
+	/**
+	 * Streams the search results in ascending z order as newline delimited JSON.
+	 */
+	@PostMapping(value = "/widgets/search", produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<StreamingResponseBody> streamSearch(@Valid @RequestBody SearchBounds bounds) {
+		return ndjson(widgetService.streamSearch(bounds));
+	}
+	
+	/**
+	 * Pushes the changes to the widgets within the viewport, or to all widgets if no bound is given, as server-sent
+	 * events: a "reset" with the current widgets, then "created", "updated", "deleted" and "shifted" deltas.
+	 */
+	@GetMapping(value = "/widgets/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public SseEmitter changes(@RequestParam(required = false) Integer lowerX, @RequestParam(required = false) Integer lowerY,
+			@RequestParam(required = false) Integer upperX, @RequestParam(required = false) Integer upperY) {
+		SearchBounds viewport = WidgetResponses.viewport(lowerX, lowerY, upperX, upperY);
+		SseEmitter emitter = new SseEmitter(0L);
+		WidgetChangeFeed.Subscription subscription = changeFeed.subscribe(viewport, new WidgetChangeFeed.Sink() {
+			@Override
+			public void send(String event, Object data) throws IOException {
+				emitter.send(SseEmitter.event().name(event).data(data, MediaType.APPLICATION_JSON));
+			}
+
+			@Override
+			public void keepAlive() throws IOException {
+				emitter.send(SseEmitter.event().comment("keep-alive"));
+			}
+
+			@Override
+			public void close() {
+				emitter.complete();
+			}
+		});
+		emitter.onCompletion(() -> changeFeed.unsubscribe(subscription));
+		emitter.onError(e -> changeFeed.unsubscribe(subscription));
+		return emitter;
+	}
+	
+	@PostMapping("/widgets/batch")
+	public List<BatchResult> applyBatch(@Valid @RequestBody WidgetBatch batch, HttpServletResponse response) {
+		List<BatchResult> results = widgetService.applyBatch(batch);
+		markPosition(response);
+		return results;
+	}
+	
+	@ExceptionHandler(ConstraintViolationException.class)
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	public String badParameter(ConstraintViolationException e) {
+		return e.getMessage();
+	}
+	
+	@ExceptionHandler(UnsupportedOperationException.class)
+	@ResponseStatus(HttpStatus.NOT_IMPLEMENTED)
+	public String unsupported(UnsupportedOperationException e) {
+		return e.getMessage();
+	}
+	
+	@ExceptionHandler(ReadOnlyReplicaException.class)
+	@ResponseStatus(HttpStatus.CONFLICT)
+	public String readOnly(ReadOnlyReplicaException e) {
+		return e.getMessage();
+	}
+	
+	/**
+	 * Tells the client the replication position including its write, to be sent back as
+	 * {@link ReplicationInterceptor#MIN_POSITION_HEADER} by later reads that must see it.
+	 */
+	private void markPosition(HttpServletResponse response) {
+		if (null != replication)
+			response.setHeader(ReplicationInterceptor.POSITION_HEADER, replication.formatPosition());
+	}
+	
+	/**
+	 * Writes widgets one JSON object per line straight to the response, as they are iterated.
+	 */
+	private ResponseEntity<StreamingResponseBody> ndjson(Iterable<Widget> widgets) {
+		StreamingResponseBody body = out -> {
+			int written = 0;
+			for (Widget w : widgets) {
+				out.write(fragments.get(w));
+				out.write('\n');
+				if (0 == ++written % STREAM_FLUSH_INTERVAL)
+					out.flush();
+			}
+		};
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
 	}
 }
@@ -0,0 +1,45 @@
+package com.miro.widget.model;
+
+/**
+ * The outcome of a single mutation of a {@link WidgetBatch}.
+ */
+public class BatchResult {
+
+	public enum Status { CREATED, UPDATED, DELETED, NOT_FOUND }
+
+	private Long id;
+	private Status status;
+	private Widget widget;		//saved widget, null for deletes
+
+	public BatchResult() {}
+
+	public BatchResult(Long id, Status status, Widget widget) {
+		this.id = id;
+		this.status = status;
+		this.widget = widget;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public void setStatus(Status status) {
+		this.status = status;
+	}
+
+	public Widget getWidget() {
+		return widget;
+	}
+
+	public void setWidget(Widget widget) {
+		this.widget = widget;
+	}
+}
@@ -0,0 +1,177 @@
+package com.miro.widget.model;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact binary encoding of widget lists, served as {@value #MEDIA_TYPE} to clients fetching many widgets.
+ * <p>
+ * After the magic number "WLST", a format version byte and the widget count, the widgets are stored column by
+ * column: ids, z index values, x, y, width, height, update time seconds and update time nanoseconds. All values are
+ * varints, signed ones zigzag encoded. Ids, z index values, x, y and update time seconds are each stored as the
+ * difference to the previous widget's, which is small for lists in ascending z order of nearby widgets created
+ * and shifted together.
+ */
+public final class CompactWidgetList {
+
+	public static final String MEDIA_TYPE = "application/x-widget-list";
+
+	private static final byte[] MAGIC = { 'W', 'L', 'S', 'T' };
+	private static final byte VERSION = 1;
+
+	private CompactWidgetList() {
+	}
+
+	/**
+	 * @param widgets widgets with all fields set, best in ascending z order
+	 */
+	public static byte[] encode(List<Widget> widgets) {
+		int n = widgets.size();
+		Writer out = new Writer(16 + 16 * n);
+		out.bytes(MAGIC);
+		out.unsigned(VERSION);
+		out.unsigned(n);
+		long prev = 0;
+		for (Widget w : widgets)
+			prev = out.delta(w.getId(), prev);
+		prev = 0;
+		for (Widget w : widgets)
+			prev = out.delta(w.getzIndex(), prev);
+		prev = 0;
+		for (Widget w : widgets)
+			prev = out.delta(w.getX(), prev);
+		prev = 0;
+		for (Widget w : widgets)
+			prev = out.delta(w.getY(), prev);
+		for (Widget w : widgets)
+			out.unsigned(w.getWidth());
+		for (Widget w : widgets)
+			out.unsigned(w.getHeight());
+		prev = 0;
+		for (Widget w : widgets)
+			prev = out.delta(w.getUpdateTime().getEpochSecond(), prev);
+		for (Widget w : widgets)
+			out.unsigned(w.getUpdateTime().getNano());
+		return out.toByteArray();
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the given bytes are not an encoded widget list
+	 */
+	public static List<Widget> decode(byte[] bytes) {
+		Reader in = new Reader(bytes);
+		if ((bytes.length < MAGIC.length + 1) || !Arrays.equals(MAGIC, Arrays.copyOf(bytes, MAGIC.length)))
+			throw new IllegalArgumentException("Not a compact widget list");
+		in.pos = MAGIC.length;
+		if (VERSION != bytes[in.pos++])
+			throw new IllegalArgumentException("Unsupported compact widget list version " + bytes[MAGIC.length]);
+		long count = in.unsigned();
+		if (count > (bytes.length - in.pos) / 8)	//every widget takes at least a byte per column
+			throw new IllegalArgumentException("Corrupt compact widget list");
+		int n = (int) count;
+		long[] ids = new long[n], secs = new long[n];
+		int[] z = new int[n], x = new int[n], y = new int[n], width = new int[n], height = new int[n], nanos = new int[n];
+		long prev = 0;
+		for (int i = 0; i < n; i++)
+			ids[i] = prev = prev + in.signed();
+		prev = 0;
+		for (int i = 0; i < n; i++)
+			z[i] = (int) (prev = prev + in.signed());
+		prev = 0;
+		for (int i = 0; i < n; i++)
+			x[i] = (int) (prev = prev + in.signed());
+		prev = 0;
+		for (int i = 0; i < n; i++)
+			y[i] = (int) (prev = prev + in.signed());
+		for (int i = 0; i < n; i++)
+			width[i] = (int) in.unsigned();
+		for (int i = 0; i < n; i++)
+			height[i] = (int) in.unsigned();
+		prev = 0;
+		for (int i = 0; i < n; i++)
+			secs[i] = prev = prev + in.signed();
+		for (int i = 0; i < n; i++)
+			nanos[i] = (int) in.unsigned();
+		if (in.pos != bytes.length)
+			throw new IllegalArgumentException("Corrupt compact widget list: " + (bytes.length - in.pos) + " bytes left");
+		List<Widget> widgets = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			Widget w = new Widget(ids[i], x[i], y[i], z[i], width[i], height[i]);
+			w.setUpdateTime(Instant.ofEpochSecond(secs[i], nanos[i]));
+			widgets.add(w);
+		}
+		return widgets;
+	}
+
+	private static final class Writer {
+		private byte[] buf;
+		private int size;
+
+		Writer(int capacity) {
+			buf = new byte[capacity];
+		}
+
+		void bytes(byte[] b) {
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, size, b.length);
+			size += b.length;
+		}
+
+		void unsigned(long v) {
+			ensure(10);
+			while ((v & ~0x7FL) != 0) {
+				buf[size++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[size++] = (byte) v;
+		}
+
+		/**
+		 * Writes the zigzag encoded difference to the previous value.
+		 * @return the given value, the previous one of the next call
+		 */
+		long delta(long v, long prev) {
+			long d = v - prev;
+			unsigned((d << 1) ^ (d >> 63));
+			return v;
+		}
+
+		private void ensure(int more) {
+			if (size + more > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + more));
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf, size);
+		}
+	}
+
+	private static final class Reader {
+		private final byte[] buf;
+		private int pos;
+
+		Reader(byte[] buf) {
+			this.buf = buf;
+		}
+
+		long unsigned() {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (pos == buf.length)
+					throw new IllegalArgumentException("Corrupt compact widget list: truncated");
+				byte b = buf[pos++];
+				v |= (long) (b & 0x7F) << shift;
+				if (b >= 0)
+					return v;
+			}
+			throw new IllegalArgumentException("Corrupt compact widget list: varint too long");
+		}
+
+		long signed() {
+			long v = unsigned();
+			return (v >>> 1) ^ -(v & 1);
+		}
+	}
+}
@@ -51,6 +51,12 @@ public class Widget implements IBoundingBox {
 		return new Widget(this.id, this.x, this.y, newZIndex, this.width, this.height);
 	}
 	
+	public Widget cloneAndZShift(Integer newZIndex, Instant newUpdateTime) {
+		Widget shifted = cloneAndZShift(newZIndex);
+		shifted.updateTime = newUpdateTime;
+		return shifted;
+	}
+	
 	public boolean hasPropertyDiffs(Widget other) {
 		if (null == other)
 			return false;
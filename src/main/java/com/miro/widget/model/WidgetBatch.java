@@ -0,0 +1,43 @@
+package com.miro.widget.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+
+/**
+ * A batch of Widget mutations, applied atomically: all deletes first, then all saves (creates or updates) in order.
+ */
+public class WidgetBatch {
+
+	@NotNull
+	private List<@NotNull Long> delete = new ArrayList<>();
+
+	@NotNull
+	@Valid
+	private List<@NotNull Widget> save = new ArrayList<>();
+
+	public WidgetBatch() {}
+
+	public WidgetBatch(List<Long> delete, List<Widget> save) {
+		this.delete = delete;
+		this.save = save;
+	}
+
+	public List<Long> getDelete() {
+		return delete;
+	}
+
+	public void setDelete(List<Long> delete) {
+		this.delete = delete;
+	}
+
+	public List<Widget> getSave() {
+		return save;
+	}
+
+	public void setSave(List<Widget> save) {
+		this.save = save;
+	}
+}
@@ -0,0 +1,101 @@
+package com.miro.widget.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A page request over Widgets in ascending z order, using z index values as cursors.
+ * <p>
+ * A page holds the Widgets with a z index above afterZ and below beforeZ, at most limit of them. Without afterZ,
+ * but with beforeZ and a limit, the page holds the last Widgets before beforeZ, for paging backwards.
+ * Either way the page is in ascending z order, so its last z index is the cursor for the next page and its first
+ * z index the cursor for the previous one.
+ */
+public class ZPage {
+
+	public static final ZPage ALL = new ZPage(null, null, null);
+
+	private final Integer afterZ;
+	private final Integer beforeZ;
+	private final Integer limit;
+
+	public ZPage(Integer afterZ, Integer beforeZ, Integer limit) {
+		if ((null != limit) && (limit < 1))
+			throw new IllegalArgumentException("ZPage limit should not be smaller than 1");
+		this.afterZ = afterZ;
+		this.beforeZ = beforeZ;
+		this.limit = limit;
+	}
+
+	public Integer getAfterZ() {
+		return afterZ;
+	}
+
+	public Integer getBeforeZ() {
+		return beforeZ;
+	}
+
+	public Integer getLimit() {
+		return limit;
+	}
+
+	public int maxSize() {
+		return (null == limit) ? Integer.MAX_VALUE : limit;
+	}
+
+	/**
+	 * Tests if the page is taken from the top of its range, that is paging backwards.
+	 */
+	public boolean isBackward() {
+		return (null == afterZ) && (null != beforeZ) && (null != limit);
+	}
+
+	/**
+	 * @return the lowest z index value in range
+	 */
+	public long lowestZ() {
+		return (null == afterZ) ? Integer.MIN_VALUE : (long) afterZ + 1;
+	}
+
+	/**
+	 * @return the highest z index value in range
+	 */
+	public long highestZ() {
+		return (null == beforeZ) ? Integer.MAX_VALUE : (long) beforeZ - 1;
+	}
+
+	/**
+	 * Tests if no z index value is in range, as when afterZ is not below beforeZ.
+	 */
+	public boolean isEmptyRange() {
+		return lowestZ() > highestZ();
+	}
+
+	public boolean contains(int z) {
+		return (z >= lowestZ()) && (z <= highestZ());
+	}
+
+	/**
+	 * Selects the page from Widgets in any order, keeping at most limit candidates at a time.
+	 * Null candidates are skipped.
+	 * @return the page, in ascending z order
+	 */
+	public List<Widget> select(Iterable<Widget> candidates) {
+		Comparator<Widget> byZ = Comparator.comparingInt(Widget::getzIndex);
+		//heap top is the candidate to drop first: the highest z going forward, the lowest going backward
+		PriorityQueue<Widget> kept = new PriorityQueue<>(isBackward() ? byZ : byZ.reversed());
+		for (Widget w : candidates) {
+			if ((null != w) && contains(w.getzIndex())) {
+				kept.add(w);
+				if (kept.size() > maxSize())
+					kept.poll();
+			}
+		}
+		List<Widget> page = new ArrayList<>(kept);
+		Collections.sort(page, byZ);
+		return page;
+	}
+}
@@ -0,0 +1,175 @@
+package com.miro.widget.repo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.miro.widget.model.IBoundingBox;
+
+/**
+ * A uniform grid (hashed tile bucket) Integer cartesian bounding box index, that stores Long values (references).
+ * Each box is registered in every cell it overlaps. A query only visits the cells overlapping the query box, and
+ * reports a box from its anchor cell (the cell of its lower corner) only, so results need no deduplication set.
+ * Adding and deleting cost O(cells touched), there is no global rebalancing.
+ * <p>
+ * A box overlapping more than {@link #MAX_CELLS} cells is kept in an overflow list instead, which every query scans,
+ * so that a few large boxes on a fine grid cost a scan rather than a cell entry per unit of their area.
+ */
+public class GridIndex implements SpatialIndex {
+
+	public static final int DEFAULT_CELL_SIZE = 256;
+	public static final int MAX_CELLS = 64;
+
+	private final int cellSize;
+	private final HashMap<Long, HashMap<Long, Entry>> cells = new HashMap<>();
+	private final HashMap<Long, Entry> overflow = new HashMap<>();
+	private int size;
+	private final LongAdder candidates = new LongAdder();
+
+	public GridIndex() {
+		this(DEFAULT_CELL_SIZE);
+	}
+
+	public GridIndex(int cellSize) {
+		if (cellSize < 1)
+			throw new IllegalArgumentException("GridIndex cell size should not be smaller than 1");
+		this.cellSize = cellSize;
+	}
+
+	@Override
+	public void add(IBoundingBox box, Long ref) {
+		Entry entry = new Entry(box, ref);
+		if (isOverflow(box)) {
+			overflow.put(ref, entry);
+		} else {
+			for (long cx = cell(box.getLowerX()); cx <= cell(box.getUpperX()); cx++) {
+				for (long cy = cell(box.getLowerY()); cy <= cell(box.getUpperY()); cy++) {
+					cells.computeIfAbsent(key((int) cx, (int) cy), k -> new HashMap<>()).put(ref, entry);
+				}
+			}
+		}
+		size++;
+	}
+
+	@Override
+	public void delete(IBoundingBox box, Long ref) {
+		boolean found = false;
+		if (isOverflow(box)) {
+			found = (null != overflow.remove(ref));
+		} else {
+			for (long cx = cell(box.getLowerX()); cx <= cell(box.getUpperX()); cx++) {
+				for (long cy = cell(box.getLowerY()); cy <= cell(box.getUpperY()); cy++) {
+					Long key = key((int) cx, (int) cy);
+					HashMap<Long, Entry> bucket = cells.get(key);
+					if (null != bucket) {
+						found |= (null != bucket.remove(ref));
+						if (bucket.isEmpty())
+							cells.remove(key);
+					}
+				}
+			}
+		}
+		if (found)
+			size--;
+	}
+
+	@Override
+	public Collection<Long> filter(IBoundingBox box) {
+		ArrayList<Long> refs = new ArrayList<>();
+		long tested = 0;
+		int fromX = cell(box.getLowerX()), toX = cell(box.getUpperX());
+		int fromY = cell(box.getLowerY()), toY = cell(box.getUpperY());
+		long queryCells = ((long) toX - fromX + 1) * ((long) toY - fromY + 1);
+		if (queryCells > cells.size()) {
+			//query covers more cells than are occupied, visit the occupied ones only
+			for (Map.Entry<Long, HashMap<Long, Entry>> c : cells.entrySet()) {
+				int cx = (int) (c.getKey() >> 32), cy = (int) c.getKey().longValue();
+				if ((cx >= fromX) && (cx <= toX) && (cy >= fromY) && (cy <= toY))
+					tested += collect(c.getValue(), cx, cy, box, refs);
+			}
+		} else {
+			for (long cx = fromX; cx <= toX; cx++) {
+				for (long cy = fromY; cy <= toY; cy++) {
+					HashMap<Long, Entry> bucket = cells.get(key((int) cx, (int) cy));
+					if (null != bucket)
+						tested += collect(bucket, (int) cx, (int) cy, box, refs);
+				}
+			}
+		}
+		for (Entry e : overflow.values()) {
+			tested++;
+			if (e.isContainedIn(box))
+				refs.add(e.ref);
+		}
+		candidates.add(tested);
+		return refs;
+	}
+
+	@Override
+	public void clear() {
+		cells.clear();
+		overflow.clear();
+		size = 0;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public long getCandidateCount() {
+		return candidates.sum();
+	}
+
+	/**
+	 * @return the number of entries tested, that is those anchored in the cell
+	 */
+	private int collect(HashMap<Long, Entry> bucket, int cx, int cy, IBoundingBox box, ArrayList<Long> refs) {
+		int tested = 0;
+		for (Entry e : bucket.values()) {
+			if ((cell(e.lx) == cx) && (cell(e.ly) == cy)) {
+				tested++;
+				if (e.isContainedIn(box))
+					refs.add(e.ref);
+			}
+		}
+		return tested;
+	}
+
+	/**
+	 * @return true if the box overlaps more than MAX_CELLS cells, computed in long so that no extent overflows
+	 */
+	private boolean isOverflow(IBoundingBox box) {
+		long cellsX = (long) cell(box.getUpperX()) - cell(box.getLowerX()) + 1;
+		long cellsY = (long) cell(box.getUpperY()) - cell(box.getLowerY()) + 1;
+		return cellsX * cellsY > MAX_CELLS;
+	}
+
+	private int cell(int coord) {
+		return Math.floorDiv(coord, cellSize);
+	}
+
+	private static Long key(int cx, int cy) {
+		return ((long) cx << 32) | (cy & 0xffffffffL);
+	}
+
+	private static final class Entry {
+		final int lx, ly, ux, uy;
+		final Long ref;
+
+		Entry(IBoundingBox box, Long ref) {
+			this.lx = box.getLowerX();
+			this.ly = box.getLowerY();
+			this.ux = box.getUpperX();
+			this.uy = box.getUpperY();
+			this.ref = ref;
+		}
+
+		boolean isContainedIn(IBoundingBox box) {
+			return (lx >= box.getLowerX()) && (ly >= box.getLowerY()) && (ux <= box.getUpperX()) && (uy <= box.getUpperY());
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.miro.widget.repo;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing (linear probing) hash map from primitive long keys to primitive int values.
+ * Removal uses backward shifting, so there are no tombstones and all operations stay O(1) on average.
+ */
+public final class LongIntHashMap {
+
+	private static final long FREE = Long.MIN_VALUE;
+
+	private final int missingValue;
+	private long[] keys;
+	private int[] values;
+	private int size;
+	private int mask;
+
+	/**
+	 * @param missingValue value returned by get and remove for absent keys
+	 */
+	public LongIntHashMap(int missingValue) {
+		this.missingValue = missingValue;
+		allocate(16);
+	}
+
+	public int get(long key) {
+		checkKey(key);
+		int i = slot(key);
+		while (keys[i] != FREE) {
+			if (keys[i] == key)
+				return values[i];
+			i = (i + 1) & mask;
+		}
+		return missingValue;
+	}
+
+	public boolean containsKey(long key) {
+		checkKey(key);
+		int i = slot(key);
+		while (keys[i] != FREE) {
+			if (keys[i] == key)
+				return true;
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the previous value for the key, or the missing value
+	 */
+	public int put(long key, int value) {
+		checkKey(key);
+		int i = slot(key);
+		while (keys[i] != FREE) {
+			if (keys[i] == key) {
+				int old = values[i];
+				values[i] = value;
+				return old;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > (keys.length * 3) / 4)
+			rehash(keys.length * 2);
+		return missingValue;
+	}
+
+	/**
+	 * @return the removed value for the key, or the missing value
+	 */
+	public int remove(long key) {
+		checkKey(key);
+		int i = slot(key);
+		while (keys[i] != key) {
+			if (keys[i] == FREE)
+				return missingValue;
+			i = (i + 1) & mask;
+		}
+		int old = values[i];
+		//shift following entries of the probe sequence back into the freed slot
+		int gap = i;
+		int j = (i + 1) & mask;
+		while (keys[j] != FREE) {
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+			j = (j + 1) & mask;
+		}
+		keys[gap] = FREE;
+		size--;
+		return old;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		Arrays.fill(keys, FREE);
+		size = 0;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void checkKey(long key) {
+		if (FREE == key)
+			throw new IllegalArgumentException("LongIntHashMap cannot store key " + key);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+		Arrays.fill(keys, FREE);
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(capacity);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != FREE)
+				put(oldKeys[i], oldValues[i]);
+		}
+	}
+}
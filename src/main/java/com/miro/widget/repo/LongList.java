@@ -0,0 +1,51 @@
+package com.miro.widget.repo;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive long values, meant to be cleared and reused as an output buffer.
+ */
+public final class LongList {
+
+	private long[] values;
+	private int size;
+
+	public LongList() {
+		this(64);
+	}
+
+	public LongList(int capacity) {
+		values = new long[Math.max(1, capacity)];
+	}
+
+	public void add(long value) {
+		if (size == values.length)
+			values = Arrays.copyOf(values, size * 2);
+		values[size++] = value;
+	}
+
+	public long get(int i) {
+		if (i >= size)
+			throw new IndexOutOfBoundsException("LongList index " + i + " out of bounds for size " + size);
+		return values[i];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of values held without growing
+	 */
+	public int capacity() {
+		return values.length;
+	}
+
+	public boolean isEmpty() {
+		return 0 == size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+}
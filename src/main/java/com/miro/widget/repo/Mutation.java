@@ -0,0 +1,137 @@
+package com.miro.widget.repo;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+import com.miro.widget.model.Widget;
+
+/**
+ * A single applied change to a WidgetRepository, as recorded in the write-ahead log.
+ * <p>
+ * A save holds the Widget as saved, with its final id, z index value and update time, and the time it was applied
+ * at, which widgets shifted by it take as their update time. The update time is recorded as is, as an update
+ * keeps the previous one unless its properties changed, which depends on the z index given to the original save.
+ * Applying the same mutations in the same order to an empty repository reproduces its contents exactly, including
+ * all z index shifts and update times.
+ * <p>
+ * Saves recorded without their update time, by earlier versions, are read with a null one.
+ */
+public final class Mutation {
+
+	public enum Type { SAVE, DELETE, DELETE_ALL }
+
+	//binary type of saves with their update time, the ordinals of Type being those of the earlier records
+	private static final byte SAVE_TIMED = 3;
+
+	private final Type type;
+	private final long id;
+	private final int x, y, z, width, height;
+	private final Instant time;
+	//of saves, null if not recorded
+	private final Instant updateTime;
+
+	private Mutation(Type type, long id, int x, int y, int z, int width, int height, Instant time, Instant updateTime) {
+		this.type = type;
+		this.id = id;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.width = width;
+		this.height = height;
+		this.time = time;
+		this.updateTime = updateTime;
+	}
+
+	public static Mutation save(Widget saved, Instant time) {
+		return new Mutation(Type.SAVE, saved.getId(), saved.getX(), saved.getY(), saved.getzIndex(),
+				saved.getWidth(), saved.getHeight(), time, saved.getUpdateTime());
+	}
+
+	public static Mutation delete(long id, Instant time) {
+		return new Mutation(Type.DELETE, id, 0, 0, 0, 0, 0, time, null);
+	}
+
+	public static Mutation deleteAll(Instant time) {
+		return new Mutation(Type.DELETE_ALL, 0, 0, 0, 0, 0, 0, time, null);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public Instant getTime() {
+		return time;
+	}
+
+	/**
+	 * @return the update time of the saved widget, null for other mutations and saves recorded without it
+	 */
+	public Instant getUpdateTime() {
+		return updateTime;
+	}
+
+	/**
+	 * @return a new Widget as given to the save, only valid for SAVE mutations
+	 */
+	public Widget toWidget() {
+		return new Widget(id, x, y, z, width, height);
+	}
+
+	/**
+	 * @return the number of bytes written by {@link #writeTo(ByteBuffer)}
+	 */
+	public int encodedSize() {
+		switch (type) {
+		case SAVE:
+			return 13 + 8 + 5 * 4 + ((null == updateTime) ? 0 : 12);
+		case DELETE:
+			return 13 + 8;
+		default:
+			return 13;
+		}
+	}
+
+	/**
+	 * Writes the binary form of this mutation at the buffer position.
+	 */
+	public void writeTo(ByteBuffer buf) {
+		buf.put(((Type.SAVE == type) && (null != updateTime)) ? SAVE_TIMED : (byte) type.ordinal());
+		buf.putLong(time.getEpochSecond());
+		buf.putInt(time.getNano());
+		if (Type.DELETE_ALL == type)
+			return;
+		buf.putLong(id);
+		if (Type.DELETE == type)
+			return;
+		buf.putInt(x).putInt(y).putInt(z).putInt(width).putInt(height);
+		if (null != updateTime)
+			buf.putLong(updateTime.getEpochSecond()).putInt(updateTime.getNano());
+	}
+
+	/**
+	 * Reads a mutation in binary form from the buffer position.
+	 * @throws IllegalArgumentException if the type is unknown
+	 */
+	public static Mutation readFrom(ByteBuffer buf) {
+		int t = buf.get();
+		boolean timed = (SAVE_TIMED == t);
+		if (timed)
+			t = Type.SAVE.ordinal();
+		else if ((t < 0) || (t >= Type.values().length))
+			throw new IllegalArgumentException("Unknown mutation type " + t);
+		Type type = Type.values()[t];
+		Instant time = Instant.ofEpochSecond(buf.getLong(), buf.getInt());
+		if (Type.DELETE_ALL == type)
+			return deleteAll(time);
+		long id = buf.getLong();
+		if (Type.DELETE == type)
+			return delete(id, time);
+		int x = buf.getInt(), y = buf.getInt(), z = buf.getInt(), width = buf.getInt(), height = buf.getInt();
+		Instant updateTime = timed ? Instant.ofEpochSecond(buf.getLong(), buf.getInt()) : null;
+		return new Mutation(type, id, x, y, z, width, height, time, updateTime);
+	}
+}
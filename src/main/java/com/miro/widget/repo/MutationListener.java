@@ -0,0 +1,19 @@
+package com.miro.widget.repo;
+
+import java.time.Instant;
+
+/**
+ * Receives every mutation applied to a repository, in order, right after it was applied and while writes are
+ * still excluded, so listeners must be quick.
+ */
+public interface MutationListener {
+
+	void onMutation(Mutation mutation);
+
+	/**
+	 * Receives a z index shift caused by the save notified next: every Widget with a z index value from lowestZ
+	 * to highestZ moved by the given amount. Shifts are implied by the saves, so logs need not record them.
+	 */
+	default void onShift(int lowestZ, int highestZ, int by, Instant time) {
+	}
+}
@@ -0,0 +1,228 @@
+package com.miro.widget.repo;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An immutable sorted map, implemented as a persistent treap.
+ * Every update returns a new map that shares all untouched nodes with the original, copying only the O(log n)
+ * nodes on the updated path, so any number of versions can be read concurrently without synchronization.
+ */
+public final class PersistentTreeMap<K, V> {
+
+	private final Comparator<? super K> comparator;
+	private final Node<K, V> root;
+
+	private PersistentTreeMap(Comparator<? super K> comparator, Node<K, V> root) {
+		this.comparator = comparator;
+		this.root = root;
+	}
+
+	public static <K extends Comparable<? super K>, V> PersistentTreeMap<K, V> empty() {
+		return new PersistentTreeMap<K, V>(Comparator.naturalOrder(), null);
+	}
+
+	public static <K, V> PersistentTreeMap<K, V> empty(Comparator<? super K> comparator) {
+		return new PersistentTreeMap<K, V>(comparator, null);
+	}
+
+	public int size() {
+		return size(root);
+	}
+
+	public boolean isEmpty() {
+		return null == root;
+	}
+
+	public V get(K key) {
+		Node<K, V> n = root;
+		while (n != null) {
+			int c = comparator.compare(key, n.key);
+			if (0 == c)
+				return n.value;
+			n = (c < 0) ? n.left : n.right;
+		}
+		return null;
+	}
+
+	public boolean containsKey(K key) {
+		return null != get(key);
+	}
+
+	/**
+	 * @return the highest key, the map must not be empty
+	 */
+	public K lastKey() {
+		if (null == root)
+			throw new NoSuchElementException("PersistentTreeMap is empty");
+		Node<K, V> n = root;
+		while (n.right != null)
+			n = n.right;
+		return n.key;
+	}
+
+	/**
+	 * @return a map with the given key mapped to the given (non-null) value
+	 */
+	public PersistentTreeMap<K, V> put(K key, V value) {
+		if (null == value)
+			throw new IllegalArgumentException("PersistentTreeMap cannot hold null values");
+		return new PersistentTreeMap<>(comparator, put(root, key, value));
+	}
+
+	/**
+	 * @return a map without the given key
+	 */
+	public PersistentTreeMap<K, V> remove(K key) {
+		Node<K, V> r = remove(root, key);
+		return (r == root) ? this : new PersistentTreeMap<>(comparator, r);
+	}
+
+	/**
+	 * @return the values in ascending key order
+	 */
+	public Iterable<V> values() {
+		return () -> new Values<>(root, null, null, comparator, false);
+	}
+
+	/**
+	 * @return the values with keys in the given inclusive range, in ascending key order
+	 */
+	public Iterable<V> values(K fromKey, K toKey) {
+		return () -> new Values<>(root, fromKey, toKey, comparator, false);
+	}
+
+	/**
+	 * @return the values with keys from the given key downwards (inclusive), in descending key order
+	 */
+	public Iterable<V> descendingValues(K fromKey) {
+		return () -> new Values<>(root, fromKey, null, comparator, true);
+	}
+
+	private Node<K, V> put(Node<K, V> t, K key, V value) {
+		if (null == t)
+			return new Node<>(key, value, ThreadLocalRandom.current().nextInt(), null, null);
+		int c = comparator.compare(key, t.key);
+		if (0 == c)
+			return new Node<>(key, value, t.priority, t.left, t.right);
+		if (c < 0) {
+			Node<K, V> left = put(t.left, key, value);
+			if (left.priority > t.priority)	//rotate right
+				return new Node<>(left.key, left.value, left.priority, left.left,
+						new Node<>(t.key, t.value, t.priority, left.right, t.right));
+			return new Node<>(t.key, t.value, t.priority, left, t.right);
+		}
+		Node<K, V> right = put(t.right, key, value);
+		if (right.priority > t.priority)	//rotate left
+			return new Node<>(right.key, right.value, right.priority,
+					new Node<>(t.key, t.value, t.priority, t.left, right.left), right.right);
+		return new Node<>(t.key, t.value, t.priority, t.left, right);
+	}
+
+	private Node<K, V> remove(Node<K, V> t, K key) {
+		if (null == t)
+			return null;
+		int c = comparator.compare(key, t.key);
+		if (0 == c)
+			return merge(t.left, t.right);
+		if (c < 0) {
+			Node<K, V> left = remove(t.left, key);
+			return (left == t.left) ? t : new Node<>(t.key, t.value, t.priority, left, t.right);
+		}
+		Node<K, V> right = remove(t.right, key);
+		return (right == t.right) ? t : new Node<>(t.key, t.value, t.priority, t.left, right);
+	}
+
+	private static <K, V> Node<K, V> merge(Node<K, V> a, Node<K, V> b) {
+		if (null == a)
+			return b;
+		if (null == b)
+			return a;
+		if (a.priority > b.priority)
+			return new Node<>(a.key, a.value, a.priority, a.left, merge(a.right, b));
+		return new Node<>(b.key, b.value, b.priority, merge(a, b.left), b.right);
+	}
+
+	private static int size(Node<?, ?> n) {
+		return (null == n) ? 0 : n.size;
+	}
+
+	private static final class Node<K, V> {
+		final K key;
+		final V value;
+		final int priority;
+		final Node<K, V> left, right;
+		final int size;
+
+		Node(K key, V value, int priority, Node<K, V> left, Node<K, V> right) {
+			this.key = key;
+			this.value = value;
+			this.priority = priority;
+			this.left = left;
+			this.right = right;
+			this.size = 1 + size(left) + size(right);
+		}
+	}
+
+	/**
+	 * In-order (or reverse in-order) iterator over an optional inclusive key range.
+	 */
+	private static final class Values<K, V> implements Iterator<V> {
+		private final K toKey;
+		private final Comparator<? super K> comparator;
+		private final boolean descending;
+		@SuppressWarnings("unchecked")
+		private Node<K, V>[] stack = new Node[64];
+		private int depth;
+
+		Values(Node<K, V> root, K fromKey, K toKey, Comparator<? super K> comparator, boolean descending) {
+			this.toKey = toKey;
+			this.comparator = comparator;
+			this.descending = descending;
+			//descend to the first key not before fromKey, stacking the nodes still to be visited
+			Node<K, V> n = root;
+			while (n != null) {
+				if ((null != fromKey) && beyond(fromKey, n.key)) {
+					n = descending ? n.left : n.right;
+				} else {
+					push(n);
+					n = descending ? n.right : n.left;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return (depth > 0) && ((null == toKey) || !beyond(stack[depth - 1].key, toKey));
+		}
+
+		@Override
+		public V next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Node<K, V> n = stack[--depth];
+			for (Node<K, V> c = descending ? n.left : n.right; c != null; c = descending ? c.right : c.left)
+				push(c);
+			return n.value;
+		}
+
+		/**
+		 * Tests if the bound is beyond the key, that is if the key comes strictly before the bound in iteration order.
+		 * @param bound the key compared against, such as fromKey or the next key to visit
+		 * @param key the key compared, such as a node's key or toKey
+		 */
+		private boolean beyond(K bound, K key) {
+			int c = comparator.compare(key, bound);
+			return descending ? (c > 0) : (c < 0);
+		}
+
+		private void push(Node<K, V> n) {
+			if (depth == stack.length)
+				stack = Arrays.copyOf(stack, depth * 2);
+			stack[depth++] = n;
+		}
+	}
+}
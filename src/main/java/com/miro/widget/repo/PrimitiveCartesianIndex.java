@@ -0,0 +1,284 @@
+package com.miro.widget.repo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.miro.widget.model.IBoundingBox;
+
+/**
+ * A primitive specialized Integer cartesian bounding box index, that stores long values (references) without boxing.
+ * <p>
+ * Boxes live in parallel int/long slot arrays, reused through a free list. Distinct lower x values are kept sorted
+ * in blocks of int arrays, each value pointing to a doubly linked list of the slots with that lower x, so a box is
+ * removed in O(1) once its slot is found through the reference to slot hash map. A new or last lower x value shifts
+ * only the values of its block, which is split when full, and {@link #addAll} builds the blocks with a single sort.
+ * A query binary searches the lower x range and tests the remaining edges in place, writing matching references
+ * into a caller supplied {@link LongList}, without allocating.
+ */
+public class PrimitiveCartesianIndex implements SpatialIndex {
+
+	private static final int NONE = -1;
+	private static final int BLOCK_SIZE = 512;
+
+	//slot columns
+	private int[] lowerY = new int[16];
+	private int[] upperX = new int[16];
+	private int[] upperY = new int[16];
+	private long[] refs = new long[16];
+	private int[] next = new int[16];
+	private int[] prev = new int[16];
+	private int slotCount;
+	private int freeSlot = NONE;
+
+	//blocks of sorted distinct lower x values and the first slot of each; only the first block may be empty
+	private final int blockSize;
+	private int[][] keys = { new int[16] };
+	private int[][] heads = { new int[16] };
+	private int[] keyCounts = new int[1];
+	private int blockCount = 1;
+
+	private final LongIntHashMap slotByRef = new LongIntHashMap(NONE);
+	private final LongAdder candidates = new LongAdder();
+
+	public PrimitiveCartesianIndex() {
+		this(BLOCK_SIZE);
+	}
+
+	PrimitiveCartesianIndex(int blockSize) {
+		if (blockSize < 2)
+			throw new IllegalArgumentException("blockSize must be at least 2");
+		this.blockSize = blockSize;
+	}
+
+	@Override
+	public void add(IBoundingBox box, Long ref) {
+		int slot = allocSlot(box, ref);
+		int lx = box.getLowerX();
+		int b = blockOf(lx);
+		int k = Arrays.binarySearch(keys[b], 0, keyCounts[b], lx);
+		if (k < 0) {
+			k = -(k + 1);
+			if (keyCounts[b] == blockSize) {
+				splitBlock(b);
+				if (k > keyCounts[b]) {
+					k -= keyCounts[b];
+					b++;
+				}
+			}
+			insertKey(b, k, lx);
+		}
+		int head = heads[b][k];
+		prev[slot] = NONE;
+		next[slot] = head;
+		if (NONE != head)
+			prev[head] = slot;
+		heads[b][k] = slot;
+	}
+
+	/**
+	 * Builds the lower x blocks with a single sort when the index is empty, half full to leave room for later adds.
+	 */
+	@Override
+	public void addAll(IBoundingBox[] boxes, Long[] refs) {
+		if ((size() > 0) || (0 == boxes.length)) {
+			SpatialIndex.super.addAll(boxes, refs);
+			return;
+		}
+		//lower x in the high half, so that sorting the keys sorts by lower x
+		long[] sorted = new long[boxes.length];
+		for (int i = 0; i < boxes.length; i++)
+			sorted[i] = ((long) boxes[i].getLowerX() << 32) | allocSlot(boxes[i], refs[i]);
+		Arrays.sort(sorted);
+		int fill = blockSize / 2;
+		blockCount = 0;
+		int b = -1;
+		for (int i = 0; i < sorted.length; i++) {
+			int lx = (int) (sorted[i] >> 32), slot = (int) sorted[i];
+			if ((i == 0) || (lx != (int) (sorted[i - 1] >> 32))) {
+				if ((b < 0) || (keyCounts[b] == fill))
+					insertBlock(++b, blockSize);
+				keys[b][keyCounts[b]] = lx;
+				heads[b][keyCounts[b]++] = NONE;
+			}
+			int head = heads[b][keyCounts[b] - 1];
+			prev[slot] = NONE;
+			next[slot] = head;
+			if (NONE != head)
+				prev[head] = slot;
+			heads[b][keyCounts[b] - 1] = slot;
+		}
+	}
+
+	@Override
+	public void delete(IBoundingBox box, Long ref) {
+		int slot = slotByRef.remove(ref);
+		if (NONE == slot)
+			return;
+		int n = next[slot], p = prev[slot];
+		if (NONE != n)
+			prev[n] = p;
+		if (NONE != p) {
+			next[p] = n;
+		} else {
+			int b = blockOf(box.getLowerX());
+			int k = Arrays.binarySearch(keys[b], 0, keyCounts[b], box.getLowerX());
+			if (NONE == n)
+				removeKey(b, k);
+			else
+				heads[b][k] = n;
+		}
+		next[slot] = freeSlot;
+		freeSlot = slot;
+	}
+
+	@Override
+	public Collection<Long> filter(IBoundingBox box) {
+		LongList out = new LongList();
+		filterInto(box, out);
+		ArrayList<Long> result = new ArrayList<>(out.size());
+		for (int i = 0; i < out.size(); i++)
+			result.add(out.get(i));
+		return result;
+	}
+
+	@Override
+	public void filterInto(IBoundingBox box, LongList out) {
+		int lx = box.getLowerX(), ly = box.getLowerY(), ux = box.getUpperX(), uy = box.getUpperY();
+		int b = blockOf(lx);
+		int k = Arrays.binarySearch(keys[b], 0, keyCounts[b], lx);
+		if (k < 0)
+			k = -(k + 1);
+		int tested = 0;
+		scan:
+		for (; b < blockCount; b++, k = 0) {
+			for (; k < keyCounts[b]; k++) {
+				if (keys[b][k] > ux)
+					break scan;
+				for (int s = heads[b][k]; s != NONE; s = next[s]) {
+					tested++;
+					if ((lowerY[s] >= ly) && (upperX[s] <= ux) && (upperY[s] <= uy))
+						out.add(refs[s]);
+				}
+			}
+		}
+		candidates.add(tested);
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(keys, 1, blockCount, null);
+		Arrays.fill(heads, 1, blockCount, null);
+		blockCount = 1;
+		keyCounts[0] = 0;
+		slotCount = 0;
+		freeSlot = NONE;
+		slotByRef.clear();
+	}
+
+	@Override
+	public int size() {
+		return slotByRef.size();
+	}
+
+	@Override
+	public long getCandidateCount() {
+		return candidates.sum();
+	}
+
+	private int allocSlot(IBoundingBox box, Long ref) {
+		int slot;
+		if (NONE != freeSlot) {
+			slot = freeSlot;
+			freeSlot = next[slot];
+		} else {
+			if (slotCount == refs.length) {
+				int capacity = slotCount * 2;
+				lowerY = Arrays.copyOf(lowerY, capacity);
+				upperX = Arrays.copyOf(upperX, capacity);
+				upperY = Arrays.copyOf(upperY, capacity);
+				refs = Arrays.copyOf(refs, capacity);
+				next = Arrays.copyOf(next, capacity);
+				prev = Arrays.copyOf(prev, capacity);
+			}
+			slot = slotCount++;
+		}
+		lowerY[slot] = box.getLowerY();
+		upperX[slot] = box.getUpperX();
+		upperY[slot] = box.getUpperY();
+		refs[slot] = ref;
+		slotByRef.put(ref, slot);
+		return slot;
+	}
+
+	/**
+	 * @return the last block whose first lower x value is not above the given one, or the first block
+	 */
+	private int blockOf(int key) {
+		int lo = 1, hi = blockCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid][0] <= key)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		return hi;
+	}
+
+	private void insertKey(int b, int k, int key) {
+		int count = keyCounts[b];
+		if (count == keys[b].length) {
+			int capacity = Math.min(blockSize, count * 2);
+			keys[b] = Arrays.copyOf(keys[b], capacity);
+			heads[b] = Arrays.copyOf(heads[b], capacity);
+		}
+		System.arraycopy(keys[b], k, keys[b], k + 1, count - k);
+		System.arraycopy(heads[b], k, heads[b], k + 1, count - k);
+		keys[b][k] = key;
+		heads[b][k] = NONE;
+		keyCounts[b]++;
+	}
+
+	private void removeKey(int b, int k) {
+		int count = --keyCounts[b];
+		System.arraycopy(keys[b], k + 1, keys[b], k, count - k);
+		System.arraycopy(heads[b], k + 1, heads[b], k, count - k);
+		if ((0 == count) && (blockCount > 1)) {
+			System.arraycopy(keys, b + 1, keys, b, blockCount - b - 1);
+			System.arraycopy(heads, b + 1, heads, b, blockCount - b - 1);
+			System.arraycopy(keyCounts, b + 1, keyCounts, b, blockCount - b - 1);
+			blockCount--;
+			keys[blockCount] = null;
+			heads[blockCount] = null;
+		}
+	}
+
+	/**
+	 * Moves the upper half of a full block into a new block right after it.
+	 */
+	private void splitBlock(int b) {
+		int half = keyCounts[b] / 2;
+		insertBlock(b + 1, blockSize);
+		System.arraycopy(keys[b], half, keys[b + 1], 0, keyCounts[b] - half);
+		System.arraycopy(heads[b], half, heads[b + 1], 0, keyCounts[b] - half);
+		keyCounts[b + 1] = keyCounts[b] - half;
+		keyCounts[b] = half;
+	}
+
+	private void insertBlock(int b, int capacity) {
+		if (blockCount == keys.length) {
+			keys = Arrays.copyOf(keys, blockCount * 2);
+			heads = Arrays.copyOf(heads, blockCount * 2);
+			keyCounts = Arrays.copyOf(keyCounts, blockCount * 2);
+		}
+		System.arraycopy(keys, b, keys, b + 1, blockCount - b);
+		System.arraycopy(heads, b, heads, b + 1, blockCount - b);
+		System.arraycopy(keyCounts, b, keyCounts, b + 1, blockCount - b);
+		keys[b] = new int[capacity];
+		heads[b] = new int[capacity];
+		keyCounts[b] = 0;
+		blockCount++;
+	}
+}
@@ -0,0 +1,359 @@
+package com.miro.widget.repo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.miro.widget.model.IBoundingBox;
+
+/**
+ * An R-tree (Guttman, quadratic split) Integer cartesian bounding box index, that stores Long values (references).
+ * Containment queries only descend into nodes whose bounding rectangle intersects the query box,
+ * so their cost is roughly O(log n + k) for k results.
+ */
+public class RTreeIndex implements SpatialIndex {
+
+	public static final int DEFAULT_MAX_ENTRIES = 16;
+
+	private final int maxEntries;
+	private final int minEntries;
+	private Node root;
+	private int size;
+	private final LongAdder candidates = new LongAdder();
+
+	public RTreeIndex() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	public RTreeIndex(int maxEntries) {
+		if (maxEntries < 4)
+			throw new IllegalArgumentException("RTreeIndex needs at least 4 entries per node");
+		this.maxEntries = maxEntries;
+		this.minEntries = Math.max(2, (maxEntries * 2) / 5);
+		this.root = new Node(true);
+	}
+
+	@Override
+	public void add(IBoundingBox box, Long ref) {
+		insert(new Entry(box, ref));
+		size++;
+	}
+
+	@Override
+	public void delete(IBoundingBox box, Long ref) {
+		Entry target = new Entry(box, ref);
+		Node leaf = findLeaf(root, target);
+		if (null == leaf)
+			return;
+		for (int i = 0; i < leaf.entries.size(); i++) {
+			Entry e = (Entry) leaf.entries.get(i);
+			if ((e.ref == target.ref) && e.sameRect(target)) {
+				leaf.entries.remove(i);
+				size--;
+				break;
+			}
+		}
+		condense(leaf);
+	}
+
+	@Override
+	public Collection<Long> filter(IBoundingBox box) {
+		ArrayList<Long> refs = new ArrayList<>();
+		Rect query = new Rect(box.getLowerX(), box.getLowerY(), box.getUpperX(), box.getUpperY());
+		candidates.add(search(root, query, refs));
+		return refs;
+	}
+
+	@Override
+	public void clear() {
+		root = new Node(true);
+		size = 0;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public long getCandidateCount() {
+		return candidates.sum();
+	}
+
+	/**
+	 * @return the number of leaf entries tested
+	 */
+	private int search(Node node, Rect query, List<Long> refs) {
+		int tested = 0;
+		for (Rect r : node.entries) {
+			if (node.leaf) {
+				tested++;
+				if (query.contains(r))
+					refs.add(((Entry) r).ref);
+			} else if (query.intersects(r)) {
+				tested += search((Node) r, query, refs);
+			}
+		}
+		return tested;
+	}
+
+	private void insert(Entry entry) {
+		Node leaf = chooseLeaf(entry);
+		leaf.entries.add(entry);
+		Node split = (leaf.entries.size() > maxEntries) ? split(leaf) : null;
+		adjust(leaf, split);
+	}
+
+	private Node chooseLeaf(Rect r) {
+		Node node = root;
+		while (!node.leaf) {
+			Node best = null;
+			double bestEnlargement = Double.MAX_VALUE;
+			double bestArea = Double.MAX_VALUE;
+			for (Rect child : node.entries) {
+				double area = child.area();
+				double enlargement = child.unionArea(r) - area;
+				if ((enlargement < bestEnlargement) || ((enlargement == bestEnlargement) && (area < bestArea))) {
+					best = (Node) child;
+					bestEnlargement = enlargement;
+					bestArea = area;
+				}
+			}
+			node = best;
+		}
+		return node;
+	}
+
+	/**
+	 * Propagates bounding rectangle changes and node splits from a given node up to the root.
+	 */
+	private void adjust(Node node, Node split) {
+		while (node != root) {
+			Node parent = node.parent;
+			node.recalc();
+			if (null != split) {
+				split.recalc();
+				split.parent = parent;
+				parent.entries.add(split);
+				split = (parent.entries.size() > maxEntries) ? split(parent) : null;
+			}
+			node = parent;
+		}
+		node.recalc();
+		if (null != split) {
+			split.recalc();
+			Node newRoot = new Node(false);
+			newRoot.entries.add(root);
+			newRoot.entries.add(split);
+			root.parent = newRoot;
+			split.parent = newRoot;
+			newRoot.recalc();
+			root = newRoot;
+		}
+	}
+
+	/**
+	 * Quadratic split: moves part of the given node's entries to a new sibling node, which is returned.
+	 */
+	private Node split(Node node) {
+		List<Rect> pending = new ArrayList<>(node.entries);
+		node.entries.clear();
+		Node sibling = new Node(node.leaf);
+
+		int seedA = 0, seedB = 1;
+		double worst = -Double.MAX_VALUE;
+		for (int i = 0; i < pending.size(); i++) {
+			for (int j = i + 1; j < pending.size(); j++) {
+				Rect a = pending.get(i), b = pending.get(j);
+				double waste = a.unionArea(b) - a.area() - b.area();
+				if (waste > worst) {
+					worst = waste;
+					seedA = i;
+					seedB = j;
+				}
+			}
+		}
+		Rect a = pending.get(seedA), b = pending.get(seedB);
+		pending.remove(seedB);
+		pending.remove(seedA);
+		node.addChild(a);
+		sibling.addChild(b);
+		node.setRect(a);
+		sibling.setRect(b);
+
+		while (!pending.isEmpty()) {
+			if (node.entries.size() + pending.size() == minEntries) {
+				for (Rect r : pending)
+					node.addChild(r);
+				break;
+			}
+			if (sibling.entries.size() + pending.size() == minEntries) {
+				for (Rect r : pending)
+					sibling.addChild(r);
+				break;
+			}
+			int next = 0;
+			double maxDiff = -1;
+			for (int i = 0; i < pending.size(); i++) {
+				Rect r = pending.get(i);
+				double diff = Math.abs((node.unionArea(r) - node.area()) - (sibling.unionArea(r) - sibling.area()));
+				if (diff > maxDiff) {
+					maxDiff = diff;
+					next = i;
+				}
+			}
+			Rect r = pending.remove(next);
+			double growNode = node.unionArea(r) - node.area();
+			double growSibling = sibling.unionArea(r) - sibling.area();
+			Node target;
+			if (growNode != growSibling)
+				target = (growNode < growSibling) ? node : sibling;
+			else if (node.area() != sibling.area())
+				target = (node.area() < sibling.area()) ? node : sibling;
+			else
+				target = (node.entries.size() <= sibling.entries.size()) ? node : sibling;
+			target.addChild(r);
+			target.include(r);
+		}
+		node.recalc();
+		sibling.recalc();
+		return sibling;
+	}
+
+	private Node findLeaf(Node node, Entry target) {
+		if (node.leaf) {
+			for (Rect r : node.entries) {
+				Entry e = (Entry) r;
+				if ((e.ref == target.ref) && e.sameRect(target))
+					return node;
+			}
+			return null;
+		}
+		for (Rect r : node.entries) {
+			if (r.contains(target)) {
+				Node found = findLeaf((Node) r, target);
+				if (null != found)
+					return found;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes underfull nodes on the path from a given leaf to the root, reinserting their entries.
+	 */
+	private void condense(Node leaf) {
+		List<Entry> orphans = new ArrayList<>();
+		Node node = leaf;
+		while (node != root) {
+			Node parent = node.parent;
+			if (node.entries.size() < minEntries) {
+				parent.entries.remove(node);
+				collectEntries(node, orphans);
+			} else {
+				node.recalc();
+			}
+			node = parent;
+		}
+		root.recalc();
+		while (!root.leaf && (root.entries.size() == 1)) {
+			root = (Node) root.entries.get(0);
+			root.parent = null;
+		}
+		if (!root.leaf && root.entries.isEmpty())
+			root = new Node(true);
+		for (Entry e : orphans)
+			insert(e);
+	}
+
+	private void collectEntries(Node node, List<Entry> into) {
+		for (Rect r : node.entries) {
+			if (node.leaf)
+				into.add((Entry) r);
+			else
+				collectEntries((Node) r, into);
+		}
+	}
+
+	static class Rect {
+		int lx, ly, ux, uy;
+
+		Rect(int lx, int ly, int ux, int uy) {
+			this.lx = lx;
+			this.ly = ly;
+			this.ux = ux;
+			this.uy = uy;
+		}
+
+		double area() {
+			return ((double) ux - lx) * ((double) uy - ly);
+		}
+
+		double unionArea(Rect r) {
+			return ((double) Math.max(ux, r.ux) - Math.min(lx, r.lx)) * ((double) Math.max(uy, r.uy) - Math.min(ly, r.ly));
+		}
+
+		boolean contains(Rect r) {
+			return (lx <= r.lx) && (ly <= r.ly) && (ux >= r.ux) && (uy >= r.uy);
+		}
+
+		boolean intersects(Rect r) {
+			return (lx <= r.ux) && (r.lx <= ux) && (ly <= r.uy) && (r.ly <= uy);
+		}
+
+		boolean sameRect(Rect r) {
+			return (lx == r.lx) && (ly == r.ly) && (ux == r.ux) && (uy == r.uy);
+		}
+
+		void setRect(Rect r) {
+			lx = r.lx;
+			ly = r.ly;
+			ux = r.ux;
+			uy = r.uy;
+		}
+
+		void include(Rect r) {
+			lx = Math.min(lx, r.lx);
+			ly = Math.min(ly, r.ly);
+			ux = Math.max(ux, r.ux);
+			uy = Math.max(uy, r.uy);
+		}
+	}
+
+	static final class Entry extends Rect {
+		final long ref;
+
+		Entry(IBoundingBox box, long ref) {
+			super(box.getLowerX(), box.getLowerY(), box.getUpperX(), box.getUpperY());
+			this.ref = ref;
+		}
+	}
+
+	static final class Node extends Rect {
+		final boolean leaf;
+		final ArrayList<Rect> entries = new ArrayList<>();
+		Node parent;
+
+		Node(boolean leaf) {
+			super(0, 0, 0, 0);
+			this.leaf = leaf;
+		}
+
+		void addChild(Rect r) {
+			entries.add(r);
+			if (!leaf)
+				((Node) r).parent = this;
+		}
+
+		void recalc() {
+			if (entries.isEmpty()) {
+				lx = ly = ux = uy = 0;
+				return;
+			}
+			setRect(entries.get(0));
+			for (int i = 1; i < entries.size(); i++)
+				include(entries.get(i));
+		}
+	}
+}
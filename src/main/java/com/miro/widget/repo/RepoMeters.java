@@ -0,0 +1,41 @@
+package com.miro.widget.repo;
+
+import java.util.function.ToDoubleFunction;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+/**
+ * Meters shared by the WidgetRepository implementations.
+ */
+final class RepoMeters {
+
+	/**
+	 * Registry without any backing registry, whose meters record nothing, for repositories not bound to one.
+	 */
+	static final MeterRegistry NONE = new CompositeMeterRegistry();
+
+	private RepoMeters() {}
+
+	/**
+	 * @return the histogram of the number of Widgets moved by one z index shift in the given direction
+	 */
+	static DistributionSummary shiftCascade(MeterRegistry registry, String repo, String direction) {
+		return DistributionSummary.builder("widget.repo.shift.cascade")
+				.description("Widgets moved by a single z index shift")
+				.baseUnit("widgets")
+				.tags("repo", repo, "direction", direction)
+				.publishPercentiles(0.5, 0.95, 0.99)
+				.serviceLevelObjectives(1, 10, 100, 1_000, 10_000, 100_000)
+				.register(registry);
+	}
+
+	static <T> void widgetCount(MeterRegistry registry, String repo, T state, ToDoubleFunction<T> count) {
+		Gauge.builder("widget.repo.widgets", state, count)
+				.description("Widgets in the repository")
+				.tag("repo", repo)
+				.register(registry);
+	}
+}
@@ -0,0 +1,167 @@
+package com.miro.widget.repo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.miro.widget.model.IBoundingBox;
+
+/**
+ * A bounded LRU cache of search results, keyed by search bounds and holding the ids of the matching Widgets
+ * in ascending z order.
+ * <p>
+ * Shifting z index values never changes the relative z order of the shifted Widgets, so cached ids stay valid
+ * across shifts. Only a write whose old or new geometry lies within the bounds of an entry can change that entry,
+ * and only such entries are invalidated.
+ * <p>
+ * Every invalidation advances the cache version. A result computed from a repository state older than the current
+ * version is not cached, so a search racing with a write never stores a stale result.
+ * <p>
+ * Thread safe.
+ */
+public final class SearchResultCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 256;
+	public static final int DEFAULT_MAX_IDS = 1_000_000;
+
+	private final int maxEntries;
+	private final int maxIds;
+	private final LinkedHashMap<Key, long[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long cachedIds;
+	private long version;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	public SearchResultCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_IDS);
+	}
+
+	/**
+	 * @param maxEntries maximum number of cached results
+	 * @param maxIds maximum number of ids in all cached results together
+	 */
+	public SearchResultCache(int maxEntries, int maxIds) {
+		if ((maxEntries < 1) || (maxIds < 1))
+			throw new IllegalArgumentException("SearchResultCache limits should not be smaller than 1");
+		this.maxEntries = maxEntries;
+		this.maxIds = maxIds;
+	}
+
+	/**
+	 * @return the cached ids for the given bounds in ascending z order, or null on a miss
+	 */
+	public synchronized long[] get(IBoundingBox bounds) {
+		long[] ids = entries.get(new Key(bounds));
+		if (null == ids)
+			misses++;
+		else
+			hits++;
+		return ids;
+	}
+
+	/**
+	 * @return the current version, to be read before computing a result to be cached
+	 */
+	public synchronized long version() {
+		return version;
+	}
+
+	/**
+	 * Caches a search result, unless it was computed before the given version was superseded.
+	 */
+	public synchronized void put(IBoundingBox bounds, long[] ids, long computedAt) {
+		if ((computedAt != version) || (ids.length > maxIds))
+			return;
+		long[] old = entries.put(new Key(bounds), ids);
+		if (null != old)
+			cachedIds -= old.length;
+		cachedIds += ids.length;
+		Iterator<long[]> lru = entries.values().iterator();
+		while ((entries.size() > maxEntries) || (cachedIds > maxIds)) {
+			cachedIds -= lru.next().length;
+			lru.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Invalidates the results that a Widget with the given geometry belongs to.
+	 */
+	public synchronized void invalidate(IBoundingBox geometry) {
+		version++;
+		Iterator<Map.Entry<Key, long[]>> i = entries.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<Key, long[]> e = i.next();
+			if (e.getKey().contains(geometry)) {
+				cachedIds -= e.getValue().length;
+				i.remove();
+				invalidations++;
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		version++;
+		invalidations += entries.size();
+		entries.clear();
+		cachedIds = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * Search bounds as a value, as IBoundingBox implementations need not define equality.
+	 */
+	private static final class Key {
+		final int lowerX, lowerY, upperX, upperY;
+
+		Key(IBoundingBox b) {
+			this.lowerX = b.getLowerX();
+			this.lowerY = b.getLowerY();
+			this.upperX = b.getUpperX();
+			this.upperY = b.getUpperY();
+		}
+
+		/**
+		 * Tests if a box lies within these bounds, the same test the spatial indexes apply.
+		 */
+		boolean contains(IBoundingBox b) {
+			return (b.getLowerX() >= lowerX) && (b.getLowerY() >= lowerY)
+					&& (b.getUpperX() <= upperX) && (b.getUpperY() <= upperY);
+		}
+
+		@Override
+		public int hashCode() {
+			return ((lowerX * 31 + lowerY) * 31 + upperX) * 31 + upperY;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return (lowerX == other.lowerX) && (lowerY == other.lowerY)
+					&& (upperX == other.upperX) && (upperY == other.upperY);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package com.miro.widget.repo;
+
+import java.util.Collection;
+
+import com.miro.widget.model.IBoundingBox;
+
+/**
+ * An Integer cartesian bounding box index, that stores Long values (references).
+ * Implementations are not thread safe, external synchronization should be applied for writes.
+ */
+public interface SpatialIndex {
+
+	void add(IBoundingBox box, Long ref);
+
+	void delete(IBoundingBox box, Long ref);
+
+	/**
+	 * Adds many boxes at once, which implementations may do faster than one by one when the index is empty.
+	 */
+	default void addAll(IBoundingBox[] boxes, Long[] refs) {
+		for (int i = 0; i < boxes.length; i++)
+			add(boxes[i], refs[i]);
+	}
+
+	/**
+	 * Finds the references of all boxes that are fully contained (edges inclusive) in the given box.
+	 */
+	Collection<Long> filter(IBoundingBox box);
+
+	/**
+	 * Like {@link #filter(IBoundingBox)}, but appends the references to a given reusable buffer.
+	 */
+	default void filterInto(IBoundingBox box, LongList out) {
+		for (Long ref : filter(box))
+			out.add(ref);
+	}
+
+	void clear();
+
+	/**
+	 * @return the number of boxes held
+	 */
+	int size();
+
+	/**
+	 * @return the number of stored boxes tested against the query box by all filter calls so far,
+	 * to be compared with the number of boxes found
+	 */
+	long getCandidateCount();
+}
@@ -0,0 +1,129 @@
+package com.miro.widget.repo;
+
+import java.util.Arrays;
+
+import com.miro.widget.model.IBoundingBox;
+
+/**
+ * The geometry of all Widgets as a struct of arrays: parallel x, y, width, height and id columns, dense and in
+ * no particular order, for searches that match a large share of the board.
+ * <p>
+ * Such a search costs a spatial index about as much per match as per candidate, and chases pointers for each.
+ * A linear scan of the columns tests every box with four int comparisons on sequentially read arrays, in a loop
+ * without object dereferences or allocations that the JIT can unroll and vectorize. It wins once the share of
+ * matching boxes exceeds the scan threshold, which {@link #shouldScan(IBoundingBox)} estimates from a sample.
+ * <p>
+ * Z index values are not held here, as shifts would then have to touch every shifted Widget. Not thread safe.
+ */
+public final class WidgetColumns {
+
+	public static final double DEFAULT_SCAN_THRESHOLD = 0.01;
+
+	private static final int NONE = -1;
+	private static final int SAMPLE = 256;
+
+	private final double scanThreshold;
+	private int[] xs = new int[16];
+	private int[] ys = new int[16];
+	private int[] widths = new int[16];
+	private int[] heights = new int[16];
+	private long[] ids = new long[16];
+	private int size;
+	private final LongIntHashMap positionById = new LongIntHashMap(NONE);
+
+	public WidgetColumns() {
+		this(DEFAULT_SCAN_THRESHOLD);
+	}
+
+	/**
+	 * @param scanThreshold estimated fraction of matching boxes from which searches should scan
+	 */
+	public WidgetColumns(double scanThreshold) {
+		if ((scanThreshold < 0) || (scanThreshold > 1))
+			throw new IllegalArgumentException("WidgetColumns scan threshold should be between 0 and 1");
+		this.scanThreshold = scanThreshold;
+	}
+
+	void add(IBoundingBox box, long id) {
+		if (size == ids.length) {
+			int capacity = size * 2;
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			widths = Arrays.copyOf(widths, capacity);
+			heights = Arrays.copyOf(heights, capacity);
+			ids = Arrays.copyOf(ids, capacity);
+		}
+		xs[size] = box.getLowerX();
+		ys[size] = box.getLowerY();
+		widths[size] = box.getUpperX() - box.getLowerX();
+		heights[size] = box.getUpperY() - box.getLowerY();
+		ids[size] = id;
+		positionById.put(id, size);
+		size++;
+	}
+
+	/**
+	 * Removes a box by moving the last one into its place, keeping the columns dense.
+	 */
+	void remove(long id) {
+		int i = positionById.remove(id);
+		if (NONE == i)
+			return;
+		int last = --size;
+		if (i != last) {
+			xs[i] = xs[last];
+			ys[i] = ys[last];
+			widths[i] = widths[last];
+			heights[i] = heights[last];
+			ids[i] = ids[last];
+			positionById.put(ids[i], i);
+		}
+	}
+
+	void clear() {
+		size = 0;
+		positionById.clear();
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Tests if scanning is likely faster than the spatial index, by testing evenly spaced sample boxes.
+	 */
+	boolean shouldScan(IBoundingBox bounds) {
+		if (0 == size)
+			return false;
+		int step = Math.max(1, size / SAMPLE);
+		int tested = 0, matched = 0;
+		for (int i = 0; i < size; i += step) {
+			tested++;
+			if (contains(bounds, i))
+				matched++;
+		}
+		return matched >= scanThreshold * tested;
+	}
+
+	/**
+	 * Appends the ids of all boxes that are fully contained (edges inclusive) in the given box.
+	 */
+	void filterInto(IBoundingBox bounds, LongList out) {
+		final int lowerX = bounds.getLowerX(), lowerY = bounds.getLowerY();
+		final int upperX = bounds.getUpperX(), upperY = bounds.getUpperY();
+		final int[] xs = this.xs, ys = this.ys, widths = this.widths, heights = this.heights;
+		final long[] ids = this.ids;
+		final int n = size;
+		for (int i = 0; i < n; i++) {
+			int x = xs[i], y = ys[i];
+			//non short-circuit ands, so the loop body has a single branch
+			if ((x >= lowerX) & (y >= lowerY) & (x + widths[i] <= upperX) & (y + heights[i] <= upperY))
+				out.add(ids[i]);
+		}
+	}
+
+	private boolean contains(IBoundingBox bounds, int i) {
+		return (xs[i] >= bounds.getLowerX()) && (ys[i] >= bounds.getLowerY())
+				&& (xs[i] + widths[i] <= bounds.getUpperX()) && (ys[i] + heights[i] <= bounds.getUpperY());
+	}
+}
@@ -13,6 +13,20 @@ public class WidgetIdGenerator {
 		return idGen.getAndIncrement();
 	}
 	
+	/**
+	 * @return the id that will be generated next
+	 */
+	long peekId() {
+		return idGen.get();
+	}
+	
+	/**
+	 * Makes sure that a given id, chosen elsewhere, will never be generated.
+	 */
+	void reserve(long id) {
+		idGen.accumulateAndGet(id + 1, Math::max);
+	}
+	
 	/**
 	 * Tests if a given value would be a valid Widget id.
 	 */
@@ -1,81 +1,486 @@
 package com.miro.widget.repo;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Instant;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
-import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Repository;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
 import com.miro.widget.model.IBoundingBox;
 import com.miro.widget.model.Widget;
+import com.miro.widget.model.ZPage;
 
 /**
  * WidgetRepository implementation that stores Widgets in memory.
  * This repository is not thread safe. To ensure consistency, external synchronization should be applied.
+ * Reads do not modify any state, so they may run concurrently with each other, but not with writes.
+ * Writes may be made durable in a {@link WriteAheadLog}, which is replayed into the repository on startup.
+ * Periodic {@link WidgetSnapshot}s bound the replay to the writes since the last snapshot.
  */
 @Repository
-public class WidgetInMemRepo implements WidgetRepository{
+@ConditionalOnProperty(prefix = "widget.repo", name = "type", havingValue = "inmem", matchIfMissing = true)
+public class WidgetInMemRepo implements WidgetRepository, MeterBinder {
 
 	Logger log = LoggerFactory.getLogger(WidgetInMemRepo.class);
 	
+	//id buffer of the searches of each thread, as searches run in parallel under a shared read lock
+	private static final ThreadLocal<LongList> FILTER_BUFFER = ThreadLocal.withInitial(LongList::new);
+	//buffers grown beyond this are dropped after use, so that one large search does not pin its array
+	private static final int MAX_KEPT_BUFFER = 1 << 16;
+	
 	private final WidgetIdGenerator idGen = new WidgetIdGenerator();
-	private final CartesianIndex xyIndex = new CartesianIndex();
+	private final SpatialIndex xyIndex;
+	//may be null, when search results are not cached
+	private final SearchResultCache searchCache;
+	//may be null, when searches always use the spatial index
+	private final WidgetColumns columns;
 	
     //primary widget order is by z index value
-    private final TreeMap<Integer, Widget> widgetsByZPos = new TreeMap<>();
-    private final TreeMap<Long, Integer> zPosById = new TreeMap<>();
+    private final ZOrderTree widgetsByZPos = new ZOrderTree();
+    
+    private DistributionSummary shiftsUp = RepoMeters.shiftCascade(RepoMeters.NONE, "inmem", "up");
+    private DistributionSummary shiftsDown = RepoMeters.shiftCascade(RepoMeters.NONE, "inmem", "down");
+    //boxes found by the spatial index, to compare with the candidates it tested
+    private final LongAdder indexMatches = new LongAdder();
+    //searches that scanned the columns instead of using the spatial index
+    private final LongAdder columnScans = new LongAdder();
+    
+    private final List<MutationListener> listeners = new CopyOnWriteArrayList<>();
+    //may be null, when writes are not logged
+    private WriteAheadLog wal;
+    //may be null, when no snapshots are taken
+    private Path snapshotFile;
+    //the first write-ahead log segment not covered by the restored snapshot
+    private long restoredWalSeq;
+    //set while applying recorded mutations, whose shifts are not notified either
+    private boolean replaying;
+    //advanced by every write, read without locking
+    private volatile long version;
+
+    public WidgetInMemRepo() {
+    	this(new CartesianIndex(), new SearchResultCache(), new WidgetColumns());
+    }
+
+    @Autowired
+    public WidgetInMemRepo(WidgetRepoProperties props) {
+    	this(props.createIndex(), props.createSearchCache(), props.createColumns());
+    	if (props.getSnapshot().isEnabled())
+    		useSnapshots(Paths.get(props.getSnapshot().getFile()));
+    	if (props.getWal().isEnabled())
+    		recover(props.getWal().create());
+    }
+
+    public WidgetInMemRepo(SpatialIndex xyIndex) {
+    	this(xyIndex, null);
+    }
+
+    public WidgetInMemRepo(SpatialIndex xyIndex, SearchResultCache searchCache) {
+    	this(xyIndex, searchCache, null);
+    }
+
+    public WidgetInMemRepo(SpatialIndex xyIndex, SearchResultCache searchCache, WidgetColumns columns) {
+    	this.xyIndex = xyIndex;
+    	this.searchCache = searchCache;
+    	this.columns = columns;
+    }
+    
+    /**
+     * Registers the shift cascade histograms, the spatial index and search cache counters and the size gauges.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+    	shiftsUp = RepoMeters.shiftCascade(registry, "inmem", "up");
+    	shiftsDown = RepoMeters.shiftCascade(registry, "inmem", "down");
+    	RepoMeters.widgetCount(registry, "inmem", widgetsByZPos, ZOrderTree::size);
+    	String index = xyIndex.getClass().getSimpleName();
+    	Gauge.builder("widget.index.size", xyIndex, SpatialIndex::size)
+    			.description("Boxes in the spatial index").tag("index", index).register(registry);
+    	FunctionCounter.builder("widget.index.candidates", xyIndex, SpatialIndex::getCandidateCount)
+    			.description("Boxes tested by spatial index searches").tag("index", index).register(registry);
+    	FunctionCounter.builder("widget.index.matches", indexMatches, LongAdder::sum)
+    			.description("Boxes found by spatial index searches").tag("index", index).register(registry);
+    	FunctionCounter.builder("widget.repo.search.scans", columnScans, LongAdder::sum)
+    			.description("Searches that scanned the geometry columns instead of the spatial index").register(registry);
+    	if (null != searchCache) {
+    		Gauge.builder("widget.repo.search.cache.size", searchCache, SearchResultCache::size)
+    				.description("Cached search results").register(registry);
+    		FunctionCounter.builder("widget.repo.search.cache", searchCache, SearchResultCache::getHits)
+    				.description("Search result cache lookups").tag("result", "hit").register(registry);
+    		FunctionCounter.builder("widget.repo.search.cache", searchCache, SearchResultCache::getMisses)
+    				.description("Search result cache lookups").tag("result", "miss").register(registry);
+    		FunctionCounter.builder("widget.repo.search.cache.evictions", searchCache, SearchResultCache::getEvictions)
+    				.description("Search results evicted from the cache").register(registry);
+    		FunctionCounter.builder("widget.repo.search.cache.invalidations", searchCache,
+    				SearchResultCache::getInvalidations)
+    				.description("Cached search results invalidated by writes").register(registry);
+    	}
+    }
+    
+    /**
+     * Restores the contents of this repository from a write-ahead log, then logs all further writes to it.
+     * Only the part of the log after a restored snapshot is replayed.
+     * @throws IllegalStateException if the log cannot be read
+     */
+    public void recover(WriteAheadLog wal) {
+    	if (null != this.wal)
+    		throw new IllegalStateException("WidgetInMemRepo already has a write-ahead log");
+    	try {
+    		wal.recover(restoredWalSeq, this::apply);
+    	} catch (IOException e) {
+    		throw new IllegalStateException("Cannot recover from write-ahead log", e);
+    	}
+    	this.wal = wal;
+    	addListener(wal);
+    }
+    
+    /**
+     * Restores the contents of this repository from a snapshot file, if there is one,
+     * and makes {@link #checkpoint()} replace that file.
+     * @throws IllegalStateException if the file cannot be read
+     */
+    public void useSnapshots(Path file) {
+    	if (Files.exists(file)) {
+    		long start = System.nanoTime();
+    		try {
+    			restore(WidgetSnapshot.read(file));
+    		} catch (IOException e) {
+    			throw new IllegalStateException("Cannot restore from snapshot", e);
+    		}
+    		log.info("Restored {} widgets from {} in {} ms", count(), file, (System.nanoTime() - start) / 1_000_000);
+    	}
+    	this.snapshotFile = file;
+    }
+    
+    /**
+     * Fills this empty repository from a snapshot in a single pass, without any saving or shifting.
+     */
+    public void restore(WidgetSnapshot snapshot) {
+    	if (!widgetsByZPos.isEmpty())
+    		throw new IllegalStateException("WidgetInMemRepo can only restore a snapshot when empty");
+    	Widget[] widgets = new Widget[snapshot.size()];
+    	Long[] ids = new Long[widgets.length];
+    	Iterator<Widget> i = snapshot.iterator();
+    	for (int n = 0; n < widgets.length; n++) {
+    		widgets[n] = i.next();
+    		ids[n] = widgets[n].getId();
+    	}
+    	widgetsByZPos.build(Arrays.asList(widgets).iterator(), widgets.length);
+    	xyIndex.addAll(widgets, ids);
+    	if (null != columns) {
+    		for (Widget w : widgets)
+    			columns.add(w, w.getId());
+    	}
+    	if (snapshot.getNextId() > 1)
+    		idGen.reserve(snapshot.getNextId() - 1);
+    	restoredWalSeq = snapshot.getWalSeq();
+    	version++;
+    }
+    
+    /**
+     * Captures the current contents, continuing the write-ahead log in a new segment so that the snapshot
+     * covers exactly the segments before it.
+     */
+    public WidgetSnapshot snapshot() {
+    	long walSeq = (null == wal) ? 0 : wal.checkpoint();
+    	return WidgetSnapshot.capture(widgetsByZPos, widgetsByZPos.size(), idGen.peekId(), walSeq);
+    }
+    
+    /**
+     * Captures the current contents without starting a new write-ahead log segment, to be copied elsewhere.
+     */
+    public WidgetSnapshot copy() {
+    	return WidgetSnapshot.capture(widgetsByZPos, widgetsByZPos.size(), idGen.peekId(), 0);
+    }
+    
+    /**
+     * Captures a snapshot, to be written to the snapshot file, after which the log segments it covers are deleted.
+     */
+    @Override
+    public Runnable checkpoint() {
+    	if (null == snapshotFile)
+    		return null;
+    	WidgetSnapshot snapshot = snapshot();
+    	Path file = snapshotFile;
+    	WriteAheadLog writeAheadLog = wal;
+    	return () -> {
+    		try {
+    			snapshot.write(file);
+    			if (null != writeAheadLog)
+    				writeAheadLog.truncate(snapshot.getWalSeq());
+    		} catch (IOException e) {
+    			throw new IllegalStateException("Cannot write snapshot " + file, e);
+    		}
+    	};
+    }
+    
+    /**
+     * Waits until all writes so far are in the write-ahead log on disk, as far as its fsync policy requires.
+     */
+    @Override
+    public void sync() {
+    	if (null != wal)
+    		wal.sync();
+    }
+    
+    @PreDestroy
+    public void close() {
+    	if (null != wal)
+    		wal.close();
+    }
+    
+    /**
+     * Registers a listener to be notified of every write from now on.
+     */
+    public void addListener(MutationListener listener) {
+    	listeners.add(listener);
+    }
+    
+    private void notifyListeners(Mutation m) {
+    	for (MutationListener l : listeners)
+    		l.onMutation(m);
+    }
+    
+    /**
+     * Applies a recorded mutation, without notifying listeners.
+     */
+    public void apply(Mutation m) {
+    	replaying = true;
+    	try {
+    		switch (m.getType()) {
+    		case SAVE:
+    			save(m.toWidget(), m.getTime(), m.getUpdateTime());
+    			break;
+    		case DELETE:
+    			remove(m.getId());
+    			break;
+    		case DELETE_ALL:
+    			clear();
+    			break;
+    		}
+    	} finally {
+    		replaying = false;
+    	}
+    }
+    
+    /**
+     * @return the search result cache, or null if search results are not cached
+     */
+    public SearchResultCache getSearchCache() {
+    	return searchCache;
+    }
 
     @Override
     public Widget save(Widget widget) {
+    	Instant now = Instant.now();
+    	Widget saved = save(widget, now, null);
+    	if (!listeners.isEmpty())
+    		notifyListeners(Mutation.save(saved, now));
+    	return saved;
+    }
+    
+    /**
+     * Saves a widget as at the given time, which becomes its update time and that of any widget it shifts.
+     * @param updateTime the update time recorded for the saved widget, or null to derive it as an original save
+     */
+    private Widget save(Widget widget, Instant now, Instant updateTime) {
     	if (null == widget)
     		throw new IllegalArgumentException("WidgetInMemRepo cannot save null Widget");
     	if (null == widget.getId()) {	//brand new widget
 			widget.setId(idGen.genId());
-			return addWidget(widget);
+			return addWidget(widget, now, updateTime);
 		} else if (!idGen.isValidId(widget.getId())) {	//bad id
 			throw new IllegalArgumentException("Invalid id in widget " + widget.toString());
 		} else {	//add or update
 			Optional<Widget> old = findById(widget.getId());
-			if (!old.isPresent())
-				return addWidget(widget);
-			return updateWidget(old.get(), widget);
+			if (!old.isPresent()) {
+				idGen.reserve(widget.getId());
+				return addWidget(widget, now, updateTime);
+			}
+			return updateWidget(old.get(), widget, now, updateTime);
 		}
     }
     
+    /**
+     * Checks all ids up front, so that a batch with a bad id is rejected before any widget is changed.
+     */
+    @Override
+    public List<Widget> saveAll(Iterable<Widget> widgets) {
+    	for (Widget w : widgets) {
+    		if (null == w)
+    			throw new IllegalArgumentException("WidgetInMemRepo cannot save null Widget");
+    		if ((null != w.getId()) && !idGen.isValidId(w.getId()))
+    			throw new IllegalArgumentException("Invalid id in widget " + w.toString());
+    	}
+    	return WidgetRepository.super.saveAll(widgets);
+    }
+    
     @Override
     public Optional<Widget> findById(Long id) {
-    	Integer zPos = zPosById.get(id);
-    	if (null == zPos)
-    		return Optional.empty();
-		return Optional.ofNullable(widgetsByZPos.get(zPos));
+		return Optional.ofNullable(widgetsByZPos.get(id));
 	}
     
     @Override
     public Iterable<Widget> findAll() {
-    	return Collections.unmodifiableCollection(widgetsByZPos.values());    	
+    	return widgetsByZPos;
     }
     
+    /**
+     * Reads the page as a range of the z order, costing O(log n + page size).
+     */
+    @Override
+    public List<Widget> findPage(ZPage page) {
+    	List<Widget> result = new ArrayList<>();
+    	if (page.isBackward()) {
+    		for (Widget w : widgetsByZPos.descendingFrom(page.highestZ())) {
+    			if (result.size() == page.maxSize())
+    				break;
+    			result.add(w);
+    		}
+    		Collections.reverse(result);
+    	} else {
+    		for (Widget w : widgetsByZPos.ascendingFrom(page.lowestZ())) {
+    			if ((result.size() == page.maxSize()) || (w.getzIndex() > page.highestZ()))
+    				break;
+    			result.add(w);
+    		}
+    	}
+    	return result;
+    }
+    
+    /**
+     * Cached results are resolved from their ids, as shifts may have changed the z index values since.
+     */
     @Override
     public Iterable<Widget> search(IBoundingBox bounds) {
-    	Collection<Long> ids = xyIndex.filter(bounds);
-    	if ((null == ids) || ids.isEmpty())
-    		return Collections.emptyList();
-    	TreeMap<Integer, Widget> results = new TreeMap<>();
-    	ids.forEach( id -> {
-    		Integer zPos = zPosById.get(id);
-    		if (null != zPos) {
-    			Widget w = widgetsByZPos.get(zPos);
+    	if (null == searchCache)
+    		return filterSorted(bounds);
+    	long[] ids = searchCache.get(bounds);
+    	if (null != ids) {
+    		List<Widget> results = new ArrayList<>(ids.length);
+    		for (long id : ids)
+    			results.add(widgetsByZPos.get(id));
+    		return results;
+    	}
+    	long version = searchCache.version();
+    	List<Widget> results = filterSorted(bounds);
+    	ids = new long[results.size()];
+    	for (int i = 0; i < ids.length; i++)
+    		ids[i] = results.get(i).getId();
+    	searchCache.put(bounds, ids, version);
+    	return results;
+	}
+    
+    /**
+     * @return the Widgets within the given bounds, in ascending z order
+     */
+    private List<Widget> filterSorted(IBoundingBox bounds) {
+    	LongList ids = filterBuffer();
+    	try {
+    		filterInto(bounds, ids);
+    		indexMatches.add(ids.size());
+    		if (ids.isEmpty())
+    			return Collections.emptyList();
+    		List<Widget> results = new ArrayList<>(ids.size());
+    		for (int i = 0; i < ids.size(); i++) {
+    			Widget w = widgetsByZPos.get(ids.get(i));
     			if (null != w)
-    				results.put(zPos, w);
-    		}   			
-    	});
-		return results.values();
+    				results.add(w);
+    		}
+    		results.sort(Comparator.comparingInt(Widget::getzIndex));
+    		return results;
+    	} finally {
+    		release(ids);
+    	}
 	}
     
+    /**
+     * @return the empty id buffer of the current thread, to be released after use
+     */
+    private static LongList filterBuffer() {
+    	LongList ids = FILTER_BUFFER.get();
+    	ids.clear();
+    	return ids;
+    }
+    
+    private static void release(LongList ids) {
+    	if (ids.capacity() > MAX_KEPT_BUFFER)
+    		FILTER_BUFFER.remove();
+    }
+    
+    /**
+     * Finds the ids of the Widgets within the given bounds, scanning the columns instead of using the spatial index
+     * when a large share of the board is likely to match.
+     */
+    private void filterInto(IBoundingBox bounds, LongList ids) {
+    	if ((null != columns) && columns.shouldScan(bounds)) {
+    		columnScans.increment();
+    		columns.filterInto(bounds, ids);
+    	} else {
+    		xyIndex.filterInto(bounds, ids);
+    	}
+    }
+    
+    /**
+     * Only a page of the matching Widgets is kept and sorted at a time, instead of all of them.
+     * Uses the cached full result when there is a search result cache.
+     */
+    @Override
+    public List<Widget> search(IBoundingBox bounds, ZPage page) {
+    	if (null != searchCache)
+    		return page.select(search(bounds));
+    	LongList ids = filterBuffer();
+    	try {
+    		filterInto(bounds, ids);
+    		indexMatches.add(ids.size());
+    		return page.select(() -> new Iterator<Widget>() {
+    			private int i;
+
+    			@Override
+    			public boolean hasNext() {
+    				return i < ids.size();
+    			}
+
+    			@Override
+    			public Widget next() {
+    				return widgetsByZPos.get(ids.get(i++));
+    			}
+    		});
+    	} finally {
+    		release(ids);
+    	}
+    }
+    
+    /**
+     * @return the number of writes so far, including restores and recorded mutations applied
+     */
+    @Override
+    public long version() {
+    	return version;
+    }
+    
     @Override
 	public long count() {
 		return widgetsByZPos.size();
@@ -83,28 +488,51 @@ public class WidgetInMemRepo implements WidgetRepository{
     
     @Override
     public void deleteById(Long id) {
-    	Integer zPos = zPosById.remove(id);
-    	if (null != zPos) {
-    		Widget w = widgetsByZPos.remove(zPos);
-    		if (null != w)
-    			xyIndex.delete(w, w.getId());
-    	}
+    	if (remove(id) && !listeners.isEmpty())
+    		notifyListeners(Mutation.delete(id, Instant.now()));
 	}
     
 	@Override
 	public void deleteAll() {
+		clear();
+		if (!listeners.isEmpty())
+			notifyListeners(Mutation.deleteAll(Instant.now()));
+	}
+	
+	/**
+	 * Removes a widget from all internal maps.
+	 * @return true if it was present
+	 */
+	private boolean remove(Long id) {
+    	Widget w = widgetsByZPos.remove(id);
+    	if (null == w)
+    		return false;
+		xyIndex.delete(w, w.getId());
+		if (null != columns)
+			columns.remove(w.getId());
+		if (null != searchCache)
+			searchCache.invalidate(w);
+		version++;
+		return true;
+	}
+	
+	private void clear() {
 		widgetsByZPos.clear();
-		zPosById.clear();
 		xyIndex.clear();
+		if (null != columns)
+			columns.clear();
+		if (null != searchCache)
+			searchCache.clear();
+		version++;
 	}
     
 	/**
 	 * Adds the given widget to all internal maps, assigning it a zIndex if it has none and setting its updateTime.
 	 * @return the given widget, with a non-null zIndex
 	 */
-	private Widget addWidget(Widget widget) {
-		widget.setUpdateTime(Instant.now());
-		insert(widget);		
+	private Widget addWidget(Widget widget, Instant now, Instant updateTime) {
+		widget.setUpdateTime((null != updateTime) ? updateTime : now);
+		insert(widget, now);		
 		return widget;
 	}
 	
@@ -112,36 +540,30 @@ public class WidgetInMemRepo implements WidgetRepository{
 	 * Updates an existing widget according to a given newer version of itself.
 	 * @return updated version of widget
 	 */
-	private Widget updateWidget(Widget existing, Widget newVersion) {
-		boolean propsUpdated = existing.hasPropertyDiffs(newVersion);
-		newVersion.setUpdateTime(propsUpdated ? Instant.now() : existing.getUpdateTime());	
-		deleteById(existing.getId());
-		insert(newVersion);	
+	private Widget updateWidget(Widget existing, Widget newVersion, Instant now, Instant updateTime) {
+		if (null != updateTime)
+			newVersion.setUpdateTime(updateTime);
+		else
+			newVersion.setUpdateTime(existing.hasPropertyDiffs(newVersion) ? now : existing.getUpdateTime());
+		remove(existing.getId());
+		insert(newVersion, now);	
 		return newVersion;
 	}
-		
-	private void removeAtZPos(int zPos) {
-		Widget w = widgetsByZPos.remove(zPos);
-		if (null != w) {
-			zPosById.remove(w.getId());
-			xyIndex.delete(w, w.getId());
-		}
-	}
 	
     /**
      * Places the Widget in the foreground or background depending on its z index value.
      */
-	private void insert(Widget widget) {
-		if (!widgetsByZPos.isEmpty() && (Integer.MAX_VALUE == widgetsByZPos.lastKey()))
-			shiftDownWidgets(Integer.MAX_VALUE);
+	private void insert(Widget widget, Instant now) {
+		if (!widgetsByZPos.isEmpty() && (Integer.MAX_VALUE == widgetsByZPos.lastZ()))
+			shiftDownWidgets(Integer.MAX_VALUE, now);
 		int zPos;
     	if (null == widget.getzIndex()) {
-    		zPos = (widgetsByZPos.isEmpty()) ? 0 : widgetsByZPos.lastKey()+1;
+    		zPos = (widgetsByZPos.isEmpty()) ? 0 : widgetsByZPos.lastZ()+1;
     		doInsertAt(zPos, widget);
     	} else {
     		zPos = widget.getzIndex();
-    		if (widgetsByZPos.containsKey(zPos))
-                shiftUpWidgets(zPos);
+    		if (widgetsByZPos.containsZ(zPos))
+                shiftUpWidgets(zPos, now);
     		doInsertAt(widget.getzIndex(), widget);
     	}
     }
@@ -150,62 +572,39 @@ public class WidgetInMemRepo implements WidgetRepository{
      * Places the Widget at the given z index value, without shifting.
      */
     private void doInsertAt(int zPos, Widget widget){
-        widgetsByZPos.put(zPos, widget);
-        zPosById.put(widget.getId(), zPos);
         widget.setzIndex(zPos);
+        widgetsByZPos.insert(widget);
         xyIndex.add(widget, widget.getId());
-    }
-    
-    /**
-     * Shifts the given widget up one position in the z index and returns the widget it displaced.
-     * @return the widget displaced by shifting into its position, or null if shifting into an empty position
-     */
-    private Widget shiftUpWidget(Widget widget) {
-    	return shiftWidget(widget, widget.getzIndex()+1);
+        if (null != columns)
+        	columns.add(widget, widget.getId());
+        if (null != searchCache)
+        	searchCache.invalidate(widget);
+        version++;
     }
     
     /**
      * Shift all widgets upwards from a given position, until a gap is reached.
+     * Shifted widgets keep their place in the spatial index and in cached search results, as their ids, geometry
+     * and relative z order are unchanged.
      */
-    private void shiftUpWidgets(int from) {
-    	Widget w = widgetsByZPos.get(from);
-    	removeAtZPos(from);
-    	while (w != null) {
-    		w = shiftUpWidget(w);
-    	}    	
-    }
-    
-    /**
-     * Shifts the given widget down one position in the z index and returns the widget it displaced.
-     * @return the widget displaced by shifting into its position, or null if shifting into an empty position
-     */
-    private Widget shiftDownWidget(Widget widget) {
-    	if (Integer.MIN_VALUE == widget.getzIndex())
-    		throw new IllegalStateException("WidgetInMemRepo is full");
-    	return shiftWidget(widget, widget.getzIndex()-1);
+    private void shiftUpWidgets(int from, Instant now) {
+    	int shifted = widgetsByZPos.shiftUpRun(from, now);
+    	shiftsUp.record(shifted);
+    	if (!replaying && !listeners.isEmpty()) {
+    		for (MutationListener l : listeners)
+    			l.onShift(from, from + shifted - 1, 1, now);
+    	}
     }
     
     /**
      * Shift all widgets downwards from a given position, until a gap is reached.
      */
-    private void shiftDownWidgets(int from) {
-    	Widget w = widgetsByZPos.get(from);
-    	removeAtZPos(from);
-    	while (w != null) {
-    		w = shiftDownWidget(w);
-    	}    	
-    }
-    
-    /**
-     * Shifts a widget to a given z index value, displacing any current occupant of that position.
-     * @return the displaced widget, if any
-     */
-    private Widget shiftWidget(Widget widget, Integer toPos) {
-    	Widget shifted = widget.cloneAndZShift(toPos);
-    	Widget displaced = widgetsByZPos.replace(toPos, shifted);
-    	if (null == displaced)	//toPos is empty, place the item
-    		widgetsByZPos.put(toPos, shifted);
-    	zPosById.put(widget.getId(), toPos);
-    	return displaced;
+    private void shiftDownWidgets(int from, Instant now) {
+    	int shifted = widgetsByZPos.shiftDownRun(from, now);
+    	shiftsDown.record(shifted);
+    	if (!replaying && !listeners.isEmpty()) {
+    		for (MutationListener l : listeners)
+    			l.onShift(from - shifted + 1, from, -1, now);
+    	}
     }
 }
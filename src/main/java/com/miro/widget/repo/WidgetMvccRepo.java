@@ -0,0 +1,270 @@
+package com.miro.widget.repo;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import com.miro.widget.model.IBoundingBox;
+import com.miro.widget.model.Widget;
+import com.miro.widget.model.ZPage;
+
+/**
+ * WidgetRepository implementation that stores Widgets in memory, in persistent (structurally shared) maps.
+ * <p>
+ * Every write builds a new immutable {@link State} from the current one and publishes it through an atomic
+ * reference, while every read works on the State current when it started. Readers therefore never block and never
+ * delay writers. Writes are serialized among themselves by this repository.
+ * <p>
+ * Z index shifts are applied eagerly, costing O(log n) per shifted Widget.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "widget.repo", name = "type", havingValue = "mvcc")
+public class WidgetMvccRepo implements WidgetRepository, MeterBinder {
+
+	Logger log = LoggerFactory.getLogger(WidgetMvccRepo.class);
+
+	private final WidgetIdGenerator idGen = new WidgetIdGenerator();
+	private final AtomicReference<State> state = new AtomicReference<>(State.EMPTY);
+	private DistributionSummary shiftsUp = RepoMeters.shiftCascade(RepoMeters.NONE, "mvcc", "up");
+	private DistributionSummary shiftsDown = RepoMeters.shiftCascade(RepoMeters.NONE, "mvcc", "down");
+
+	/**
+	 * An immutable, consistent version of the repository contents.
+	 */
+	static final class State {
+		static final State EMPTY = new State(PersistentTreeMap.empty(), PersistentTreeMap.empty(),
+				PersistentTreeMap.empty(XKey.ORDER));
+
+		//primary widget order is by z index value
+		final PersistentTreeMap<Integer, Widget> widgetsByZPos;
+		final PersistentTreeMap<Long, Integer> zPosById;
+		//spatial index: widgets (only their geometry is used) ordered by lower x
+		final PersistentTreeMap<XKey, Widget> byLowerX;
+
+		State(PersistentTreeMap<Integer, Widget> widgetsByZPos, PersistentTreeMap<Long, Integer> zPosById,
+				PersistentTreeMap<XKey, Widget> byLowerX) {
+			this.widgetsByZPos = widgetsByZPos;
+			this.zPosById = zPosById;
+			this.byLowerX = byLowerX;
+		}
+
+		Widget findById(Long id) {
+			Integer zPos = zPosById.get(id);
+			return (null == zPos) ? null : widgetsByZPos.get(zPos);
+		}
+	}
+
+	/**
+	 * Spatial index key, lower x coordinate then id.
+	 */
+	static final class XKey {
+		static final Comparator<XKey> ORDER = Comparator.<XKey>comparingInt(k -> k.x).thenComparingLong(k -> k.id);
+
+		final int x;
+		final long id;
+
+		XKey(int x, long id) {
+			this.x = x;
+			this.id = id;
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		shiftsUp = RepoMeters.shiftCascade(registry, "mvcc", "up");
+		shiftsDown = RepoMeters.shiftCascade(registry, "mvcc", "down");
+		RepoMeters.widgetCount(registry, "mvcc", state, s -> s.get().widgetsByZPos.size());
+	}
+
+	@Override
+	public synchronized Widget save(Widget widget) {
+		state.set(save(state.get(), widget, Instant.now()));
+		return widget;
+	}
+
+	/**
+	 * Saves all widgets into one new State, published once, so that readers see either none or all of them.
+	 */
+	@Override
+	public synchronized List<Widget> saveAll(Iterable<Widget> widgets) {
+		State s = state.get();
+		Instant now = Instant.now();
+		List<Widget> saved = new ArrayList<>();
+		for (Widget w : widgets) {
+			s = save(s, w, now);
+			saved.add(w);
+		}
+		state.set(s);
+		return saved;
+	}
+
+	private State save(State s, Widget widget, Instant now) {
+		if (null == widget)
+			throw new IllegalArgumentException("WidgetMvccRepo cannot save null Widget");
+		if (null == widget.getId()) {	//brand new widget
+			widget.setId(idGen.genId());
+			widget.setUpdateTime(now);
+		} else if (!idGen.isValidId(widget.getId())) {	//bad id
+			throw new IllegalArgumentException("Invalid id in widget " + widget.toString());
+		} else {	//add or update
+			Widget existing = s.findById(widget.getId());
+			if (null == existing) {
+				widget.setUpdateTime(now);
+			} else {
+				widget.setUpdateTime(existing.hasPropertyDiffs(widget) ? now : existing.getUpdateTime());
+				s = delete(s, existing);
+			}
+		}
+		return insert(s, widget, now);
+	}
+
+	@Override
+	public Optional<Widget> findById(Long id) {
+		return Optional.ofNullable(state.get().findById(id));
+	}
+
+	@Override
+	public Iterable<Widget> findAll() {
+		return state.get().widgetsByZPos.values();
+	}
+
+	/**
+	 * Reads the page as a key range of the current State, costing O(log n + page size).
+	 */
+	@Override
+	public List<Widget> findPage(ZPage page) {
+		PersistentTreeMap<Integer, Widget> byZ = state.get().widgetsByZPos;
+		List<Widget> result = new ArrayList<>();
+		if (page.isEmptyRange()) {
+			return result;
+		} else if (page.isBackward()) {
+			for (Widget w : byZ.descendingValues((int) page.highestZ())) {
+				if (result.size() == page.maxSize())
+					break;
+				result.add(w);
+			}
+			Collections.reverse(result);
+		} else {
+			for (Widget w : byZ.values((int) page.lowestZ(), (int) page.highestZ())) {
+				if (result.size() == page.maxSize())
+					break;
+				result.add(w);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Iterable<Widget> search(IBoundingBox bounds) {
+		State s = state.get();
+		TreeMap<Integer, Widget> results = new TreeMap<>();
+		Iterable<Widget> candidates = s.byLowerX.values(new XKey(bounds.getLowerX(), Long.MIN_VALUE),
+				new XKey(bounds.getUpperX(), Long.MAX_VALUE));
+		for (Widget c : candidates) {
+			if ((c.getLowerY() >= bounds.getLowerY()) && (c.getUpperX() <= bounds.getUpperX())
+					&& (c.getUpperY() <= bounds.getUpperY())) {
+				Integer zPos = s.zPosById.get(c.getId());
+				results.put(zPos, s.widgetsByZPos.get(zPos));
+			}
+		}
+		return results.isEmpty() ? Collections.emptyList() : results.values();
+	}
+
+	@Override
+	public long count() {
+		return state.get().widgetsByZPos.size();
+	}
+
+	@Override
+	public synchronized void deleteById(Long id) {
+		State s = state.get();
+		Widget w = s.findById(id);
+		if (null != w)
+			state.set(delete(s, w));
+	}
+
+	@Override
+	public synchronized void deleteAll(Iterable<Long> ids) {
+		State s = state.get();
+		for (Long id : ids) {
+			Widget w = s.findById(id);
+			if (null != w)
+				s = delete(s, w);
+		}
+		state.set(s);
+	}
+
+	@Override
+	public synchronized void deleteAll() {
+		state.set(State.EMPTY);
+	}
+
+	@Override
+	public boolean supportsLockFreeReads() {
+		return true;
+	}
+
+	private static State delete(State s, Widget w) {
+		return new State(s.widgetsByZPos.remove(w.getzIndex()), s.zPosById.remove(w.getId()),
+				s.byLowerX.remove(new XKey(w.getX(), w.getId())));
+	}
+
+	/**
+	 * Places the Widget in the foreground or background depending on its z index value.
+	 */
+	private State insert(State s, Widget widget, Instant now) {
+		PersistentTreeMap<Integer, Widget> byZ = s.widgetsByZPos;
+		PersistentTreeMap<Long, Integer> zById = s.zPosById;
+		if (!byZ.isEmpty() && (Integer.MAX_VALUE == byZ.lastKey())) {	//shift down the run ending at the top
+			int from = Integer.MAX_VALUE;
+			while (byZ.containsKey(from)) {
+				if (Integer.MIN_VALUE == from)
+					throw new IllegalStateException("WidgetMvccRepo is full");
+				from--;
+			}
+			for (int pos = from + 1; ; pos++) {
+				Widget shifted = byZ.get(pos).cloneAndZShift(pos - 1, now);
+				byZ = byZ.put(pos - 1, shifted);
+				zById = zById.put(shifted.getId(), pos - 1);
+				if (Integer.MAX_VALUE == pos)
+					break;
+			}
+			byZ = byZ.remove(Integer.MAX_VALUE);
+			shiftsDown.record((long) Integer.MAX_VALUE - from);
+		}
+		int zPos;
+		if (null == widget.getzIndex()) {
+			zPos = byZ.isEmpty() ? 0 : byZ.lastKey() + 1;
+		} else {
+			zPos = widget.getzIndex();
+			if (byZ.containsKey(zPos)) {	//shift up the run starting at zPos
+				int to = zPos;
+				while (byZ.containsKey(to + 1))
+					to++;
+				for (int pos = to; pos >= zPos; pos--) {
+					Widget shifted = byZ.get(pos).cloneAndZShift(pos + 1, now);
+					byZ = byZ.put(pos + 1, shifted);
+					zById = zById.put(shifted.getId(), pos + 1);
+				}
+				shiftsUp.record((long) to - zPos + 1);
+			}
+		}
+		widget.setzIndex(zPos);
+		return new State(byZ.put(zPos, widget), zById.put(widget.getId(), zPos),
+				s.byLowerX.put(new XKey(widget.getX(), widget.getId()), widget));
+	}
+}
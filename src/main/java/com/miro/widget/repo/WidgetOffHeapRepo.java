@@ -0,0 +1,328 @@
+package com.miro.widget.repo;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import com.miro.widget.model.IBoundingBox;
+import com.miro.widget.model.Widget;
+import com.miro.widget.model.ZPage;
+
+/**
+ * WidgetRepository implementation that stores Widgets off the Java heap, in the fixed-width slots of
+ * {@link WidgetSlots}, so that millions of Widgets add next to nothing to the work of the garbage collector.
+ * <p>
+ * The heap only holds primitive arrays: the id to slot hash map, the z index values in ascending order with
+ * the slot of each, and the spatial index (the primitive cartesian index, unless widget.repo.index is set, as the
+ * boxed default index of the other repositories would undo most of the saving). Widget objects are created
+ * as copies at the API boundary only, when they are returned. Changing a returned Widget does not change the
+ * repository.
+ * <p>
+ * Inserting below the top and deleting move the z order arrays, costing O(n) primitive copies, shifts cost O(1)
+ * per shifted Widget. This repository is not thread safe, external synchronization should be applied.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "widget.repo", name = "type", havingValue = "offheap")
+public class WidgetOffHeapRepo implements WidgetRepository, MeterBinder {
+
+	Logger log = LoggerFactory.getLogger(WidgetOffHeapRepo.class);
+
+	private final WidgetIdGenerator idGen = new WidgetIdGenerator();
+	private final WidgetSlots slots = new WidgetSlots();
+	private final LongIntHashMap slotById = new LongIntHashMap(WidgetSlots.NONE);
+	private final SpatialIndex xyIndex;
+
+	//primary widget order: z index values in ascending order and the slot holding each
+	private int[] zs = new int[16];
+	private int[] zSlots = new int[16];
+	private int zCount;
+
+	private DistributionSummary shiftsUp = RepoMeters.shiftCascade(RepoMeters.NONE, "offheap", "up");
+	private DistributionSummary shiftsDown = RepoMeters.shiftCascade(RepoMeters.NONE, "offheap", "down");
+	private final LongAdder indexMatches = new LongAdder();
+
+	public WidgetOffHeapRepo() {
+		this(new PrimitiveCartesianIndex());
+	}
+
+	@Autowired
+	public WidgetOffHeapRepo(WidgetRepoProperties props) {
+		this(props.createIndex(WidgetRepoProperties.IndexType.PRIMITIVE));
+	}
+
+	public WidgetOffHeapRepo(SpatialIndex xyIndex) {
+		this.xyIndex = xyIndex;
+	}
+
+	/**
+	 * Registers the shift cascade histograms, the spatial index counters, the size gauge and the off-heap memory.
+	 */
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		shiftsUp = RepoMeters.shiftCascade(registry, "offheap", "up");
+		shiftsDown = RepoMeters.shiftCascade(registry, "offheap", "down");
+		RepoMeters.widgetCount(registry, "offheap", slots, WidgetSlots::size);
+		Gauge.builder("widget.repo.offheap.bytes", slots, WidgetSlots::allocatedBytes)
+				.description("Off-heap memory allocated for widget slots").baseUnit("bytes").register(registry);
+		String index = xyIndex.getClass().getSimpleName();
+		Gauge.builder("widget.index.size", xyIndex, SpatialIndex::size)
+				.description("Boxes in the spatial index").tag("index", index).register(registry);
+		FunctionCounter.builder("widget.index.candidates", xyIndex, SpatialIndex::getCandidateCount)
+				.description("Boxes tested by spatial index searches").tag("index", index).register(registry);
+		FunctionCounter.builder("widget.index.matches", indexMatches, LongAdder::sum)
+				.description("Boxes found by spatial index searches").tag("index", index).register(registry);
+	}
+
+	/**
+	 * @return the given widget, with its id, z index and update time set as saved
+	 */
+	@Override
+	public Widget save(Widget widget) {
+		if (null == widget)
+			throw new IllegalArgumentException("WidgetOffHeapRepo cannot save null Widget");
+		Instant now = Instant.now();
+		if (null == widget.getId()) {	//brand new widget
+			widget.setId(idGen.genId());
+			widget.setUpdateTime(now);
+		} else if (!idGen.isValidId(widget.getId())) {	//bad id
+			throw new IllegalArgumentException("Invalid id in widget " + widget.toString());
+		} else {	//add or update
+			int slot = slotById.get(widget.getId());
+			if (WidgetSlots.NONE == slot) {
+				idGen.reserve(widget.getId());
+				widget.setUpdateTime(now);
+			} else {
+				Widget existing = slots.read(slot);
+				widget.setUpdateTime(existing.hasPropertyDiffs(widget) ? now : existing.getUpdateTime());
+				remove(widget.getId());
+			}
+		}
+		insert(widget, now);
+		return widget;
+	}
+
+	/**
+	 * Checks all ids up front, so that a batch with a bad id is rejected before any widget is changed.
+	 */
+	@Override
+	public List<Widget> saveAll(Iterable<Widget> widgets) {
+		for (Widget w : widgets) {
+			if (null == w)
+				throw new IllegalArgumentException("WidgetOffHeapRepo cannot save null Widget");
+			if ((null != w.getId()) && !idGen.isValidId(w.getId()))
+				throw new IllegalArgumentException("Invalid id in widget " + w.toString());
+		}
+		return WidgetRepository.super.saveAll(widgets);
+	}
+
+	@Override
+	public Optional<Widget> findById(Long id) {
+		if (!idGen.isValidId(id))
+			return Optional.empty();
+		int slot = slotById.get(id);
+		return (WidgetSlots.NONE == slot) ? Optional.empty() : Optional.of(slots.read(slot));
+	}
+
+	/**
+	 * Iterates copies of the Widgets in ascending z order.
+	 */
+	@Override
+	public Iterable<Widget> findAll() {
+		return () -> new Iterator<Widget>() {
+			private int i;
+
+			@Override
+			public boolean hasNext() {
+				return i < zCount;
+			}
+
+			@Override
+			public Widget next() {
+				if (i >= zCount)
+					throw new NoSuchElementException();
+				return slots.read(zSlots[i++]);
+			}
+		};
+	}
+
+	@Override
+	public List<Widget> findPage(ZPage page) {
+		List<Widget> result = new ArrayList<>();
+		if (page.isEmptyRange())
+			return result;
+		int from = positionOf(page.lowestZ()), to = positionOf(page.highestZ() + 1);
+		if (to - from > page.maxSize()) {
+			if (page.isBackward())
+				from = to - page.maxSize();
+			else
+				to = from + page.maxSize();
+		}
+		for (int i = from; i < to; i++)
+			result.add(slots.read(zSlots[i]));
+		return result;
+	}
+
+	@Override
+	public Iterable<Widget> search(IBoundingBox bounds) {
+		return search(bounds, ZPage.ALL);
+	}
+
+	/**
+	 * Sorts the matching slots by z index value as primitives, and copies the Widgets of the page only.
+	 */
+	@Override
+	public List<Widget> search(IBoundingBox bounds, ZPage page) {
+		LongList ids = new LongList();
+		xyIndex.filterInto(bounds, ids);
+		indexMatches.add(ids.size());
+		//z index value in the high half, so that sorting the keys sorts by z
+		long[] keys = new long[ids.size()];
+		int n = 0;
+		for (int i = 0; i < ids.size(); i++) {
+			int slot = slotById.get(ids.get(i));
+			int z = slots.z(slot);
+			if (page.contains(z))
+				keys[n++] = ((long) z << 32) | slot;
+		}
+		Arrays.sort(keys, 0, n);
+		int from = 0, to = n;
+		if (n > page.maxSize()) {
+			if (page.isBackward())
+				from = n - page.maxSize();
+			else
+				to = page.maxSize();
+		}
+		List<Widget> result = new ArrayList<>(to - from);
+		for (int i = from; i < to; i++)
+			result.add(slots.read((int) keys[i]));
+		return result;
+	}
+
+	@Override
+	public long count() {
+		return zCount;
+	}
+
+	@Override
+	public void deleteById(Long id) {
+		remove(id);
+	}
+
+	@Override
+	public void deleteAll() {
+		slots.clear();
+		slotById.clear();
+		xyIndex.clear();
+		zCount = 0;
+	}
+
+	/**
+	 * Places the Widget in the foreground or background depending on its z index value.
+	 */
+	private void insert(Widget widget, Instant now) {
+		if ((zCount > 0) && (Integer.MAX_VALUE == zs[zCount - 1]))
+			shiftDown(zCount - 1, now);
+		int pos;
+		if (null == widget.getzIndex()) {
+			widget.setzIndex((0 == zCount) ? 0 : zs[zCount - 1] + 1);
+			pos = zCount;
+		} else {
+			pos = Arrays.binarySearch(zs, 0, zCount, widget.getzIndex());
+			if (pos >= 0)
+				shiftUp(pos, now);
+			else
+				pos = -(pos + 1);
+		}
+		int slot = slots.alloc();
+		slots.write(slot, widget);
+		slotById.put(widget.getId(), slot);
+		xyIndex.add(widget, widget.getId());
+		if (zCount == zs.length) {
+			zs = Arrays.copyOf(zs, zCount * 2);
+			zSlots = Arrays.copyOf(zSlots, zCount * 2);
+		}
+		System.arraycopy(zs, pos, zs, pos + 1, zCount - pos);
+		System.arraycopy(zSlots, pos, zSlots, pos + 1, zCount - pos);
+		zs[pos] = widget.getzIndex();
+		zSlots[pos] = slot;
+		zCount++;
+	}
+
+	/**
+	 * Removes a widget from all internal structures.
+	 * @return true if it was present
+	 */
+	private boolean remove(Long id) {
+		if (!idGen.isValidId(id))
+			return false;
+		int slot = slotById.remove(id);
+		if (WidgetSlots.NONE == slot)
+			return false;
+		int pos = Arrays.binarySearch(zs, 0, zCount, slots.z(slot));
+		System.arraycopy(zs, pos + 1, zs, pos, zCount - pos - 1);
+		System.arraycopy(zSlots, pos + 1, zSlots, pos, zCount - pos - 1);
+		zCount--;
+		xyIndex.delete(slots.read(slot), id);
+		slots.free(slot);
+		return true;
+	}
+
+	/**
+	 * Shifts the contiguous run of z index values starting at a given position up by one, until a gap is reached.
+	 */
+	private void shiftUp(int pos, Instant now) {
+		int end = pos;
+		while ((end + 1 < zCount) && (zs[end + 1] == zs[end] + 1))
+			end++;
+		for (int i = pos; i <= end; i++)
+			shift(i, 1, now);
+		shiftsUp.record(end - pos + 1);
+	}
+
+	/**
+	 * Shifts the contiguous run of z index values ending at a given position down by one, until a gap is reached.
+	 */
+	private void shiftDown(int pos, Instant now) {
+		int start = pos;
+		while ((start > 0) && (zs[start - 1] == zs[start] - 1))
+			start--;
+		for (int i = start; i <= pos; i++)
+			shift(i, -1, now);
+		shiftsDown.record(pos - start + 1);
+	}
+
+	private void shift(int pos, int by, Instant now) {
+		zs[pos] += by;
+		slots.setZ(zSlots[pos], zs[pos]);
+		slots.setUpdateTime(zSlots[pos], now);
+	}
+
+	/**
+	 * @return the position of the first z index value of at least the given one
+	 */
+	private int positionOf(long z) {
+		if (z > Integer.MAX_VALUE)
+			return zCount;
+		if (z < Integer.MIN_VALUE)
+			return 0;
+		int pos = Arrays.binarySearch(zs, 0, zCount, (int) z);
+		return (pos >= 0) ? pos : -(pos + 1);
+	}
+}
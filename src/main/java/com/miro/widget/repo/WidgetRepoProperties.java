@@ -0,0 +1,275 @@
+package com.miro.widget.repo;
+
+import java.nio.file.Paths;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration of the Widget repository, bound from the "widget.repo" properties.
+ */
+@Component
+@ConfigurationProperties(prefix = "widget.repo")
+public class WidgetRepoProperties {
+
+	public enum RepoType { INMEM, MVCC, OFFHEAP, SHARDED }
+
+	public enum IndexType { CARTESIAN, PRIMITIVE, RTREE, GRID }
+
+	private RepoType type = RepoType.INMEM;
+
+	//null unless configured, the repository type then picks the index
+	private IndexType index;
+
+	private int rtreeMaxEntries = RTreeIndex.DEFAULT_MAX_ENTRIES;
+
+	private int gridCellSize = GridIndex.DEFAULT_CELL_SIZE;
+
+	//0 disables the search result cache
+	private int searchCacheEntries = SearchResultCache.DEFAULT_MAX_ENTRIES;
+
+	private int searchCacheIds = SearchResultCache.DEFAULT_MAX_IDS;
+
+	private boolean columns = true;
+
+	private double scanThreshold = WidgetColumns.DEFAULT_SCAN_THRESHOLD;
+
+	//for the sharded repository
+	private int shards = Runtime.getRuntime().availableProcessors();
+
+	private int regionSize = WidgetShardedRepo.DEFAULT_REGION_SIZE;
+
+	private final Wal wal = new Wal();
+
+	private final Snapshot snapshot = new Snapshot();
+
+	/**
+	 * Snapshots of WidgetInMemRepo, bound from the "widget.repo.snapshot" properties.
+	 */
+	public static class Snapshot {
+
+		private boolean enabled = false;
+
+		private String file = "data/widgets.snapshot";
+
+		private long intervalMs = 5 * 60 * 1000;
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public String getFile() {
+			return file;
+		}
+
+		public void setFile(String file) {
+			this.file = file;
+		}
+
+		public long getIntervalMs() {
+			return intervalMs;
+		}
+
+		public void setIntervalMs(long intervalMs) {
+			if (intervalMs < 1)
+				throw new IllegalArgumentException("widget.repo.snapshot.interval-ms should not be smaller than 1");
+			this.intervalMs = intervalMs;
+		}
+	}
+
+	/**
+	 * Write-ahead log of WidgetInMemRepo, bound from the "widget.repo.wal" properties.
+	 */
+	public static class Wal {
+
+		private boolean enabled = false;
+
+		private String dir = "data/wal";
+
+		private int segmentSize = 64 * 1024 * 1024;
+
+		private WriteAheadLog.FsyncPolicy fsync = WriteAheadLog.FsyncPolicy.ALWAYS;
+
+		private long fsyncIntervalMs = 100;
+
+		/**
+		 * @return a new, not yet recovered write-ahead log as configured
+		 */
+		public WriteAheadLog create() {
+			return new WriteAheadLog(Paths.get(dir), segmentSize, fsync, fsyncIntervalMs);
+		}
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public String getDir() {
+			return dir;
+		}
+
+		public void setDir(String dir) {
+			this.dir = dir;
+		}
+
+		public int getSegmentSize() {
+			return segmentSize;
+		}
+
+		public void setSegmentSize(int segmentSize) {
+			this.segmentSize = segmentSize;
+		}
+
+		public WriteAheadLog.FsyncPolicy getFsync() {
+			return fsync;
+		}
+
+		public void setFsync(WriteAheadLog.FsyncPolicy fsync) {
+			this.fsync = fsync;
+		}
+
+		public long getFsyncIntervalMs() {
+			return fsyncIntervalMs;
+		}
+
+		public void setFsyncIntervalMs(long fsyncIntervalMs) {
+			this.fsyncIntervalMs = fsyncIntervalMs;
+		}
+	}
+
+	/**
+	 * Creates a new, empty spatial index of the configured type, the cartesian index by default.
+	 */
+	public SpatialIndex createIndex() {
+		return createIndex(IndexType.CARTESIAN);
+	}
+
+	/**
+	 * Creates a new, empty spatial index of the configured type, or of the given type if none is configured.
+	 */
+	public SpatialIndex createIndex(IndexType defaultIndex) {
+		switch ((null != index) ? index : defaultIndex) {
+		case PRIMITIVE:
+			return new PrimitiveCartesianIndex();
+		case RTREE:
+			return new RTreeIndex(rtreeMaxEntries);
+		case GRID:
+			return new GridIndex(gridCellSize);
+		case CARTESIAN:
+		default:
+			return new CartesianIndex();
+		}
+	}
+
+	/**
+	 * @return a new search result cache as configured, or null if disabled
+	 */
+	public SearchResultCache createSearchCache() {
+		return (searchCacheEntries > 0) ? new SearchResultCache(searchCacheEntries, searchCacheIds) : null;
+	}
+
+	/**
+	 * @return new, empty geometry columns as configured, or null if disabled
+	 */
+	public WidgetColumns createColumns() {
+		return columns ? new WidgetColumns(scanThreshold) : null;
+	}
+
+	public RepoType getType() {
+		return type;
+	}
+
+	public void setType(RepoType type) {
+		this.type = type;
+	}
+
+	/**
+	 * @return the configured index type, or null if none is configured
+	 */
+	public IndexType getIndex() {
+		return index;
+	}
+
+	public void setIndex(IndexType index) {
+		this.index = index;
+	}
+
+	public int getRtreeMaxEntries() {
+		return rtreeMaxEntries;
+	}
+
+	public void setRtreeMaxEntries(int rtreeMaxEntries) {
+		this.rtreeMaxEntries = rtreeMaxEntries;
+	}
+
+	public int getGridCellSize() {
+		return gridCellSize;
+	}
+
+	public void setGridCellSize(int gridCellSize) {
+		this.gridCellSize = gridCellSize;
+	}
+
+	public int getSearchCacheEntries() {
+		return searchCacheEntries;
+	}
+
+	public void setSearchCacheEntries(int searchCacheEntries) {
+		this.searchCacheEntries = searchCacheEntries;
+	}
+
+	public int getSearchCacheIds() {
+		return searchCacheIds;
+	}
+
+	public void setSearchCacheIds(int searchCacheIds) {
+		this.searchCacheIds = searchCacheIds;
+	}
+
+	public boolean isColumns() {
+		return columns;
+	}
+
+	public void setColumns(boolean columns) {
+		this.columns = columns;
+	}
+
+	public double getScanThreshold() {
+		return scanThreshold;
+	}
+
+	public void setScanThreshold(double scanThreshold) {
+		this.scanThreshold = scanThreshold;
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	public void setShards(int shards) {
+		this.shards = shards;
+	}
+
+	public int getRegionSize() {
+		return regionSize;
+	}
+
+	public void setRegionSize(int regionSize) {
+		this.regionSize = regionSize;
+	}
+
+	public Wal getWal() {
+		return wal;
+	}
+
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+}
@@ -1,26 +1,99 @@
 package com.miro.widget.repo;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 import com.miro.widget.model.IBoundingBox;
 import com.miro.widget.model.Widget;
+import com.miro.widget.model.ZPage;
 
 public interface WidgetRepository {
 
 	Widget save(Widget widget);
 	
+	/**
+	 * Saves the given widgets in order, as if by consecutive calls to save.
+	 * @return the saved widgets, in the given order
+	 */
+	default List<Widget> saveAll(Iterable<Widget> widgets) {
+		List<Widget> saved = new ArrayList<>();
+		widgets.forEach(w -> saved.add(save(w)));
+		return saved;
+	}
+	
 	Optional<Widget> findById(Long id);
 
 	Iterable<Widget> findAll();
 	
+	/**
+	 * @return one page of widgets, in ascending z order
+	 */
+	default List<Widget> findPage(ZPage page) {
+		return page.select(findAll());
+	}
+	
 	default Iterable<Widget> search(IBoundingBox bounds) {
 		return findAll();
 	}
 	
+	/**
+	 * @return one page of the widgets within the given bounds, in ascending z order
+	 */
+	default List<Widget> search(IBoundingBox bounds, ZPage page) {
+		return page.select(search(bounds));
+	}
+	
 	long count();
+	
+	/**
+	 * @return a version advanced by every write, so that equal versions mean equal contents, or -1 if the
+	 * repository keeps none. Read without any locking.
+	 */
+	default long version() {
+		return -1;
+	}
 
 	void deleteById(Long id);
 
 	void deleteAll();
+	
+	/**
+	 * Deletes the widgets with the given ids, ignoring ids that are not present.
+	 */
+	default void deleteAll(Iterable<Long> ids) {
+		ids.forEach(this::deleteById);
+	}
+	
+	/**
+	 * Tests if reads are consistent and thread safe without external synchronization,
+	 * only writes then need to be serialized by callers.
+	 */
+	default boolean supportsLockFreeReads() {
+		return false;
+	}
+	
+	/**
+	 * Tests if writes are thread safe without external synchronization, so that callers need not serialize them.
+	 */
+	default boolean supportsConcurrentWrites() {
+		return false;
+	}
+	
+	/**
+	 * Waits until all writes made so far are durable, for repositories that persist them.
+	 * Called after writes, but outside of any lock, so that waiting writers can share a single flush.
+	 */
+	default void sync() {
+	}
+	
+	/**
+	 * Captures the current contents for a snapshot, for repositories that take them. Called while writes are
+	 * excluded; the returned task stores the snapshot and may run concurrently with later reads and writes.
+	 * @return the task storing the snapshot, or null
+	 */
+	default Runnable checkpoint() {
+		return null;
+	}
 
 }
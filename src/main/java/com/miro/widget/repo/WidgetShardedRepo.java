@@ -0,0 +1,541 @@
+package com.miro.widget.repo;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Repository;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import com.miro.widget.model.IBoundingBox;
+import com.miro.widget.model.Widget;
+import com.miro.widget.model.ZPage;
+
+/**
+ * Thread safe WidgetRepository implementation that partitions Widgets into shards by spatial region, so that
+ * writes to different shards run in parallel.
+ * <p>
+ * The board is divided into square regions, and each region is assigned to a shard by hash, so that hot areas
+ * spread over the shards. A Widget lives in the shard of the region of its lower corner, as only regions
+ * overlapping a search can hold Widgets contained in it. Each shard has its own lock, spatial index and z order.
+ * Searches fan out to the shards of the regions they overlap on a ForkJoinPool and k-way merge the per-shard
+ * results by z index value.
+ * <p>
+ * Z index values are global. Their owners are kept in a concurrent map, through which writes claim a free z index
+ * value atomically, without blocking each other. Only a write that needs a shift, to an occupied z index value or
+ * at the top when Integer.MAX_VALUE is taken, excludes all other operations through the global shift lock and
+ * moves the run across all shards.
+ */
+@Repository
+@ConditionalOnProperty(prefix = "widget.repo", name = "type", havingValue = "sharded")
+public class WidgetShardedRepo implements WidgetRepository, MeterBinder {
+
+	public static final int DEFAULT_REGION_SIZE = 1024;
+
+	Logger log = LoggerFactory.getLogger(WidgetShardedRepo.class);
+
+	private final WidgetIdGenerator idGen = new WidgetIdGenerator();
+	private final Shard[] shards;
+	private final int regionSize;
+	private final ForkJoinPool searchPool;
+
+	//shared by every operation, exclusive for shifting writes and deleteAll
+	private final ReentrantReadWriteLock shiftLock = new ReentrantReadWriteLock();
+	private final ConcurrentSkipListMap<Integer, Long> zOwners = new ConcurrentSkipListMap<>();
+	private final ConcurrentHashMap<Long, Shard> shardById = new ConcurrentHashMap<>();
+
+	private DistributionSummary shiftsUp = RepoMeters.shiftCascade(RepoMeters.NONE, "sharded", "up");
+	private DistributionSummary shiftsDown = RepoMeters.shiftCascade(RepoMeters.NONE, "sharded", "down");
+	private DistributionSummary fanOut = fanOut(RepoMeters.NONE);
+
+	/**
+	 * A partition of the Widgets, guarded by its own lock.
+	 */
+	static final class Shard {
+		final int number;
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		final HashMap<Long, Widget> byId = new HashMap<>();
+		final TreeMap<Integer, Widget> byZ = new TreeMap<>();
+		final SpatialIndex index;
+
+		Shard(int number, SpatialIndex index) {
+			this.number = number;
+			this.index = index;
+		}
+
+		void add(Widget w) {
+			byId.put(w.getId(), w);
+			byZ.put(w.getzIndex(), w);
+			index.add(w, w.getId());
+		}
+
+		void remove(Widget w) {
+			byId.remove(w.getId());
+			byZ.remove(w.getzIndex());
+			index.delete(w, w.getId());
+		}
+
+		/**
+		 * @return the Widgets within the given bounds, in ascending z order
+		 */
+		List<Widget> search(IBoundingBox bounds) {
+			LongList ids = new LongList();
+			index.filterInto(bounds, ids);
+			List<Widget> results = new ArrayList<>(ids.size());
+			for (int i = 0; i < ids.size(); i++)
+				results.add(byId.get(ids.get(i)));
+			results.sort(Comparator.comparingInt(Widget::getzIndex));
+			return results;
+		}
+	}
+
+	public WidgetShardedRepo() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_REGION_SIZE, CartesianIndex::new);
+	}
+
+	@Autowired
+	public WidgetShardedRepo(WidgetRepoProperties props) {
+		this(props.getShards(), props.getRegionSize(), props::createIndex);
+	}
+
+	public WidgetShardedRepo(int shardCount, int regionSize, Supplier<SpatialIndex> indexes) {
+		if (shardCount < 1)
+			throw new IllegalArgumentException("WidgetShardedRepo shard count should not be smaller than 1");
+		if (regionSize < 1)
+			throw new IllegalArgumentException("WidgetShardedRepo region size should not be smaller than 1");
+		this.shards = new Shard[shardCount];
+		for (int i = 0; i < shardCount; i++)
+			shards[i] = new Shard(i, indexes.get());
+		this.regionSize = regionSize;
+		this.searchPool = new ForkJoinPool(Math.min(shardCount, Runtime.getRuntime().availableProcessors()));
+	}
+
+	@PreDestroy
+	public void close() {
+		searchPool.shutdown();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		shiftsUp = RepoMeters.shiftCascade(registry, "sharded", "up");
+		shiftsDown = RepoMeters.shiftCascade(registry, "sharded", "down");
+		fanOut = fanOut(registry);
+		RepoMeters.widgetCount(registry, "sharded", shardById, Map::size);
+	}
+
+	private static DistributionSummary fanOut(MeterRegistry registry) {
+		return DistributionSummary.builder("widget.repo.search.shards").description("Shards visited by a search")
+				.baseUnit("shards").register(registry);
+	}
+
+	/**
+	 * Reads are thread safe, but a batch of deletes and saves is applied one widget at a time, so reads still need
+	 * the caller's shared lock to be excluded by batches rather than see them half applied.
+	 */
+	@Override
+	public boolean supportsLockFreeReads() {
+		return false;
+	}
+
+	@Override
+	public boolean supportsConcurrentWrites() {
+		return true;
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	@Override
+	public Widget save(Widget widget) {
+		if (null == widget)
+			throw new IllegalArgumentException("WidgetShardedRepo cannot save null Widget");
+		if (null == widget.getId())		//brand new widget
+			widget.setId(idGen.genId());
+		else if (!idGen.isValidId(widget.getId()))
+			throw new IllegalArgumentException("Invalid id in widget " + widget.toString());
+		else
+			idGen.reserve(widget.getId());
+		Instant now = Instant.now();
+		shiftLock.readLock().lock();
+		try {
+			if (saveWithoutShift(widget, now))
+				return widget;
+		} finally {
+			shiftLock.readLock().unlock();
+		}
+		shiftLock.writeLock().lock();
+		try {
+			saveWithShift(widget, now);
+			return widget;
+		} finally {
+			shiftLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Saves a widget whose z index value is its current one, free, or unspecified, locking only the shards it
+	 * moves between.
+	 * @return false if the save needs a shift, without having changed anything
+	 */
+	private boolean saveWithoutShift(Widget widget, Instant now) {
+		Long id = widget.getId();
+		Shard to = shardFor(widget);
+		while (true) {
+			Shard from = shardById.get(id);
+			Shard first = (null == from) || (from.number > to.number) ? to : from;
+			Shard second = (first == to) ? from : to;
+			first.lock.writeLock().lock();
+			if ((null != second) && (second != first))
+				second.lock.writeLock().lock();
+			boolean idClaimed = false;
+			try {
+				if (shardById.get(id) != from)
+					continue;	//moved or created concurrently
+				if (null == from) {
+					//only the to shard is locked, so claim the id against a concurrent create into another shard
+					if (null != shardById.putIfAbsent(id, to))
+						continue;
+					idClaimed = true;
+				}
+				Widget existing = (null == from) ? null : from.byId.get(id);
+				Map.Entry<Integer, Long> top = zOwners.lastEntry();
+				if ((null != top) && (Integer.MAX_VALUE == top.getKey()) && !top.getValue().equals(id))
+					return false;	//needs a shift down first
+				Integer oldZ = (null == existing) ? null : existing.getzIndex();
+				Integer z = widget.getzIndex();
+				boolean claimed = false;
+				if ((null == z) && (null != existing) && oldZ.equals(top.getKey())) {
+					//stays on top, right above the one below it
+					Integer below = zOwners.lowerKey(oldZ);
+					z = (null == below) ? 0 : below + 1;
+				} else if (null == z) {
+					z = claimTop(id);
+					if (null == z)
+						return false;	//Integer.MAX_VALUE taken concurrently
+					claimed = true;
+				}
+				if (!claimed && !z.equals(oldZ) && (null != zOwners.putIfAbsent(z, id)))
+					return false;	//occupied, needs a shift up
+				if (null != existing) {
+					widget.setUpdateTime(existing.hasPropertyDiffs(widget) ? now : existing.getUpdateTime());
+					from.remove(existing);
+					if (!z.equals(oldZ))
+						zOwners.remove(oldZ, id);
+				} else {
+					widget.setUpdateTime(now);
+				}
+				widget.setzIndex(z);
+				to.add(widget);
+				shardById.put(id, to);
+				idClaimed = false;
+				return true;
+			} finally {
+				if (idClaimed)
+					shardById.remove(id, to);
+				if ((null != second) && (second != first))
+					second.lock.writeLock().unlock();
+				first.lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Claims the z index value above the current top one.
+	 * Claiming does not conflict with putIfAbsent below the top, so this only retries when other widgets
+	 * go on top concurrently.
+	 * @return the claimed value, or null if the top one is Integer.MAX_VALUE
+	 */
+	private Integer claimTop(Long id) {
+		while (true) {
+			Map.Entry<Integer, Long> top = zOwners.lastEntry();
+			if ((null != top) && (Integer.MAX_VALUE == top.getKey()))
+				return null;
+			int z = (null == top) ? 0 : top.getKey() + 1;
+			if (null == zOwners.putIfAbsent(z, id))
+				return z;
+		}
+	}
+
+	/**
+	 * Saves a widget the way WidgetInMemRepo does, shifting as needed. All other operations are excluded.
+	 */
+	private void saveWithShift(Widget widget, Instant now) {
+		Shard from = shardById.get(widget.getId());
+		Widget existing = (null == from) ? null : from.byId.get(widget.getId());
+		if (null != existing) {
+			widget.setUpdateTime(existing.hasPropertyDiffs(widget) ? now : existing.getUpdateTime());
+			removeExclusive(existing, from);
+		} else {
+			widget.setUpdateTime(now);
+		}
+		if (!zOwners.isEmpty() && (Integer.MAX_VALUE == zOwners.lastKey()))
+			shiftsDown.record(shift(Integer.MAX_VALUE, -1, now));
+		if (null == widget.getzIndex())
+			widget.setzIndex(zOwners.isEmpty() ? 0 : zOwners.lastKey() + 1);
+		else if (zOwners.containsKey(widget.getzIndex()))
+			shiftsUp.record(shift(widget.getzIndex(), 1, now));
+		Shard to = shardFor(widget);
+		to.add(widget);
+		zOwners.put(widget.getzIndex(), widget.getId());
+		shardById.put(widget.getId(), to);
+	}
+
+	/**
+	 * Shifts the contiguous run of z index values from a given one, upwards or downwards, until a gap is reached.
+	 * @return the number of shifted Widgets
+	 */
+	private int shift(int from, int by, Instant now) {
+		List<Long> run = new ArrayList<>();
+		for (int z = from; zOwners.containsKey(z); z += by) {
+			run.add(zOwners.get(z));
+			if (z == ((by > 0) ? Integer.MAX_VALUE : Integer.MIN_VALUE))
+				break;
+		}
+		//farthest first, so that every shifted Widget moves into a free z index value
+		for (int i = run.size() - 1; i >= 0; i--) {
+			Shard s = shardById.get(run.get(i));
+			Widget w = s.byId.get(run.get(i));
+			Widget shifted = w.cloneAndZShift(w.getzIndex() + by, now);
+			s.byZ.remove(w.getzIndex());
+			s.byZ.put(shifted.getzIndex(), shifted);
+			s.byId.put(shifted.getId(), shifted);
+			zOwners.remove(w.getzIndex());
+			zOwners.put(shifted.getzIndex(), shifted.getId());
+		}
+		return run.size();
+	}
+
+	private void removeExclusive(Widget w, Shard s) {
+		s.remove(w);
+		zOwners.remove(w.getzIndex());
+		shardById.remove(w.getId());
+	}
+
+	@Override
+	public Optional<Widget> findById(Long id) {
+		shiftLock.readLock().lock();
+		try {
+			while (true) {
+				Shard s = shardById.get(id);
+				if (null == s)
+					return Optional.empty();
+				s.lock.readLock().lock();
+				try {
+					if (shardById.get(id) == s)
+						return Optional.of(s.byId.get(id));
+				} finally {
+					s.lock.readLock().unlock();
+				}
+			}
+		} finally {
+			shiftLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return all Widgets in ascending z order, copied from one consistent state
+	 */
+	@Override
+	public Iterable<Widget> findAll() {
+		return findPage(ZPage.ALL);
+	}
+
+	@Override
+	public List<Widget> findPage(ZPage page) {
+		if (page.isEmptyRange())
+			return Collections.emptyList();
+		shiftLock.readLock().lock();
+		lock(Arrays.asList(shards));
+		try {
+			int low = (int) Math.max(page.lowestZ(), Integer.MIN_VALUE);
+			int high = (int) Math.min(page.highestZ(), Integer.MAX_VALUE);
+			List<Iterator<Widget>> runs = new ArrayList<>(shards.length);
+			for (Shard s : shards) {
+				Map<Integer, Widget> range = page.isBackward() ? s.byZ.subMap(low, true, high, true).descendingMap()
+						: s.byZ.subMap(low, true, high, true);
+				runs.add(range.values().iterator());
+			}
+			List<Widget> result = merge(runs, page.isBackward(), page.maxSize());
+			if (page.isBackward())
+				Collections.reverse(result);
+			return result;
+		} finally {
+			unlock(Arrays.asList(shards));
+			shiftLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Locks the shards of the regions overlapping the bounds, so that the results are consistent even with Widgets
+	 * moving between shards, and searches them in parallel.
+	 */
+	@Override
+	public Iterable<Widget> search(IBoundingBox bounds) {
+		List<Shard> targets = shardsFor(bounds);
+		fanOut.record(targets.size());
+		shiftLock.readLock().lock();
+		lock(targets);
+		try {
+			List<Iterator<Widget>> runs = new ArrayList<>(targets.size());
+			if (1 == targets.size()) {
+				runs.add(targets.get(0).search(bounds).iterator());
+			} else {
+				List<ForkJoinTask<List<Widget>>> tasks = new ArrayList<>(targets.size());
+				for (Shard s : targets)
+					tasks.add(searchPool.submit(() -> s.search(bounds)));
+				for (ForkJoinTask<List<Widget>> t : tasks)
+					runs.add(t.join().iterator());
+			}
+			return merge(runs, false, Integer.MAX_VALUE);
+		} finally {
+			unlock(targets);
+			shiftLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * K-way merges runs in ascending (or descending) z order into one run in the same order.
+	 */
+	private static List<Widget> merge(List<Iterator<Widget>> runs, boolean descending, int limit) {
+		Comparator<Widget> byZ = Comparator.comparingInt(Widget::getzIndex);
+		PriorityQueue<Head> heads = new PriorityQueue<>(runs.size(),
+				Comparator.comparing((Head h) -> h.widget, descending ? byZ.reversed() : byZ));
+		for (Iterator<Widget> run : runs) {
+			if (run.hasNext())
+				heads.add(new Head(run.next(), run));
+		}
+		List<Widget> merged = new ArrayList<>();
+		while (!heads.isEmpty() && (merged.size() < limit)) {
+			Head h = heads.poll();
+			merged.add(h.widget);
+			if (h.rest.hasNext())
+				heads.add(new Head(h.rest.next(), h.rest));
+		}
+		return merged;
+	}
+
+	private static final class Head {
+		final Widget widget;
+		final Iterator<Widget> rest;
+
+		Head(Widget widget, Iterator<Widget> rest) {
+			this.widget = widget;
+			this.rest = rest;
+		}
+	}
+
+	@Override
+	public long count() {
+		return shardById.size();
+	}
+
+	@Override
+	public void deleteById(Long id) {
+		shiftLock.readLock().lock();
+		try {
+			while (true) {
+				Shard s = shardById.get(id);
+				if (null == s)
+					return;
+				s.lock.writeLock().lock();
+				try {
+					if (shardById.get(id) != s)
+						continue;	//moved concurrently
+					Widget w = s.byId.get(id);
+					s.remove(w);
+					zOwners.remove(w.getzIndex(), id);
+					shardById.remove(id, s);
+					return;
+				} finally {
+					s.lock.writeLock().unlock();
+				}
+			}
+		} finally {
+			shiftLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void deleteAll() {
+		shiftLock.writeLock().lock();
+		try {
+			for (Shard s : shards) {
+				s.byId.clear();
+				s.byZ.clear();
+				s.index.clear();
+			}
+			zOwners.clear();
+			shardById.clear();
+		} finally {
+			shiftLock.writeLock().unlock();
+		}
+	}
+
+	private Shard shardFor(IBoundingBox box) {
+		return shardOfRegion(Math.floorDiv(box.getLowerX(), regionSize), Math.floorDiv(box.getLowerY(), regionSize));
+	}
+
+	private Shard shardOfRegion(long rx, long ry) {
+		return shards[(int) Math.floorMod(rx * 0x9E3779B1L + ry, (long) shards.length)];
+	}
+
+	/**
+	 * @return the shards of the regions that overlap the given bounds, in shard order
+	 */
+	private List<Shard> shardsFor(IBoundingBox bounds) {
+		long fromX = Math.floorDiv(bounds.getLowerX(), regionSize), toX = Math.floorDiv(bounds.getUpperX(), regionSize);
+		long fromY = Math.floorDiv(bounds.getLowerY(), regionSize), toY = Math.floorDiv(bounds.getUpperY(), regionSize);
+		long columns = toX - fromX + 1, rows = toY - fromY + 1, many = shards.length * 4L;
+		if ((columns >= many) || (rows >= many) || (columns * rows >= many))
+			return Arrays.asList(shards);
+		boolean[] hit = new boolean[shards.length];
+		for (long rx = fromX; rx <= toX; rx++) {
+			for (long ry = fromY; ry <= toY; ry++)
+				hit[shardOfRegion(rx, ry).number] = true;
+		}
+		List<Shard> targets = new ArrayList<>();
+		for (Shard s : shards) {
+			if (hit[s.number])
+				targets.add(s);
+		}
+		return targets;
+	}
+
+	/**
+	 * Read locks the given shards, which must be in shard order so that it cannot deadlock with writers.
+	 */
+	private static void lock(List<Shard> ordered) {
+		for (Shard s : ordered)
+			s.lock.readLock().lock();
+	}
+
+	private static void unlock(List<Shard> ordered) {
+		for (int i = ordered.size() - 1; i >= 0; i--)
+			ordered.get(i).lock.readLock().unlock();
+	}
+}
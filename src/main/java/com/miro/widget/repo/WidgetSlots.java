@@ -0,0 +1,128 @@
+package com.miro.widget.repo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.util.Arrays;
+
+import com.miro.widget.model.Widget;
+
+/**
+ * Fixed-width Widget records in direct (off-heap) buffers, which the garbage collector never has to trace.
+ * <p>
+ * A slot holds the id, update time seconds, x, y, z index, width, height and update time nanoseconds of one
+ * Widget in 40 bytes. Buffers are allocated in chunks as slots are needed and never move. Freed slots are
+ * reused through a free list that is threaded through the id field of the free slots.
+ * <p>
+ * Not thread safe.
+ */
+final class WidgetSlots {
+
+	static final int NONE = -1;
+	static final int SLOT_BYTES = 40;
+
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_SLOTS = 1 << CHUNK_BITS;
+	private static final int ID = 0, SECONDS = 8, X = 16, Y = 20, Z = 24, WIDTH = 28, HEIGHT = 32, NANOS = 36;
+
+	private ByteBuffer[] chunks = new ByteBuffer[0];
+	private int slotCount;		//slots handed out at least once
+	private int freeSlot = NONE;
+	private int used;
+
+	/**
+	 * @return a free slot, its contents undefined
+	 */
+	int alloc() {
+		used++;
+		if (NONE != freeSlot) {
+			int slot = freeSlot;
+			freeSlot = (int) chunk(slot).getLong(offset(slot) + ID);
+			return slot;
+		}
+		if (slotCount == chunks.length * CHUNK_SLOTS) {
+			chunks = Arrays.copyOf(chunks, chunks.length + 1);
+			chunks[chunks.length - 1] = ByteBuffer.allocateDirect(CHUNK_SLOTS * SLOT_BYTES).order(ByteOrder.nativeOrder());
+		}
+		return slotCount++;
+	}
+
+	void free(int slot) {
+		chunk(slot).putLong(offset(slot) + ID, freeSlot);
+		freeSlot = slot;
+		used--;
+	}
+
+	/**
+	 * Frees all slots, keeping the allocated buffers for reuse.
+	 */
+	void clear() {
+		slotCount = 0;
+		freeSlot = NONE;
+		used = 0;
+	}
+
+	/**
+	 * Stores a Widget with a non-null id, z index and update time in a slot.
+	 */
+	void write(int slot, Widget w) {
+		ByteBuffer c = chunk(slot);
+		int o = offset(slot);
+		c.putLong(o + ID, w.getId());
+		c.putInt(o + X, w.getX());
+		c.putInt(o + Y, w.getY());
+		c.putInt(o + Z, w.getzIndex());
+		c.putInt(o + WIDTH, w.getWidth());
+		c.putInt(o + HEIGHT, w.getHeight());
+		setUpdateTime(slot, w.getUpdateTime());
+	}
+
+	/**
+	 * @return a new Widget holding a copy of a slot
+	 */
+	Widget read(int slot) {
+		ByteBuffer c = chunk(slot);
+		int o = offset(slot);
+		Widget w = new Widget(c.getLong(o + ID), c.getInt(o + X), c.getInt(o + Y), c.getInt(o + Z),
+				c.getInt(o + WIDTH), c.getInt(o + HEIGHT));
+		w.setUpdateTime(Instant.ofEpochSecond(c.getLong(o + SECONDS), c.getInt(o + NANOS)));
+		return w;
+	}
+
+	int z(int slot) {
+		return chunk(slot).getInt(offset(slot) + Z);
+	}
+
+	void setZ(int slot, int z) {
+		chunk(slot).putInt(offset(slot) + Z, z);
+	}
+
+	void setUpdateTime(int slot, Instant time) {
+		ByteBuffer c = chunk(slot);
+		int o = offset(slot);
+		c.putLong(o + SECONDS, time.getEpochSecond());
+		c.putInt(o + NANOS, time.getNano());
+	}
+
+	/**
+	 * @return the number of slots in use
+	 */
+	int size() {
+		return used;
+	}
+
+	/**
+	 * @return the off-heap memory allocated, in bytes
+	 */
+	long allocatedBytes() {
+		return (long) chunks.length * CHUNK_SLOTS * SLOT_BYTES;
+	}
+
+	private ByteBuffer chunk(int slot) {
+		return chunks[slot >>> CHUNK_BITS];
+	}
+
+	private static int offset(int slot) {
+		return (slot & (CHUNK_SLOTS - 1)) * SLOT_BYTES;
+	}
+}
@@ -0,0 +1,199 @@
+package com.miro.widget.repo;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+import com.miro.widget.model.Widget;
+
+/**
+ * The contents of a WidgetInMemRepo at one point in time, in a compact binary columnar form that is the same
+ * in memory and on disk.
+ * <p>
+ * A header holds a magic number, the format version, the widget count, the CRC32 of the columns, the next
+ * generated id and the write-ahead log segment that continues after the snapshot. The columns follow: ids and
+ * update time seconds as longs, then x, y, z index, width, height and update time nanoseconds as ints, all in
+ * ascending z order, so that a repository can be rebuilt in a single pass without any shifting.
+ * <p>
+ * A snapshot is captured into a heap buffer while writes are excluded and written out after that, a stored
+ * snapshot is read by memory-mapping the file. Snapshots are also sent to replication followers as they are.
+ */
+public final class WidgetSnapshot {
+
+	private static final int MAGIC = 0x57534e50;	//"WSNP"
+	private static final int VERSION = 1;
+	private static final int HEADER = 32;
+	private static final int BYTES_PER_WIDGET = 2 * 8 + 6 * 4;
+
+	private final ByteBuffer buf;
+	private final int count;
+
+	private WidgetSnapshot(ByteBuffer buf) {
+		this.buf = buf;
+		this.count = buf.getInt(8);
+	}
+
+	/**
+	 * Copies Widgets given in ascending z order into a new snapshot.
+	 * @param nextId the lowest id not yet generated
+	 * @param walSeq the first write-ahead log segment not covered by the snapshot
+	 */
+	static WidgetSnapshot capture(Iterable<Widget> ascendingZ, int count, long nextId, long walSeq) {
+		ByteBuffer buf = ByteBuffer.allocate(HEADER + count * BYTES_PER_WIDGET);
+		buf.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, count).putLong(16, nextId).putLong(24, walSeq);
+		int i = 0;
+		for (Widget w : ascendingZ) {
+			if (i == count)
+				throw new IllegalArgumentException("WidgetSnapshot is given more widgets than " + count);
+			Instant time = w.getUpdateTime();
+			buf.putLong(longAt(0, count, i), w.getId());
+			buf.putLong(longAt(1, count, i), time.getEpochSecond());
+			buf.putInt(intAt(0, count, i), w.getX());
+			buf.putInt(intAt(1, count, i), w.getY());
+			buf.putInt(intAt(2, count, i), w.getzIndex());
+			buf.putInt(intAt(3, count, i), w.getWidth());
+			buf.putInt(intAt(4, count, i), w.getHeight());
+			buf.putInt(intAt(5, count, i), time.getNano());
+			i++;
+		}
+		if (i != count)
+			throw new IllegalArgumentException("WidgetSnapshot is given " + i + " widgets instead of " + count);
+		buf.putInt(12, checksum(buf));
+		return new WidgetSnapshot(buf);
+	}
+
+	/**
+	 * Maps a stored snapshot.
+	 * @throws IOException if the file cannot be read or is not an intact snapshot
+	 */
+	public static WidgetSnapshot read(Path file) throws IOException {
+		ByteBuffer buf;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		return verified(buf, file.toString());
+	}
+
+	/**
+	 * Reads a snapshot of the given size in bytes, as sent by {@link #writeTo(OutputStream)}.
+	 * @throws IOException if the stream ends early or does not hold an intact snapshot
+	 */
+	public static WidgetSnapshot readFrom(InputStream in, int byteSize) throws IOException {
+		byte[] bytes = new byte[byteSize];
+		new DataInputStream(in).readFully(bytes);
+		return verified(ByteBuffer.wrap(bytes), "stream");
+	}
+
+	private static WidgetSnapshot verified(ByteBuffer buf, String source) throws IOException {
+		if ((buf.limit() < HEADER) || (MAGIC != buf.getInt(0)))
+			throw new IOException("Not a widget snapshot: " + source);
+		if (VERSION != buf.getInt(4))
+			throw new IOException("Unsupported widget snapshot version " + buf.getInt(4) + " in " + source);
+		int count = buf.getInt(8);
+		if ((count < 0) || (buf.limit() != HEADER + (long) count * BYTES_PER_WIDGET) || (buf.getInt(12) != checksum(buf)))
+			throw new IOException("Corrupt widget snapshot: " + source);
+		return new WidgetSnapshot(buf);
+	}
+
+	/**
+	 * Stores this snapshot, replacing the given file only once the new one is complete and on disk.
+	 */
+	public void write(Path file) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer data = buf.duplicate();
+			data.clear();
+			while (data.hasRemaining())
+				channel.write(data);
+			channel.force(true);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Sends this snapshot, as is, to be read by {@link #readFrom(InputStream, int)}.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		ByteBuffer data = buf.duplicate();
+		data.clear();
+		byte[] chunk = new byte[Math.min(data.remaining(), 64 * 1024)];
+		while (data.hasRemaining()) {
+			int n = Math.min(chunk.length, data.remaining());
+			data.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+		}
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the size of this snapshot in bytes, as stored or sent
+	 */
+	public int byteSize() {
+		return buf.limit();
+	}
+
+	public long getNextId() {
+		return buf.getLong(16);
+	}
+
+	public long getWalSeq() {
+		return buf.getLong(24);
+	}
+
+	/**
+	 * Iterates new Widgets built from the columns, in ascending z order.
+	 */
+	public Iterator<Widget> iterator() {
+		return new Iterator<Widget>() {
+			private int i;
+
+			@Override
+			public boolean hasNext() {
+				return i < count;
+			}
+
+			@Override
+			public Widget next() {
+				if (i >= count)
+					throw new NoSuchElementException();
+				Widget w = new Widget(buf.getLong(longAt(0, count, i)), buf.getInt(intAt(0, count, i)),
+						buf.getInt(intAt(1, count, i)), buf.getInt(intAt(2, count, i)), buf.getInt(intAt(3, count, i)),
+						buf.getInt(intAt(4, count, i)));
+				w.setUpdateTime(Instant.ofEpochSecond(buf.getLong(longAt(1, count, i)), buf.getInt(intAt(5, count, i))));
+				i++;
+				return w;
+			}
+		};
+	}
+
+	private static int longAt(int column, int count, int i) {
+		return HEADER + (column * count + i) * 8;
+	}
+
+	private static int intAt(int column, int count, int i) {
+		return HEADER + 2 * count * 8 + (column * count + i) * 4;
+	}
+
+	private static int checksum(ByteBuffer buf) {
+		ByteBuffer columns = buf.duplicate();
+		columns.clear().position(HEADER);
+		CRC32 crc = new CRC32();
+		crc.update(columns);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,335 @@
+package com.miro.widget.repo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of repository mutations, written through memory-mapped segment files.
+ * <p>
+ * Each record is its payload length, the CRC32 of its payload and the payload, a {@link Mutation} in binary form.
+ * Segments are preallocated and zero filled, so a zero length marks the end of a segment. On recovery, a record
+ * with a bad length or checksum is taken as a torn write at the crash point: it and everything after it is
+ * discarded.
+ * <p>
+ * Appending only copies the record into the mapped segment. Making it durable is up to the fsync policy:
+ * with ALWAYS a background thread forces the segment whenever records are pending, and {@link #sync()} waits for
+ * that. Records appended while a force is in progress are forced together by the next one (group commit).
+ * With INTERVAL the segment is forced periodically and sync() does not wait, with NEVER the OS decides.
+ * <p>
+ * A {@link WidgetSnapshot} makes the segments before a checkpoint obsolete: they are skipped on recovery and
+ * may be deleted once the snapshot is durable.
+ * <p>
+ * Appends must not run concurrently with each other.
+ */
+public class WriteAheadLog implements MutationListener, Closeable {
+
+	public enum FsyncPolicy { ALWAYS, INTERVAL, NEVER }
+
+	public static final int MIN_SEGMENT_SIZE = 4096;
+
+	private static final String PREFIX = "wal-";
+	private static final String SUFFIX = ".log";
+	private static final int HEADER = 8;
+
+	Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+	private final Path dir;
+	private final int segmentSize;
+	private final FsyncPolicy policy;
+	private final long intervalMillis;
+	private final CRC32 crc = new CRC32();
+
+	//guarded by this
+	private MappedByteBuffer current;
+	private long currentSeq;
+	private long appended;
+	private long durable;
+	private boolean closed;
+
+	private Thread flusher;
+
+	public WriteAheadLog(Path dir, int segmentSize, FsyncPolicy policy, long intervalMillis) {
+		if (segmentSize < MIN_SEGMENT_SIZE)
+			throw new IllegalArgumentException("WriteAheadLog segment size should not be smaller than " + MIN_SEGMENT_SIZE);
+		if (intervalMillis < 1)
+			throw new IllegalArgumentException("WriteAheadLog fsync interval should not be smaller than 1 ms");
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.policy = policy;
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * Opens the log, replaying every intact record in order into the given consumer, and positions further appends
+	 * right after the last intact record.
+	 * @return the number of replayed mutations
+	 */
+	public int recover(Consumer<Mutation> replay) throws IOException {
+		return recover(0, replay);
+	}
+
+	/**
+	 * Like {@link #recover(Consumer)}, but skips and deletes the segments before a given checkpoint.
+	 */
+	public synchronized int recover(long fromSeq, Consumer<Mutation> replay) throws IOException {
+		if (null != current)
+			throw new IllegalStateException("WriteAheadLog is already open");
+		Files.createDirectories(dir);
+		truncate(fromSeq);
+		List<Path> segments = listSegments();
+		int replayed = 0;
+		int end = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			MappedByteBuffer buf = map(segments.get(i), FileChannel.MapMode.READ_ONLY);
+			while (true) {
+				Mutation m = read(buf);
+				if (null == m)
+					break;
+				replay.accept(m);
+				replayed++;
+			}
+			end = buf.position();
+			if ((i < segments.size() - 1) && !isZero(buf)) {
+				//torn record before the last segment, later segments cannot follow on from it
+				log.warn("Discarding write-ahead log after {} at offset {}", segments.get(i), end);
+				for (Path later : segments.subList(i + 1, segments.size()))
+					Files.delete(later);
+				segments = segments.subList(0, i + 1);
+				break;
+			}
+		}
+		if (segments.isEmpty()) {
+			currentSeq = fromSeq;
+			current = createSegment(currentSeq);
+		} else {
+			Path last = segments.get(segments.size() - 1);
+			currentSeq = seqOf(last);
+			current = map(last, FileChannel.MapMode.READ_WRITE);
+			current.position(end);
+			while (current.hasRemaining())		//wipe any torn record, so it cannot be taken for a later one
+				current.put((byte) 0);
+			current.position(end);
+		}
+		if (FsyncPolicy.NEVER != policy) {
+			flusher = new Thread(this::flushLoop, "wal-flusher");
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+		log.info("Recovered {} mutations from write-ahead log in {}", replayed, dir);
+		return replayed;
+	}
+
+	/**
+	 * Appends a mutation to the log.
+	 */
+	@Override
+	public synchronized void onMutation(Mutation m) {
+		if ((null == current) || closed)
+			throw new IllegalStateException("WriteAheadLog is not open");
+		int size = HEADER + m.encodedSize();
+		if (current.remaining() < size)
+			roll();
+		int start = current.position();
+		current.position(start + HEADER);
+		m.writeTo(current);
+		int end = current.position();
+		ByteBuffer payload = current.duplicate();
+		payload.position(start + HEADER);
+		payload.limit(end);
+		crc.reset();
+		crc.update(payload);
+		current.putInt(start + 4, (int) crc.getValue());
+		current.putInt(start, end - start - HEADER);
+		appended += size;
+		if (FsyncPolicy.ALWAYS == policy)
+			notifyAll();
+	}
+
+	/**
+	 * Waits until all mutations appended so far are durable, if the fsync policy is ALWAYS.
+	 */
+	public void sync() {
+		if (FsyncPolicy.ALWAYS != policy)
+			return;
+		synchronized (this) {
+			long target = appended;
+			while ((durable < target) && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		Thread f;
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+			f = flusher;
+		}
+		if (null != f) {
+			try {
+				f.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			if ((null != current) && (FsyncPolicy.NEVER != policy))
+				current.force();
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			MappedByteBuffer segment;
+			long target;
+			synchronized (this) {
+				try {
+					if (FsyncPolicy.ALWAYS == policy) {
+						while ((durable == appended) && !closed)
+							wait();
+					} else if (!closed) {
+						wait(intervalMillis);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (closed)
+					return;		//close() forces what is left
+				if (durable == appended)
+					continue;
+				segment = current;
+				target = appended;
+			}
+			segment.force();
+			synchronized (this) {
+				durable = target;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Continues the log in a new segment, so that all mutations appended so far are in earlier segments.
+	 * @return the sequence number of the new segment
+	 */
+	public synchronized long checkpoint() {
+		if ((null == current) || closed)
+			throw new IllegalStateException("WriteAheadLog is not open");
+		roll();
+		return currentSeq;
+	}
+
+	/**
+	 * Deletes the segments before a given checkpoint.
+	 */
+	public void truncate(long beforeSeq) throws IOException {
+		for (Path segment : listSegments()) {
+			if (seqOf(segment) < beforeSeq)
+				Files.delete(segment);
+		}
+	}
+
+	/**
+	 * Forces the current segment and continues in a new one.
+	 */
+	private void roll() {
+		current.force();
+		try {
+			current = createSegment(++currentSeq);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot create write-ahead log segment " + currentSeq, e);
+		}
+	}
+
+	/**
+	 * Reads the next intact record from a segment, leaving the position at its end.
+	 * @return the mutation, or null at the end of the intact records
+	 */
+	private Mutation read(ByteBuffer buf) {
+		int start = buf.position();
+		if (buf.remaining() < HEADER)
+			return null;
+		int length = buf.getInt(start);
+		if ((length <= 0) || (length > buf.remaining() - HEADER))
+			return null;
+		ByteBuffer payload = buf.duplicate();
+		payload.position(start + HEADER);
+		payload.limit(start + HEADER + length);
+		crc.reset();
+		crc.update(payload.duplicate());
+		if ((int) crc.getValue() != buf.getInt(start + 4))
+			return null;
+		Mutation m;
+		try {
+			m = Mutation.readFrom(payload);
+		} catch (RuntimeException e) {
+			return null;
+		}
+		buf.position(start + HEADER + length);
+		return m;
+	}
+
+	private static boolean isZero(ByteBuffer buf) {
+		for (int i = buf.position(); i < buf.limit(); i++) {
+			if (0 != buf.get(i))
+				return false;
+		}
+		return true;
+	}
+
+	private List<Path> listSegments() throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+			files.forEach(segments::add);
+		}
+		Collections.sort(segments);		//names hold zero padded sequence numbers
+		return segments;
+	}
+
+	private MappedByteBuffer createSegment(long seq) throws IOException {
+		Path path = dir.resolve(String.format("%s%019d%s", PREFIX, seq, SUFFIX));
+		try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+			file.setLength(segmentSize);
+		}
+		return map(path, FileChannel.MapMode.READ_WRITE);
+	}
+
+	private static MappedByteBuffer map(Path path, FileChannel.MapMode mode) throws IOException {
+		StandardOpenOption[] options = (FileChannel.MapMode.READ_ONLY == mode)
+				? new StandardOpenOption[] { StandardOpenOption.READ }
+				: new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE };
+		try (FileChannel channel = FileChannel.open(path, options)) {
+			return channel.map(mode, 0, channel.size());
+		}
+	}
+
+	private static long seqOf(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+}
@@ -0,0 +1,447 @@
+package com.miro.widget.repo;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import com.miro.widget.model.Widget;
+
+/**
+ * Keeps Widgets ordered by their (unique) z index value in a treap, a randomized balanced binary search tree
+ * whose nodes know their subtree size.
+ * <p>
+ * Shifting a contiguous run of z index values is done by splitting the run off as a subtree and tagging its root
+ * with a pending z offset and update time, which are only pushed down to the children when a later operation
+ * passes through the node. Locating, shifting and re-attaching a run therefore costs O(log n) regardless of its
+ * length. Reads never push tags down; they add up the pending tags of a node's ancestors instead, and return a
+ * shifted copy of the stored Widget when needed, so the z index values and update times seen by clients are
+ * exactly those an eager shift would have produced.
+ * <p>
+ * Not thread safe, reads may run concurrently with each other but not with writes.
+ */
+class ZOrderTree implements Iterable<Widget> {
+
+	private final HashMap<Long, Node> nodesById = new HashMap<>();
+	private final Random priorities = new Random();
+	private final Node[] pieces = new Node[2];
+	private Node root;
+
+	int size() {
+		return nodesById.size();
+	}
+
+	boolean isEmpty() {
+		return nodesById.isEmpty();
+	}
+
+	/**
+	 * @return the Widget with the given id as currently positioned, or null
+	 */
+	Widget get(Long id) {
+		Node n = nodesById.get(id);
+		if (null == n)
+			return null;
+		int add = 0;
+		Instant time = null;
+		for (Node p = n.parent; p != null; p = p.parent) {
+			add += p.addZ;
+			if (null != p.setTime)
+				time = p.setTime;		//the topmost pending update time is the most recent one
+		}
+		return effective(n, add, time);
+	}
+
+	boolean containsZ(int z) {
+		int add = 0;
+		Node n = root;
+		while (n != null) {
+			int key = n.z + add;
+			if (key == z)
+				return true;
+			add += n.addZ;
+			n = (z < key) ? n.left : n.right;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the highest z index value, the tree must not be empty
+	 */
+	int lastZ() {
+		if (null == root)
+			throw new NoSuchElementException("ZOrderTree is empty");
+		int add = 0;
+		Node n = root;
+		while (n.right != null) {
+			add += n.addZ;
+			n = n.right;
+		}
+		return n.z + add;
+	}
+
+	/**
+	 * Adds a Widget at its z index value, which must not be occupied.
+	 */
+	void insert(Widget widget) {
+		Node node = new Node(widget, priorities.nextInt());
+		nodesById.put(widget.getId(), node);
+		splitByKey(root, widget.getzIndex(), pieces);
+		Node right = pieces[1];
+		root = merge(merge(pieces[0], node), right);
+		root.parent = null;
+	}
+
+	/**
+	 * Removes the Widget with the given id.
+	 * @return the removed Widget as it was positioned, or null if absent
+	 */
+	Widget remove(Long id) {
+		Widget w = get(id);
+		if (null == w)
+			return null;
+		nodesById.remove(id);
+		splitByKey(root, w.getzIndex(), pieces);
+		Node left = pieces[0];
+		splitBySize(pieces[1], 1, pieces);
+		root = merge(left, pieces[1]);
+		if (null != root)
+			root.parent = null;
+		return w;
+	}
+
+	/**
+	 * Shifts the contiguous run of z index values starting at a given value up by one, until a gap is reached.
+	 * @return the number of shifted Widgets
+	 */
+	int shiftUpRun(int from, Instant now) {
+		splitByKey(root, from, pieces);
+		Node left = pieces[0];
+		Node rest = pieces[1];
+		//in-order index i is in the run while key(i) - i == from
+		int runLength = indexOfKeyMinusIndexAtLeast(rest, (long) from + 1);
+		if ((runLength > 0) && ((long) from + runLength - 1 == Integer.MAX_VALUE))
+			throw new IllegalStateException("WidgetInMemRepo is full");
+		splitBySize(rest, runLength, pieces);
+		Node run = pieces[0];
+		if (null != run)
+			apply(run, 1, now);
+		root = merge(left, merge(run, pieces[1]));
+		if (null != root)
+			root.parent = null;
+		return runLength;
+	}
+
+	/**
+	 * Shifts the contiguous run of z index values ending at a given value down by one, until a gap is reached.
+	 * @return the number of shifted Widgets
+	 */
+	int shiftDownRun(int to, Instant now) {
+		splitByKey(root, (long) to + 1, pieces);
+		Node right = pieces[1];
+		Node rest = pieces[0];
+		int n = size(rest);
+		//in-order index i is in the run while key(i) - i == to - (n - 1)
+		int runStart = indexOfKeyMinusIndexAtLeast(rest, (long) to - (n - 1));
+		if ((runStart < n) && ((long) to - (n - 1 - runStart) == Integer.MIN_VALUE))
+			throw new IllegalStateException("WidgetInMemRepo is full");
+		splitBySize(rest, runStart, pieces);
+		Node run = pieces[1];
+		if (null != run)
+			apply(run, -1, now);
+		root = merge(merge(pieces[0], run), right);
+		if (null != root)
+			root.parent = null;
+		return n - runStart;
+	}
+
+	void clear() {
+		nodesById.clear();
+		root = null;
+	}
+
+	/**
+	 * Fills an empty tree with Widgets given in ascending z order, in linear time: the treap is built along its
+	 * right spine, as a Cartesian tree of the random priorities.
+	 */
+	void build(Iterator<Widget> ascendingZ, int count) {
+		if (null != root)
+			throw new IllegalStateException("ZOrderTree is not empty");
+		Node[] nodes = new Node[count];
+		Node[] spine = new Node[count];
+		int top = 0;
+		int lastZ = Integer.MIN_VALUE;
+		for (int i = 0; i < count; i++) {
+			Node node = new Node(ascendingZ.next(), priorities.nextInt());
+			if ((i > 0) && (node.z <= lastZ))
+				throw new IllegalArgumentException("Widgets are not in ascending z order at " + node.widget);
+			lastZ = node.z;
+			nodesById.put(node.widget.getId(), node);
+			Node last = null;
+			while ((top > 0) && (spine[top - 1].priority < node.priority))
+				last = spine[--top];
+			node.left = last;
+			if (top > 0)
+				spine[top - 1].right = node;
+			spine[top++] = node;
+			nodes[i] = node;
+		}
+		if (0 == count)
+			return;
+		root = spine[0];
+		//breadth first order, so that updating it backwards visits children before parents
+		nodes[0] = root;
+		for (int head = 0, tail = 1; head < tail; head++) {
+			Node n = nodes[head];
+			if (null != n.left)
+				nodes[tail++] = n.left;
+			if (null != n.right)
+				nodes[tail++] = n.right;
+		}
+		for (int i = count - 1; i >= 0; i--)
+			update(nodes[i]);
+		root.parent = null;
+	}
+
+	/**
+	 * Iterates the Widgets in ascending z order.
+	 */
+	@Override
+	public Iterator<Widget> iterator() {
+		return new InOrder(root, Long.MIN_VALUE, false);
+	}
+
+	/**
+	 * @return the Widgets with a z index value of at least fromZ, in ascending z order
+	 */
+	Iterable<Widget> ascendingFrom(long fromZ) {
+		return () -> new InOrder(root, fromZ, false);
+	}
+
+	/**
+	 * @return the Widgets with a z index value of at most toZ, in descending z order
+	 */
+	Iterable<Widget> descendingFrom(long toZ) {
+		return () -> new InOrder(root, toZ, true);
+	}
+
+	private Widget effective(Node n, int add, Instant time) {
+		if ((0 == add) && (null == time))
+			return n.widget;
+		return n.widget.cloneAndZShift(n.z + add, (null == time) ? n.widget.getUpdateTime() : time);
+	}
+
+	/**
+	 * Tags a subtree root with a z offset and update time, applying them to the root itself right away.
+	 */
+	private static void apply(Node n, int add, Instant time) {
+		n.z += add;
+		n.addZ += add;
+		if (null != time)
+			n.setTime = time;
+		n.widget = n.widget.cloneAndZShift(n.z, (null == time) ? n.widget.getUpdateTime() : time);
+	}
+
+	private static void push(Node n) {
+		if ((0 != n.addZ) || (null != n.setTime)) {
+			if (null != n.left)
+				apply(n.left, n.addZ, n.setTime);
+			if (null != n.right)
+				apply(n.right, n.addZ, n.setTime);
+			n.addZ = 0;
+			n.setTime = null;
+		}
+	}
+
+	private static void update(Node n) {
+		n.size = 1 + size(n.left) + size(n.right);
+		if (null != n.left)
+			n.left.parent = n;
+		if (null != n.right)
+			n.right.parent = n;
+	}
+
+	private static int size(Node n) {
+		return (null == n) ? 0 : n.size;
+	}
+
+	/**
+	 * Splits a subtree into nodes with keys below a given value (out[0]) and the rest (out[1]).
+	 */
+	private static void splitByKey(Node t, long key, Node[] out) {
+		if (null == t) {
+			out[0] = out[1] = null;
+			return;
+		}
+		push(t);
+		if (t.z < key) {
+			splitByKey(t.right, key, out);
+			t.right = out[0];
+			update(t);
+			out[0] = t;
+		} else {
+			splitByKey(t.left, key, out);
+			t.left = out[1];
+			update(t);
+			out[1] = t;
+		}
+	}
+
+	/**
+	 * Splits a subtree into its first count nodes in order (out[0]) and the rest (out[1]).
+	 */
+	private static void splitBySize(Node t, int count, Node[] out) {
+		if (null == t) {
+			out[0] = out[1] = null;
+			return;
+		}
+		push(t);
+		int leftSize = size(t.left);
+		if (count <= leftSize) {
+			splitBySize(t.left, count, out);
+			t.left = out[1];
+			update(t);
+			out[1] = t;
+		} else {
+			splitBySize(t.right, count - leftSize - 1, out);
+			t.right = out[0];
+			update(t);
+			out[0] = t;
+		}
+	}
+
+	/**
+	 * Merges two subtrees, where all keys of the first are below all keys of the second.
+	 */
+	private static Node merge(Node a, Node b) {
+		if (null == a)
+			return b;
+		if (null == b)
+			return a;
+		if (a.priority > b.priority) {
+			push(a);
+			a.right = merge(a.right, b);
+			update(a);
+			return a;
+		}
+		push(b);
+		b.left = merge(a, b.left);
+		update(b);
+		return b;
+	}
+
+	/**
+	 * Finds the first in-order index i of a subtree whose key(i) - i is at least a given bound.
+	 * Keys are unique integers, so key(i) - i never decreases along the in-order sequence.
+	 * @return the index found, or the subtree size if there is none
+	 */
+	private static int indexOfKeyMinusIndexAtLeast(Node t, long bound) {
+		int result = size(t);
+		long base = 0;
+		Node n = t;
+		while (n != null) {
+			push(n);
+			long index = base + size(n.left);
+			if (n.z - index >= bound) {
+				result = (int) index;
+				n = n.left;
+			} else {
+				base = index + 1;
+				n = n.right;
+			}
+		}
+		return result;
+	}
+
+	private static final class Node {
+		Widget widget;		//positioned according to all tags applied to this node
+		int z;
+		final int priority;
+		int size = 1;
+		Node left, right, parent;
+		int addZ;			//pending z offset for the children
+		Instant setTime;	//pending update time for the children
+
+		Node(Widget widget, int priority) {
+			this.widget = widget;
+			this.z = widget.getzIndex();
+			this.priority = priority;
+		}
+	}
+
+	/**
+	 * In-order (or reverse in-order) iterator that accumulates the pending tags of the ancestors on its stack,
+	 * without pushing them down.
+	 */
+	private final class InOrder implements Iterator<Widget> {
+		private final boolean descending;
+		private Node[] nodes = new Node[64];
+		private int[] adds = new int[64];
+		private Instant[] times = new Instant[64];
+		private int depth;
+
+		/**
+		 * Starts at the first node in iteration order whose key is not beyond a given bound.
+		 */
+		InOrder(Node root, long bound, boolean descending) {
+			this.descending = descending;
+			int add = 0;
+			Instant time = null;
+			Node n = root;
+			while (n != null) {
+				long key = (long) n.z + add;
+				boolean inRange = descending ? (key <= bound) : (key >= bound);
+				if (inRange)
+					stack(n, add, time);
+				add += n.addZ;
+				if (null == time)
+					time = n.setTime;
+				n = (inRange == descending) ? n.right : n.left;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return depth > 0;
+		}
+
+		@Override
+		public Widget next() {
+			if (0 == depth)
+				throw new NoSuchElementException();
+			depth--;
+			Node n = nodes[depth];
+			int add = adds[depth];
+			Instant time = times[depth];
+			stackRun(descending ? n.left : n.right, add + n.addZ, (null != time) ? time : n.setTime);
+			return effective(n, add, time);
+		}
+
+		/**
+		 * Stacks a node and its descendants towards the start of the iteration order.
+		 */
+		private void stackRun(Node n, int add, Instant time) {
+			while (n != null) {
+				stack(n, add, time);
+				add += n.addZ;
+				if (null == time)
+					time = n.setTime;
+				n = descending ? n.right : n.left;
+			}
+		}
+
+		private void stack(Node n, int add, Instant time) {
+			if (depth == nodes.length) {
+				nodes = Arrays.copyOf(nodes, depth * 2);
+				adds = Arrays.copyOf(adds, depth * 2);
+				times = Arrays.copyOf(times, depth * 2);
+			}
+			nodes[depth] = n;
+			adds[depth] = add;
+			times[depth] = time;
+			depth++;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package com.miro.widget.service;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration of the board registry, bound from the "widget.boards" properties.
+ */
+@Component
+@ConfigurationProperties(prefix = "widget.boards")
+public class BoardProperties {
+
+	//directory of the snapshot files of the boards
+	private String dir = "data/boards";
+	//widgets kept in memory over all loaded boards, beyond which the least recently used boards are evicted
+	private long maxWidgets = 1_000_000;
+	//interval of the budget check, which also runs after every board load
+	private long evictIntervalMs = 1000;
+
+	public String getDir() {
+		return dir;
+	}
+
+	public void setDir(String dir) {
+		this.dir = dir;
+	}
+
+	public long getMaxWidgets() {
+		return maxWidgets;
+	}
+
+	public void setMaxWidgets(long maxWidgets) {
+		if (maxWidgets < 0)
+			throw new IllegalArgumentException("widget.boards.max-widgets should not be negative");
+		this.maxWidgets = maxWidgets;
+	}
+
+	public long getEvictIntervalMs() {
+		return evictIntervalMs;
+	}
+
+	public void setEvictIntervalMs(long evictIntervalMs) {
+		if (evictIntervalMs < 1)
+			throw new IllegalArgumentException("widget.boards.evict-interval-ms should not be smaller than 1");
+		this.evictIntervalMs = evictIntervalMs;
+	}
+}
@@ -0,0 +1,301 @@
+package com.miro.widget.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import com.miro.widget.repo.WidgetInMemRepo;
+import com.miro.widget.repo.WidgetRepoProperties;
+
+/**
+ * The boards besides the default one, each with its own WidgetInMemRepo and WidgetService, so with its own lock,
+ * id generator and indexes.
+ * <p>
+ * A board is loaded on first use, from its snapshot file if it has one. When the loaded boards hold more than
+ * widget.boards.max-widgets widgets, the least recently used ones not in use are evicted: written to their snapshot
+ * file if changed since it was last written, and dropped from memory. The most recently used board is never evicted
+ * to meet the budget, so that a board holding more widgets than the budget alone is not dropped after every request.
+ * Changed boards are also written every widget.repo.snapshot.interval-ms, like the default board's snapshots.
+ */
+@Service
+public class BoardRegistry implements MeterBinder {
+
+	Logger log = LoggerFactory.getLogger(BoardRegistry.class);
+
+	/**
+	 * Board ids, which name their snapshot files.
+	 */
+	public static final String BOARD_ID = "[A-Za-z0-9_-]{1,64}";
+	private static final Pattern BOARD_ID_PATTERN = Pattern.compile(BOARD_ID);
+
+	private final BoardProperties props;
+	private final WidgetRepoProperties repoProps;
+	private final WidgetServiceProperties serviceProps;
+	private final Path dir;
+	private final ConcurrentHashMap<String, Board> boards = new ConcurrentHashMap<>();
+	//orders the boards by their last use
+	private final AtomicLong clock = new AtomicLong();
+	private final LongAdder loads = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private ScheduledExecutorService evictor;
+
+	@Autowired
+	public BoardRegistry(BoardProperties props, WidgetRepoProperties repoProps, WidgetServiceProperties serviceProps) {
+		this.props = props;
+		this.repoProps = repoProps;
+		this.serviceProps = serviceProps;
+		this.dir = Paths.get(props.getDir());
+	}
+
+	@PostConstruct
+	public void start() {
+		evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "widget-board-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+		long interval = props.getEvictIntervalMs();
+		evictor.scheduleWithFixedDelay(this::evictOverBudget, interval, interval, TimeUnit.MILLISECONDS);
+		long snapshotInterval = repoProps.getSnapshot().getIntervalMs();
+		evictor.scheduleWithFixedDelay(this::checkpointChanged, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes all loaded boards to disk, once they are no longer in use.
+	 */
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		evictor.shutdown();
+		evictor.awaitTermination(1, TimeUnit.MINUTES);
+		for (Board b : boards.values()) {
+			try {
+				evict(b, true);
+			} catch (RuntimeException e) {
+				log.error("Cannot write board {}", b.id, e);
+			}
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("widget.boards.loaded", boards, ConcurrentHashMap::size)
+				.description("Boards loaded in memory").register(registry);
+		Gauge.builder("widget.boards.widgets", this, BoardRegistry::loadedWidgets)
+				.description("Widgets of the boards loaded in memory").register(registry);
+		FunctionCounter.builder("widget.boards.loads", loads, LongAdder::sum)
+				.description("Boards loaded, from disk or new").register(registry);
+		FunctionCounter.builder("widget.boards.evictions", evictions, LongAdder::sum)
+				.description("Boards written to disk and dropped from memory").register(registry);
+	}
+
+	/**
+	 * Runs an action on the service of a board, loading the board first if needed. The board is not evicted while
+	 * the action runs, but widgets iterated lazily after it returned may come from an evicted copy.
+	 * @throws IllegalArgumentException if the board id does not match {@link #BOARD_ID}
+	 */
+	public <T> T withBoard(String boardId, Function<WidgetService, T> action) {
+		if (!BOARD_ID_PATTERN.matcher(boardId).matches())
+			throw new IllegalArgumentException("Invalid board id " + boardId);
+		while (true) {
+			Board b = boards.computeIfAbsent(boardId, Board::new);
+			b.residency.readLock().lock();
+			try {
+				if (b.evicted)		//removed from the map meanwhile, the next lookup loads it again
+					continue;
+				if (b.load() && !evictor.isShutdown())
+					evictor.execute(this::evictOverBudget);
+				b.lastUsed = clock.incrementAndGet();
+				return action.apply(b.service);
+			} finally {
+				b.residency.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of widgets of the boards loaded in memory
+	 */
+	long loadedWidgets() {
+		long widgets = 0;
+		for (Board b : boards.values())
+			widgets += b.widgets();
+		return widgets;
+	}
+
+	/**
+	 * @return true if the board is loaded in memory
+	 */
+	boolean isLoaded(String boardId) {
+		Board b = boards.get(boardId);
+		return (null != b) && (null != b.service);
+	}
+
+	/**
+	 * Writes the loaded boards changed since they were last written to their snapshot files, while they stay in use.
+	 * @return the number of boards written
+	 */
+	int checkpointChanged() {
+		int written = 0;
+		for (Board b : boards.values()) {
+			b.residency.readLock().lock();
+			try {
+				if (!b.evicted && b.checkpoint())
+					written++;
+			} catch (RuntimeException e) {		//written again next time, or on eviction
+				log.error("Cannot write board {}", b.id, e);
+			} finally {
+				b.residency.readLock().unlock();
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Evicts the least recently used boards not in use, except the most recently used one, until the loaded boards
+	 * hold no more than the budget.
+	 * @return the number of boards evicted
+	 */
+	synchronized int evictOverBudget() {
+		long widgets = loadedWidgets();
+		if (widgets <= props.getMaxWidgets())
+			return 0;
+		List<Board> lru = new ArrayList<>(boards.values());
+		lru.sort(Comparator.comparingLong(b -> b.lastUsed));
+		lru.remove(lru.size() - 1);
+		int evicted = 0;
+		for (Board b : lru) {
+			if (widgets <= props.getMaxWidgets())
+				break;
+			long n = b.widgets();
+			try {
+				if (evict(b, false)) {
+					widgets -= n;
+					evicted++;
+				}
+			} catch (RuntimeException e) {		//stays loaded
+				log.error("Cannot evict board {}", b.id, e);
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Writes a board to its snapshot file if changed and drops it. A board in use is skipped, or waited for.
+	 * @return true if evicted
+	 */
+	private boolean evict(Board b, boolean wait) {
+		if (wait)
+			b.residency.writeLock().lock();
+		else if (!b.residency.writeLock().tryLock())
+			return false;
+		try {
+			if (b.evicted)
+				return false;
+			b.checkpoint();
+			b.evicted = true;
+			boards.remove(b.id, b);
+			evictions.increment();
+			return true;
+		} finally {
+			b.residency.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * A board and whether it is in memory. Its read lock is held while the board is used, its write lock while it
+	 * is evicted.
+	 */
+	private final class Board {
+		private final String id;
+		private final Path file;
+		private final ReentrantReadWriteLock residency = new ReentrantReadWriteLock();
+		//set by the first user, under the read lock
+		private volatile WidgetInMemRepo repo;
+		private volatile WidgetService service;
+		private volatile long lastUsed;
+		//repository version last written to the snapshot file, or loaded from it
+		private volatile long savedVersion;
+		//set under the write lock, once removed from the map
+		private volatile boolean evicted;
+
+		Board(String id) {
+			this.id = id;
+			this.file = dir.resolve(id + ".snapshot");
+		}
+
+		/**
+		 * Loads the board from its snapshot file, or as a new empty board, unless loaded already.
+		 * Search results are not cached, as the cache is bounded per repository, not over all boards.
+		 * @return true if loaded now
+		 */
+		synchronized boolean load() {
+			if (null != service)
+				return false;
+			try {
+				Files.createDirectories(dir);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot create board directory " + dir, e);
+			}
+			WidgetInMemRepo r = new WidgetInMemRepo(repoProps.createIndex(), null, repoProps.createColumns());
+			r.useSnapshots(file);
+			WidgetServiceProperties boardProps = new WidgetServiceProperties();
+			boardProps.setLocking(serviceProps.getLocking());
+			boardProps.setStreamPageSize(serviceProps.getStreamPageSize());
+			WidgetService s = new WidgetService(boardProps);
+			s.widgetRepo = r;
+			savedVersion = r.version();
+			repo = r;
+			service = s;
+			loads.increment();
+			return true;
+		}
+
+		/**
+		 * Writes the board to its snapshot file if changed since last written, and if it has widgets or a file.
+		 * Called under the read or write lock, from one thread at a time.
+		 * @return true if written
+		 */
+		boolean checkpoint() {
+			WidgetInMemRepo r = repo;
+			if (null == r)
+				return false;
+			long version = r.version();		//read first, writes meanwhile leave the board changed
+			if ((version == savedVersion) || ((r.count() == 0) && !Files.exists(file)))
+				return false;
+			service.checkpoint();
+			savedVersion = version;
+			return true;
+		}
+
+		long widgets() {
+			WidgetInMemRepo r = repo;
+			return (null == r) ? 0 : r.count();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.miro.widget.service;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration of the widget change feed, bound from the "widget.feed" properties.
+ */
+@Component
+@ConfigurationProperties(prefix = "widget.feed")
+public class ChangeFeedProperties {
+
+	//changes of one widget within this window are sent as one
+	private long coalesceMs = 100;
+	//changes held for a subscriber that is not keeping up, beyond which it gets a reset instead
+	private int maxPending = 10_000;
+	//interval of keep-alive comments on idle feeds, which also detect closed connections
+	private long heartbeatMs = 15_000;
+	//threads sending to subscribers, each to one subscriber at a time
+	private int senderThreads = 8;
+	//time a send may take before its subscriber is dropped, so that it gives back its sender thread
+	private long sendTimeoutMs = 10_000;
+
+	public long getCoalesceMs() {
+		return coalesceMs;
+	}
+
+	public void setCoalesceMs(long coalesceMs) {
+		if (coalesceMs < 1)
+			throw new IllegalArgumentException("widget.feed.coalesce-ms should not be smaller than 1");
+		this.coalesceMs = coalesceMs;
+	}
+
+	public int getMaxPending() {
+		return maxPending;
+	}
+
+	public void setMaxPending(int maxPending) {
+		if (maxPending < 1)
+			throw new IllegalArgumentException("widget.feed.max-pending should not be smaller than 1");
+		this.maxPending = maxPending;
+	}
+
+	public long getHeartbeatMs() {
+		return heartbeatMs;
+	}
+
+	public void setHeartbeatMs(long heartbeatMs) {
+		this.heartbeatMs = heartbeatMs;
+	}
+
+	public int getSenderThreads() {
+		return senderThreads;
+	}
+
+	public void setSenderThreads(int senderThreads) {
+		if (senderThreads < 1)
+			throw new IllegalArgumentException("widget.feed.sender-threads should not be smaller than 1");
+		this.senderThreads = senderThreads;
+	}
+
+	public long getSendTimeoutMs() {
+		return sendTimeoutMs;
+	}
+
+	public void setSendTimeoutMs(long sendTimeoutMs) {
+		if (sendTimeoutMs < 1)
+			throw new IllegalArgumentException("widget.feed.send-timeout-ms should not be smaller than 1");
+		this.sendTimeoutMs = sendTimeoutMs;
+	}
+}
@@ -0,0 +1,13 @@
+package com.miro.widget.service;
+
+/**
+ * Thrown on writes to a replication follower, which only serves reads: writes go to the leader.
+ */
+public class ReadOnlyReplicaException extends IllegalStateException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ReadOnlyReplicaException() {
+		super("This node is a read-only replication follower, write to the leader");
+	}
+}
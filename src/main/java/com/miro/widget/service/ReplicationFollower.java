@@ -0,0 +1,241 @@
+package com.miro.widget.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import com.miro.widget.repo.Mutation;
+import com.miro.widget.repo.WidgetInMemRepo;
+import com.miro.widget.repo.WidgetRepository;
+import com.miro.widget.repo.WidgetSnapshot;
+
+/**
+ * Keeps the repository a read-only copy of the leader's at widget.replication.leader, by applying the mutations
+ * the leader ships, see {@link ReplicationLeader} for the wire format.
+ * <p>
+ * Each batch of mutations is applied under a single write lock acquisition, so readers never see part of a batch.
+ * On disconnects the follower reconnects every widget.replication.reconnect-ms and continues from the position it
+ * has applied, or restores a snapshot sent by the leader. Meanwhile it keeps serving its last state.
+ */
+@Component
+@ConditionalOnProperty(prefix = "widget.replication", name = "role", havingValue = "follower")
+public class ReplicationFollower implements ReplicationNode, MeterBinder {
+
+	Logger log = LoggerFactory.getLogger(ReplicationFollower.class);
+
+	@Autowired
+	WidgetService widgetService;
+
+	@Autowired
+	WidgetRepository widgetRepo;
+
+	private final ReplicationProperties props;
+
+	//guarded by this: the applied position, the latest known leader position and since when this is behind it
+	private long epoch;
+	private long position;
+	private long leaderPosition;
+	private long behindSince;
+
+	private volatile Socket socket;
+	private volatile boolean running;
+	private Thread receiver;
+
+	@Autowired
+	public ReplicationFollower(ReplicationProperties props) {
+		this.props = props;
+	}
+
+	/**
+	 * Makes the service read-only and starts following the leader.
+	 * @throws IllegalStateException if the repository cannot be replicated
+	 */
+	@PostConstruct
+	public void start() {
+		if (!(widgetRepo instanceof WidgetInMemRepo))
+			throw new IllegalStateException("Replication needs the inmem repository, not " + widgetRepo.getClass().getSimpleName());
+		widgetService.setReadOnly(true);
+		running = true;
+		receiver = ReplicationLeader.daemon(this::follow, "widget-replication-follower");
+		receiver.start();
+	}
+
+	@PreDestroy
+	public void stop() throws IOException, InterruptedException {
+		running = false;
+		Socket s = socket;
+		if (null != s)
+			s.close();
+		receiver.interrupt();
+		receiver.join(TimeUnit.SECONDS.toMillis(5));
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("widget.replication.position", this, ReplicationNode::getPosition)
+				.description("Mutations applied since the leader started").tag("role", "follower").register(registry);
+		Gauge.builder("widget.replication.lag", this, ReplicationFollower::getLag)
+				.description("Mutations applied by the leader but not yet by this follower").baseUnit("mutations")
+				.register(registry);
+		TimeGauge.builder("widget.replication.lag.time", this, TimeUnit.NANOSECONDS, ReplicationFollower::getLagNanos)
+				.description("Time this follower has been behind the leader").register(registry);
+	}
+
+	@Override
+	public synchronized long getEpoch() {
+		return epoch;
+	}
+
+	@Override
+	public synchronized long getPosition() {
+		return position;
+	}
+
+	/**
+	 * @return the number of mutations the leader is known to have applied, but this follower not yet
+	 */
+	public synchronized long getLag() {
+		return leaderPosition - position;
+	}
+
+	/**
+	 * @return the time since this follower was last caught up with the leader, 0 if it is now
+	 */
+	public synchronized long getLagNanos() {
+		return (0 == behindSince) ? 0 : System.nanoTime() - behindSince;
+	}
+
+	@Override
+	public synchronized boolean awaitPosition(long epoch, long position, long timeoutMs) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		while ((this.epoch < epoch) || ((this.epoch == epoch) && (this.position < position))) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0)
+				return false;
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return true;
+	}
+
+	private synchronized void advance(long epoch, long position, long leaderPosition) {
+		this.epoch = epoch;
+		this.position = position;
+		this.leaderPosition = Math.max(position, leaderPosition);
+		if (this.position == this.leaderPosition)
+			behindSince = 0;
+		else if (0 == behindSince)
+			behindSince = System.nanoTime();
+		notifyAll();
+	}
+
+	/**
+	 * Connects to the leader and applies what it ships, reconnecting until stopped.
+	 */
+	private void follow() {
+		while (running) {
+			try (Socket s = new Socket()) {
+				socket = s;
+				s.connect(new InetSocketAddress(props.getLeaderHost(), props.getLeaderPort()), (int) props.getReconnectMs());
+				//the leader sends at least a heartbeat per interval
+				s.setSoTimeout((int) (3 * props.getHeartbeatMs()));
+				DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+				out.writeLong(getEpoch());
+				out.writeLong(getPosition());
+				out.flush();
+				log.info("Following leader {} from {}", props.getLeader(), formatPosition());
+				while (running)
+					receive(in);
+			} catch (IOException e) {
+				if (running)
+					log.warn("Lost leader {}: {}", props.getLeader(), e.toString());
+			} finally {
+				socket = null;
+			}
+			try {
+				Thread.sleep(props.getReconnectMs());
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reads and applies one message from the leader.
+	 */
+	private void receive(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case ReplicationLeader.HEARTBEAT:
+			long leader = in.readLong();
+			synchronized (this) {
+				advance(epoch, position, leader);
+			}
+			break;
+		case ReplicationLeader.BATCH:
+			applyBatch(in);
+			break;
+		case ReplicationLeader.SNAPSHOT:
+			restore(in);
+			break;
+		default:
+			throw new IOException("Unknown replication message " + type);
+		}
+	}
+
+	private void applyBatch(DataInputStream in) throws IOException {
+		long first = in.readLong();
+		long leader = in.readLong();
+		int count = in.readInt();
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		if (first != getPosition() + 1)
+			throw new IOException("Replication gap: expected position " + (getPosition() + 1) + ", got " + first);
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		List<Mutation> batch = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			batch.add(Mutation.readFrom(buf));
+		WidgetInMemRepo repo = (WidgetInMemRepo) widgetRepo;
+		widgetService.applyReplicated(() -> batch.forEach(repo::apply));
+		advance(getEpoch(), first + count - 1, leader);
+	}
+
+	/**
+	 * Replaces the contents of the repository by a snapshot.
+	 */
+	private void restore(DataInputStream in) throws IOException {
+		long leaderEpoch = in.readLong();
+		long at = in.readLong();
+		WidgetSnapshot snapshot = WidgetSnapshot.readFrom(in, in.readInt());
+		WidgetInMemRepo repo = (WidgetInMemRepo) widgetRepo;
+		widgetService.applyReplicated(() -> {
+			repo.apply(Mutation.deleteAll(Instant.now()));
+			repo.restore(snapshot);
+		});
+		advance(leaderEpoch, at, at);
+		log.info("Restored snapshot of {} widgets at {}", snapshot.size(), formatPosition());
+	}
+}
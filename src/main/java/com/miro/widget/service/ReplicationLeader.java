@@ -0,0 +1,261 @@
+package com.miro.widget.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import com.miro.widget.repo.Mutation;
+import com.miro.widget.repo.MutationListener;
+import com.miro.widget.repo.WidgetInMemRepo;
+import com.miro.widget.repo.WidgetRepository;
+import com.miro.widget.repo.WidgetSnapshot;
+
+/**
+ * Ships every mutation of the repository, in order, to the followers connected to widget.replication.port.
+ * <p>
+ * The latest widget.replication.backlog mutations are kept in memory. A connecting follower tells the epoch and
+ * position it has applied up to; if the backlog still holds everything after that, it gets the missing mutations,
+ * otherwise a snapshot of the repository first. Then each follower gets the mutations in batches, as fast as it
+ * reads them, from its own sender thread; a follower falling behind the backlog gets a new snapshot.
+ * <p>
+ * The wire format, all big endian:
+ * <ul>
+ * <li>follower hello: epoch and position as longs</li>
+ * <li>snapshot: 'S', epoch and position as longs, snapshot size as int, snapshot</li>
+ * <li>batch: 'B', position of the first mutation and of the leader as longs, mutation count and byte size as
+ * ints, mutations as written by {@link Mutation#writeTo(ByteBuffer)}</li>
+ * <li>heartbeat: 'H', position of the leader as long, sent when there is nothing to ship</li>
+ * </ul>
+ */
+@Component
+@ConditionalOnProperty(prefix = "widget.replication", name = "role", havingValue = "leader")
+public class ReplicationLeader implements ReplicationNode, MutationListener, MeterBinder {
+
+	static final byte SNAPSHOT = 'S';
+	static final byte BATCH = 'B';
+	static final byte HEARTBEAT = 'H';
+	static final int MAX_BATCH = 1024;
+
+	Logger log = LoggerFactory.getLogger(ReplicationLeader.class);
+
+	@Autowired
+	WidgetService widgetService;
+
+	@Autowired
+	WidgetRepository widgetRepo;
+
+	private final ReplicationProperties props;
+	private final long epoch = System.currentTimeMillis();
+
+	//guarded by this: the latest mutations, the one at each position in slot position % length
+	private final Mutation[] backlog;
+	private long position;
+
+	private ServerSocket server;
+	private final Set<Socket> followers = ConcurrentHashMap.newKeySet();
+	private volatile boolean running;
+
+	@Autowired
+	public ReplicationLeader(ReplicationProperties props) {
+		this.props = props;
+		this.backlog = new Mutation[props.getBacklog()];
+	}
+
+	/**
+	 * Starts logging mutations and accepting followers.
+	 * @throws IllegalStateException if the repository cannot be replicated, or the port cannot be bound
+	 */
+	@PostConstruct
+	public void start() {
+		if (!(widgetRepo instanceof WidgetInMemRepo))
+			throw new IllegalStateException("Replication needs the inmem repository, not " + widgetRepo.getClass().getSimpleName());
+		((WidgetInMemRepo) widgetRepo).addListener(this);
+		try {
+			server = new ServerSocket(props.getPort());
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot listen for followers on port " + props.getPort(), e);
+		}
+		running = true;
+		daemon(this::accept, "widget-replication-accept").start();
+		log.info("Replication leader with epoch {} listening on port {}", epoch, getPort());
+	}
+
+	@PreDestroy
+	public void stop() throws IOException {
+		running = false;
+		server.close();
+		for (Socket s : followers)
+			s.close();
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return the port followers connect to
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("widget.replication.position", this, ReplicationNode::getPosition)
+				.description("Mutations applied since the leader started").tag("role", "leader").register(registry);
+		Gauge.builder("widget.replication.followers", followers, Set::size)
+				.description("Connected followers").register(registry);
+	}
+
+	/**
+	 * Called while writes are excluded, so the order of positions is the order the mutations were applied in.
+	 */
+	@Override
+	public synchronized void onMutation(Mutation mutation) {
+		position++;
+		backlog[(int) (position % backlog.length)] = mutation;
+		notifyAll();
+	}
+
+	@Override
+	public long getEpoch() {
+		return epoch;
+	}
+
+	@Override
+	public synchronized long getPosition() {
+		return position;
+	}
+
+	/**
+	 * The leader has applied every position it handed out.
+	 */
+	@Override
+	public synchronized boolean awaitPosition(long epoch, long position, long timeoutMs) {
+		return (epoch < this.epoch) || ((epoch == this.epoch) && (position <= this.position));
+	}
+
+	private void accept() {
+		while (running) {
+			try {
+				Socket follower = server.accept();
+				followers.add(follower);
+				daemon(() -> serve(follower), "widget-replication-" + follower.getRemoteSocketAddress()).start();
+			} catch (IOException e) {
+				if (running)
+					log.warn("Cannot accept follower", e);
+			}
+		}
+	}
+
+	/**
+	 * Ships mutations to one follower until it disconnects.
+	 */
+	private void serve(Socket follower) {
+		try (Socket s = follower) {
+			s.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+			long followerEpoch = in.readLong();
+			long sent = in.readLong();
+			log.info("Follower {} connected at {}:{}", s.getRemoteSocketAddress(), followerEpoch, sent);
+			boolean needsSnapshot = (followerEpoch != epoch);
+			List<Mutation> batch = new ArrayList<>(MAX_BATCH);
+			while (running) {
+				long leaderPosition;
+				synchronized (this) {
+					if (!needsSnapshot && (sent == position))
+						wait(props.getHeartbeatMs());
+					leaderPosition = position;
+					if ((sent > position) || (sent < position - backlog.length))
+						needsSnapshot = true;
+					for (long p = sent + 1; !needsSnapshot && (p <= position) && (batch.size() < MAX_BATCH); p++)
+						batch.add(backlog[(int) (p % backlog.length)]);
+				}
+				if (needsSnapshot) {
+					sent = sendSnapshot(out);
+					needsSnapshot = false;
+				} else if (batch.isEmpty()) {
+					out.writeByte(HEARTBEAT);
+					out.writeLong(leaderPosition);
+				} else {
+					sendBatch(out, sent + 1, leaderPosition, batch);
+					sent += batch.size();
+					batch.clear();
+				}
+				out.flush();
+			}
+		} catch (SocketException e) {
+			log.info("Follower {} disconnected", follower.getRemoteSocketAddress());
+		} catch (IOException e) {
+			log.warn("Replication to follower {} failed", follower.getRemoteSocketAddress(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			followers.remove(follower);
+		}
+	}
+
+	/**
+	 * Sends a snapshot of the repository together with the position it was captured at.
+	 * @return that position
+	 */
+	private long sendSnapshot(DataOutputStream out) throws IOException {
+		long[] at = new long[1];
+		WidgetSnapshot snapshot = widgetService.capture(() -> {
+			at[0] = getPosition();
+			return ((WidgetInMemRepo) widgetRepo).copy();
+		});
+		out.writeByte(SNAPSHOT);
+		out.writeLong(epoch);
+		out.writeLong(at[0]);
+		out.writeInt(snapshot.byteSize());
+		snapshot.writeTo(out);
+		log.info("Sent snapshot of {} widgets at position {}", snapshot.size(), at[0]);
+		return at[0];
+	}
+
+	private static void sendBatch(DataOutputStream out, long first, long leaderPosition, List<Mutation> batch)
+			throws IOException {
+		int bytes = 0;
+		for (Mutation m : batch)
+			bytes += m.encodedSize();
+		ByteBuffer buf = ByteBuffer.allocate(bytes);
+		for (Mutation m : batch)
+			m.writeTo(buf);
+		out.writeByte(BATCH);
+		out.writeLong(first);
+		out.writeLong(leaderPosition);
+		out.writeInt(batch.size());
+		out.writeInt(bytes);
+		out.write(buf.array());
+	}
+
+	static Thread daemon(Runnable task, String name) {
+		Thread t = new Thread(task, name);
+		t.setDaemon(true);
+		return t;
+	}
+}
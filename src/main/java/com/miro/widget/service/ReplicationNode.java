@@ -0,0 +1,47 @@
+package com.miro.widget.service;
+
+/**
+ * A node taking part in replication, and how far its repository is in the mutation log of the leader.
+ * <p>
+ * A position is an epoch, the start time of the leader in milliseconds, and the number of mutations the leader
+ * applied since then. Positions compare by epoch first, so a follower of a restarted leader is ahead of any
+ * position of the previous leader once it has its first snapshot.
+ */
+public interface ReplicationNode {
+
+	long getEpoch();
+
+	long getPosition();
+
+	/**
+	 * Waits until the repository of this node includes all mutations up to the given position.
+	 * @return false if it did not within the given time
+	 */
+	boolean awaitPosition(long epoch, long position, long timeoutMs) throws InterruptedException;
+
+	/**
+	 * @return the position formatted as "epoch:position"
+	 */
+	default String formatPosition() {
+		long epoch, position;
+		synchronized (this) {
+			epoch = getEpoch();
+			position = getPosition();
+		}
+		return epoch + ":" + position;
+	}
+
+	/**
+	 * Waits for a position formatted by {@link #formatPosition()}.
+	 * @throws IllegalArgumentException if it is not a formatted position
+	 */
+	default boolean awaitPosition(String formatted, long timeoutMs) throws InterruptedException {
+		int colon = formatted.indexOf(':');
+		try {
+			return awaitPosition(Long.parseLong(formatted.substring(0, colon)),
+					Long.parseLong(formatted.substring(colon + 1)), timeoutMs);
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Replication position should be given as epoch:position, not " + formatted);
+		}
+	}
+}
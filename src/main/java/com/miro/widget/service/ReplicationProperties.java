@@ -0,0 +1,99 @@
+package com.miro.widget.service;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration of leader/follower replication, bound from the "widget.replication" properties.
+ */
+@Component
+@ConfigurationProperties(prefix = "widget.replication")
+public class ReplicationProperties {
+
+	/**
+	 * NONE runs a single node, the LEADER takes all writes and ships them to FOLLOWERs, which serve reads.
+	 */
+	public enum Role { NONE, LEADER, FOLLOWER }
+
+	private Role role = Role.NONE;
+	//port the leader listens on for followers, 0 for any free port
+	private int port = 7070;
+	//host:port of the leader, for followers
+	private String leader = "localhost:7070";
+	//mutations kept by the leader for followers to catch up from, a follower further behind gets a snapshot
+	private int backlog = 100_000;
+	private long heartbeatMs = 1000;
+	private long reconnectMs = 1000;
+	//how long a follower read waits to reach a requested position, before failing
+	private long readWaitMs = 1000;
+
+	public Role getRole() {
+		return role;
+	}
+
+	public void setRole(Role role) {
+		this.role = role;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public String getLeader() {
+		return leader;
+	}
+
+	public void setLeader(String leader) {
+		if (leader.lastIndexOf(':') < 1)
+			throw new IllegalArgumentException("widget.replication.leader should be given as host:port");
+		this.leader = leader;
+	}
+
+	public String getLeaderHost() {
+		return leader.substring(0, leader.lastIndexOf(':'));
+	}
+
+	public int getLeaderPort() {
+		return Integer.parseInt(leader.substring(leader.lastIndexOf(':') + 1));
+	}
+
+	public int getBacklog() {
+		return backlog;
+	}
+
+	public void setBacklog(int backlog) {
+		if (backlog < 1)
+			throw new IllegalArgumentException("widget.replication.backlog should not be smaller than 1");
+		this.backlog = backlog;
+	}
+
+	public long getHeartbeatMs() {
+		return heartbeatMs;
+	}
+
+	public void setHeartbeatMs(long heartbeatMs) {
+		if (heartbeatMs < 1)
+			throw new IllegalArgumentException("widget.replication.heartbeat-ms should not be smaller than 1");
+		this.heartbeatMs = heartbeatMs;
+	}
+
+	public long getReconnectMs() {
+		return reconnectMs;
+	}
+
+	public void setReconnectMs(long reconnectMs) {
+		this.reconnectMs = reconnectMs;
+	}
+
+	public long getReadWaitMs() {
+		return readWaitMs;
+	}
+
+	public void setReadWaitMs(long readWaitMs) {
+		this.readWaitMs = readWaitMs;
+	}
+}
@@ -0,0 +1,173 @@
+package com.miro.widget.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Applies write commands on a single writer thread. Callers put commands onto a {@link WriteRing}, the writer
+ * drains them in groups of up to maxGroup, applies each group at once by the given {@link Group}, and only then
+ * completes the callers' futures, so that a group shares one lock acquisition and one sync. Commands queue up
+ * while a group is applied, so groups grow with the load.
+ */
+final class SingleWriter {
+
+	/**
+	 * Commits a group of commands.
+	 */
+	interface Group {
+		/**
+		 * Runs apply, which applies size commands in order, and returns once they are visible and durable.
+		 */
+		void commit(int size, Runnable apply);
+	}
+
+	private final WriteRing<Command<?>> ring;
+	private final int maxGroup;
+	private final Group group;
+	private final Thread thread;
+	private volatile boolean running = true;
+	private volatile boolean sleeping;
+
+	SingleWriter(String name, int capacity, int maxGroup, Group group) {
+		if (maxGroup < 1)
+			throw new IllegalArgumentException("Groups should hold at least one command, not " + maxGroup);
+		this.ring = new WriteRing<>(capacity);
+		this.maxGroup = maxGroup;
+		this.group = group;
+		this.thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues a command for the writer thread, waiting while the ring is full.
+	 * @return the future result of the command, completed once its group is committed, or failed if the writer
+	 * stopped before taking it
+	 * @throws IllegalStateException if the writer is stopped
+	 */
+	<T> CompletableFuture<T> submit(Supplier<T> command) {
+		Command<T> c = new Command<>(command);
+		while (true) {
+			if (!running)
+				throw stopped();
+			if (ring.offer(c))
+				break;
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+		}
+		if (sleeping)
+			LockSupport.unpark(thread);
+		if (!running)
+			abandonAfterStop(c);
+		return c.future;
+	}
+
+	/**
+	 * Fails a command queued while the writer was stopping, unless the writer took it before it exited. Waits for
+	 * the writer to exit first, so that a command it takes is never failed here.
+	 */
+	private void abandonAfterStop(Command<?> c) {
+		try {
+			thread.join();
+		} catch (InterruptedException e) {		//left to the writer, or to the caller's timeout
+			Thread.currentThread().interrupt();
+			return;
+		}
+		c.future.completeExceptionally(stopped());
+	}
+
+	private IllegalStateException stopped() {
+		return new IllegalStateException("Writer " + thread.getName() + " is stopped");
+	}
+
+	/**
+	 * @return the number of commands waiting for the writer
+	 */
+	int queued() {
+		return ring.size();
+	}
+
+	/**
+	 * Stops the writer once it has applied the commands already queued. Commands queued after that are failed.
+	 */
+	void stop() throws InterruptedException {
+		running = false;
+		LockSupport.unpark(thread);
+		thread.join();
+	}
+
+	private void run() {
+		List<Command<?>> commands = new ArrayList<>(maxGroup);
+		while (true) {
+			commands.clear();
+			if (0 == ring.drainTo(commands, maxGroup)) {
+				if (!running)
+					break;
+				sleeping = true;
+				if (ring.isEmpty() && running)	//a producer queuing after this sees the writer sleeping
+					LockSupport.park(this);
+				sleeping = false;
+				continue;
+			}
+			try {
+				group.commit(commands.size(), () -> {
+					for (Command<?> c : commands)
+						c.apply();
+				});
+			} catch (Throwable e) {		//the group did not commit, not even the commands that succeeded
+				for (Command<?> c : commands)
+					c.fail(e);
+			}
+			for (Command<?> c : commands)
+				c.complete();
+		}
+		commands.clear();
+		while (0 != ring.drainTo(commands, maxGroup)) {		//queued since the last drain, by producers about to see the stop
+			for (Command<?> c : commands) {
+				c.fail(stopped());
+				c.complete();
+			}
+			commands.clear();
+		}
+	}
+
+	/**
+	 * A queued command and its outcome.
+	 */
+	private static final class Command<T> {
+		private final Supplier<T> command;
+		private final CompletableFuture<T> future = new CompletableFuture<>();
+		private T result;
+		private Throwable failure;
+
+		Command(Supplier<T> command) {
+			this.command = command;
+		}
+
+		/**
+		 * Applies the command, keeping its failure to itself.
+		 */
+		void apply() {
+			try {
+				result = command.get();
+			} catch (Throwable e) {
+				failure = e;
+			}
+		}
+
+		void fail(Throwable e) {
+			if (null == failure)
+				failure = e;
+		}
+
+		void complete() {
+			if (null == failure)
+				future.complete(result);
+			else
+				future.completeExceptionally(failure);
+		}
+	}
+}
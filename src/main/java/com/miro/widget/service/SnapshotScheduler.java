@@ -0,0 +1,64 @@
+package com.miro.widget.service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.miro.widget.repo.WidgetRepoProperties;
+
+/**
+ * Takes repository snapshots in the background every widget.repo.snapshot.interval-ms, and a last one on shutdown,
+ * so that the next start restores it instead of replaying the write-ahead log.
+ */
+@Component
+@ConditionalOnProperty(prefix = "widget.repo.snapshot", name = "enabled", havingValue = "true")
+public class SnapshotScheduler {
+
+	Logger log = LoggerFactory.getLogger(SnapshotScheduler.class);
+
+	@Autowired
+	WidgetService widgetService;
+
+	@Autowired
+	WidgetRepoProperties props;
+
+	private ScheduledExecutorService executor;
+
+	@PostConstruct
+	public void start() {
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "widget-snapshots");
+			t.setDaemon(true);
+			return t;
+		});
+		long interval = props.getSnapshot().getIntervalMs();
+		executor.scheduleWithFixedDelay(this::checkpoint, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		checkpoint();
+	}
+
+	private void checkpoint() {
+		long start = System.nanoTime();
+		try {
+			if (widgetService.checkpoint())
+				log.info("Snapshot taken in {} ms", (System.nanoTime() - start) / 1_000_000);
+		} catch (RuntimeException e) {
+			//keep the schedule, the write-ahead log still holds everything
+			log.error("Snapshot failed", e);
+		}
+	}
+}
@@ -0,0 +1,394 @@
+package com.miro.widget.service;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import com.miro.widget.model.IBoundingBox;
+import com.miro.widget.model.Widget;
+import com.miro.widget.repo.Mutation;
+import com.miro.widget.repo.MutationListener;
+import com.miro.widget.repo.WidgetInMemRepo;
+import com.miro.widget.repo.WidgetRepository;
+
+/**
+ * Pushes the changes of the repository to subscribers, each watching a viewport or the whole board.
+ * <p>
+ * A subscriber first gets a "reset" event holding the widgets in its viewport, then deltas: "created" and
+ * "updated" with the widget as saved, "deleted" with the id of a widget that was deleted or left the viewport, and
+ * "shifted" when saving moved a run of z index values, which applies to all widgets the subscriber holds in that
+ * range. Changes are held for widget.feed.coalesce-ms, so that several changes of one widget go out as its latest
+ * state, in the place of its latest change.
+ * <p>
+ * Each subscriber is sent to by at most one of widget.feed.sender-threads threads at a time, so a slow one only
+ * holds back itself, while its changes keep coalescing. When more than widget.feed.max-pending changes pile up, they
+ * are dropped for a new reset. A subscriber whose send takes longer than widget.feed.send-timeout-ms is dropped, so
+ * that stalled clients cannot take all sender threads.
+ */
+@Component
+public class WidgetChangeFeed implements MutationListener, MeterBinder {
+
+	/**
+	 * Where the events of one subscriber are sent to.
+	 */
+	public interface Sink {
+
+		void send(String event, Object data) throws IOException;
+
+		void keepAlive() throws IOException;
+
+		void close();
+	}
+
+	private static final Object DELETED = new Object();
+	//subscribers waiting for a sender thread, the others are handed over on a later tick
+	private static final int SEND_QUEUE = 1024;
+
+	Logger log = LoggerFactory.getLogger(WidgetChangeFeed.class);
+
+	@Autowired
+	WidgetService widgetService;
+
+	@Autowired
+	WidgetRepository widgetRepo;
+
+	private final ChangeFeedProperties props;
+	private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+	private final LongAdder resets = new LongAdder();
+	private final LongAdder deltas = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private boolean supported;
+	private ScheduledExecutorService ticker;
+	private ExecutorService senders;
+
+	@Autowired
+	public WidgetChangeFeed(ChangeFeedProperties props) {
+		this.props = props;
+	}
+
+	@PostConstruct
+	public void start() {
+		supported = widgetRepo instanceof WidgetInMemRepo;
+		if (!supported)
+			return;
+		((WidgetInMemRepo) widgetRepo).addListener(this);
+		ticker = Executors.newSingleThreadScheduledExecutor(r -> ReplicationLeader.daemon(r, "widget-feed"));
+		senders = new ThreadPoolExecutor(props.getSenderThreads(), props.getSenderThreads(), 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(SEND_QUEUE), r -> ReplicationLeader.daemon(r, "widget-feed-sender"));
+		ticker.scheduleWithFixedDelay(this::tick, props.getCoalesceMs(), props.getCoalesceMs(), TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (!supported)
+			return;
+		ticker.shutdownNow();
+		senders.shutdownNow();
+		for (Subscription s : subscriptions) {
+			try {
+				s.sink.close();
+			} catch (RuntimeException e) {	//the connection may already be gone with the server
+				log.debug("Change feed subscriber not closed: {}", e.toString());
+			}
+		}
+		subscriptions.clear();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("widget.feed.subscribers", subscriptions, Set::size)
+				.description("Change feed subscribers").register(registry);
+		FunctionCounter.builder("widget.feed.events", deltas, LongAdder::sum)
+				.description("Change feed deltas sent").register(registry);
+		FunctionCounter.builder("widget.feed.resets", resets, LongAdder::sum)
+				.description("Change feed resets sent").register(registry);
+		FunctionCounter.builder("widget.feed.dropped", dropped, LongAdder::sum)
+				.description("Change feed subscribers dropped for not taking a send in time").register(registry);
+	}
+
+	/**
+	 * Subscribes to the changes within a viewport, starting with a reset.
+	 * @param viewport the bounds of the widgets to watch, null for all widgets
+	 * @throws UnsupportedOperationException if the repository does not notify changes
+	 */
+	public Subscription subscribe(IBoundingBox viewport, Sink sink) {
+		if (!supported)
+			throw new UnsupportedOperationException("The change feed needs the inmem repository");
+		Subscription s = new Subscription(viewport, sink);
+		subscriptions.add(s);
+		return s;
+	}
+
+	public void unsubscribe(Subscription s) {
+		subscriptions.remove(s);
+	}
+
+	/**
+	 * Called while writes are excluded.
+	 */
+	@Override
+	public void onMutation(Mutation m) {
+		if (subscriptions.isEmpty())
+			return;
+		switch (m.getType()) {
+		case SAVE:
+			Widget saved = m.toWidget();
+			saved.setUpdateTime(widgetRepo.findById(m.getId()).get().getUpdateTime());
+			for (Subscription s : subscriptions)
+				s.change(m.getId(), saved);
+			break;
+		case DELETE:
+			for (Subscription s : subscriptions)
+				s.change(m.getId(), DELETED);
+			break;
+		case DELETE_ALL:
+			for (Subscription s : subscriptions)
+				s.reset();
+			break;
+		}
+	}
+
+	@Override
+	public void onShift(int lowestZ, int highestZ, int by, Instant time) {
+		if (subscriptions.isEmpty())
+			return;
+		Shift shift = new Shift(lowestZ, highestZ, by, time);
+		for (Subscription s : subscriptions)
+			s.shift(shift);
+	}
+
+	/**
+	 * Hands every subscriber with something to send to a sender thread, unless one is still busy with it, and drops
+	 * the subscribers whose send takes too long.
+	 */
+	void tick() {
+		long now = System.nanoTime();
+		for (Subscription s : subscriptions) {
+			if (s.sending) {
+				if (now - s.sendStart > TimeUnit.MILLISECONDS.toNanos(props.getSendTimeoutMs()))
+					drop(s);
+				continue;
+			}
+			boolean idle = !s.hasChanges();
+			if (idle && (now - s.lastSent < TimeUnit.MILLISECONDS.toNanos(props.getHeartbeatMs())))
+				continue;
+			s.sendStart = now;
+			s.sending = true;
+			try {
+				senders.execute(() -> send(s, idle));
+			} catch (RejectedExecutionException e) {		//all senders busy and the queue full, or stopped
+				s.sending = false;
+			}
+		}
+	}
+
+	/**
+	 * Closes a subscriber stuck in a send, which fails that send and frees its sender thread.
+	 */
+	private void drop(Subscription s) {
+		if (close(s)) {
+			log.debug("Change feed subscriber dropped, its send is taking over {} ms", props.getSendTimeoutMs());
+			dropped.increment();
+		}
+	}
+
+	/**
+	 * Unsubscribes and closes a subscriber, unless done already.
+	 * @return true if closed now
+	 */
+	private boolean close(Subscription s) {
+		if (!subscriptions.remove(s))
+			return false;
+		try {
+			s.sink.close();
+		} catch (RuntimeException e) {
+			log.debug("Change feed subscriber not closed: {}", e.toString());
+		}
+		return true;
+	}
+
+	private void send(Subscription s, boolean idle) {
+		try {
+			if (idle)
+				s.sink.keepAlive();
+			else if (s.isResetDue())
+				sendReset(s);
+			else
+				sendChanges(s);
+			s.lastSent = System.nanoTime();
+		} catch (IOException | IllegalStateException e) {
+			log.debug("Change feed subscriber gone: {}", e.toString());
+			close(s);
+		} finally {
+			s.sending = false;
+		}
+	}
+
+	/**
+	 * Sends the widgets in the viewport, captured while writes are excluded, so that no change is lost or repeated.
+	 */
+	private void sendReset(Subscription s) throws IOException {
+		List<Widget> view = widgetService.capture(() -> {
+			List<Widget> widgets = new ArrayList<>();
+			(null == s.viewport ? widgetRepo.findAll() : widgetRepo.search(s.viewport)).forEach(widgets::add);
+			s.restart(widgets);
+			return widgets;
+		});
+		s.sink.send("reset", view);
+		resets.increment();
+	}
+
+	private void sendChanges(Subscription s) throws IOException {
+		List<Object[]> events = s.takeEvents();
+		for (Object[] e : events)
+			s.sink.send((String) e[0], e[1]);
+		deltas.add(events.size());
+	}
+
+	/**
+	 * A z index shift of the widgets from lowestZ to highestZ by the given amount, as sent to subscribers.
+	 */
+	public static final class Shift {
+		private final int lowestZ, highestZ, by;
+		private final Instant time;
+
+		Shift(int lowestZ, int highestZ, int by, Instant time) {
+			this.lowestZ = lowestZ;
+			this.highestZ = highestZ;
+			this.by = by;
+			this.time = time;
+		}
+
+		public int getLowestZ() {
+			return lowestZ;
+		}
+
+		public int getHighestZ() {
+			return highestZ;
+		}
+
+		public int getBy() {
+			return by;
+		}
+
+		public Instant getUpdateTime() {
+			return time;
+		}
+	}
+
+	/**
+	 * The changes pending for one subscriber, and the ids of the widgets it was sent as in its viewport.
+	 */
+	public final class Subscription {
+		private final IBoundingBox viewport;
+		private final Sink sink;
+		//guarded by this: latest change per widget id (the widget or DELETED) and shifts, in the order of the latest
+		private final LinkedHashMap<Object, Object> pending = new LinkedHashMap<>();
+		private final Set<Long> visible = new HashSet<>();
+		private boolean resetDue = true;
+		private volatile boolean sending;
+		private volatile long sendStart;
+		private volatile long lastSent = System.nanoTime();
+
+		Subscription(IBoundingBox viewport, Sink sink) {
+			this.viewport = viewport;
+			this.sink = sink;
+		}
+
+		synchronized void change(Long id, Object change) {
+			if (resetDue)
+				return;
+			if ((DELETED != change) && !inView((Widget) change) && !visible.contains(id) && !pending.containsKey(id))
+				return;
+			pending.remove(id);		//so the latest change takes the place of the earlier ones
+			pending.put(id, change);
+			checkOverflow();
+		}
+
+		synchronized void shift(Shift shift) {
+			if (resetDue || (visible.isEmpty() && pending.isEmpty()))	//nothing the subscriber holds is moved
+				return;
+			pending.put(shift, shift);
+			checkOverflow();
+		}
+
+		synchronized void reset() {
+			pending.clear();
+			resetDue = true;
+		}
+
+		private void checkOverflow() {
+			if (pending.size() > props.getMaxPending())
+				reset();
+		}
+
+		synchronized boolean hasChanges() {
+			return resetDue || !pending.isEmpty();
+		}
+
+		synchronized boolean isResetDue() {
+			return resetDue;
+		}
+
+		synchronized void restart(List<Widget> view) {
+			pending.clear();
+			visible.clear();
+			for (Widget w : view)
+				visible.add(w.getId());
+			resetDue = false;
+		}
+
+		/**
+		 * @return the pending changes as events, which are no longer pending
+		 */
+		synchronized List<Object[]> takeEvents() {
+			List<Object[]> events = new ArrayList<>(pending.size());
+			for (Map.Entry<Object, Object> e : pending.entrySet()) {
+				if (e.getValue() instanceof Shift) {
+					events.add(new Object[] { "shifted", e.getValue() });
+					continue;
+				}
+				Long id = (Long) e.getKey();
+				if ((DELETED != e.getValue()) && inView((Widget) e.getValue()))
+					events.add(new Object[] { visible.add(id) ? "created" : "updated", e.getValue() });
+				else if (visible.remove(id))
+					events.add(new Object[] { "deleted", Collections.singletonMap("id", id) });
+			}
+			pending.clear();
+			return events;
+		}
+
+		private boolean inView(Widget w) {
+			return (null == viewport) || ((w.getLowerX() >= viewport.getLowerX()) && (w.getLowerY() >= viewport.getLowerY())
+					&& (w.getUpperX() <= viewport.getUpperX()) && (w.getUpperY() <= viewport.getUpperY()));
+		}
+	}
+}
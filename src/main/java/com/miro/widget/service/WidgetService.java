@@ -4,9 +4,22 @@
 package com.miro.widget.service;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import javax.annotation.PreDestroy;
 import javax.validation.Valid;
 
 import org.slf4j.Logger;
@@ -15,8 +28,20 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.validation.annotation.Validated;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+import com.miro.widget.model.BatchResult;
+import com.miro.widget.model.BatchResult.Status;
 import com.miro.widget.model.SearchBounds;
 import com.miro.widget.model.Widget;
+import com.miro.widget.model.WidgetBatch;
+import com.miro.widget.model.ZPage;
+import com.miro.widget.repo.LongList;
 import com.miro.widget.repo.WidgetRepository;
 
 /**
@@ -25,43 +50,540 @@ import com.miro.widget.repo.WidgetRepository;
  */
 @Service
 @Validated
-public class WidgetService {
+public class WidgetService implements MeterBinder {
 	
 	Logger log = LoggerFactory.getLogger(WidgetService.class);
 	
 	@Autowired
 	WidgetRepository widgetRepo;
+	
+	/**
+	 * The timed service operations.
+	 */
+	enum Op { GET_ALL, GET_PAGE, SEARCH, SEARCH_PAGE, GET, ADD, UPDATE, DELETE, BATCH, CHECKPOINT, REPLICATE, WRITE_GROUP }
+	
+	//per operation: total time, lock wait time and lock hold time, recording nothing until bound to a registry
+	private volatile EnumMap<Op, Timer[]> timers = timers(new CompositeMeterRegistry());
+	private volatile DistributionSummary groupSizes = groupSizes(new CompositeMeterRegistry());
+	
+	//guards widgetRepo, which is not thread safe itself
+	private final ReadWriteLock lock;
+	private final int streamPageSize;
+	//applies single widget writes in the SINGLE_WRITER write mode, null otherwise
+	private final SingleWriter writer;
+	private final long writerTimeoutMs;
+	//set on replication followers, whose repository only changes by replicated mutations
+	private volatile boolean readOnly;
+	
+	@Autowired
+	public WidgetService(WidgetServiceProperties props) {
+		this.lock = props.createLock();
+		this.streamPageSize = props.getStreamPageSize();
+		this.writer = (WidgetServiceProperties.WriteMode.SINGLE_WRITER == props.getWrites())
+				? new SingleWriter("widget-writer", props.getWriterQueueSize(), props.getWriterMaxGroup(), this::commitGroup)
+				: null;
+		this.writerTimeoutMs = props.getWriterTimeoutMs();
+	}
+	
+	/**
+	 * Stops the single writer, if any, once it has applied the writes already queued.
+	 */
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		if (null != writer)
+			writer.stop();
+	}
 			
-	public synchronized List<Widget> getAllWidgets() {
-		Iterable<Widget> widgets = widgetRepo.findAll();
-		ArrayList<Widget> result = new ArrayList<Widget>();
-		widgets.forEach(result::add);
-		return result;
+	/**
+	 * Makes all writes fail with ReadOnlyReplicaException, except for {@link #applyReplicated(Runnable)}.
+	 */
+	public void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+	
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+	
+	private void checkWritable() {
+		if (readOnly)
+			throw new ReadOnlyReplicaException();
+	}
+	
+	/**
+	 * Registers the operation and lock timers.
+	 */
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		timers = timers(registry);
+		groupSizes = groupSizes(registry);
+		if (null != writer)
+			Gauge.builder("widget.service.writer.queue", writer, SingleWriter::queued)
+				.description("Writes waiting for the single writer").register(registry);
+	}
+	
+	private static DistributionSummary groupSizes(MeterRegistry registry) {
+		return DistributionSummary.builder("widget.service.writer.group")
+				.description("Writes applied by the single writer per lock acquisition").register(registry);
+	}
+	
+	private static EnumMap<Op, Timer[]> timers(MeterRegistry registry) {
+		EnumMap<Op, Timer[]> timers = new EnumMap<>(Op.class);
+		for (Op op : Op.values()) {
+			String name = op.name().toLowerCase();
+			timers.put(op, new Timer[] {
+					Timer.builder("widget.service.op").description("WidgetService operations, including lock wait")
+						.tag("op", name).publishPercentiles(0.5, 0.95, 0.99).register(registry),
+					Timer.builder("widget.service.lock.wait").description("Time waiting for the repository lock")
+						.tag("op", name).register(registry),
+					Timer.builder("widget.service.lock.hold").description("Time holding the repository lock")
+						.tag("op", name).register(registry) });
+		}
+		return timers;
+	}
+	
+	/**
+	 * Locks a lock for an operation, timing the wait now and the hold and the whole operation on release.
+	 * A null lock is not taken, for reads that need none, which are then timed as holding it throughout.
+	 */
+	private LockHold acquire(Lock l, Op op) {
+		long start = System.nanoTime();
+		if (null != l)
+			l.lock();
+		return new LockHold(l, timers.get(op), start, System.nanoTime());
+	}
+	
+	/**
+	 * A lock held for a timed operation.
+	 */
+	private static final class LockHold {
+		//null if none was taken
+		private final Lock lock;
+		private final Timer[] timers;
+		private final long start;
+		private final long acquired;
+		
+		LockHold(Lock lock, Timer[] timers, long start, long acquired) {
+			this.lock = lock;
+			this.timers = timers;
+			this.start = start;
+			this.acquired = acquired;
+		}
+		
+		void release() {
+			if (null != lock)
+				lock.unlock();
+			long end = System.nanoTime();
+			timers[0].record(end - start, TimeUnit.NANOSECONDS);
+			timers[1].record(acquired - start, TimeUnit.NANOSECONDS);
+			timers[2].record(end - acquired, TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	/**
+	 * @return the lock for reading from the repository, or null if the repository supports lock free reads
+	 */
+	private Lock readLock() {
+		return widgetRepo.supportsLockFreeReads() ? null : lock.readLock();
+	}
+	
+	/**
+	 * @return the lock for single widget writes: shared if the repository accepts concurrent writes, so that
+	 * they are only excluded by batches
+	 */
+	private Lock writeLock() {
+		return widgetRepo.supportsConcurrentWrites() ? lock.readLock() : lock.writeLock();
+	}
+	
+	public List<Widget> getAllWidgets() {
+		return getAllWidgetsVersioned().getValue();
+	}
+	
+	/**
+	 * Lists all widgets along with the repository version they were read at.
+	 */
+	public Versioned<List<Widget>> getAllWidgetsVersioned() {
+		LockHold l = acquire(readLock(), Op.GET_ALL);
+		try {
+			long version = widgetRepo.version();
+			Iterable<Widget> widgets = widgetRepo.findAll();
+			ArrayList<Widget> result = new ArrayList<Widget>();
+			widgets.forEach(result::add);
+			return new Versioned<>(version, result);
+		} finally {
+			l.release();
+		}
+	}
+	
+	/**
+	 * @return the current version of the repository, advanced by every write, or -1 if it keeps none.
+	 * Takes no lock.
+	 */
+	public long getVersion() {
+		return widgetRepo.version();
+	}
+	
+	/**
+	 * Reads one page of widgets, so the lock is only held for as long as that page takes to read.
+	 */
+	public List<Widget> getWidgets(ZPage page) {
+		LockHold l = acquire(readLock(), Op.GET_PAGE);
+		try {
+			return widgetRepo.findPage(page);
+		} finally {
+			l.release();
+		}
+	}
+	
+	/**
+	 * Lazily iterates all widgets in ascending z order, without holding the lock while the caller consumes them.
+	 * A repository with lock free reads is iterated from a single snapshot. Otherwise widgets are read one page
+	 * at a time under a short read lock, each page continuing after the last z index read, so writes in between
+	 * pages may cause shifted widgets to be skipped or repeated.
+	 */
+	public Iterable<Widget> streamAllWidgets() {
+		if (widgetRepo.supportsLockFreeReads())
+			return widgetRepo.findAll();
+		return () -> new PagedIterator(this::getWidgets);
 	}
 	
-	public synchronized List<Widget> search(SearchBounds bounds) {
-		Iterable<Widget> widgets = widgetRepo.search(bounds);
-		ArrayList<Widget> result = new ArrayList<Widget>();
-		widgets.forEach(result::add);
-		return result;
+	/**
+	 * Lazily iterates the widgets within the given bounds in ascending z order, like {@link #streamAllWidgets()}:
+	 * from a single snapshot if the repository has lock free reads. Otherwise the ids of the matching widgets are
+	 * found once, under a short read lock, then resolved one page at a time under another, so writes in between
+	 * pages may cause widgets to be returned in their new version, or skipped if deleted or moved out of the bounds,
+	 * while widgets added since are not returned.
+	 */
+	public Iterable<Widget> streamSearch(SearchBounds bounds) {
+		if (widgetRepo.supportsLockFreeReads())
+			return widgetRepo.search(bounds);
+		return () -> new PagedIterator(new SearchPages(bounds, searchIds(bounds)));
 	}
 	
-	public synchronized Widget getWidgetById(long queryId) {
-		Optional<Widget> result = widgetRepo.findById(queryId);
-		if (result.isPresent())
-			return result.get();
-		return null;
+	private long[] searchIds(SearchBounds bounds) {
+		LockHold l = acquire(readLock(), Op.SEARCH);
+		try {
+			LongList ids = new LongList();
+			widgetRepo.search(bounds).forEach(w -> ids.add(w.getId()));
+			long[] result = new long[ids.size()];
+			for (int i = 0; i < result.length; i++)
+				result[i] = ids.get(i);
+			return result;
+		} finally {
+			l.release();
+		}
 	}
 	
-	public synchronized Widget addWidget(@Valid Widget widget) {
-		return widgetRepo.save(widget);
+	public List<Widget> search(SearchBounds bounds) {
+		LockHold l = acquire(readLock(), Op.SEARCH);
+		try {
+			Iterable<Widget> widgets = widgetRepo.search(bounds);
+			ArrayList<Widget> result = new ArrayList<Widget>();
+			widgets.forEach(result::add);
+			return result;
+		} finally {
+			l.release();
+		}
 	}
 	
-	public synchronized void deleteWidgetById(long queryId) {
-		widgetRepo.deleteById(queryId);
+	public List<Widget> search(SearchBounds bounds, ZPage page) {
+		LockHold l = acquire(readLock(), Op.SEARCH_PAGE);
+		try {
+			return widgetRepo.search(bounds, page);
+		} finally {
+			l.release();
+		}
 	}
+	
+	public Widget getWidgetById(long queryId) {
+		LockHold l = acquire(readLock(), Op.GET);
+		try {
+			Optional<Widget> result = widgetRepo.findById(queryId);
+			if (result.isPresent())
+				return result.get();
+			return null;
+		} finally {
+			l.release();
+		}
+	}
+	
+	/**
+	 * Returns once the new widget is durable, waiting for that after the write lock is released,
+	 * so that concurrent writers are flushed together.
+	 */
+	public Widget addWidget(@Valid Widget widget) {
+		checkWritable();
+		if (null != writer)
+			return write(Op.ADD, () -> widgetRepo.save(widget));
+		LockHold l = acquire(writeLock(), Op.ADD);
+		Widget saved;
+		try {
+			saved = widgetRepo.save(widget);
+		} finally {
+			l.release();
+		}
+		widgetRepo.sync();
+		return saved;
+	}
+	
+	public void deleteWidgetById(long queryId) {
+		checkWritable();
+		if (null != writer) {
+			write(Op.DELETE, () -> {
+				widgetRepo.deleteById(queryId);
+				return null;
+			});
+			return;
+		}
+		LockHold l = acquire(writeLock(), Op.DELETE);
+		try {
+			widgetRepo.deleteById(queryId);
+		} finally {
+			l.release();
+		}
+		widgetRepo.sync();
+	}
+
+	public Widget updateWidget(@Valid Widget widget) {
+		checkWritable();
+		if (null != writer)
+			return write(Op.UPDATE, () -> widgetRepo.save(widget));
+		LockHold l = acquire(writeLock(), Op.UPDATE);
+		Widget saved;
+		try {
+			saved = widgetRepo.save(widget);
+		} finally {
+			l.release();
+		}
+		widgetRepo.sync();
+		return saved;
+	}
+
+	/**
+	 * Hands a write to the single writer and waits until its group is committed, timing the whole operation.
+	 * Failures of the write are rethrown as they are.
+	 * @throws IllegalStateException if the write is not committed within writer-timeout-ms, in which case it may
+	 * still be applied later
+	 */
+	private <T> T write(Op op, Supplier<T> command) {
+		long start = System.nanoTime();
+		try {
+			return writer.submit(command).get(writerTimeoutMs, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		} catch (TimeoutException e) {
+			throw new IllegalStateException("Write not committed within " + writerTimeoutMs + " ms", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a write", e);
+		} finally {
+			timers.get(op)[0].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	/**
+	 * Commits a group of the single writer: applies it under one write lock acquisition and waits for durability
+	 * once, after releasing the lock.
+	 */
+	private void commitGroup(int size, Runnable apply) {
+		LockHold l = acquire(writeLock(), Op.WRITE_GROUP);
+		try {
+			apply.run();
+		} finally {
+			l.release();
+		}
+		groupSizes.record(size);
+		widgetRepo.sync();
+	}
+
+	/**
+	 * Applies a batch of mutations under a single write lock acquisition: all deletes first, then all saves in order.
+	 * The whole batch is checked before its first mutation, so that a bad delete or save leaves the repository as it was.
+	 * @return one result per delete, then one per save, holding the saved widgets as positioned after the whole batch
+	 * @throws IllegalArgumentException if a delete id is null, or a save is null or has an invalid id
+	 */
+	public List<BatchResult> applyBatch(@Valid WidgetBatch batch) {
+		checkWritable();
+		checkBatch(batch);
+		LockHold l = acquire(lock.writeLock(), Op.BATCH);
+		List<BatchResult> results = new ArrayList<>();
+		try {
+			HashSet<Long> deleted = new HashSet<>();
+			for (Long id : batch.getDelete()) {
+				boolean found = widgetRepo.findById(id).isPresent() && deleted.add(id);
+				results.add(new BatchResult(id, found ? Status.DELETED : Status.NOT_FOUND, null));
+			}
+			HashSet<Long> saved = new HashSet<>();
+			List<Status> saveStatus = new ArrayList<>();
+			for (Widget w : batch.getSave()) {
+				Long id = w.getId();
+				//the deletes are applied first, so a deleted id is created again
+				boolean created = (null == id)
+						|| !(saved.contains(id) || (!deleted.contains(id) && widgetRepo.findById(id).isPresent()));
+				if (null != id)
+					saved.add(id);
+				saveStatus.add(created ? Status.CREATED : Status.UPDATED);
+			}
+			widgetRepo.deleteAll(batch.getDelete());
+			List<Widget> widgets = widgetRepo.saveAll(batch.getSave());
+			for (int i = 0; i < widgets.size(); i++) {
+				Long id = widgets.get(i).getId();
+				results.add(new BatchResult(id, saveStatus.get(i), widgetRepo.findById(id).orElse(null)));
+			}
+		} finally {
+			l.release();
+		}
+		widgetRepo.sync();
+		return results;
+	}
+
+	/**
+	 * Checks what the repositories check for each delete and save, which they only do once earlier ones are applied.
+	 */
+	private static void checkBatch(WidgetBatch batch) {
+		for (Long id : batch.getDelete()) {
+			if (null == id)
+				throw new IllegalArgumentException("Cannot delete a null widget id");
+		}
+		for (Widget w : batch.getSave()) {
+			if (null == w)
+				throw new IllegalArgumentException("Cannot save a null Widget");
+			if ((null != w.getId()) && (w.getId() < 1))
+				throw new IllegalArgumentException("Invalid id in widget " + w.toString());
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the repository, if it supports them. The snapshot is captured while writes are excluded,
+	 * but not reads, only for the time it takes to copy the widgets, and stored after that.
+	 * @return true if a snapshot was taken
+	 */
+	public boolean checkpoint() {
+		Runnable store = capture(widgetRepo::checkpoint);
+		if (null == store)
+			return false;
+		store.run();
+		return true;
+	}
+	
+	/**
+	 * Runs a task while writes are excluded, but not reads, for a copy of the repository at one point in time.
+	 */
+	public <T> T capture(Supplier<T> task) {
+		Lock exclusion = widgetRepo.supportsConcurrentWrites() ? lock.writeLock() : lock.readLock();
+		LockHold l = acquire(exclusion, Op.CHECKPOINT);
+		try {
+			return task.get();
+		} finally {
+			l.release();
+		}
+	}
+	
+	/**
+	 * Applies mutations replicated from the leader to the repository of a read-only follower, excluding all
+	 * other operations, so that readers see all mutations of a batch or none.
+	 */
+	public void applyReplicated(Runnable apply) {
+		LockHold l = acquire(lock.writeLock(), Op.REPLICATE);
+		try {
+			apply.run();
+		} finally {
+			l.release();
+		}
+	}
+
+	/**
+	 * Iterates widgets by fetching pages of streamPageSize widgets.
+	 */
+	private final class PagedIterator implements Iterator<Widget> {
+		private final Function<ZPage, List<Widget>> fetch;
+		private Iterator<Widget> page = Collections.emptyIterator();
+		private Integer afterZ;
+		private boolean lastPage;
+
+		PagedIterator(Function<ZPage, List<Widget>> fetch) {
+			this.fetch = fetch;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (!page.hasNext() && !lastPage) {
+				List<Widget> next = fetch.apply(new ZPage(afterZ, null, streamPageSize));
+				lastPage = next.size() < streamPageSize;
+				if (!next.isEmpty())
+					afterZ = next.get(next.size() - 1).getzIndex();
+				page = next.iterator();
+			}
+			return page.hasNext();
+		}
+
+		@Override
+		public Widget next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return page.next();
+		}
+	}
+
+	/**
+	 * Resolves the ids found by a search into pages of streamPageSize widgets, in the order found, ignoring the
+	 * z index cursor of the pages.
+	 */
+	private final class SearchPages implements Function<ZPage, List<Widget>> {
+		private final SearchBounds bounds;
+		private final long[] ids;
+		private int next;
+
+		SearchPages(SearchBounds bounds, long[] ids) {
+			this.bounds = bounds;
+			this.ids = ids;
+		}
+
+		@Override
+		public List<Widget> apply(ZPage page) {
+			List<Widget> result = new ArrayList<>(Math.min(streamPageSize, ids.length - next));
+			LockHold l = acquire(readLock(), Op.SEARCH_PAGE);
+			try {
+				//a page is only short once all ids are resolved
+				while ((next < ids.length) && (result.size() < streamPageSize)) {
+					Optional<Widget> w = widgetRepo.findById(ids[next++]);
+					if (w.isPresent() && within(w.get(), bounds))
+						result.add(w.get());
+				}
+				return result;
+			} finally {
+				l.release();
+			}
+		}
+	}
+
+	private static boolean within(Widget w, SearchBounds bounds) {
+		return (w.getLowerX() >= bounds.getLowerX()) && (w.getLowerY() >= bounds.getLowerY())
+				&& (w.getUpperX() <= bounds.getUpperX()) && (w.getUpperY() <= bounds.getUpperY());
+	}
+
+	/**
+	 * A value read from the repository at the given version.
+	 */
+	public static final class Versioned<T> {
+		private final long version;
+		private final T value;
+
+		Versioned(long version, T value) {
+			this.version = version;
+			this.value = value;
+		}
+
+		public long getVersion() {
+			return version;
+		}
 
-	public synchronized Widget updateWidget(@Valid Widget widget) {
-		return widgetRepo.save(widget);
+		public T getValue() {
+			return value;
+		}
 	}
 }
@@ -0,0 +1,148 @@
+package com.miro.widget.service;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration of the Widget service, bound from the "widget.service" properties.
+ */
+@Component
+@ConfigurationProperties(prefix = "widget.service")
+public class WidgetServiceProperties {
+
+	/**
+	 * MONITOR serializes all repository access, READ_WRITE lets reads run in parallel with each other.
+	 */
+	public enum LockMode { MONITOR, READ_WRITE }
+
+	/**
+	 * LOCKED applies single widget writes on the calling threads, SINGLE_WRITER hands them to one writer thread,
+	 * which applies them in groups.
+	 */
+	public enum WriteMode { LOCKED, SINGLE_WRITER }
+
+	private LockMode locking = LockMode.READ_WRITE;
+	private WriteMode writes = WriteMode.LOCKED;
+	//commands the single writer's ring holds, a power of two
+	private int writerQueueSize = 65_536;
+	//commands the single writer applies per lock acquisition and sync
+	private int writerMaxGroup = 256;
+	//time a write waits for the single writer to commit it
+	private long writerTimeoutMs = 30_000;
+	//widgets read per lock acquisition when streaming from a repository without lock free reads
+	private int streamPageSize = 1000;
+	//keep a gzipped copy of the serialized full widget list, for clients accepting gzip
+	private boolean gzipList = true;
+	//widgets kept serialized as JSON fragments for list responses, 0 disables
+	private int jsonFragments = 1_000_000;
+
+	/**
+	 * Creates a new lock guarding a repository, according to the configured lock mode.
+	 */
+	public ReadWriteLock createLock() {
+		switch (locking) {
+		case MONITOR:
+			return new ExclusiveLock();
+		case READ_WRITE:
+		default:
+			return new ReentrantReadWriteLock();
+		}
+	}
+
+	public LockMode getLocking() {
+		return locking;
+	}
+
+	public void setLocking(LockMode locking) {
+		this.locking = locking;
+	}
+
+	public WriteMode getWrites() {
+		return writes;
+	}
+
+	public void setWrites(WriteMode writes) {
+		this.writes = writes;
+	}
+
+	public int getWriterQueueSize() {
+		return writerQueueSize;
+	}
+
+	public void setWriterQueueSize(int writerQueueSize) {
+		if ((writerQueueSize < 2) || (0 != (writerQueueSize & (writerQueueSize - 1))))
+			throw new IllegalArgumentException("widget.service.writer-queue-size should be a power of two");
+		this.writerQueueSize = writerQueueSize;
+	}
+
+	public int getWriterMaxGroup() {
+		return writerMaxGroup;
+	}
+
+	public void setWriterMaxGroup(int writerMaxGroup) {
+		if (writerMaxGroup < 1)
+			throw new IllegalArgumentException("widget.service.writer-max-group should not be smaller than 1");
+		this.writerMaxGroup = writerMaxGroup;
+	}
+
+	public long getWriterTimeoutMs() {
+		return writerTimeoutMs;
+	}
+
+	public void setWriterTimeoutMs(long writerTimeoutMs) {
+		if (writerTimeoutMs < 1)
+			throw new IllegalArgumentException("widget.service.writer-timeout-ms should not be smaller than 1");
+		this.writerTimeoutMs = writerTimeoutMs;
+	}
+
+	public int getStreamPageSize() {
+		return streamPageSize;
+	}
+
+	public void setStreamPageSize(int streamPageSize) {
+		if (streamPageSize < 1)
+			throw new IllegalArgumentException("widget.service.stream-page-size should not be smaller than 1");
+		this.streamPageSize = streamPageSize;
+	}
+
+	public boolean isGzipList() {
+		return gzipList;
+	}
+
+	public void setGzipList(boolean gzipList) {
+		this.gzipList = gzipList;
+	}
+
+	public int getJsonFragments() {
+		return jsonFragments;
+	}
+
+	public void setJsonFragments(int jsonFragments) {
+		if (jsonFragments < 0)
+			throw new IllegalArgumentException("widget.service.json-fragments should not be negative");
+		this.jsonFragments = jsonFragments;
+	}
+
+	/**
+	 * A ReadWriteLock whose read and write locks are the same mutually exclusive lock.
+	 */
+	static class ExclusiveLock implements ReadWriteLock {
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		@Override
+		public Lock readLock() {
+			return lock;
+		}
+
+		@Override
+		public Lock writeLock() {
+			return lock;
+		}
+	}
+}
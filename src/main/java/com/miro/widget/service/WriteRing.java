@@ -0,0 +1,92 @@
+package com.miro.widget.service;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free ring buffer for many producers and a single consumer.
+ * <p>
+ * Producers claim a position by advancing the tail and publish the element by advancing the sequence of its slot.
+ * The consumer takes published elements in claim order and frees their slots for the next lap.
+ */
+final class WriteRing<T> {
+	private final AtomicReferenceArray<T> slots;
+	//per slot: its position + 1 once published, its position + capacity once taken
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	//only read and written by the consumer
+	private long head;
+	//head as of the last drain, for other threads
+	private final AtomicLong taken = new AtomicLong();
+
+	/**
+	 * @param capacity a power of two
+	 */
+	WriteRing(int capacity) {
+		if ((capacity < 2) || (0 != (capacity & (capacity - 1))))
+			throw new IllegalArgumentException("Ring capacity should be a power of two, not " + capacity);
+		slots = new AtomicReferenceArray<>(capacity);
+		sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++)
+			sequences.set(i, i);
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @return false if the ring is full
+	 */
+	boolean offer(T element) {
+		long position;
+		while (true) {
+			position = tail.get();
+			long sequence = sequences.get((int) position & mask);
+			if (sequence < position)
+				return false;
+			if ((sequence == position) && tail.compareAndSet(position, position + 1))
+				break;
+		}
+		int slot = (int) position & mask;
+		slots.lazySet(slot, element);
+		sequences.set(slot, position + 1);
+		return true;
+	}
+
+	/**
+	 * Moves up to max published elements to the given list, in the order their positions were claimed. Consumer only.
+	 * @return the number of elements moved
+	 */
+	int drainTo(List<? super T> to, int max) {
+		int n = 0;
+		while (n < max) {
+			int slot = (int) head & mask;
+			if (sequences.get(slot) != head + 1)
+				break;
+			to.add(slots.get(slot));
+			slots.lazySet(slot, null);
+			sequences.set(slot, head + mask + 1);
+			head++;
+			n++;
+		}
+		if (0 != n)
+			taken.lazySet(head);
+		return n;
+	}
+
+	/**
+	 * @return true if no element is published at the head. Consumer only.
+	 */
+	boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+
+	/**
+	 * @return the number of claimed positions not yet taken, approximately while producers or the consumer are active.
+	 * Any thread.
+	 */
+	int size() {
+		return (int) Math.max(0, tail.get() - taken.get());
+	}
+}
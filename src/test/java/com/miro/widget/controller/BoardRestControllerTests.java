@@ -0,0 +1,54 @@
+package com.miro.widget.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.annotation.DirtiesContext.MethodMode;
+
+import com.miro.widget.model.BatchResult;
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+import com.miro.widget.model.WidgetBatch;
+
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, properties = "widget.boards.dir=target/test-boards/${random.uuid}")
+public class BoardRestControllerTests {
+
+	@Autowired
+	private TestRestTemplate template;
+
+	@Test
+	@DirtiesContext(methodMode = MethodMode.AFTER_METHOD)
+	public void boardsAreSeparate() {
+		Widget a = template.postForObject("/boards/a/widgets", new Widget(null, 1, 1, null, 10, 10), Widget.class);
+		template.postForObject("/boards/b/widgets", new Widget(null, 2, 2, null, 10, 10), Widget.class);
+		template.postForObject("/boards/b/widgets", new Widget(null, 3, 3, null, 10, 10), Widget.class);
+		assertEquals(1L, a.getId().longValue());
+		assertEquals(1, template.getForObject("/boards/a/widgets", Widget[].class).length);
+		assertEquals(2, template.getForObject("/boards/b/widgets", Widget[].class).length);
+		assertEquals(0, template.getForObject("/widgets", Widget[].class).length);
+		assertEquals(1, template.getForObject("/boards/b/widgets?limit=1", Widget[].class).length);
+
+		template.put("/boards/b/widgets/2", new Widget(2L, 50, 50, 0, 10, 10));
+		assertEquals(new Widget(2L, 50, 50, 0, 10, 10), template.getForObject("/boards/b/widgets/2", Widget.class));
+		assertEquals(1, template.postForObject("/boards/b/widgets/search", new SearchBounds(0, 0, 20, 20), Widget[].class).length);
+		template.delete("/boards/a/widgets/1");
+		assertEquals(0, template.getForObject("/boards/a/widgets", Widget[].class).length);
+
+		WidgetBatch batch = new WidgetBatch();
+		batch.setDelete(Collections.singletonList(1L));
+		BatchResult[] results = template.postForObject("/boards/b/widgets/batch", batch, BatchResult[].class);
+		assertEquals(BatchResult.Status.DELETED, results[0].getStatus());
+
+		assertEquals(HttpStatus.BAD_REQUEST, template.getForEntity("/boards/a.b/widgets", String.class).getStatusCode());
+		assertEquals(HttpStatus.BAD_REQUEST,
+				template.postForEntity("/boards/a/widgets", new Widget(null, 1, 1, null, 0, 1), String.class).getStatusCode());
+	}
+}
@@ -0,0 +1,63 @@
+package com.miro.widget.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.miro.widget.model.Widget;
+import com.miro.widget.service.WidgetServiceProperties;
+
+public class WidgetJsonFragmentsTests {
+
+	private final ObjectMapper mapper = Jackson2ObjectMapperBuilder.json().build();
+
+	@Test
+	public void fragmentsAreReusedUntilTheWidgetChanges() throws Exception {
+		WidgetJsonFragments fragments = new WidgetJsonFragments(mapper, new WidgetServiceProperties());
+		Widget w = new Widget(1L, 1, 2, 0, 10, 20);
+		byte[] json = fragments.get(w);
+		assertArrayEquals(mapper.writeValueAsBytes(w), json);
+		assertSame(json, fragments.get(w.cloneAndZShift(0, w.getUpdateTime())));
+
+		//shifted, and moved without changing the update time
+		Widget shifted = w.cloneAndZShift(1, Instant.now().plusSeconds(1));
+		assertArrayEquals(mapper.writeValueAsBytes(shifted), fragments.get(shifted));
+		Widget moved = new Widget(1L, 5, 2, 1, 10, 20);
+		moved.setUpdateTime(shifted.getUpdateTime());
+		assertArrayEquals(mapper.writeValueAsBytes(moved), fragments.get(moved));
+	}
+
+	@Test
+	public void fragmentsReadAgainAreKept() {
+		WidgetServiceProperties props = new WidgetServiceProperties();
+		props.setJsonFragments(2);
+		WidgetJsonFragments fragments = new WidgetJsonFragments(mapper, props);
+		Widget w1 = new Widget(1L, 1, 1, 0, 1, 1), w2 = new Widget(2L, 2, 2, 1, 1, 1), w3 = new Widget(3L, 3, 3, 2, 1, 1);
+		byte[] json = fragments.get(w1);
+		fragments.get(w2);
+		assertSame(json, fragments.get(w1));
+		fragments.get(w3);		//evicts w2, which was not read again
+		assertSame(json, fragments.get(w1));
+		byte[] json3 = fragments.get(w3);
+		assertSame(json3, fragments.get(w3));
+	}
+
+	@Test
+	public void arraysMatchJacksonLists() throws Exception {
+		WidgetServiceProperties props = new WidgetServiceProperties();
+		props.setJsonFragments(2);		//dropped and refilled on the way
+		WidgetJsonFragments fragments = new WidgetJsonFragments(mapper, props);
+		List<Widget> widgets = Arrays.asList(new Widget(1L, 1, 1, -1, 1, 1), new Widget(2L, -5, 3, 0, 2, 2),
+				new Widget(3L, 0, 0, 7, 3, 3));
+		for (int i = 0; i < 2; i++)
+			assertArrayEquals(mapper.writeValueAsBytes(widgets), fragments.toJsonArray(widgets));
+		assertArrayEquals(mapper.writeValueAsBytes(widgets.subList(0, 0)), fragments.toJsonArray(widgets.subList(0, 0)));
+	}
+}
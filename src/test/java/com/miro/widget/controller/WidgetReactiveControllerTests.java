@@ -0,0 +1,105 @@
+package com.miro.widget.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.annotation.DirtiesContext.MethodMode;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import com.miro.widget.model.CompactWidgetList;
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, properties = "spring.main.web-application-type=reactive")
+public class WidgetReactiveControllerTests {
+
+	@Autowired
+	private WebTestClient client;
+
+	private Widget add(Widget w) {
+		return client.post().uri("/widgets").bodyValue(w).exchange()
+				.expectStatus().isOk().expectBody(Widget.class).returnResult().getResponseBody();
+	}
+
+	@Test
+	@DirtiesContext(methodMode = MethodMode.AFTER_METHOD)
+	public void widgetCRUD() {
+		Widget added = add(new Widget(null, 1, 1, null, 10, 20));
+		assertEquals(new Widget(1L, 1, 1, 0, 10, 20), added);
+		add(new Widget(null, 2, 2, 0, 20, 30));
+		client.get().uri("/widgets/1").exchange().expectBody(Widget.class).isEqualTo(new Widget(1L, 1, 1, 1, 10, 20));
+
+		Widget[] widgets = client.get().uri("/widgets").exchange().expectStatus().isOk()
+				.expectBody(Widget[].class).returnResult().getResponseBody();
+		assertEquals(2, widgets.length);
+		assertEquals(2L, widgets[0].getId().longValue());
+
+		client.put().uri("/widgets/1").bodyValue(new Widget(1L, 5, 5, 7, 10, 20)).exchange()
+				.expectBody(Widget.class).isEqualTo(new Widget(1L, 5, 5, 7, 10, 20));
+		client.delete().uri("/widgets/2").exchange().expectStatus().isOk();
+		client.get().uri("/widgets?limit=0").exchange().expectStatus().isEqualTo(HttpStatus.BAD_REQUEST);
+		client.post().uri("/widgets").bodyValue(new Widget(null, 1, 1, null, 0, 1)).exchange()
+				.expectStatus().isBadRequest();
+		assertEquals(1, client.get().uri("/widgets").exchange().expectBody(Widget[].class).returnResult()
+				.getResponseBody().length);
+	}
+
+	@Test
+	@DirtiesContext(methodMode = MethodMode.AFTER_METHOD)
+	public void listsAreTaggedAndStreamed() {
+		for (int n = 0; n < 5; n++)
+			add(new Widget(null, n, n, null, 1, 1));
+		String etag = client.get().uri("/widgets").exchange().expectStatus().isOk()
+				.returnResult(byte[].class).getResponseHeaders().getETag();
+		assertNotNull(etag);
+		client.get().uri("/widgets").ifNoneMatch(etag).exchange().expectStatus().isNotModified();
+
+		List<Widget> streamed = client.post().uri("/widgets/search").accept(MediaType.APPLICATION_NDJSON)
+				.bodyValue(new SearchBounds(1, 1, 4, 4)).exchange().expectStatus().isOk()
+				.returnResult(Widget.class).getResponseBody().collectList().block(Duration.ofSeconds(10));
+		assertEquals(3, streamed.size());
+		assertEquals(1, streamed.get(0).getzIndex().intValue());
+		assertEquals(5, client.get().uri("/widgets").accept(MediaType.APPLICATION_NDJSON).exchange()
+				.returnResult(Widget.class).getResponseBody().count().block(Duration.ofSeconds(10)).intValue());
+
+		byte[] compact = client.get().uri("/widgets?limit=2").accept(MediaType.parseMediaType(CompactWidgetList.MEDIA_TYPE))
+				.exchange().expectStatus().isOk().expectBody(byte[].class).returnResult().getResponseBody();
+		Widget[] json = client.get().uri("/widgets?limit=2").exchange().expectBody(Widget[].class).returnResult()
+				.getResponseBody();
+		assertEquals(Arrays.asList(json), CompactWidgetList.decode(compact));
+	}
+
+	@Test
+	@DirtiesContext(methodMode = MethodMode.AFTER_METHOD)
+	public void changesArePushed() {
+		add(new Widget(null, 1, 1, null, 1, 1));
+		Flux<ServerSentEvent<String>> events = client.get().uri("/widgets/changes?lowerX=0&lowerY=0&upperX=10&upperY=10")
+				.accept(MediaType.TEXT_EVENT_STREAM).exchange().expectStatus().isOk()
+				.returnResult(new ParameterizedTypeReference<ServerSentEvent<String>>() {}).getResponseBody();
+		List<ServerSentEvent<String>> received = events.take(2)
+				.publishOn(Schedulers.boundedElastic())	//the client blocks, not allowed on its event loop
+				.doOnNext(e -> {
+					if ("reset".equals(e.event()))
+						add(new Widget(null, 2, 2, null, 1, 1));
+				})
+				.collectList().block(Duration.ofSeconds(10));
+		assertEquals("reset", received.get(0).event());
+		assertEquals("created", received.get(1).event());
+	}
+}
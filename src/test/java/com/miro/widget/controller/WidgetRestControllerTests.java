@@ -5,11 +5,17 @@ package com.miro.widget.controller;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 
+import java.io.ByteArrayInputStream;
 import java.net.URI;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -18,13 +24,21 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.annotation.DirtiesContext.MethodMode;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.RequestEntity;
 import org.springframework.http.ResponseEntity;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.miro.widget.model.BatchResult;
+import com.miro.widget.model.CompactWidgetList;
 import com.miro.widget.model.SearchBounds;
 import com.miro.widget.model.Widget;
+import com.miro.widget.model.WidgetBatch;
 
 
 @SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT)
@@ -40,6 +54,9 @@ public class WidgetRestControllerTests {
 
 	@Autowired
 	private TestRestTemplate template;
+	
+	@Autowired
+	private ObjectMapper mapper;
 
     @BeforeEach
     public void setUp() throws Exception {
@@ -101,4 +118,185 @@ public class WidgetRestControllerTests {
     	assertNotNull(widgets);
     	assertEquals(0, widgets.length);
     }
+    
+    @Test
+    @DirtiesContext(methodMode = MethodMode.AFTER_METHOD)
+    public void widgetBatch() throws Exception {
+    	template.postForEntity(base.toString(), w1, Widget.class);
+    	
+    	//delete a missing widget, update the existing one and create two more in front of it
+    	WidgetBatch batch = new WidgetBatch(Arrays.asList(7l),
+    			Arrays.asList(new Widget(1l, 5, 5, 0, 10, 20), new Widget(null, 2, 2, 0, 20, 30), new Widget(null, 3, 3, 0, 1, 1)));
+    	ResponseEntity<BatchResult[]> response = template.postForEntity(base.toString() + "batch", batch, BatchResult[].class);
+    	BatchResult[] results = response.getBody();
+    	assertNotNull(results);
+    	assertEquals(4, results.length);
+    	assertEquals(BatchResult.Status.NOT_FOUND, results[0].getStatus());
+    	assertEquals(BatchResult.Status.UPDATED, results[1].getStatus());
+    	assertEquals(BatchResult.Status.CREATED, results[2].getStatus());
+    	assertEquals(BatchResult.Status.CREATED, results[3].getStatus());
+    	//results hold the final z order, each later save shifted the earlier ones up
+    	assertEquals(2, results[1].getWidget().getzIndex().intValue());
+    	assertEquals(1, results[2].getWidget().getzIndex().intValue());
+    	assertEquals(0, results[3].getWidget().getzIndex().intValue());
+    	
+    	//delete two and get only the third back
+    	batch = new WidgetBatch(Arrays.asList(1l, 2l), Collections.emptyList());
+    	response = template.postForEntity(base.toString() + "batch", batch, BatchResult[].class);
+    	assertEquals(BatchResult.Status.DELETED, response.getBody()[0].getStatus());
+    	assertEquals(BatchResult.Status.DELETED, response.getBody()[1].getStatus());
+    	Widget[] widgets = template.getForEntity(base.toString(), Widget[].class).getBody();
+    	assertEquals(1, widgets.length);
+    	assertEquals(3l, widgets[0].getId().longValue());
+    	
+    	//an invalid widget rejects the whole batch
+    	batch = new WidgetBatch(Arrays.asList(3l), Arrays.asList(new Widget(null, 1, 1, null, 0, 1)));
+    	ResponseEntity<String> rejected = template.postForEntity(base.toString() + "batch", batch, String.class);
+    	assertEquals(HttpStatus.BAD_REQUEST, rejected.getStatusCode());
+    	assertEquals(1, template.getForEntity(base.toString(), Widget[].class).getBody().length);
+    	
+    	//so does a bad id in a later save, after the deletes
+    	batch = new WidgetBatch(Arrays.asList(3l), Arrays.asList(new Widget(null, 1, 1, null, 1, 1), new Widget(-1l, 1, 1, null, 1, 1)));
+    	rejected = template.postForEntity(base.toString() + "batch", batch, String.class);
+    	assertFalse(rejected.getStatusCode().is2xxSuccessful());
+    	widgets = template.getForEntity(base.toString(), Widget[].class).getBody();
+    	assertEquals(1, widgets.length);
+    	assertEquals(3l, widgets[0].getId().longValue());
+    }
+    
+    @Test
+    @DirtiesContext(methodMode = MethodMode.AFTER_METHOD)
+    public void widgetBatchDeletingAndSavingAnIdCreatesIt() throws Exception {
+    	Widget existing = template.postForEntity(base.toString(), w1, Widget.class).getBody();
+    	
+    	WidgetBatch batch = new WidgetBatch(Arrays.asList(existing.getId()),
+    			Arrays.asList(new Widget(existing.getId(), 5, 5, null, 10, 20)));
+    	BatchResult[] results = template.postForEntity(base.toString() + "batch", batch, BatchResult[].class).getBody();
+    	assertNotNull(results);
+    	assertEquals(2, results.length);
+    	assertEquals(BatchResult.Status.DELETED, results[0].getStatus());
+    	assertEquals(BatchResult.Status.CREATED, results[1].getStatus());
+    	assertEquals(5, results[1].getWidget().getX().intValue());
+    	assertEquals(1, template.getForEntity(base.toString(), Widget[].class).getBody().length);
+    }
+    
+    @Test
+    @DirtiesContext(methodMode = MethodMode.AFTER_METHOD)
+    public void widgetPages() throws Exception {
+    	for (int n = 0; n < 5; n++)
+    		template.postForEntity(base.toString(), new Widget(null, n, n, null, 1, 1), Widget.class);
+    	
+    	//walk forward two at a time, using the last z index as the cursor
+    	Widget[] page = template.getForEntity(base.toString() + "?limit=2", Widget[].class).getBody();
+    	assertEquals(2, page.length);
+    	assertEquals(0, page[0].getzIndex().intValue());
+    	page = template.getForEntity(base.toString() + "?limit=2&afterZ=" + page[1].getzIndex(), Widget[].class).getBody();
+    	assertEquals(2, page.length);
+    	assertEquals(2, page[0].getzIndex().intValue());
+    	assertEquals(3, page[1].getzIndex().intValue());
+    	
+    	//the page before z 3 ends right below it
+    	page = template.getForEntity(base.toString() + "?limit=2&beforeZ=3", Widget[].class).getBody();
+    	assertEquals(1, page[0].getzIndex().intValue());
+    	assertEquals(2, page[1].getzIndex().intValue());
+    	
+    	//search pages the same way
+    	SearchBounds bounds = new SearchBounds(0, 0, 3, 3);
+    	page = template.postForEntity(base.toString() + "search?limit=5&afterZ=0", bounds, Widget[].class).getBody();
+    	assertEquals(2, page.length);
+    	assertEquals(1, page[0].getzIndex().intValue());
+    	
+    	ResponseEntity<String> rejected = template.getForEntity(base.toString() + "?limit=0", String.class);
+    	assertEquals(HttpStatus.BAD_REQUEST, rejected.getStatusCode());
+    }
+    
+    @Test
+    @DirtiesContext(methodMode = MethodMode.AFTER_METHOD)
+    public void widgetStreams() throws Exception {
+    	for (int n = 0; n < 3; n++)
+    		template.postForEntity(base.toString(), new Widget(null, n, n, null, 1, 1), Widget.class);
+    	
+    	RequestEntity<Void> listReq = RequestEntity.get(base.toURI()).accept(MediaType.APPLICATION_NDJSON).build();
+    	ResponseEntity<String> response = template.exchange(listReq, String.class);
+    	assertThat(response.getHeaders().getContentType().isCompatibleWith(MediaType.APPLICATION_NDJSON)).isTrue();
+    	String[] lines = response.getBody().split("\n");
+    	assertEquals(3, lines.length);
+    	for (int n = 0; n < 3; n++)
+    		assertEquals(n, mapper.readValue(lines[n], Widget.class).getzIndex().intValue());
+    	
+    	RequestEntity<SearchBounds> searchReq = RequestEntity.post(new URI(base.toString() + "search"))
+    			.accept(MediaType.APPLICATION_NDJSON).body(new SearchBounds(1, 1, 3, 3));
+    	lines = template.exchange(searchReq, String.class).getBody().split("\n");
+    	assertEquals(2, lines.length);
+    	assertEquals(1, mapper.readValue(lines[0], Widget.class).getzIndex().intValue());
+    	
+    	//plain JSON is still the default
+    	assertEquals(3, template.getForEntity(base.toString(), Widget[].class).getBody().length);
+    }
+    
+    @Test
+    @DirtiesContext(methodMode = MethodMode.AFTER_METHOD)
+    public void unchangedListsAreNotSentAgain() throws Exception {
+    	template.postForEntity(base.toString(), w1, Widget.class);
+    	ResponseEntity<Widget[]> first = template.getForEntity(base.toString(), Widget[].class);
+    	String etag = first.getHeaders().getETag();
+    	assertNotNull(etag);
+    	
+    	RequestEntity<Void> conditional = RequestEntity.get(base.toURI()).ifNoneMatch(etag).build();
+    	ResponseEntity<Widget[]> unchanged = template.exchange(conditional, Widget[].class);
+    	assertEquals(HttpStatus.NOT_MODIFIED, unchanged.getStatusCode());
+    	assertNull(unchanged.getBody());
+    	
+    	//gzipped, under its own ETag
+    	RequestEntity<Void> gzipReq = RequestEntity.get(base.toURI()).header(HttpHeaders.ACCEPT_ENCODING, "gzip").build();
+    	ResponseEntity<byte[]> gzipped = template.exchange(gzipReq, byte[].class);
+    	assertEquals("gzip", gzipped.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+    	assertThat(gzipped.getHeaders().getETag()).isNotEqualTo(etag);
+    	try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped.getBody()))) {
+    		assertThat(mapper.readValue(in, Widget[].class)).isEqualTo(first.getBody());
+    	}
+    	
+    	//any write changes the ETag
+    	template.postForEntity(base.toString(), w2, Widget.class);
+    	ResponseEntity<Widget[]> changed = template.exchange(conditional, Widget[].class);
+    	assertEquals(HttpStatus.OK, changed.getStatusCode());
+    	assertEquals(2, changed.getBody().length);
+    	assertThat(changed.getHeaders().getETag()).isNotEqualTo(etag);
+    }
+    
+    @Test
+    @DirtiesContext(methodMode = MethodMode.AFTER_METHOD)
+    public void compactListsMatchJsonLists() throws Exception {
+    	for (int n = 0; n < 5; n++)
+    		template.postForEntity(base.toString(), new Widget(null, n, n, 0, 1 + n, 1), Widget.class);
+    	MediaType compact = MediaType.parseMediaType(CompactWidgetList.MEDIA_TYPE);
+    	
+    	RequestEntity<Void> listReq = RequestEntity.get(base.toURI()).accept(compact).build();
+    	ResponseEntity<byte[]> response = template.exchange(listReq, byte[].class);
+    	assertEquals(compact, response.getHeaders().getContentType());
+    	Widget[] json = template.getForEntity(base.toString(), Widget[].class).getBody();
+    	List<Widget> widgets = CompactWidgetList.decode(response.getBody());
+    	assertEquals(Arrays.asList(json), widgets);
+    	for (int n = 0; n < json.length; n++)
+    		assertEquals(json[n].getUpdateTime(), widgets.get(n).getUpdateTime());
+    	
+    	RequestEntity<SearchBounds> searchReq = RequestEntity.post(new URI(base.toString() + "search?limit=2"))
+    			.accept(compact).body(new SearchBounds(0, 0, 10, 10));
+    	widgets = CompactWidgetList.decode(template.exchange(searchReq, byte[].class).getBody());
+    	assertEquals(Arrays.asList(json).subList(0, 2), widgets);
+    }
+    
+    @Test
+    @DirtiesContext(methodMode = MethodMode.AFTER_METHOD)
+    public void metricsArePublished() throws Exception {
+    	template.postForEntity(base.toString(), new Widget(null, 1, 1, 0, 1, 1), Widget.class);
+    	template.postForEntity(base.toString(), new Widget(null, 1, 1, 0, 1, 1), Widget.class);
+    	String actuator = "http://localhost:" + port + "/actuator/metrics/";
+    	String ops = template.getForEntity(actuator + "widget.service.op?tag=op:add", String.class).getBody();
+    	assertThat(ops).contains("\"COUNT\"");
+    	assertEquals(HttpStatus.OK, template.getForEntity(actuator + "widget.service.lock.wait", String.class).getStatusCode());
+    	assertEquals(HttpStatus.OK, template.getForEntity(actuator + "widget.repo.shift.cascade", String.class).getStatusCode());
+    	assertEquals(HttpStatus.OK, template.getForEntity(actuator + "widget.index.candidates", String.class).getStatusCode());
+    	assertEquals(HttpStatus.OK, template.getForEntity(actuator + "widget.repo.widgets", String.class).getStatusCode());
+    }
 }
@@ -0,0 +1,62 @@
+package com.miro.widget.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class CompactWidgetListTests {
+
+	private static void assertSameWidgets(List<Widget> expected, List<Widget> actual) {
+		assertEquals(expected, actual);
+		for (int i = 0; i < expected.size(); i++)
+			assertEquals(expected.get(i).getUpdateTime(), actual.get(i).getUpdateTime());
+	}
+
+	@Test
+	public void widgetsSurviveTheRoundTrip() {
+		Random rnd = new Random(5);
+		List<Widget> widgets = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			Widget w = new Widget(1L + rnd.nextInt(1_000_000), rnd.nextInt(), rnd.nextInt(), rnd.nextInt(),
+					1 + rnd.nextInt(Integer.MAX_VALUE), 1 + rnd.nextInt(100));
+			w.setUpdateTime(Instant.ofEpochSecond(rnd.nextInt(), rnd.nextInt(1_000_000_000)));
+			widgets.add(w);
+		}
+		Widget extreme = new Widget(Long.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE,
+				Integer.MAX_VALUE, 1);
+		extreme.setUpdateTime(Instant.MIN);
+		widgets.add(extreme);
+		assertSameWidgets(widgets, CompactWidgetList.decode(CompactWidgetList.encode(widgets)));
+		assertSameWidgets(Collections.emptyList(), CompactWidgetList.decode(CompactWidgetList.encode(Collections.emptyList())));
+	}
+
+	@Test
+	public void listsInZOrderTakeFewBytesPerWidget() {
+		Instant now = Instant.now();
+		List<Widget> widgets = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			Widget w = new Widget(1L + i, 10 * (i % 50), 10 * (i / 50), i, 100, 50);
+			w.setUpdateTime(now);
+			widgets.add(w);
+		}
+		//the update time nanoseconds take most of it
+		assertTrue(CompactWidgetList.encode(widgets).length < 15 * widgets.size());
+	}
+
+	@Test
+	public void corruptListsAreRejected() {
+		byte[] bytes = CompactWidgetList.encode(Arrays.asList(new Widget(1L, 1, 1, 1, 1, 1)));
+		assertThrows(IllegalArgumentException.class, () -> CompactWidgetList.decode(Arrays.copyOf(bytes, bytes.length - 1)));
+		assertThrows(IllegalArgumentException.class, () -> CompactWidgetList.decode(Arrays.copyOf(bytes, bytes.length + 1)));
+		assertThrows(IllegalArgumentException.class, () -> CompactWidgetList.decode("[{\"id\":1}]".getBytes()));
+	}
+}
@@ -0,0 +1,49 @@
+package com.miro.widget.repo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class LongIntHashMapTests {
+
+	@Test
+	public void putGetRemove() {
+		LongIntHashMap map = new LongIntHashMap(-1);
+		assertEquals(-1, map.get(7l));
+		assertEquals(-1, map.put(7l, 70));
+		assertEquals(70, map.put(7l, 71));
+		assertTrue(map.containsKey(7l));
+		assertEquals(1, map.size());
+		assertEquals(71, map.remove(7l));
+		assertEquals(-1, map.remove(7l));
+		assertFalse(map.containsKey(7l));
+		assertEquals(0, map.size());
+		assertThrows(IllegalArgumentException.class, () -> map.put(Long.MIN_VALUE, 1));
+	}
+
+	@Test
+	public void randomOperationsMatchHashMap() {
+		LongIntHashMap map = new LongIntHashMap(-1);
+		Map<Long, Integer> expected = new HashMap<>();
+		Random rnd = new Random(3);
+		for (int i = 0; i < 200_000; i++) {
+			long key = rnd.nextInt(5000) - 2500;
+			if (rnd.nextBoolean()) {
+				Integer old = expected.put(key, i);
+				assertEquals((null == old) ? -1 : old, map.put(key, i));
+			} else {
+				Integer old = expected.remove(key);
+				assertEquals((null == old) ? -1 : old, map.remove(key));
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		expected.forEach((k, v) -> assertEquals(v.intValue(), map.get(k)));
+	}
+}
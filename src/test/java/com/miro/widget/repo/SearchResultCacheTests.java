@@ -0,0 +1,64 @@
+package com.miro.widget.repo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+
+public class SearchResultCacheTests {
+
+	private static final SearchBounds LEFT = new SearchBounds(0, 0, 10, 10);
+	private static final SearchBounds RIGHT = new SearchBounds(20, 0, 30, 10);
+	private static final SearchBounds ALL = new SearchBounds(0, 0, 30, 10);
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		SearchResultCache cache = new SearchResultCache(2, 100);
+		cache.put(LEFT, new long[] {1}, cache.version());
+		cache.put(RIGHT, new long[] {2}, cache.version());
+		assertArrayEquals(new long[] {1}, cache.get(new SearchBounds(0, 0, 10, 10)));
+		cache.put(ALL, new long[] {1, 2}, cache.version());
+		assertNull(cache.get(RIGHT));
+		assertArrayEquals(new long[] {1}, cache.get(LEFT));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getEvictions());
+	}
+
+	@Test
+	public void evictsToStayWithinIdBudget() {
+		SearchResultCache cache = new SearchResultCache(10, 3);
+		cache.put(LEFT, new long[] {1, 2}, cache.version());
+		cache.put(RIGHT, new long[] {3, 4}, cache.version());
+		assertNull(cache.get(LEFT));
+		assertEquals(1, cache.size());
+		cache.put(ALL, new long[] {1, 2, 3, 4}, cache.version());	//too large on its own
+		assertNull(cache.get(ALL));
+	}
+
+	@Test
+	public void invalidatesOnlyEntriesContainingTheGeometry() {
+		SearchResultCache cache = new SearchResultCache(10, 100);
+		cache.put(LEFT, new long[] {1}, cache.version());
+		cache.put(RIGHT, new long[] {2}, cache.version());
+		cache.put(ALL, new long[] {1, 2}, cache.version());
+		cache.invalidate(new Widget(3l, 22, 2, 0, 2, 2));
+		assertArrayEquals(new long[] {1}, cache.get(LEFT));
+		assertNull(cache.get(RIGHT));
+		assertNull(cache.get(ALL));
+		assertEquals(2, cache.getInvalidations());
+	}
+
+	@Test
+	public void dropsResultsComputedBeforeAnInvalidation() {
+		SearchResultCache cache = new SearchResultCache(10, 100);
+		long version = cache.version();
+		cache.invalidate(new Widget(3l, 50, 50, 0, 1, 1));
+		cache.put(LEFT, new long[] {1}, version);
+		assertNull(cache.get(LEFT));
+	}
+}
@@ -0,0 +1,144 @@
+package com.miro.widget.repo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+
+public class SpatialIndexTests {
+
+	static Stream<Arguments> indexes() {
+		return Stream.of(
+				Arguments.of("cartesian", (Supplier<SpatialIndex>) CartesianIndex::new),
+				Arguments.of("primitive", (Supplier<SpatialIndex>) PrimitiveCartesianIndex::new),
+				Arguments.of("primitive-small-blocks", (Supplier<SpatialIndex>) () -> new PrimitiveCartesianIndex(4)),
+				Arguments.of("rtree", (Supplier<SpatialIndex>) () -> new RTreeIndex(4)),
+				Arguments.of("rtree-default", (Supplier<SpatialIndex>) RTreeIndex::new),
+				Arguments.of("grid", (Supplier<SpatialIndex>) () -> new GridIndex(16)),
+				Arguments.of("grid-unit", (Supplier<SpatialIndex>) () -> new GridIndex(1)));
+	}
+
+	@ParameterizedTest(name = "{0}")
+	@MethodSource("indexes")
+	public void filterFindsOnlyContainedBoxes(String name, Supplier<SpatialIndex> factory) {
+		SpatialIndex index = factory.get();
+		index.add(new Widget(1l, 0, 0, 0, 9, 9), 1l);
+		index.add(new Widget(2l, 1, 1, 0, 5, 5), 2l);
+		index.add(new Widget(3l, 3, 2, 0, 5, 6), 3l);
+
+		assertEquals(new TreeSet<>(Arrays.asList(1l, 2l, 3l)), new TreeSet<>(index.filter(new SearchBounds(0, 0, 9, 9))));
+		assertEquals(new TreeSet<>(Arrays.asList(2l, 3l)), new TreeSet<>(index.filter(new SearchBounds(1, 1, 9, 9))));
+		assertTrue(index.filter(new SearchBounds(4, 3, 6, 6)).isEmpty());
+
+		index.delete(new Widget(2l, 1, 1, 0, 5, 5), 2l);
+		assertEquals(new TreeSet<>(Arrays.asList(3l)), new TreeSet<>(index.filter(new SearchBounds(1, 1, 9, 9))));
+		index.clear();
+		assertTrue(index.filter(new SearchBounds(0, 0, 9, 9)).isEmpty());
+	}
+
+	@ParameterizedTest(name = "{0}")
+	@MethodSource("indexes")
+	public void largeBoxesAreFound(String name, Supplier<SpatialIndex> factory) {
+		SpatialIndex index = factory.get();
+		index.add(new SearchBounds(0, 0, 1_000_000_000, 1_000_000_000), 1l);
+		index.add(new SearchBounds(5, 5, 6, 6), 2l);
+
+		assertEquals(new TreeSet<>(Arrays.asList(1l, 2l)), new TreeSet<>(index.filter(new SearchBounds(0, 0, 1_000_000_000, 1_000_000_000))));
+		assertEquals(new TreeSet<>(Arrays.asList(2l)), new TreeSet<>(index.filter(new SearchBounds(0, 0, 10, 10))));
+		index.delete(new SearchBounds(0, 0, 1_000_000_000, 1_000_000_000), 1l);
+		assertEquals(1, index.size());
+		assertEquals(new TreeSet<>(Arrays.asList(2l)), new TreeSet<>(index.filter(new SearchBounds(0, 0, 1_000_000_000, 1_000_000_000))));
+	}
+
+	@Test
+	public void gridCellsEndAtTheLargestCoordinate() {
+		GridIndex index = new GridIndex(1);
+		SearchBounds edge = new SearchBounds(Integer.MAX_VALUE - 1, Integer.MAX_VALUE - 1, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		index.add(edge, 1l);
+		assertEquals(Arrays.asList(1l), new ArrayList<>(index.filter(edge)));
+		index.delete(edge, 1l);
+		assertEquals(0, index.size());
+	}
+
+	@ParameterizedTest(name = "{0}")
+	@MethodSource("indexes")
+	public void randomAddDeleteMatchesBruteForce(String name, Supplier<SpatialIndex> factory) {
+		SpatialIndex index = factory.get();
+		Map<Long, Widget> live = new HashMap<>();
+		Random rnd = new Random(42);
+		long nextId = 1;
+		for (int round = 0; round < 3000; round++) {
+			if (live.isEmpty() || rnd.nextInt(3) > 0) {
+				//every fifth widget shares x=0
+				Widget w = new Widget(nextId, (rnd.nextInt(5) == 0) ? 0 : rnd.nextInt(1000) - 500, rnd.nextInt(1000) - 500, 0,
+						1 + rnd.nextInt(50), 1 + rnd.nextInt(50));
+				index.add(w, nextId);
+				live.put(nextId++, w);
+			} else {
+				List<Long> ids = new ArrayList<>(live.keySet());
+				Long id = ids.get(rnd.nextInt(ids.size()));
+				index.delete(live.remove(id), id);
+			}
+			if (round % 50 == 0) {
+				int lx = rnd.nextInt(1000) - 500, ly = rnd.nextInt(1000) - 500;
+				SearchBounds bounds = new SearchBounds(lx, ly, lx + rnd.nextInt(400), ly + rnd.nextInt(400));
+				TreeSet<Long> expected = new TreeSet<>();
+				live.forEach((id, w) -> {
+					if ((w.getLowerX() >= bounds.getLowerX()) && (w.getLowerY() >= bounds.getLowerY())
+							&& (w.getUpperX() <= bounds.getUpperX()) && (w.getUpperY() <= bounds.getUpperY()))
+						expected.add(id);
+				});
+				long candidatesBefore = index.getCandidateCount();
+				assertEquals(expected, new TreeSet<>(index.filter(bounds)), "round " + round);
+				assertTrue(index.getCandidateCount() - candidatesBefore >= expected.size(), "round " + round);
+				assertEquals(live.size(), index.size(), "round " + round);
+				LongList buffer = new LongList(1);
+				index.filterInto(bounds, buffer);
+				assertEquals(expected.size(), buffer.size(), "round " + round);
+			}
+		}
+	}
+
+	@ParameterizedTest(name = "{0}")
+	@MethodSource("indexes")
+	public void addAllMatchesSingleAdds(String name, Supplier<SpatialIndex> factory) {
+		Random rnd = new Random(43);
+		Widget[] boxes = new Widget[2000];
+		Long[] refs = new Long[boxes.length];
+		SpatialIndex single = factory.get();
+		for (int i = 0; i < boxes.length; i++) {
+			refs[i] = i + 1l;
+			boxes[i] = new Widget(refs[i], rnd.nextInt(200) - 100, rnd.nextInt(200) - 100, 0, 1 + rnd.nextInt(50), 1 + rnd.nextInt(50));
+			single.add(boxes[i], refs[i]);
+		}
+		SpatialIndex bulk = factory.get();
+		bulk.addAll(boxes, refs);
+		assertEquals(single.size(), bulk.size());
+		for (int round = 0; round < 50; round++) {
+			int lx = rnd.nextInt(200) - 100, ly = rnd.nextInt(200) - 100;
+			SearchBounds bounds = new SearchBounds(lx, ly, lx + rnd.nextInt(100), ly + rnd.nextInt(100));
+			assertEquals(new TreeSet<>(single.filter(bounds)), new TreeSet<>(bulk.filter(bounds)), "round " + round);
+		}
+		bulk.delete(boxes[0], refs[0]);
+		assertEquals(boxes.length - 1, bulk.size());
+		bulk.add(boxes[0], refs[0]);
+		SearchBounds all = new SearchBounds(-100, -100, 100, 100);
+		assertEquals(new TreeSet<>(single.filter(all)), new TreeSet<>(bulk.filter(all)));
+	}
+}
@@ -3,27 +3,42 @@ package com.miro.widget.repo;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
 import com.miro.widget.model.SearchBounds;
 import com.miro.widget.model.Widget;
+import com.miro.widget.model.ZPage;
 
 public class WidgetInMemRepoTests{
 	
-	private static WidgetInMemRepo repo;
+	private static WidgetRepository repo;
 	private static Widget w1;
 	private static Widget w2;
 	private static Widget w3;
 	private static Widget w4;
 	
 
+	WidgetRepository createRepo() {
+		return new WidgetInMemRepo();
+	}
+
 	@BeforeEach
 	void setupData() {
-		repo = new WidgetInMemRepo();
+		repo = createRepo();
 		assertEquals(0, repo.count());
 		w1 = new Widget(null, 5, 6, null, 7, 8);
 		w2 = new Widget(null, 7, 8, null, 9, 10);
@@ -221,4 +236,196 @@ public class WidgetInMemRepoTests{
     	i = results.iterator();
     	assertFalse(i.hasNext());
     }
-}
\ No newline at end of file
+    
+    @Test
+    public void shiftedWidgetsStaySearchable() {
+    	Widget a = repo.save(new Widget(null, 0, 0, 1, 5, 5));
+    	Widget b = repo.save(new Widget(null, 1, 1, 2, 5, 5));
+    	repo.save(new Widget(null, 2, 2, 1, 5, 5));
+    	
+    	Iterator<Widget> i = repo.search(new SearchBounds(0, 0, 9, 9)).iterator();
+    	assertEquals(3l, i.next().getId().longValue());
+    	Widget aShifted = i.next();
+    	assertEquals(a.getId(), aShifted.getId());
+    	assertEquals(2, aShifted.getzIndex().intValue());
+    	Widget bShifted = i.next();
+    	assertEquals(b.getId(), bShifted.getId());
+    	assertEquals(3, bShifted.getzIndex().intValue());
+    	assertFalse(i.hasNext());
+    }
+    
+    @Test
+    public void longRunShiftsMatchEagerShifting() {
+    	//reference model: z -> id, shifted eagerly one widget at a time
+    	TreeMap<Integer, Long> expected = new TreeMap<>();
+    	List<Long> ids = new ArrayList<>();
+    	Random rnd = new Random(11);
+    	for (int round = 0; round < 5000; round++) {
+    		int op = rnd.nextInt(10);
+    		if (ids.isEmpty() || (op < 6)) {
+    			Integer z = (rnd.nextInt(4) == 0) ? null : rnd.nextInt(200) - 100;
+    			Widget w = repo.save(new Widget(null, rnd.nextInt(100), rnd.nextInt(100), z, 1, 1));
+    			insertExpected(expected, z, w.getId());
+    			ids.add(w.getId());
+    		} else if (op < 8) {
+    			Long id = ids.get(rnd.nextInt(ids.size()));
+    			Integer z = rnd.nextInt(200) - 100;
+    			expected.values().remove(id);
+    			repo.save(new Widget(id, 1, 1, z, 1, 1));
+    			insertExpected(expected, z, id);
+    		} else {
+    			Long id = ids.remove(rnd.nextInt(ids.size()));
+    			expected.values().remove(id);
+    			repo.deleteById(id);
+    		}
+    	}
+    	assertEquals(expected.size(), repo.count());
+    	Iterator<Widget> all = repo.findAll().iterator();
+    	for (Map.Entry<Integer, Long> e : expected.entrySet()) {
+    		assertTrue(all.hasNext());
+    		Widget w = all.next();
+    		assertEquals(e.getValue(), w.getId());
+    		assertEquals(e.getKey(), w.getzIndex());
+    		assertEquals(e.getKey(), repo.findById(e.getValue()).get().getzIndex());
+    	}
+    	assertFalse(all.hasNext());
+    }
+    
+    @Test
+    public void pagesMatchFullListing() {
+    	Random rnd = new Random(5);
+    	for (int n = 0; n < 300; n++)	//clashing z values leave shifted runs behind
+    		repo.save(new Widget(null, rnd.nextInt(50), rnd.nextInt(50), rnd.nextInt(400) - 200, 5, 5));
+    	List<Widget> all = new ArrayList<>();
+    	repo.findAll().forEach(all::add);
+    	
+    	List<Widget> forward = new ArrayList<>();
+    	Integer cursor = null;
+    	for (List<Widget> page; !(page = repo.findPage(new ZPage(cursor, null, 7))).isEmpty(); ) {
+    		assertTrue(page.size() <= 7);
+    		forward.addAll(page);
+    		cursor = page.get(page.size() - 1).getzIndex();
+    	}
+    	assertEquals(all, forward);
+    	
+    	List<Widget> backward = new ArrayList<>();
+    	cursor = Integer.MAX_VALUE;
+    	for (List<Widget> page; !(page = repo.findPage(new ZPage(null, cursor, 9))).isEmpty(); ) {
+    		backward.addAll(0, page);
+    		cursor = page.get(0).getzIndex();
+    	}
+    	assertEquals(all, backward);
+    	
+    	int lo = all.get(40).getzIndex();
+    	int hi = all.get(60).getzIndex();
+    	assertEquals(all.subList(41, 60), repo.findPage(new ZPage(lo, hi, null)));
+    	assertEquals(all.subList(41, 46), repo.findPage(new ZPage(lo, hi, 5)));
+    	assertEquals(all.subList(55, 60), repo.findPage(new ZPage(null, hi, 5)));
+    	assertTrue(repo.findPage(new ZPage(hi, lo, 5)).isEmpty());
+    	assertTrue(repo.findPage(new ZPage(null, Integer.MIN_VALUE, 5)).isEmpty());
+    	assertTrue(repo.findPage(new ZPage(Integer.MAX_VALUE, null, 5)).isEmpty());
+    	
+    	SearchBounds bounds = new SearchBounds(0, 0, 30, 30);
+    	List<Widget> found = new ArrayList<>();
+    	repo.search(bounds).forEach(found::add);
+    	List<Widget> paged = new ArrayList<>();
+    	cursor = null;
+    	for (List<Widget> page; !(page = repo.search(bounds, new ZPage(cursor, null, 4))).isEmpty(); ) {
+    		paged.addAll(page);
+    		cursor = page.get(page.size() - 1).getzIndex();
+    	}
+    	assertEquals(found, paged);
+    }
+    
+    @Test
+    public void cachedSearchesMatchUncachedOnes() {
+    	WidgetInMemRepo cached = new WidgetInMemRepo(new CartesianIndex(), new SearchResultCache(8, 1000));
+    	WidgetInMemRepo uncached = new WidgetInMemRepo(new CartesianIndex());
+    	SearchBounds[] viewports = new SearchBounds[12];
+    	Random rnd = new Random(3);
+    	for (int v = 0; v < viewports.length; v++) {
+    		int x = rnd.nextInt(80);
+    		int y = rnd.nextInt(80);
+    		viewports[v] = new SearchBounds(x, y, x + 10 + rnd.nextInt(30), y + 10 + rnd.nextInt(30));
+    	}
+    	List<Long> ids = new ArrayList<>();
+    	for (int round = 0; round < 3000; round++) {
+    		int op = rnd.nextInt(10);
+    		if (ids.isEmpty() || (op < 4)) {
+    			Integer z = (rnd.nextInt(3) == 0) ? null : rnd.nextInt(100);
+    			Widget w = new Widget(null, rnd.nextInt(100), rnd.nextInt(100), z, 1 + rnd.nextInt(9), 1 + rnd.nextInt(9));
+    			cached.save(w);
+    			uncached.save(new Widget(w.getId(), w.getX(), w.getY(), z, w.getWidth(), w.getHeight()));
+    			ids.add(w.getId());
+    		} else if (op < 6) {
+    			Widget w = new Widget(ids.get(rnd.nextInt(ids.size())), rnd.nextInt(100), rnd.nextInt(100),
+    					rnd.nextInt(100), 1 + rnd.nextInt(9), 1 + rnd.nextInt(9));
+    			cached.save(w.cloneAndZShift(w.getzIndex()));
+    			uncached.save(w);
+    		} else if (op < 7) {
+    			Long id = ids.remove(rnd.nextInt(ids.size()));
+    			cached.deleteById(id);
+    			uncached.deleteById(id);
+    		} else {
+    			SearchBounds b = viewports[rnd.nextInt(viewports.length)];
+    			List<Widget> expected = new ArrayList<>();
+    			uncached.search(b).forEach(expected::add);
+    			List<Widget> actual = new ArrayList<>();
+    			cached.search(b).forEach(actual::add);
+    			assertEquals(expected, actual);
+    		}
+    	}
+    	assertTrue(cached.getSearchCache().getHits() > 0);
+    }
+
+    @Test
+    public void columnScansMatchIndexSearches() {
+    	WidgetInMemRepo scanning = new WidgetInMemRepo(new CartesianIndex(), null, new WidgetColumns(0));
+    	WidgetInMemRepo indexed = new WidgetInMemRepo(new CartesianIndex());
+    	Random rnd = new Random(5);
+    	for (int round = 0; round < 2000; round++) {
+    		if (rnd.nextInt(4) == 0) {
+    			long id = 1l + rnd.nextInt(round + 1);
+    			scanning.deleteById(id);
+    			indexed.deleteById(id);
+    		} else {
+    			Widget w = new Widget(null, rnd.nextInt(200) - 100, rnd.nextInt(200) - 100, null, 1 + rnd.nextInt(30), 1 + rnd.nextInt(30));
+    			scanning.save(w);
+    			indexed.save(w.cloneAndZShift(null));
+    		}
+    		if (round % 100 == 0) {
+    			int x = rnd.nextInt(200) - 100, y = rnd.nextInt(200) - 100;
+    			SearchBounds b = new SearchBounds(x, y, x + rnd.nextInt(150), y + rnd.nextInt(150));
+    			List<Widget> expected = new ArrayList<>();
+    			indexed.search(b).forEach(expected::add);
+    			List<Widget> actual = new ArrayList<>();
+    			scanning.search(b).forEach(actual::add);
+    			assertEquals(expected, actual, "round " + round);
+    			assertEquals(indexed.search(b, new ZPage(null, null, 5)), scanning.search(b, new ZPage(null, null, 5)));
+    		}
+    	}
+    }
+    
+    @Test
+    public void shiftCascadesAreMeasured() {
+    	SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    	((MeterBinder) repo).bindTo(registry);
+    	for (int n = 0; n < 5; n++)
+    		repo.save(new Widget(null, 1, 1, n, 1, 1));
+    	repo.save(new Widget(null, 1, 1, 1, 1, 1));	//shifts z 1 to 4 up
+    	DistributionSummary up = registry.get("widget.repo.shift.cascade").tag("direction", "up").summary();
+    	assertEquals(1, up.count());
+    	assertEquals(4.0, up.totalAmount());
+    	assertEquals(6.0, registry.get("widget.repo.widgets").gauge().value());
+    }
+    
+    private static void insertExpected(TreeMap<Integer, Long> expected, Integer z, Long id) {
+    	if (null == z) {
+    		expected.put(expected.isEmpty() ? 0 : expected.lastKey() + 1, id);
+    		return;
+    	}
+    	Long moving = id;
+    	for (int pos = z; null != moving; pos++)
+    		moving = expected.put(pos, moving);
+    }
+}
@@ -0,0 +1,55 @@
+package com.miro.widget.repo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+
+/**
+ * Runs the WidgetInMemRepo tests against WidgetMvccRepo, plus snapshot isolation tests.
+ */
+public class WidgetMvccRepoTests extends WidgetInMemRepoTests {
+
+	@Override
+	WidgetRepository createRepo() {
+		return new WidgetMvccRepo();
+	}
+
+	@Test
+	public void readersKeepTheirSnapshot() {
+		WidgetMvccRepo mvcc = new WidgetMvccRepo();
+		assertTrue(mvcc.supportsLockFreeReads());
+		mvcc.save(new Widget(null, 0, 0, 0, 5, 5));
+		mvcc.save(new Widget(null, 1, 1, 1, 5, 5));
+
+		Iterable<Widget> before = mvcc.findAll();
+		Iterable<Widget> searchBefore = mvcc.search(new SearchBounds(0, 0, 10, 10));
+		mvcc.save(new Widget(null, 2, 2, 0, 5, 5));	//shifts both others up
+		mvcc.deleteById(1l);
+
+		List<Integer> zs = new ArrayList<>();
+		before.forEach(w -> zs.add(w.getzIndex()));
+		assertEquals(2, zs.size());
+		assertEquals(0, zs.get(0).intValue());
+		assertEquals(1, zs.get(1).intValue());
+		Iterator<Widget> i = searchBefore.iterator();
+		assertEquals(1l, i.next().getId().longValue());
+		assertEquals(2l, i.next().getId().longValue());
+		assertFalse(i.hasNext());
+
+		i = mvcc.findAll().iterator();
+		assertEquals(3l, i.next().getId().longValue());
+		Widget second = i.next();
+		assertEquals(2l, second.getId().longValue());
+		assertEquals(2, second.getzIndex().intValue());
+		assertFalse(i.hasNext());
+	}
+}
@@ -0,0 +1,90 @@
+package com.miro.widget.repo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.miro.widget.model.Widget;
+
+/**
+ * Runs the WidgetInMemRepo tests against WidgetOffHeapRepo, plus slot reuse tests.
+ */
+public class WidgetOffHeapRepoTests extends WidgetInMemRepoTests {
+
+	@Override
+	WidgetRepository createRepo() {
+		return new WidgetOffHeapRepo();
+	}
+
+	@Test
+	public void returnedWidgetsAreCopies() {
+		WidgetOffHeapRepo repo = new WidgetOffHeapRepo();
+		Widget saved = repo.save(new Widget(null, 1, 2, 3, 4, 5));
+		saved.setX(100);
+		Widget found = repo.findById(saved.getId()).get();
+		assertEquals(1, found.getX().intValue());
+		found.setzIndex(7);
+		assertEquals(3, repo.findById(saved.getId()).get().getzIndex().intValue());
+	}
+
+	@Test
+	public void primitiveIndexIsTheDefault() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		new WidgetOffHeapRepo(new WidgetRepoProperties()).bindTo(registry);
+		assertEquals(1, registry.find("widget.index.size").tag("index", "PrimitiveCartesianIndex").gauges().size());
+
+		WidgetRepoProperties props = new WidgetRepoProperties();
+		props.setIndex(WidgetRepoProperties.IndexType.RTREE);
+		registry = new SimpleMeterRegistry();
+		new WidgetOffHeapRepo(props).bindTo(registry);
+		assertEquals(1, registry.find("widget.index.size").tag("index", "RTreeIndex").gauges().size());
+	}
+
+	@Test
+	public void freedSlotsAreReused() {
+		WidgetSlots slots = new WidgetSlots();
+		List<Integer> taken = new ArrayList<>();
+		for (int i = 0; i < 100_000; i++)
+			taken.add(slots.alloc());
+		long allocated = slots.allocatedBytes();
+		for (int slot : taken)
+			slots.free(slot);
+		assertEquals(0, slots.size());
+		for (int i = 0; i < 100_000; i++)
+			slots.alloc();
+		assertEquals(allocated, slots.allocatedBytes());
+		assertEquals(100_000, slots.size());
+	}
+
+	@Test
+	public void randomWritesMatchWidgetInMemRepo() {
+		WidgetInMemRepo expected = new WidgetInMemRepo();
+		WidgetOffHeapRepo actual = new WidgetOffHeapRepo();
+		Random rnd = new Random(19);
+		for (int i = 0; i < 3000; i++) {
+			if (rnd.nextInt(4) == 0) {
+				long id = 1l + rnd.nextInt(i + 1);
+				expected.deleteById(id);
+				actual.deleteById(id);
+			} else {
+				Long id = rnd.nextBoolean() ? null : Long.valueOf(1 + rnd.nextInt(i + 10));
+				Integer z = rnd.nextBoolean() ? null : Integer.valueOf(rnd.nextInt(100));
+				Widget w = new Widget(id, rnd.nextInt(500), rnd.nextInt(500), z, 1 + rnd.nextInt(50), 1 + rnd.nextInt(50));
+				assertEquals(expected.save(w.cloneAndZShift(z)), actual.save(w));
+			}
+		}
+		List<Widget> e = new ArrayList<>(), a = new ArrayList<>();
+		expected.findAll().forEach(e::add);
+		actual.findAll().forEach(a::add);
+		assertEquals(e, a);
+		assertNotEquals(0, a.size());
+		assertEquals(expected.count(), actual.count());
+	}
+}
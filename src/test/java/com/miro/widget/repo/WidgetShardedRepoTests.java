@@ -0,0 +1,173 @@
+package com.miro.widget.repo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import com.miro.widget.model.IBoundingBox;
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+
+/**
+ * Runs the WidgetInMemRepo tests against WidgetShardedRepo, with small regions so that Widgets spread over
+ * the shards, plus sharding and concurrency tests.
+ */
+public class WidgetShardedRepoTests extends WidgetInMemRepoTests {
+
+	@Override
+	WidgetRepository createRepo() {
+		return new WidgetShardedRepo(4, 8, CartesianIndex::new);
+	}
+
+	@Test
+	public void randomWritesMatchWidgetInMemRepo() {
+		WidgetInMemRepo expected = new WidgetInMemRepo();
+		WidgetShardedRepo actual = new WidgetShardedRepo(4, 64, CartesianIndex::new);
+		Random rnd = new Random(23);
+		for (int i = 0; i < 3000; i++) {
+			if (rnd.nextInt(4) == 0) {
+				long id = 1l + rnd.nextInt(i + 1);
+				expected.deleteById(id);
+				actual.deleteById(id);
+			} else {
+				Long id = rnd.nextBoolean() ? null : Long.valueOf(1 + rnd.nextInt(i + 10));
+				Integer z = rnd.nextBoolean() ? null : Integer.valueOf(rnd.nextInt(100));
+				Widget w = new Widget(id, rnd.nextInt(500), rnd.nextInt(500), z, 1 + rnd.nextInt(50), 1 + rnd.nextInt(50));
+				assertEquals(expected.save(w.cloneAndZShift(z)), actual.save(w));
+			}
+		}
+		List<Widget> e = new ArrayList<>(), a = new ArrayList<>();
+		expected.findAll().forEach(e::add);
+		actual.findAll().forEach(a::add);
+		assertEquals(e, a);
+		assertNotEquals(0, a.size());
+		assertEquals(expected.count(), actual.count());
+		for (int i = 0; i < 50; i++) {
+			int x = rnd.nextInt(500), y = rnd.nextInt(500);
+			SearchBounds bounds = new SearchBounds(x, y, x + rnd.nextInt(300), y + rnd.nextInt(300));
+			e.clear();
+			a.clear();
+			expected.search(bounds).forEach(e::add);
+			actual.search(bounds).forEach(a::add);
+			assertEquals(e, a);
+		}
+	}
+
+	@Test
+	public void concurrentWritesKeepZIndexValuesUnique() throws Exception {
+		WidgetShardedRepo repo = new WidgetShardedRepo(8, 16, CartesianIndex::new);
+		ExecutorService writers = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> done = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				Random rnd = new Random(t);
+				done.add(writers.submit(() -> {
+					for (int i = 0; i < 2000; i++) {
+						//mostly on top, some into the middle to force shifts, some moving existing widgets
+						Integer z = (rnd.nextInt(10) == 0) ? Integer.valueOf(rnd.nextInt(100)) : null;
+						Long id = (rnd.nextInt(5) == 0) ? Long.valueOf(1 + rnd.nextInt(1000)) : null;
+						repo.save(new Widget(id, rnd.nextInt(1000), rnd.nextInt(1000), z, 10, 10));
+						if (rnd.nextInt(10) == 0)
+							repo.deleteById(1l + rnd.nextInt(1000));
+					}
+				}));
+			}
+			for (Future<?> f : done)
+				f.get();
+		} finally {
+			writers.shutdown();
+		}
+		Set<Integer> zs = new HashSet<>();
+		Set<Long> ids = new HashSet<>();
+		int lastZ = Integer.MIN_VALUE;
+		for (Widget w : repo.findAll()) {
+			assertTrue(zs.add(w.getzIndex()));
+			assertTrue(ids.add(w.getId()));
+			assertTrue(w.getzIndex() >= lastZ);
+			lastZ = w.getzIndex();
+			assertEquals(w, repo.findById(w.getId()).get());
+		}
+		assertEquals(repo.count(), zs.size());
+		List<Widget> found = new ArrayList<>();
+		repo.search(new SearchBounds(0, 0, 2000, 2000)).forEach(found::add);
+		assertEquals(repo.count(), found.size());
+	}
+
+	@Test
+	public void concurrentCreatesOfTheSameIdKeepOneWidget() throws Exception {
+		CyclicBarrier bothAdding = new CyclicBarrier(2);
+		WidgetShardedRepo repo = new WidgetShardedRepo(8, 100, () -> new CartesianIndex() {
+			@Override
+			public void add(IBoundingBox box, Long ref) {
+				try {
+					//holds the shard lock until the other create adds too, if it gets that far
+					bothAdding.await(500, TimeUnit.MILLISECONDS);
+				} catch (Exception e) {
+					//the other create waits for this one
+				}
+				super.add(box, ref);
+			}
+		});
+		ExecutorService writers = Executors.newFixedThreadPool(2);
+		try {
+			//regions 0 and 1 are in different shards
+			Future<?> first = writers.submit(() -> repo.save(new Widget(1l, 0, 0, null, 10, 10)));
+			Future<?> second = writers.submit(() -> repo.save(new Widget(1l, 100, 0, null, 10, 10)));
+			first.get();
+			second.get();
+		} finally {
+			writers.shutdown();
+		}
+		List<Widget> all = new ArrayList<>();
+		repo.findAll().forEach(all::add);
+		assertEquals(1, all.size());
+		assertEquals(1, repo.count());
+		assertEquals(all.get(0), repo.findById(1l).get());
+		List<Widget> found = new ArrayList<>();
+		repo.search(new SearchBounds(0, 0, 1000, 1000)).forEach(found::add);
+		assertEquals(all, found);
+	}
+
+	@Test
+	public void readsAreExcludedByBatches() {
+		WidgetShardedRepo repo = new WidgetShardedRepo(4, 8, CartesianIndex::new);
+		//only batches take the exclusive lock, which reads must then wait for
+		assertTrue(repo.supportsConcurrentWrites());
+		assertFalse(repo.supportsLockFreeReads());
+	}
+
+	@Test
+	public void searchesVisitOverlappingShardsOnly() {
+		WidgetShardedRepo repo = new WidgetShardedRepo(16, 100, CartesianIndex::new);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		repo.bindTo(registry);
+		repo.save(new Widget(null, 10, 10, null, 50, 50));
+		repo.save(new Widget(null, 150, 10, null, 50, 50));
+		List<Widget> found = new ArrayList<>();
+		repo.search(new SearchBounds(0, 0, 99, 99)).forEach(found::add);
+		assertEquals(1, found.size());
+		found.clear();
+		repo.search(new SearchBounds(0, 0, 10_000, 10_000)).forEach(found::add);
+		assertEquals(2, found.size());
+		DistributionSummary fanOut = registry.get("widget.repo.search.shards").summary();
+		assertEquals(2, fanOut.count());
+		assertEquals(17.0, fanOut.totalAmount());
+	}
+}
@@ -0,0 +1,107 @@
+package com.miro.widget.repo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+
+public class WidgetSnapshotTests {
+
+	@TempDir
+	Path dir;
+
+	private static List<Widget> contents(WidgetRepository repo) {
+		return list(repo.findAll());
+	}
+
+	private static List<Widget> list(Iterable<Widget> widgets) {
+		List<Widget> list = new ArrayList<>();
+		widgets.forEach(list::add);
+		return list;
+	}
+
+	private static void assertSameContents(WidgetRepository expected, WidgetRepository actual) {
+		List<Widget> e = contents(expected), a = contents(actual);
+		assertEquals(e, a);
+		for (int i = 0; i < e.size(); i++)
+			assertEquals(e.get(i).getUpdateTime(), a.get(i).getUpdateTime());
+	}
+
+	private static void randomSaves(WidgetRepository repo, Random rnd, int count) {
+		for (int i = 0; i < count; i++) {
+			Integer z = rnd.nextBoolean() ? null : Integer.valueOf(rnd.nextInt(count));
+			repo.save(new Widget(null, rnd.nextInt(1000), rnd.nextInt(1000), z, 1 + rnd.nextInt(100), 1 + rnd.nextInt(100)));
+			if (rnd.nextInt(5) == 0)
+				repo.deleteById(1l + rnd.nextInt(i + 1));
+		}
+	}
+
+	@Test
+	public void restoredRepositoryEqualsTheOriginal() throws IOException {
+		WidgetInMemRepo repo = new WidgetInMemRepo();
+		randomSaves(repo, new Random(11), 3000);
+		Path file = dir.resolve("widgets.snapshot");
+		repo.snapshot().write(file);
+
+		WidgetInMemRepo restored = new WidgetInMemRepo();
+		restored.restore(WidgetSnapshot.read(file));
+		assertSameContents(repo, restored);
+		SearchBounds bounds = new SearchBounds(100, 100, 600, 600);
+		assertEquals(list(repo.search(bounds)), list(restored.search(bounds)));
+		//the restored tree takes further writes, including shifts, like the original
+		Widget w = new Widget(null, 1, 2, contents(repo).get(10).getzIndex(), 3, 4);
+		assertEquals(repo.save(w.cloneAndZShift(w.getzIndex())), restored.save(w));
+		assertEquals(contents(repo), contents(restored));
+	}
+
+	@Test
+	public void corruptSnapshotIsRejected() throws IOException {
+		WidgetInMemRepo repo = new WidgetInMemRepo();
+		randomSaves(repo, new Random(13), 100);
+		Path file = dir.resolve("widgets.snapshot");
+		repo.snapshot().write(file);
+		try (RandomAccessFile f = new RandomAccessFile(file.toFile(), "rw")) {
+			f.seek(100);
+			f.write(f.read() ^ 1);
+		}
+		assertThrows(IOException.class, () -> WidgetSnapshot.read(file));
+	}
+
+	@Test
+	public void logIsReplayedFromTheSnapshot() throws IOException {
+		Path walDir = dir.resolve("wal"), file = dir.resolve("widgets.snapshot");
+		WidgetInMemRepo repo = new WidgetInMemRepo();
+		repo.useSnapshots(file);
+		repo.recover(new WriteAheadLog(walDir, WriteAheadLog.MIN_SEGMENT_SIZE, WriteAheadLog.FsyncPolicy.NEVER, 100));
+		Random rnd = new Random(17);
+		randomSaves(repo, rnd, 500);
+		repo.checkpoint().run();
+		randomSaves(repo, rnd, 50);
+		repo.close();
+		try (Stream<Path> segments = Files.list(walDir)) {
+			assertEquals(1, segments.count());
+		}
+
+		WidgetInMemRepo recovered = new WidgetInMemRepo();
+		recovered.useSnapshots(file);
+		recovered.recover(new WriteAheadLog(walDir, WriteAheadLog.MIN_SEGMENT_SIZE, WriteAheadLog.FsyncPolicy.NEVER, 100));
+		assertSameContents(repo, recovered);
+		long maxId = contents(recovered).stream().mapToLong(Widget::getId).max().getAsLong();
+		assertTrue(recovered.save(new Widget(null, 1, 2, null, 3, 4)).getId() > maxId);
+		recovered.close();
+	}
+}
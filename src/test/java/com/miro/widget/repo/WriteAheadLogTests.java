@@ -0,0 +1,154 @@
+package com.miro.widget.repo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.miro.widget.model.Widget;
+
+public class WriteAheadLogTests {
+
+	@TempDir
+	Path dir;
+
+	private WidgetInMemRepo open(int segmentSize) {
+		WidgetInMemRepo repo = new WidgetInMemRepo();
+		repo.recover(new WriteAheadLog(dir, segmentSize, WriteAheadLog.FsyncPolicy.ALWAYS, 100));
+		return repo;
+	}
+
+	private static List<Widget> contents(WidgetRepository repo) {
+		List<Widget> widgets = new ArrayList<>();
+		repo.findAll().forEach(widgets::add);
+		return widgets;
+	}
+
+	private static void assertSameContents(WidgetRepository expected, WidgetRepository actual) {
+		List<Widget> e = contents(expected), a = contents(actual);
+		assertEquals(e, a);
+		for (int i = 0; i < e.size(); i++)
+			assertEquals(e.get(i).getUpdateTime(), a.get(i).getUpdateTime());
+	}
+
+	/**
+	 * Random saves, updates, shifting saves and deletes, including ids chosen by the client.
+	 */
+	private static void randomWrites(WidgetRepository repo, Random rnd, int count) {
+		for (int i = 0; i < count; i++) {
+			int op = rnd.nextInt(10);
+			if ((op < 2) && (repo.count() > 0)) {
+				repo.deleteById(1l + rnd.nextInt(i + 1));
+			} else {
+				Long id = (op < 5) ? null : Long.valueOf(1 + rnd.nextInt(i + 20));
+				Integer z = (op % 2 == 0) ? null : Integer.valueOf(rnd.nextInt(50));
+				repo.save(new Widget(id, rnd.nextInt(1000), rnd.nextInt(1000), z, 1 + rnd.nextInt(100), 1 + rnd.nextInt(100)));
+			}
+		}
+		repo.sync();
+	}
+
+	@Test
+	public void recoveryRestoresTheRepository() {
+		WidgetInMemRepo repo = open(1 << 20);
+		randomWrites(repo, new Random(3), 2000);
+		repo.close();
+
+		WidgetInMemRepo recovered = open(1 << 20);
+		assertSameContents(repo, recovered);
+		long maxId = contents(recovered).stream().mapToLong(Widget::getId).max().getAsLong();
+		Widget added = recovered.save(new Widget(null, 1, 2, null, 3, 4));
+		assertTrue(added.getId() > maxId);
+		recovered.deleteAll();
+		recovered.close();
+
+		WidgetInMemRepo reopened = open(1 << 20);
+		assertEquals(0, reopened.count());
+		reopened.close();
+	}
+
+	@Test
+	public void recoveryKeepsTheUpdateTimeOfSavesWithoutZIndex() throws InterruptedException {
+		WidgetInMemRepo repo = open(1 << 20);
+		repo.save(new Widget(null, 1, 1, null, 10, 10));
+		repo.save(new Widget(null, 2, 2, null, 10, 10));
+		Thread.sleep(5);
+		//the same properties without a z index: an update, as the z index differs from the request's, which keeps
+		//the top widget at its z index, so that replaying it with its final z index is no update
+		repo.save(new Widget(2l, 2, 2, null, 10, 10));
+		repo.sync();
+		repo.close();
+
+		WidgetInMemRepo recovered = open(1 << 20);
+		assertSameContents(repo, recovered);
+		recovered.close();
+	}
+
+	@Test
+	public void savesRecordedWithoutUpdateTimeAreRead() {
+		ByteBuffer buf = ByteBuffer.allocate(41);
+		buf.put((byte) Mutation.Type.SAVE.ordinal()).putLong(100).putInt(5).putLong(7);
+		buf.putInt(1).putInt(2).putInt(3).putInt(4).putInt(5).flip();
+		Mutation m = Mutation.readFrom(buf);
+		assertEquals(new Widget(7l, 1, 2, 3, 4, 5), m.toWidget());
+		assertEquals(Instant.ofEpochSecond(100, 5), m.getTime());
+		assertNull(m.getUpdateTime());
+		assertEquals(41, m.encodedSize());
+	}
+
+	@Test
+	public void segmentsRollOver() throws IOException {
+		WidgetInMemRepo repo = open(WriteAheadLog.MIN_SEGMENT_SIZE);
+		randomWrites(repo, new Random(5), 1000);
+		repo.close();
+		try (Stream<Path> files = Files.list(dir)) {
+			assertTrue(files.count() > 5);
+		}
+		WidgetInMemRepo recovered = open(WriteAheadLog.MIN_SEGMENT_SIZE);
+		assertSameContents(repo, recovered);
+		recovered.close();
+	}
+
+	@Test
+	public void tornWriteIsDiscarded() throws IOException {
+		WidgetInMemRepo repo = open(1 << 20);
+		repo.save(new Widget(null, 1, 2, null, 3, 4));
+		repo.save(new Widget(null, 5, 6, 0, 7, 8));
+		repo.close();
+		Path segment;
+		try (Stream<Path> files = Files.list(dir)) {
+			segment = files.collect(Collectors.toList()).get(0);
+		}
+		//start a third record, but only partly, as if the process died while writing it
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+			long end = 2 * (8 + 53);
+			file.seek(end);
+			file.writeInt(53);
+			file.writeInt(12345);
+			file.write(new byte[] { 0, 0, 0, 1 });
+		}
+
+		WidgetInMemRepo recovered = open(1 << 20);
+		assertEquals(contents(repo), contents(recovered));
+		//appends continue where the intact records end
+		recovered.save(new Widget(null, 9, 10, 0, 11, 12));
+		recovered.close();
+		WidgetInMemRepo reopened = open(1 << 20);
+		assertEquals(3, reopened.count());
+		reopened.close();
+	}
+}
@@ -0,0 +1,170 @@
+package com.miro.widget.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+import com.miro.widget.repo.WidgetRepoProperties;
+
+public class BoardRegistryTests {
+
+	@TempDir
+	Path dir;
+
+	private BoardRegistry registry;
+
+	private BoardRegistry registry(long maxWidgets) {
+		return registry(maxWidgets, new WidgetRepoProperties());
+	}
+
+	private BoardRegistry registry(long maxWidgets, WidgetRepoProperties repoProps) {
+		BoardProperties props = new BoardProperties();
+		props.setDir(dir.toString());
+		props.setMaxWidgets(maxWidgets);
+		props.setEvictIntervalMs(TimeUnit.HOURS.toMillis(1));
+		registry = new BoardRegistry(props, repoProps, new WidgetServiceProperties());
+		registry.start();
+		return registry;
+	}
+
+	@AfterEach
+	void stop() throws InterruptedException {
+		if (null != registry)
+			registry.stop();
+	}
+
+	private void fill(String board, int widgets) {
+		registry.withBoard(board, s -> {
+			for (int i = 0; i < widgets; i++)
+				s.addWidget(new Widget(null, i, i, null, 1, 1));
+			return null;
+		});
+	}
+
+	@Test
+	public void boardsAreIndependent() {
+		registry(1000);
+		Widget a = registry.withBoard("a", s -> s.addWidget(new Widget(null, 1, 1, null, 1, 1)));
+		Widget b = registry.withBoard("b", s -> s.addWidget(new Widget(null, 2, 2, 5, 1, 1)));
+		assertEquals(1L, a.getId().longValue());
+		assertEquals(1L, b.getId().longValue());
+		assertEquals(a, registry.withBoard("a", s -> s.getWidgetById(1)));
+		assertEquals(0, registry.withBoard("a", s -> s.search(new SearchBounds(2, 2, 3, 3))).size());
+		assertEquals(1, registry.withBoard("b", s -> s.search(new SearchBounds(2, 2, 3, 3))).size());
+		assertThrows(IllegalArgumentException.class, () -> registry.withBoard("../a", s -> null));
+	}
+
+	@Test
+	public void leastRecentlyUsedBoardsAreEvictedAndReloaded() throws InterruptedException {
+		registry(100);
+		fill("old", 40);
+		fill("mid", 40);
+		fill("new", 40);
+		registry.withBoard("mid", s -> null);	//now used more recently than "new"
+		registry.evictOverBudget();		//unless the check after loading "new" was first
+		assertFalse(registry.isLoaded("old"));
+		assertTrue(registry.isLoaded("mid"));
+		assertTrue(Files.exists(dir.resolve("old.snapshot")));
+		assertEquals(80, registry.loadedWidgets());
+
+		List<Widget> reloaded = registry.withBoard("old", s -> s.getAllWidgets());
+		assertEquals(40, reloaded.size());
+		assertEquals(41L, registry.withBoard("old", s -> s.addWidget(new Widget(null, 0, 0, null, 1, 1))).getId().longValue());
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (registry.isLoaded("new") && (System.nanoTime() < deadline))	//evicted after the load, in the background
+			Thread.sleep(10);
+		assertFalse(registry.isLoaded("new"));
+		assertTrue(registry.isLoaded("mid"));
+	}
+
+	@Test
+	public void boardsInUseAreNotEvicted() throws Exception {
+		registry(0);
+		fill("busy", 1);
+		registry.withBoard("other", s -> null);
+		CountDownLatch using = new CountDownLatch(1), done = new CountDownLatch(1);
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<?> user = pool.submit(() -> registry.withBoard("busy", s -> {
+				using.countDown();
+				try {
+					done.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return s.addWidget(new Widget(null, 1, 1, null, 1, 1));
+			}));
+			assertTrue(using.await(5, TimeUnit.SECONDS));
+			registry.withBoard("other", s -> null);		//most recently used, "busy" is the one to evict
+			assertEquals(0, registry.evictOverBudget());
+			done.countDown();
+			user.get(5, TimeUnit.SECONDS);
+		} finally {
+			pool.shutdownNow();
+		}
+		registry.evictOverBudget();
+		assertFalse(registry.isLoaded("busy"));
+		assertEquals(2, registry.withBoard("busy", s -> s.getAllWidgets()).size());
+	}
+
+	@Test
+	public void mostRecentlyUsedBoardIsKeptOverBudget() {
+		registry(1);
+		fill("big", 5);
+		assertEquals(0, registry.evictOverBudget());
+		assertTrue(registry.isLoaded("big"));
+	}
+
+	@Test
+	public void unchangedBoardsAreNotWrittenAgain() throws Exception {
+		registry(1000);
+		fill("a", 3);
+		registry.stop();
+		registry(1000);
+		assertEquals(3, registry.withBoard("a", s -> s.getAllWidgets()).size());
+		Files.delete(dir.resolve("a.snapshot"));
+		registry.stop();
+		assertFalse(Files.exists(dir.resolve("a.snapshot")));
+	}
+
+	@Test
+	public void changedBoardsAreWrittenPeriodically() throws InterruptedException {
+		WidgetRepoProperties repoProps = new WidgetRepoProperties();
+		repoProps.getSnapshot().setIntervalMs(10);
+		registry(1000, repoProps);
+		fill("a", 3);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!Files.exists(dir.resolve("a.snapshot")) && (System.nanoTime() < deadline))
+			Thread.sleep(10);
+		assertTrue(registry.isLoaded("a"));
+		assertTrue(Files.exists(dir.resolve("a.snapshot")));
+	}
+
+	@Test
+	public void stopWritesAllBoards() throws Exception {
+		registry(1000);
+		fill("a", 3);
+		registry.withBoard("empty", s -> null);
+		registry.stop();
+		assertTrue(Files.exists(dir.resolve("a.snapshot")));
+		assertFalse(Files.exists(dir.resolve("empty.snapshot")));
+		registry(1000);
+		assertEquals(3, registry.withBoard("a", s -> s.getAllWidgets()).size());
+	}
+}
@@ -0,0 +1,140 @@
+package com.miro.widget.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.miro.widget.model.Widget;
+import com.miro.widget.repo.WidgetInMemRepo;
+
+/**
+ * Runs a leader and followers in one JVM, connected over localhost.
+ */
+public class ReplicationTests {
+
+	private final List<Runnable> stops = new ArrayList<>();
+
+	@AfterEach
+	void stopAll() {
+		stops.forEach(Runnable::run);
+	}
+
+	private static WidgetService service(WidgetInMemRepo repo) {
+		WidgetService service = new WidgetService(new WidgetServiceProperties());
+		service.widgetRepo = repo;
+		return service;
+	}
+
+	private ReplicationLeader leader(WidgetService service, int backlog) {
+		ReplicationProperties props = new ReplicationProperties();
+		props.setPort(0);
+		props.setBacklog(backlog);
+		props.setHeartbeatMs(100);
+		ReplicationLeader leader = new ReplicationLeader(props);
+		leader.widgetService = service;
+		leader.widgetRepo = service.widgetRepo;
+		leader.start();
+		stops.add(() -> {
+			try {
+				leader.stop();
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		return leader;
+	}
+
+	private ReplicationFollower follower(WidgetService service, ReplicationLeader leader) {
+		ReplicationProperties props = new ReplicationProperties();
+		props.setLeader("localhost:" + leader.getPort());
+		props.setHeartbeatMs(100);
+		props.setReconnectMs(100);
+		ReplicationFollower follower = new ReplicationFollower(props);
+		follower.widgetService = service;
+		follower.widgetRepo = service.widgetRepo;
+		follower.start();
+		stops.add(0, () -> {
+			try {
+				follower.stop();
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		return follower;
+	}
+
+	private static void randomWrites(WidgetService service, Random rnd, int count) {
+		for (int i = 0; i < count; i++) {
+			if (rnd.nextInt(5) == 0) {
+				service.deleteWidgetById(1 + rnd.nextInt(count));
+			} else {
+				Long id = rnd.nextBoolean() ? null : Long.valueOf(1 + rnd.nextInt(count));
+				Integer z = rnd.nextBoolean() ? null : Integer.valueOf(rnd.nextInt(50));
+				service.updateWidget(new Widget(id, rnd.nextInt(500), rnd.nextInt(500), z, 10, 10));
+			}
+		}
+	}
+
+	private static void assertSameWidgets(WidgetService expected, WidgetService actual) {
+		List<Widget> e = expected.getAllWidgets(), a = actual.getAllWidgets();
+		assertEquals(e, a);
+		for (int i = 0; i < e.size(); i++)
+			assertEquals(e.get(i).getUpdateTime(), a.get(i).getUpdateTime());
+	}
+
+	@Test
+	public void followersCatchUpFromSnapshotsAndThenFollowMutations() throws Exception {
+		Random rnd = new Random(11);
+		WidgetService leaderService = service(new WidgetInMemRepo());
+		ReplicationLeader leader = leader(leaderService, 100);
+		randomWrites(leaderService, rnd, 500);	//more than the backlog, so followers start with a snapshot
+		WidgetService[] followerServices = { service(new WidgetInMemRepo()), service(new WidgetInMemRepo()) };
+		ReplicationFollower[] followers = new ReplicationFollower[followerServices.length];
+		for (int i = 0; i < followers.length; i++)
+			followers[i] = follower(followerServices[i], leader);
+		randomWrites(leaderService, rnd, 500);
+		for (int i = 0; i < followers.length; i++) {
+			assertTrue(followers[i].awaitPosition(leader.getEpoch(), leader.getPosition(), 5000));
+			assertSameWidgets(leaderService, followerServices[i]);
+			assertEquals(0, followers[i].getLag());
+		}
+	}
+
+	@Test
+	public void followersKeepTheUpdateTimeOfUpdatesWithoutZIndex() throws Exception {
+		WidgetService leaderService = service(new WidgetInMemRepo());
+		ReplicationLeader leader = leader(leaderService, 1000);
+		WidgetService followerService = service(new WidgetInMemRepo());
+		ReplicationFollower follower = follower(followerService, leader);
+		leaderService.addWidget(new Widget(null, 1, 1, null, 10, 10));
+		leaderService.addWidget(new Widget(null, 2, 2, null, 10, 10));
+		Thread.sleep(5);
+		//stays the top widget, at the z index it had, which a replay against the final z index takes as no update
+		leaderService.updateWidget(new Widget(2l, 2, 2, null, 10, 10));
+		assertTrue(follower.awaitPosition(leader.getEpoch(), leader.getPosition(), 5000));
+		assertSameWidgets(leaderService, followerService);
+	}
+
+	@Test
+	public void followersAreReadOnlyButSeeTheWritesOfTheirClients() throws Exception {
+		WidgetService leaderService = service(new WidgetInMemRepo());
+		ReplicationLeader leader = leader(leaderService, 1000);
+		WidgetService followerService = service(new WidgetInMemRepo());
+		ReplicationFollower follower = follower(followerService, leader);
+		assertThrows(ReadOnlyReplicaException.class, () -> followerService.addWidget(new Widget(null, 1, 1, null, 1, 1)));
+		for (int i = 0; i < 100; i++) {
+			Widget added = leaderService.addWidget(new Widget(null, i, i, null, 1, 1));
+			assertTrue(follower.awaitPosition(leader.formatPosition(), 5000));
+			assertEquals(added, followerService.getWidgetById(added.getId()));
+		}
+		assertFalse(follower.awaitPosition(leader.getEpoch(), leader.getPosition() + 1, 50));
+	}
+}
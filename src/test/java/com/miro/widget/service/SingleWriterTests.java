@@ -0,0 +1,143 @@
+package com.miro.widget.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class SingleWriterTests {
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+	@AfterEach
+	void shutdown() {
+		pool.shutdownNow();
+	}
+
+	@Test
+	public void ringKeepsTheOrderOfEachProducer() throws Exception {
+		WriteRing<long[]> ring = new WriteRing<>(64);
+		List<Future<?>> producers = new ArrayList<>();
+		for (int p = 0; p < 4; p++) {
+			final int producer = p;
+			producers.add(pool.submit(() -> {
+				for (long i = 0; i < 20_000; i++)
+					while (!ring.offer(new long[] { producer, i }))
+						Thread.yield();
+			}));
+		}
+		long[] next = new long[4];
+		List<long[]> taken = new ArrayList<>();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while ((taken.size() < 80_000) && (System.nanoTime() < deadline)) {
+			int start = taken.size();
+			ring.drainTo(taken, 16);
+			for (int i = start; i < taken.size(); i++)
+				assertEquals(next[(int) taken.get(i)[0]]++, taken.get(i)[1]);
+		}
+		for (Future<?> f : producers)
+			f.get(5, TimeUnit.SECONDS);
+		assertEquals(80_000, taken.size());
+		assertTrue(ring.isEmpty());
+		assertEquals(0, ring.size());
+	}
+
+	@Test
+	public void fullRingRejectsOffers() {
+		WriteRing<Integer> ring = new WriteRing<>(4);
+		for (int i = 0; i < 4; i++)
+			assertTrue(ring.offer(i));
+		assertFalse(ring.offer(4));
+		assertEquals(4, ring.size());
+		List<Integer> taken = new ArrayList<>();
+		assertEquals(2, ring.drainTo(taken, 2));
+		assertEquals(2, ring.size());
+		assertTrue(ring.offer(4));
+		ring.drainTo(taken, 10);
+		assertEquals(5, taken.size());
+		assertEquals(4, taken.get(4).intValue());
+		assertThrows(IllegalArgumentException.class, () -> new WriteRing<>(6));
+	}
+
+	@Test
+	public void commandsQueuedDuringACommitAreCommittedTogether() throws Exception {
+		CountDownLatch committing = new CountDownLatch(1), release = new CountDownLatch(1);
+		List<Integer> groups = new ArrayList<>();
+		SingleWriter writer = new SingleWriter("test-writer", 16, 8, (size, apply) -> {
+			apply.run();
+			groups.add(size);
+			committing.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		CompletableFuture<Integer> first = writer.submit(() -> 0);
+		assertTrue(committing.await(5, TimeUnit.SECONDS));
+		List<CompletableFuture<Integer>> queued = new ArrayList<>();
+		for (int i = 1; i <= 10; i++) {
+			final int n = i;
+			queued.add(writer.submit(() -> n));
+		}
+		CompletableFuture<Integer> failing = writer.submit(() -> {
+			throw new IllegalArgumentException("bad write");
+		});
+		assertFalse(first.isDone());	//not before its group is committed
+		release.countDown();
+		assertEquals(0, first.get(5, TimeUnit.SECONDS).intValue());
+		for (int i = 0; i < 10; i++)
+			assertEquals(i + 1, queued.get(i).get(5, TimeUnit.SECONDS).intValue());
+		ExecutionException e = assertThrows(ExecutionException.class, () -> failing.get(5, TimeUnit.SECONDS));
+		assertTrue(e.getCause() instanceof IllegalArgumentException);
+		writer.stop();
+		assertEquals(1, groups.get(0).intValue());
+		assertEquals(8, groups.get(1).intValue());
+		assertEquals(12, groups.stream().mapToInt(Integer::intValue).sum());
+		assertThrows(IllegalStateException.class, () -> writer.submit(() -> 0));
+	}
+
+	@Test
+	public void stoppingCompletesEveryQueuedCommand() throws Exception {
+		SingleWriter writer = new SingleWriter("test-writer", 16, 4, (size, apply) -> apply.run());
+		List<Future<List<CompletableFuture<Integer>>>> producers = new ArrayList<>();
+		CountDownLatch started = new CountDownLatch(4);
+		for (int p = 0; p < 4; p++) {
+			producers.add(pool.submit(() -> {
+				List<CompletableFuture<Integer>> futures = new ArrayList<>();
+				started.countDown();
+				try {
+					while (true)
+						futures.add(writer.submit(() -> 1));
+				} catch (IllegalStateException e) {		//stopped
+					return futures;
+				}
+			}));
+		}
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Thread.sleep(20);
+		writer.stop();
+		for (Future<List<CompletableFuture<Integer>>> p : producers) {
+			for (CompletableFuture<Integer> f : p.get(5, TimeUnit.SECONDS)) {
+				try {
+					assertEquals(1, f.get(5, TimeUnit.SECONDS).intValue());
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof IllegalStateException);
+				}
+			}
+		}
+	}
+}
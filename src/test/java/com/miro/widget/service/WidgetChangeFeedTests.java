@@ -0,0 +1,199 @@
+package com.miro.widget.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+import com.miro.widget.repo.WidgetInMemRepo;
+
+/**
+ * Drives the change feed tick by tick, and replays the events sent into a client side copy of the viewport.
+ */
+public class WidgetChangeFeedTests {
+
+	private static final SearchBounds VIEWPORT = new SearchBounds(0, 0, 100, 100);
+
+	private WidgetService service;
+	private WidgetChangeFeed feed;
+	private final BlockingQueue<Object[]> events = new LinkedBlockingQueue<>();
+
+	@BeforeEach
+	void setup() {
+		service = new WidgetService(new WidgetServiceProperties());
+		service.widgetRepo = new WidgetInMemRepo();
+		ChangeFeedProperties props = new ChangeFeedProperties();
+		props.setCoalesceMs(TimeUnit.HOURS.toMillis(1));	//ticks are driven by the tests
+		props.setMaxPending(50);
+		props.setSendTimeoutMs(100);
+		feed = new WidgetChangeFeed(props);
+		feed.widgetService = service;
+		feed.widgetRepo = service.widgetRepo;
+		feed.start();
+		feed.subscribe(VIEWPORT, new WidgetChangeFeed.Sink() {
+			@Override
+			public void send(String event, Object data) {
+				events.add(new Object[] { event, data });
+			}
+
+			@Override
+			public void keepAlive() {
+			}
+
+			@Override
+			public void close() {
+			}
+		});
+	}
+
+	@AfterEach
+	void stop() {
+		feed.stop();
+	}
+
+	/**
+	 * @return the events sent for the changes since the last tick
+	 */
+	private List<Object[]> tick() throws InterruptedException {
+		feed.tick();
+		List<Object[]> sent = new ArrayList<>();
+		Object[] e;
+		while (null != (e = events.poll(200, TimeUnit.MILLISECONDS)))
+			sent.add(e);
+		return sent;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void apply(Map<Long, Widget> client, List<Object[]> sent) {
+		for (Object[] e : sent) {
+			switch ((String) e[0]) {
+			case "reset":
+				client.clear();
+				((List<Widget>) e[1]).forEach(w -> client.put(w.getId(), w));
+				break;
+			case "created":
+			case "updated":
+				client.put(((Widget) e[1]).getId(), (Widget) e[1]);
+				break;
+			case "deleted":
+				client.remove(((Map<String, Long>) e[1]).get("id"));
+				break;
+			case "shifted":
+				WidgetChangeFeed.Shift s = (WidgetChangeFeed.Shift) e[1];
+				for (Map.Entry<Long, Widget> c : client.entrySet()) {
+					int z = c.getValue().getzIndex();
+					if ((z >= s.getLowestZ()) && (z <= s.getHighestZ()))
+						c.setValue(c.getValue().cloneAndZShift(z + s.getBy(), s.getUpdateTime()));
+				}
+				break;
+			}
+		}
+	}
+
+	private void assertClientMatches(Map<Long, Widget> client) {
+		List<Widget> expected = service.search(VIEWPORT), actual = new ArrayList<>(client.values());
+		actual.sort(Comparator.comparing(Widget::getzIndex));
+		assertEquals(expected, actual);
+		for (int i = 0; i < expected.size(); i++)
+			assertEquals(expected.get(i).getUpdateTime(), actual.get(i).getUpdateTime());
+	}
+
+	@Test
+	public void changesOfOneWidgetAreCoalesced() throws Exception {
+		Widget w = service.addWidget(new Widget(null, 10, 10, null, 10, 10));
+		assertEquals("reset", tick().get(0)[0]);
+		for (int x = 11; x <= 20; x++)
+			service.updateWidget(new Widget(w.getId(), x, 10, w.getzIndex(), 10, 10));
+		service.addWidget(new Widget(null, 500, 500, null, 10, 10));	//outside of the viewport
+		List<Object[]> sent = tick();
+		assertEquals(1, sent.size());
+		assertEquals("updated", sent.get(0)[0]);
+		assertEquals(20, ((Widget) sent.get(0)[1]).getX().intValue());
+		service.updateWidget(new Widget(w.getId(), 200, 10, w.getzIndex(), 10, 10));	//leaves the viewport
+		sent = tick();
+		assertEquals(1, sent.size());
+		assertEquals("deleted", sent.get(0)[0]);
+	}
+
+	@Test
+	public void shiftsArePushedBeforeTheSaveCausingThem() throws Exception {
+		for (int i = 0; i < 3; i++)
+			service.addWidget(new Widget(null, 10 * i, 10, null, 10, 10));
+		Map<Long, Widget> client = new HashMap<>();
+		apply(client, tick());
+		service.addWidget(new Widget(null, 50, 50, 0, 10, 10));
+		List<Object[]> sent = tick();
+		assertEquals("shifted", sent.get(0)[0]);
+		assertEquals(2, ((WidgetChangeFeed.Shift) sent.get(0)[1]).getHighestZ());
+		assertEquals("created", sent.get(1)[0]);
+		apply(client, sent);
+		assertClientMatches(client);
+	}
+
+	@Test
+	public void clientCopiesFollowRandomWrites() throws Exception {
+		Random rnd = new Random(13);
+		Map<Long, Widget> client = new HashMap<>();
+		for (int round = 0; round < 30; round++) {
+			//up to 60 changes per round, more than max-pending sometimes, which causes a reset
+			for (int i = 0, n = rnd.nextInt(60); i < n; i++) {
+				if (rnd.nextInt(6) == 0) {
+					service.deleteWidgetById(1 + rnd.nextInt(100));
+				} else {
+					Long id = rnd.nextBoolean() ? null : Long.valueOf(1 + rnd.nextInt(100));
+					Integer z = rnd.nextBoolean() ? null : Integer.valueOf(rnd.nextInt(30));
+					service.updateWidget(new Widget(id, rnd.nextInt(150), rnd.nextInt(150), z, 10, 10));
+				}
+			}
+			apply(client, tick());
+			assertClientMatches(client);
+		}
+	}
+
+	@Test
+	public void stalledSubscribersAreDropped() throws Exception {
+		CountDownLatch stalled = new CountDownLatch(1), closed = new CountDownLatch(1);
+		feed.subscribe(VIEWPORT, new WidgetChangeFeed.Sink() {
+			@Override
+			public void send(String event, Object data) {
+				stalled.countDown();
+				try {
+					closed.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			@Override
+			public void keepAlive() {
+			}
+
+			@Override
+			public void close() {
+				closed.countDown();
+			}
+		});
+		assertEquals("reset", tick().get(0)[0]);
+		assertTrue(stalled.await(5, TimeUnit.SECONDS));
+		Thread.sleep(150);
+		tick();
+		assertTrue(closed.await(5, TimeUnit.SECONDS));
+		service.addWidget(new Widget(null, 10, 10, null, 10, 10));
+		assertEquals("created", tick().get(0)[0]);		//the other subscriber is still served
+	}
+}
@@ -0,0 +1,193 @@
+package com.miro.widget.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.miro.widget.model.IBoundingBox;
+import com.miro.widget.model.SearchBounds;
+import com.miro.widget.model.Widget;
+import com.miro.widget.repo.WidgetInMemRepo;
+
+public class WidgetServiceConcurrencyTests {
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(8);
+
+	@AfterEach
+	void shutdown() {
+		pool.shutdownNow();
+	}
+
+	private static WidgetService service(WidgetServiceProperties.LockMode mode, WidgetInMemRepo repo) {
+		WidgetServiceProperties props = new WidgetServiceProperties();
+		props.setLocking(mode);
+		WidgetService service = new WidgetService(props);
+		service.widgetRepo = repo;
+		return service;
+	}
+
+	/**
+	 * Repository whose searches wait a while for a given number of searches to be in progress at the same time,
+	 * recording whether that happened.
+	 */
+	private static WidgetInMemRepo rendezvousRepo(CountDownLatch inSearch, Queue<Boolean> metOthers) {
+		return new WidgetInMemRepo() {
+			@Override
+			public Iterable<Widget> search(IBoundingBox bounds) {
+				inSearch.countDown();
+				try {
+					metOthers.add(inSearch.await(500, TimeUnit.MILLISECONDS));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.search(bounds);
+			}
+		};
+	}
+
+	private void searchTwiceConcurrently(WidgetService service) throws Exception {
+		Future<?> r1 = pool.submit(() -> service.search(new SearchBounds(0, 0, 1, 1)));
+		Future<?> r2 = pool.submit(() -> service.search(new SearchBounds(0, 0, 1, 1)));
+		r1.get(5, TimeUnit.SECONDS);
+		r2.get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void readWriteModeRunsReadsInParallel() throws Exception {
+		Queue<Boolean> metOthers = new ConcurrentLinkedQueue<>();
+		WidgetService service = service(WidgetServiceProperties.LockMode.READ_WRITE,
+				rendezvousRepo(new CountDownLatch(2), metOthers));
+		searchTwiceConcurrently(service);
+		assertEquals(Arrays.asList(true, true), new ArrayList<>(metOthers));
+	}
+
+	@Test
+	public void monitorModeSerializesReads() throws Exception {
+		Queue<Boolean> metOthers = new ConcurrentLinkedQueue<>();
+		WidgetService service = service(WidgetServiceProperties.LockMode.MONITOR,
+				rendezvousRepo(new CountDownLatch(2), metOthers));
+		searchTwiceConcurrently(service);
+		//the first search gave up waiting, the second could only start after it
+		assertEquals(Arrays.asList(false, true), new ArrayList<>(metOthers));
+	}
+
+	@Test
+	public void concurrentReadsSeeConsistentZShifts() throws Exception {
+		WidgetService service = service(WidgetServiceProperties.LockMode.READ_WRITE, new WidgetInMemRepo());
+		List<Future<?>> tasks = new ArrayList<>();
+		for (int t = 0; t < 2; t++) {
+			final int seed = t;
+			tasks.add(pool.submit(() -> {
+				Random rnd = new Random(seed);
+				for (int i = 0; i < 2000; i++)
+					service.addWidget(new Widget(null, rnd.nextInt(100), rnd.nextInt(100), rnd.nextInt(50), 5, 5));
+			}));
+		}
+		for (int t = 0; t < 6; t++) {
+			tasks.add(pool.submit(() -> {
+				for (int i = 0; i < 300; i++) {
+					List<Widget> widgets = (i % 2 == 0) ? service.getAllWidgets() : service.search(new SearchBounds(0, 0, 60, 60));
+					HashSet<Long> ids = new HashSet<>();
+					for (int w = 0; w < widgets.size(); w++) {
+						assertTrue(ids.add(widgets.get(w).getId()));
+						if (w > 0)
+							assertTrue(widgets.get(w - 1).getzIndex() < widgets.get(w).getzIndex());
+					}
+				}
+			}));
+		}
+		for (Future<?> f : tasks)
+			f.get(60, TimeUnit.SECONDS);
+		List<Widget> all = service.getAllWidgets();
+		assertEquals(4000, all.size());
+		assertFalse(all.stream().anyMatch(w -> !w.equals(service.getWidgetById(w.getId()))));
+	}
+
+	@Test
+	public void singleWriterModeAppliesConcurrentWrites() throws Exception {
+		WidgetServiceProperties props = new WidgetServiceProperties();
+		props.setWrites(WidgetServiceProperties.WriteMode.SINGLE_WRITER);
+		props.setWriterQueueSize(64);
+		WidgetService service = new WidgetService(props);
+		service.widgetRepo = new WidgetInMemRepo();
+		try {
+			List<Future<?>> tasks = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				final int seed = t;
+				tasks.add(pool.submit(() -> {
+					Random rnd = new Random(seed);
+					for (int i = 0; i < 1000; i++) {
+						Widget added = service.addWidget(new Widget(null, rnd.nextInt(100), rnd.nextInt(100), rnd.nextInt(50), 5, 5));
+						assertNotNull(service.getWidgetById(added.getId()));	//visible once returned
+						if (0 == i % 4)
+							service.deleteWidgetById(added.getId());
+					}
+				}));
+			}
+			for (Future<?> f : tasks)
+				f.get(60, TimeUnit.SECONDS);
+			List<Widget> all = service.getAllWidgets();
+			assertEquals(3000, all.size());
+			for (int w = 1; w < all.size(); w++)
+				assertTrue(all.get(w - 1).getzIndex() < all.get(w).getzIndex());
+			assertThrows(IllegalArgumentException.class, () -> service.updateWidget(new Widget(-1L, 0, 0, 0, 1, 1)));
+		} finally {
+			service.stop();
+		}
+	}
+
+	@Test
+	public void streamingReleasesTheLockBetweenPages() {
+		WidgetServiceProperties props = new WidgetServiceProperties();
+		props.setStreamPageSize(2);
+		WidgetService service = new WidgetService(props);
+		service.widgetRepo = new WidgetInMemRepo();
+		for (int n = 0; n < 5; n++)
+			service.addWidget(new Widget(null, n, n, null, 1, 1));
+		List<Integer> zs = new ArrayList<>();
+		for (Widget w : service.streamAllWidgets()) {
+			zs.add(w.getzIndex());
+			if (zs.size() == 3)		//would deadlock if the read lock were still held
+				service.addWidget(new Widget(null, 9, 9, null, 1, 1));
+		}
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), zs);
+	}
+
+	@Test
+	public void streamedSearchReleasesTheLockBetweenPages() {
+		WidgetServiceProperties props = new WidgetServiceProperties();
+		props.setStreamPageSize(2);
+		WidgetService service = new WidgetService(props);
+		service.widgetRepo = new WidgetInMemRepo();
+		for (int n = 0; n < 8; n++)
+			service.addWidget(new Widget(null, n, n, null, 1, 1));
+		List<Integer> zs = new ArrayList<>();
+		for (Widget w : service.streamSearch(new SearchBounds(0, 0, 5, 5))) {
+			zs.add(w.getzIndex());
+			if (zs.size() == 3) {	//would deadlock if the read lock were still held
+				service.addWidget(new Widget(null, 1, 1, null, 1, 1));
+				service.deleteWidgetById(5l);
+			}
+		}
+		//the widgets found at the start, less the one deleted since
+		assertEquals(Arrays.asList(0, 1, 2, 3), zs);
+	}
+}